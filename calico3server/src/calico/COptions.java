@@ -38,6 +38,27 @@ public class COptions
 		{
 			public static long timeout = 15000L;
 			public static int cluster_size = 400;// this is the number of coordinates to group together
+
+			public static String engine = "thread"; // "thread" (one ClientThread per socket) or "nio" (selector reactors)
+			public static int reactor_threads = 2;
+			public static long reactor_select_timeout = 250L; // also how often timeouts/heartbeats are checked
+			public static int read_buffer_size = 65536;
+			public static int max_frame_size = 67108864; // clients sending a bigger packet than this are disconnected
+			public static int spool_threshold = 1048576; // packets bigger than this are received into a temp file
+			public static int max_flush_bytes = 65536; // max bytes of queued packets written per socket write
+			public static long max_queue_bytes = 33554432L; // outbound bytes a client may have queued (0 = unbounded)
+			public static String overflow_policy = "coalesce"; // coalesce, drop_ephemeral, resync or disconnect
+			public static boolean coalesce_deltas = true; // merge queued moves/appends for the same element when a client falls behind
+			public static boolean compression = true; // use COMPRESSED envelopes for clients that ask for them at JOIN
+			public static int compression_threshold = 4096; // bulk transfers smaller than this are sent as is
+			public static int compression_batch_bytes = 262144; // max uncompressed bytes per envelope
+			public static int compression_level = 1; // java.util.zip.Deflater level (1 = fastest)
+			public static boolean canvas_scoped_fanout = false; // only relay live edits to clients viewing that canvas, others resync when they enter it
+			public static boolean udp = true; // send ephemeral packets (pen/audio presence) over UDP to clients that passed UDP_CHALLENGE
+			public static int udp_max_datagram = 1400; // bigger ephemeral packets go over TCP
+			public static boolean buffer_pool = true; // reuse inbound frame and scratch buffers (see BufferPool)
+			public static int buffer_pool_per_class = 256; // max free buffers kept for each size (64 bytes to 64KB)
+			public static boolean batch = true; // send queued packets to clients that ask for it at JOIN as one BATCH frame
 		}
 	}
 
@@ -62,8 +83,14 @@ public class COptions
 	public static class canvas
 	{
 		public static int max_snapshots = 50;
-		public static long sleeptime = 10L; // Must be less than 5000
-		public static int max_sleep_count = (int) (5000 / sleeptime);
+		public static int undo_checkpoint_interval = 20; // every this many snapshots the undo log looks over the whole canvas
+		public static int workers = 0; // threads running canvas packets, 0 = one per core
+		public static int ring_points = 64; // hash ring points per worker
+		public static int mailbox_size = 4096; // packets waiting per worker before the sender has to wait (nio clients stop being read instead)
+		public static int rebalance_seconds = 5;
+		public static double rebalance_threshold = 0.25; // how much busier (of the time) the busiest worker must be before a canvas moves
+		public static int rebalance_max_moves = 4;
+		public static int spatial_cell_size = 256; // pixels per side of a cell in each canvas's spatial index
 	}
 	
 	public static class uuid
@@ -88,6 +115,12 @@ public class COptions
 		}
 		
 		public static String plugins = "";
+		
+		public static class events
+		{
+			public static int async_lanes = 2; // threads for ASYNC_PASSIVE_LISTENER listeners (a canvas always uses the same one)
+			public static int async_queue_size = 10000; // events waiting per lane, the packet thread waits when it is full
+		}
 	}
 	
 	public static class group
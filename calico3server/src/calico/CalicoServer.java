@@ -37,7 +37,6 @@ import org.apache.commons.vfs.Selectors;
 import org.apache.log4j.*;
 
 import it.unimi.dsi.fastutil.ints.Int2ReferenceAVLTreeMap;
-import it.unimi.dsi.fastutil.longs.Long2ReferenceAVLTreeMap;
 import it.unimi.dsi.fastutil.objects.*;
 
 
@@ -58,7 +57,6 @@ public class CalicoServer
 	public static InetAddress listenHost;
 
 	public static Object2ReferenceOpenHashMap<Client,ClientThread> clientThreads = new Object2ReferenceOpenHashMap<Client,ClientThread>();
-	public static Long2ReferenceAVLTreeMap<CanvasThread> canvasThreads = new Long2ReferenceAVLTreeMap<CanvasThread>();
 	public static Int2ReferenceAVLTreeMap<Object> canvasCommands = CanvasThread.getCanvasCommands();
 	
 	public static String[] args = null;
@@ -123,6 +121,8 @@ public class CalicoServer
 		CGroupController.setup();
 		CSessionController.setup();
 		
+		CanvasExecutor.setup();
+		
 		
 		logger.info(Runtime.getRuntime().availableProcessors()+" available CPUs");
 		logger.info(Runtime.getRuntime().freeMemory()+"/"+Runtime.getRuntime().totalMemory()+" ("+CalicoUtils.printByteSize(Runtime.getRuntime().maxMemory())+") memory");
@@ -180,6 +180,19 @@ public class CalicoServer
 		CalicoPluginManager.setup();
 		
 		
+		if(NioNetworkEngine.isEnabled())
+		{
+			try
+			{
+				NioNetworkEngine.listen(listenHost, COptions.listen.port);
+			}
+			catch(Exception e)
+			{
+				e.printStackTrace();
+			}
+			return;
+		}
+		
 		try
 		{
 			sock = new ServerSocket(COptions.listen.port,50,listenHost);
@@ -0,0 +1,413 @@
+package calico;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.objects.ReferenceArrayList;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import calico.clients.Client;
+import calico.networking.netstuff.CalicoPacket;
+
+/**
+ * Runs canvas packets on a fixed pool of CanvasThreads (canvas.workers, or one per core).
+ *
+ * Every canvas is pinned to one worker, so its packets run one at a time and in order. Where
+ * a canvas starts out is picked off a hash ring, so canvases spread out evenly and stay put.
+ * Every so often (canvas.rebalance_seconds) the busiest worker hands a canvas to the least
+ * busy one. Only canvases with nothing queued get moved, otherwise their packets could run
+ * out of order.
+ *
+ * dispatch() and offer() take no locks, they just bump the canvas's pending count and queue
+ * the packet.
+ */
+public class CanvasExecutor
+{
+	private static Logger logger = Logger.getLogger(CanvasExecutor.class.getName());
+
+	// pending is set to this while a canvas is being moved, dispatch waits until it is done
+	private static final int MOVING = -1;
+
+	/**
+	 * Where a canvas runs, and its numbers
+	 */
+	static class CanvasRoute
+	{
+		final long canvasid;
+		volatile int worker;
+		final AtomicInteger pending = new AtomicInteger(0);
+
+		final AtomicLong processed = new AtomicLong(0L);
+		final AtomicLong errors = new AtomicLong(0L);
+		final AtomicLong stalls = new AtomicLong(0L);
+		final AtomicLong moves = new AtomicLong(0L);
+		final AtomicLong totalWaitNanos = new AtomicLong(0L);
+		final AtomicLong totalRunNanos = new AtomicLong(0L);
+		volatile long maxWaitNanos = 0L;
+		volatile long maxRunNanos = 0L;
+
+		// Only touched by rebalance()
+		long lastRunNanos = 0L;
+
+		CanvasRoute(long canvasid, int worker)
+		{
+			this.canvasid = canvasid;
+			this.worker = worker;
+		}
+
+		/**
+		 * Called by the worker once a packet is done (only one worker runs a canvas at a time)
+		 */
+		void record(long waited, long ran, boolean failed)
+		{
+			this.processed.incrementAndGet();
+			if(failed)
+			{
+				this.errors.incrementAndGet();
+			}
+			this.totalWaitNanos.addAndGet(waited);
+			this.totalRunNanos.addAndGet(ran);
+			this.maxWaitNanos = Math.max(this.maxWaitNanos, waited);
+			this.maxRunNanos = Math.max(this.maxRunNanos, ran);
+
+			// Last, so rebalance() can't move it until the packet is completely done
+			this.pending.decrementAndGet();
+		}
+
+		void addTo(Properties props, String prefix)
+		{
+			long count = this.processed.get();
+			props.setProperty(prefix+".Worker", ""+this.worker);
+			props.setProperty(prefix+".MailboxDepth", ""+Math.max(0, this.pending.get()));
+			props.setProperty(prefix+".Processed", ""+count);
+			props.setProperty(prefix+".Errors", ""+this.errors.get());
+			props.setProperty(prefix+".Stalls", ""+this.stalls.get());
+			props.setProperty(prefix+".Moves", ""+this.moves.get());
+			props.setProperty(prefix+".AvgWaitMicros", ""+(count==0 ? 0 : this.totalWaitNanos.get() / count / 1000L));
+			props.setProperty(prefix+".MaxWaitMicros", ""+(this.maxWaitNanos / 1000L));
+			props.setProperty(prefix+".AvgRunMicros", ""+(count==0 ? 0 : this.totalRunNanos.get() / count / 1000L));
+			props.setProperty(prefix+".MaxRunMicros", ""+(this.maxRunNanos / 1000L));
+		}
+	}
+
+	private static volatile CanvasThread[] workers = null;
+
+	// The hash ring: sorted points, and the worker each one belongs to
+	private static long[] ringPoints = new long[0];
+	private static int[] ringWorkers = new int[0];
+
+	private static ConcurrentHashMap<Long, CanvasRoute> routes = new ConcurrentHashMap<Long, CanvasRoute>();
+
+	// Busy time per worker when rebalance() last ran
+	private static long[] lastBusyNanos = new long[0];
+	private static long lastRebalance = 0L;
+	private static double[] recentUtilization = new double[0];
+
+	/**
+	 * Starts the workers (dispatch() does this too, if it hasn't been done)
+	 */
+	public static synchronized void setup()
+	{
+		if(workers!=null)
+		{
+			return;
+		}
+
+		int count = COptions.canvas.workers;
+		if(count<=0)
+		{
+			count = Runtime.getRuntime().availableProcessors();
+		}
+
+		int points = Math.max(1, COptions.canvas.ring_points);
+		long[] ring = new long[count * points];
+		for(int w=0;w<count;w++)
+		{
+			for(int i=0;i<points;i++)
+			{
+				ring[w * points + i] = (mix(((long) w << 32) | i) & ~0xFFFFL) | w;
+			}
+		}
+		// The worker is kept in the low bits, so sorting the points keeps track of whose they are
+		Arrays.sort(ring);
+		int[] owners = new int[ring.length];
+		for(int i=0;i<ring.length;i++)
+		{
+			owners[i] = (int) (ring[i] & 0xFFFFL);
+		}
+		ringPoints = ring;
+		ringWorkers = owners;
+
+		lastBusyNanos = new long[count];
+		recentUtilization = new double[count];
+		lastRebalance = System.nanoTime();
+
+		CanvasThread[] pool = new CanvasThread[count];
+		for(int i=0;i<count;i++)
+		{
+			pool[i] = new CanvasThread(i, Math.max(1, COptions.canvas.mailbox_size));
+			pool[i].start();
+		}
+		workers = pool;
+
+		logger.info("Started "+count+" canvas workers");
+	}
+
+	private static CanvasThread[] getWorkers()
+	{
+		CanvasThread[] pool = workers;
+		if(pool==null)
+		{
+			setup();
+			pool = workers;
+		}
+		return pool;
+	}
+
+	private static long mix(long h)
+	{
+		h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+		h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+		return h ^ (h >>> 33);
+	}
+
+	/**
+	 * @param canvasid
+	 * @return the worker the hash ring gives this canvas
+	 */
+	private static int getHomeWorker(long canvasid)
+	{
+		long h = mix(canvasid);
+		int pos = Arrays.binarySearch(ringPoints, h);
+		if(pos<0)
+		{
+			pos = -pos - 1;
+		}
+		if(pos>=ringPoints.length)
+		{
+			pos = 0;
+		}
+		return ringWorkers[pos];
+	}
+
+	private static CanvasRoute getRoute(long canvasid)
+	{
+		Long key = Long.valueOf(canvasid);
+		CanvasRoute route = routes.get(key);
+		if(route==null)
+		{
+			CanvasRoute made = new CanvasRoute(canvasid, getHomeWorker(canvasid));
+			route = routes.putIfAbsent(key, made);
+			if(route==null)
+			{
+				route = made;
+			}
+		}
+		return route;
+	}
+
+	/**
+	 * Queues the packet on the canvas's worker. Waits if that worker is full, so only call this
+	 * from a thread that reads for just one client (see offer()).
+	 * The worker releases the packet when it is done with it.
+	 * @param canvasid
+	 * @param command
+	 * @param client
+	 * @param packet
+	 */
+	public static void dispatch(long canvasid, int command, Client client, CalicoPacket packet)
+	{
+		CanvasThread[] pool = getWorkers();
+		CanvasRoute route = reserve(canvasid);
+		pool[route.worker].addPacketToQueue(route, command, client, packet);
+	}
+
+	/**
+	 * Queues the packet on the canvas's worker if it has room, without waiting.
+	 * The worker releases the packet when it is done with it.
+	 * @param canvasid
+	 * @param command
+	 * @param client
+	 * @param packet
+	 * @param onSpace run (on the worker) once it has room again, if the packet didn't fit. Can be null.
+	 * @return false if the worker was full, the packet still belongs to the caller
+	 */
+	public static boolean offer(long canvasid, int command, Client client, CalicoPacket packet, Runnable onSpace)
+	{
+		CanvasThread[] pool = getWorkers();
+		CanvasRoute route = reserve(canvasid);
+		if(pool[route.worker].offerPacket(route, command, client, packet, onSpace))
+		{
+			return true;
+		}
+		route.pending.decrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Bumps the canvas's pending count. Once it is up, the canvas can't be moved until the
+	 * packet is done.
+	 * @param canvasid
+	 * @return the canvas's route
+	 */
+	private static CanvasRoute reserve(long canvasid)
+	{
+		CanvasRoute route = getRoute(canvasid);
+		while(true)
+		{
+			int n = route.pending.get();
+			if(n!=MOVING && route.pending.compareAndSet(n, n+1))
+			{
+				return route;
+			}
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * Moves canvases off the busiest worker, if it is doing a lot more than the quietest one.
+	 * Run off the Ticker.
+	 * @return how many canvases were moved
+	 */
+	public static synchronized int rebalance()
+	{
+		CanvasThread[] pool = workers;
+		if(pool==null)
+		{
+			return 0;
+		}
+
+		long now = System.nanoTime();
+		long window = Math.max(1L, now - lastRebalance);
+		lastRebalance = now;
+
+		long[] busy = new long[pool.length];
+		for(int i=0;i<pool.length;i++)
+		{
+			long total = pool[i].getBusyNanos();
+			busy[i] = total - lastBusyNanos[i];
+			lastBusyNanos[i] = total;
+			recentUtilization[i] = (double) busy[i] / window;
+		}
+
+		// What each canvas did in the window
+		ReferenceArrayList<CanvasRoute> active = new ReferenceArrayList<CanvasRoute>();
+		LongArrayList activeBusy = new LongArrayList();
+		Iterator<CanvasRoute> it = routes.values().iterator();
+		while(it.hasNext())
+		{
+			CanvasRoute route = it.next();
+			long total = route.totalRunNanos.get();
+			long ran = total - route.lastRunNanos;
+			route.lastRunNanos = total;
+			if(ran>0)
+			{
+				active.add(route);
+				activeBusy.add(ran);
+			}
+		}
+
+		int moved = 0;
+		long threshold = (long) (window * COptions.canvas.rebalance_threshold);
+		for(int round=0;round<COptions.canvas.rebalance_max_moves;round++)
+		{
+			int hot = 0;
+			int cold = 0;
+			for(int i=1;i<busy.length;i++)
+			{
+				if(busy[i]>busy[hot])
+				{
+					hot = i;
+				}
+				if(busy[i]<busy[cold])
+				{
+					cold = i;
+				}
+			}
+			long gap = busy[hot] - busy[cold];
+			if(hot==cold || gap<=threshold)
+			{
+				break;
+			}
+
+			// The canvas that gets them closest to even (moving one bigger than the gap just swaps them)
+			int pick = -1;
+			for(int i=0;i<active.size();i++)
+			{
+				CanvasRoute route = active.get(i);
+				long ran = activeBusy.getLong(i);
+				if(route.worker==hot && ran<gap && (pick==-1 || Math.abs(gap - 2*ran) < Math.abs(gap - 2*activeBusy.getLong(pick))))
+				{
+					pick = i;
+				}
+			}
+			if(pick==-1)
+			{
+				break;
+			}
+
+			CanvasRoute route = active.get(pick);
+			long ran = activeBusy.getLong(pick);
+			active.remove(pick);
+			activeBusy.removeLong(pick);
+			if(!route.pending.compareAndSet(0, MOVING))
+			{
+				// Something is queued for it, leave it where it is
+				continue;
+			}
+			route.worker = cold;
+			route.moves.incrementAndGet();
+			route.pending.set(0);
+
+			busy[hot] = busy[hot] - ran;
+			busy[cold] = busy[cold] + ran;
+			moved++;
+			logger.debug("Moved canvas "+route.canvasid+" from worker "+hot+" to "+cold);
+		}
+		return moved;
+	}
+
+	/**
+	 * Adds Workers.<i>.* for each worker, and Canvas.<UUID>.* for each canvas
+	 * @param props
+	 */
+	public static void addStats(Properties props)
+	{
+		CanvasThread[] pool = workers;
+		if(pool!=null)
+		{
+			props.setProperty("Workers.Count", ""+pool.length);
+			for(int i=0;i<pool.length;i++)
+			{
+				String prefix = "Workers."+i;
+				pool[i].addTo(props, prefix);
+				synchronized(CanvasExecutor.class)
+				{
+					props.setProperty(prefix+".RecentUtilization", ""+Math.round(recentUtilization[i] * 100.0)+"%");
+				}
+			}
+		}
+
+		int[] pinned = new int[pool==null ? 0 : pool.length];
+		Iterator<CanvasRoute> it = routes.values().iterator();
+		while(it.hasNext())
+		{
+			CanvasRoute route = it.next();
+			route.addTo(props, "Canvas."+route.canvasid);
+			if(route.worker<pinned.length)
+			{
+				pinned[route.worker]++;
+			}
+		}
+		for(int i=0;i<pinned.length;i++)
+		{
+			props.setProperty("Workers."+i+".Canvases", ""+pinned[i]);
+		}
+	}
+}
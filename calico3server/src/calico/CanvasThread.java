@@ -2,84 +2,173 @@ package calico;
 
 import it.unimi.dsi.fastutil.ints.Int2ReferenceAVLTreeMap;
 
-import java.io.IOException;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.Properties;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
 
 import calico.clients.Client;
 import calico.networking.netstuff.CalicoPacket;
 import calico.networking.netstuff.NetworkCommand;
 
+/**
+ * One of CanvasExecutor's workers. Runs the packets for the canvases pinned to it, in the
+ * order they arrived.
+ * 
+ * The queue holds canvas.mailbox_size packets. When it is full, a ClientThread reading on its
+ * own thread waits (so it backs up into that client's socket) rather than the packet being
+ * dropped. The NIO reactors and the UDP thread serve everyone, so they never wait: they use
+ * offerPacket() and get called back once the queue is down to half full. A packet that throws
+ * is logged and counted against its canvas, and the worker carries on.
+ */
 public class CanvasThread extends Thread {
 	
-	private static ArrayBlockingQueue<CanvasPacket> packetQueue;
+	private static Logger logger = Logger.getLogger(CanvasThread.class.getName());
+	
+	private ArrayBlockingQueue<CanvasPacket> packetQueue;
+	
+	// Senders that found the queue full, and the depth it has to get down to before they hear back
+	private ConcurrentLinkedQueue<Runnable> waiting = new ConcurrentLinkedQueue<Runnable>();
+	private int resumeDepth;
+	
+	private int index;
+	
+	private long startedAt = System.nanoTime();
+	private AtomicLong busyNanos = new AtomicLong(0L);
+	private AtomicLong processed = new AtomicLong(0L);
+	private AtomicLong stalls = new AtomicLong(0L);
 	
-	private int sleepCount;
-	private long canvasid;
+	public CanvasThread(int index, int capacity)
+	{
+		super("CanvasThread-"+index);
+		this.index = index;
+		packetQueue = new ArrayBlockingQueue<CanvasPacket>(capacity);
+		resumeDepth = capacity / 2;
+	}
+	
+	/**
+	 * Queues a packet for a canvas pinned here. Waits if the queue is full.
+	 * @param route
+	 * @param command
+	 * @param client
+	 * @param packet
+	 */
+	void addPacketToQueue(CanvasExecutor.CanvasRoute route, int command, Client client, CalicoPacket packet)
+	{
+		CanvasPacket msg = new CanvasPacket(route, command, client, packet);
+		if(packetQueue.offer(msg))
+		{
+			return;
+		}
+		
+		this.stalls.incrementAndGet();
+		route.stalls.incrementAndGet();
+		try
+		{
+			packetQueue.put(msg);
+		}
+		catch(InterruptedException e)
+		{
+			logger.warn("Interrupted waiting for "+getName()+", dropped "+command+" for canvas "+route.canvasid);
+			route.pending.decrementAndGet();
+			Thread.currentThread().interrupt();
+		}
+	}
 	
-	public CanvasThread(long canvasid) throws IOException
+	/**
+	 * Queues a packet for a canvas pinned here, if there is room. Never waits.
+	 * @param route
+	 * @param command
+	 * @param client
+	 * @param packet
+	 * @param onSpace if the queue is full, this is run (on this worker) once it has drained to
+	 * half full. Can be null.
+	 * @return false if the queue was full, the packet was not queued
+	 */
+	boolean offerPacket(CanvasExecutor.CanvasRoute route, int command, Client client, CalicoPacket packet, Runnable onSpace)
 	{
-		super("CanvasThread-"+canvasid);
-		packetQueue = new ArrayBlockingQueue<CanvasPacket>(4096);
+		CanvasPacket msg = new CanvasPacket(route, command, client, packet);
+		if(packetQueue.offer(msg))
+		{
+			return true;
+		}
 		
-		this.canvasid = canvasid;
-		sleepCount = 0;
+		this.stalls.incrementAndGet();
+		route.stalls.incrementAndGet();
+		if(onSpace==null)
+		{
+			return false;
+		}
+		this.waiting.add(onSpace);
 		
-		start();
+		// It may have drained before onSpace was added, then nothing would run it
+		return packetQueue.offer(msg);
 	}
 	
-	public void addPacketToQueue(int command,Client client,CalicoPacket packet)
+	public long getBusyNanos()
 	{
-		packetQueue.offer(new CanvasPacket(command, client, packet));
+		return this.busyNanos.get();
+	}
+	
+	public void addTo(Properties props, String prefix)
+	{
+		long up = Math.max(1L, System.nanoTime() - this.startedAt);
+		props.setProperty(prefix+".QueueDepth", ""+packetQueue.size());
+		props.setProperty(prefix+".Processed", ""+this.processed.get());
+		props.setProperty(prefix+".Stalls", ""+this.stalls.get());
+		props.setProperty(prefix+".BusyMs", ""+(this.busyNanos.get() / 1000000L));
+		props.setProperty(prefix+".Utilization", ""+Math.round(this.busyNanos.get() * 100.0 / up)+"%");
 	}
 	
 	public void run()
 	{
 		while(true)
 		{
-			if (!packetQueue.isEmpty())
+			CanvasPacket packet = null;
+			try
 			{
-				sleepCount = 0;
-				try
-				{
-					CanvasPacket packet = packetQueue.poll();
-					if (packet != null)
-					{
-						ProcessQueue.receive(packet.command, packet.client, packet.packet);
-					}
-				}
-				//Catch possible concurrency issue.
-				catch(Exception e)
+				packet = packetQueue.take();
+			}
+			catch(InterruptedException e)
+			{
+				logger.warn(getName()+" interrupted, stopping");
+				return;
+			}
+			
+			if(!this.waiting.isEmpty() && packetQueue.size()<=this.resumeDepth)
+			{
+				Runnable onSpace = null;
+				while((onSpace = this.waiting.poll())!=null)
 				{
-					e.printStackTrace();
-					//If there is an error, we kill the thread, otherwise there may be an infinite loop of errors.
-					//Of course this means none of the packets in the queue will be processed, but it is better than infinite loop.
-					return;
+					onSpace.run();
 				}
+			}
 			
+			long start = System.nanoTime();
+			boolean failed = false;
+			try
+			{
+				ProcessQueue.receive(packet.command, packet.client, packet.packet);
+			}
+			catch(Exception e)
+			{
+				// Just this packet, the rest of the queue still gets done
+				failed = true;
+				logger.error("Canvas "+packet.route.canvasid+" failed on "+packet.command, e);
 			}
-			else
+			finally
 			{
-				sleepCount++;
-				
-				//Kill the thread if no packets are queued for 5 seconds. 
-				if (sleepCount >= COptions.canvas.max_sleep_count)
+				if(ProcessQueue.releasesPacket(packet.command))
 				{
-					synchronized(CalicoServer.canvasThreads)
-					{
-						CalicoServer.canvasThreads.remove(canvasid);
-					}
-					return;
-				}
-				
-				// CPU Limiter (This prevents the CPU from going bonkers)
-				try {
-					Thread.sleep(COptions.canvas.sleeptime);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
+					packet.packet.release();
 				}
 			}
+			long end = System.nanoTime();
+			this.busyNanos.addAndGet(end - start);
+			this.processed.incrementAndGet();
+			packet.route.record(start - packet.queuedAt, end - start, failed);
 		}
 	}
 	
@@ -177,15 +266,19 @@ public class CanvasThread extends Thread {
 	
 	private class CanvasPacket{
 		
+		public CanvasExecutor.CanvasRoute route;
 		public CalicoPacket packet;
-		public Integer command;
+		public int command;
 		public Client client;
+		public long queuedAt;
 		
-		public CanvasPacket(int command, Client client, CalicoPacket packet)
+		public CanvasPacket(CanvasExecutor.CanvasRoute route, int command, Client client, CalicoPacket packet)
 		{
+			this.route = route;
 			this.packet = packet;
 			this.command = command;
 			this.client = client;
+			this.queuedAt = System.nanoTime();
 		}		
 	}
 }
@@ -18,6 +18,7 @@ import calico.sessions.*;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.sql.*;
 
 import java.awt.*;
@@ -31,6 +32,8 @@ public class ProcessQueue
 
 	public static Logger logger = Logger.getLogger(ProcessQueue.class.getName());
 	
+	private static AtomicLong totalRejected = new AtomicLong(0L);
+	
 	public static void setup()//ProcessQueue()
 	{
 	
@@ -149,6 +152,8 @@ public class ProcessQueue
 
 				case NetworkCommand.CONSISTENCY_CHECK:CONSISTENCY_CHECK(pdata,client);break;
 				case NetworkCommand.CONSISTENCY_RESYNC_CANVAS:CONSISTENCY_RESYNC_CANVAS(pdata, client);break;
+				case NetworkCommand.CONSISTENCY_HASH_REQUEST:CONSISTENCY_HASH_REQUEST(pdata, client);break;
+				case NetworkCommand.CONSISTENCY_RESYNC_ELEMENT:CONSISTENCY_RESYNC_ELEMENT(pdata, client);break;
 				
 				case NetworkCommand.RESTORE_START:RESTORE_START(pdata);break;
 
@@ -190,6 +195,61 @@ public class ProcessQueue
 		}
 	}
 	
+	/**
+	 * Checks an inbound packet against its NetCommandFormat before it goes anywhere, so the
+	 * handlers (and the PacketViews they use) never read past the end of a short packet.
+	 * @param command
+	 * @param p
+	 * @return false if the packet is too short for its format
+	 */
+	public static boolean validatePacket(int command, CalicoPacket p)
+	{
+		NetCommandFormat format = NetworkCommand.getFormat(command);
+		if(!format.isInbound() || format.validate(p))
+		{
+			return true;
+		}
+		totalRejected.incrementAndGet();
+		return false;
+	}
+	
+	public static long getTotalRejected()
+	{
+		return totalRejected.get();
+	}
+	
+	/**
+	 * @param command
+	 * @return true if the handler can take a SpooledPacket (the bulk data is left in the spool file)
+	 */
+	public static boolean acceptsSpooledPacket(int command)
+	{
+		return command==NetworkCommand.IMAGE_TRANSFER || command==NetworkCommand.CANVAS_LOAD;
+	}
+	
+	/**
+	 * The live edit traffic, whose handlers (and the core listeners for it) are done with the
+	 * packet when receive() returns, so an inbound buffer can go back to the BufferPool.
+	 * Listeners for these commands must copy the packet if they want to keep it.
+	 * @param command
+	 * @return true if the packet can be released after receive() returns
+	 */
+	public static boolean releasesPacket(int command)
+	{
+		switch(command)
+		{
+			case NetworkCommand.HEARTBEAT:
+			case NetworkCommand.GROUP_APPEND:
+			case NetworkCommand.GROUP_APPEND_CLUSTER:
+			case NetworkCommand.GROUP_MOVE:
+			case NetworkCommand.STROKE_APPEND:
+			case NetworkCommand.STROKE_MOVE:
+			case NetworkCommand.CONNECTOR_MOVE_ANCHOR:
+				return true;
+		}
+		return false;
+	}
+	
 	public static void PLUGIN_EVENT(CalicoPacket p, Client client)
 	{
 		String eventname = p.getString();
@@ -263,7 +323,7 @@ public class ProcessQueue
 		CCanvasController.snapshot(uuid);
 		
 		// Resend to all (even the sender)
-		ClientManager.send_except(c, p);
+		ClientManager.send_canvas_except(c, uuid, p);
 		
 	}
 	public static void CANVAS_COPY(CalicoPacket p, Client c)
@@ -285,7 +345,7 @@ public class ProcessQueue
 		
 		CCanvasController.no_notify_lock_canvas(canvas, lock, lockedBy, time);
 		
-		ClientManager.send_except(c, p);
+		ClientManager.send_canvas_except(c, canvas, p);
 	}
 	
 	public static void CANVAS_LOAD(CalicoPacket p, Client c)
@@ -295,26 +355,65 @@ public class ProcessQueue
 		p.getInt(); //command
 		long cuuid = p.getLong();
 		int numPackets = p.getInt();
-		CalicoPacket[] packets = new CalicoPacket[numPackets];
-		int packetSize;
-		for (int i = 0; i < packets.length; i++)
+		
+		if (p instanceof SpooledPacket)
 		{
-			packetSize = p.getInt();
-			packets[i] = new CalicoPacket(p.getByteArray(packetSize));
+			// Big canvas, the sub packets are read back from the spool file one at a time
+			SpooledPacket spooled = (SpooledPacket) p;
+			try
+			{
+				DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(spooled.getFile())));
+				try
+				{
+					long offset = spooled.getBodyOffset();
+					while (offset > 0L)
+					{
+						long skipped = in.skip(offset);
+						if (skipped <= 0L)
+							throw new EOFException("Spool file is shorter than the packet head");
+						offset -= skipped;
+					}
+					
+					//restore canvas
+					CCanvasController.no_notify_clear_for_state_change(cuuid);
+					
+					for (int i = 0; i < numPackets; i++)
+					{
+						byte[] data = new byte[in.readInt()];
+						in.readFully(data);
+						CANVAS_LOAD_replay(new CalicoPacket(data));
+					}
+				}
+				finally
+				{
+					in.close();
+				}
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+			finally
+			{
+				spooled.release();
+			}
 		}
-		
-		//restore canvas
-		CCanvasController.no_notify_clear_for_state_change(cuuid);
-		
-		for (int i = 0; i < packets.length; i++)
+		else
 		{
-			packets[i].rewind();
-			int comm = packets[i].getInt();
+			CalicoPacket[] packets = new CalicoPacket[numPackets];
+			int packetSize;
+			for (int i = 0; i < packets.length; i++)
+			{
+				packetSize = p.getInt();
+				packets[i] = new CalicoPacket(p.getByteArray(packetSize));
+			}
 			
-			// As long as its not the canvas_info, we should just send it along
-			if(comm!=NetworkCommand.CANVAS_INFO)
+			//restore canvas
+			CCanvasController.no_notify_clear_for_state_change(cuuid);
+			
+			for (int i = 0; i < packets.length; i++)
 			{
-				ProcessQueue.receive(comm, null, packets[i]);
+				CANVAS_LOAD_replay(packets[i]);
 			}
 		}
 		
@@ -331,6 +430,18 @@ public class ProcessQueue
 		CCanvasController.state_change_complete(cuuid);
 
 	}
+	
+	private static void CANVAS_LOAD_replay(CalicoPacket packet)
+	{
+		packet.rewind();
+		int comm = packet.getInt();
+		
+		// As long as its not the canvas_info, we should just send it along
+		if(comm!=NetworkCommand.CANVAS_INFO)
+		{
+			ProcessQueue.receive(comm, null, packet);
+		}
+	}
 
 	public static void CANVAS_SET(CalicoPacket p,Client c)
 	{
@@ -352,7 +463,7 @@ public class ProcessQueue
 		long uuid = p.getLong();
 		if(!CCanvasController.undo(uuid))
 		{
-			ClientManager.send(c, CalicoPacket.getPacket(NetworkCommand.STATUS_MESSAGE, "No more undo history"));
+			ClientManager.send(c, PacketBuilder.command(NetworkCommand.STATUS_MESSAGE).putString("No more undo history").build());
 		}
 	}
 	public static void CANVAS_REDO(CalicoPacket p, Client c)
@@ -360,7 +471,7 @@ public class ProcessQueue
 		long uuid = p.getLong();
 		if(!CCanvasController.redo(uuid))
 		{
-			ClientManager.send(c, CalicoPacket.getPacket(NetworkCommand.STATUS_MESSAGE, "No more redo history"));
+			ClientManager.send(c, PacketBuilder.command(NetworkCommand.STATUS_MESSAGE).putString("No more redo history").build());
 		}
 	}
 	
@@ -387,9 +498,9 @@ public class ProcessQueue
 		long uuid = p.getLong();
 		if (CCanvasController.exists(uuid))
 		{
-			ClientManager.send(c, CalicoPacket.getPacket(NetworkCommand.CANVAS_CLEAR_FOR_SC, uuid));
+			ClientManager.send(c, PacketBuilder.command(NetworkCommand.CANVAS_CLEAR_FOR_SC).putLong(uuid).build());
 			ClientManager.send(c, CCanvasController.canvases.get(uuid).getUpdatePackets());
-			ClientManager.send(c, CalicoPacket.getPacket(NetworkCommand.CANVAS_SC_FINISH, uuid));
+			ClientManager.send(c, PacketBuilder.command(NetworkCommand.CANVAS_SC_FINISH).putLong(uuid).build());
 			if (ClientManager.out_of_sync_clients.contains(c.getClientID()))
 			{
 				ClientManager.out_of_sync_clients.remove(c.getClientID());
@@ -397,6 +508,38 @@ public class ProcessQueue
 		}
 	}
 	
+	/**
+	 * Lets an out of sync client walk the canvas hash tree instead of reloading the whole
+	 * canvas. It starts at 0 (the canvas), and asks again for any child whose hash differs.
+	 */
+	public static void CONSISTENCY_HASH_REQUEST(CalicoPacket p, Client c)
+	{
+		PacketView v = PacketView.of(p);
+		long cuid = v.getLong(0);
+		long uuid = v.getLong(1);
+		if (CCanvasController.exists(cuid))
+		{
+			ClientManager.send(c, CCanvasController.canvases.get(cuid).getHashNodePacket(uuid));
+		}
+	}
+	
+	/**
+	 * Resends one element and everything under it, then its hash node so the client can
+	 * check that it matches now
+	 */
+	public static void CONSISTENCY_RESYNC_ELEMENT(CalicoPacket p, Client c)
+	{
+		PacketView v = PacketView.of(p);
+		long cuid = v.getLong(0);
+		long uuid = v.getLong(1);
+		if (CCanvasController.exists(cuid))
+		{
+			CCanvas canvas = CCanvasController.canvases.get(cuid);
+			ClientManager.send(c, canvas.getSubtreeUpdatePackets(uuid));
+			ClientManager.send(c, canvas.getHashNodePacket(uuid));
+		}
+	}
+	
 
 	
 	public static void GROUP_START(CalicoPacket p, Client client)
@@ -410,40 +553,45 @@ public class ProcessQueue
 		
 		CGroupController.no_notify_start(uuid, canvasuid, parent_uid, isperm);
 				
-		ClientManager.send_except(client, p);
+		ClientManager.send_canvas_except(client, canvasuid, p);
 	}
 	public static void GROUP_APPEND(CalicoPacket p, Client client)
 	{
-		long uuid = p.getLong();
-		int x = p.getInt();
-		int y = p.getInt();
+		PacketView v = PacketView.of(p);
+		long uuid = v.getLong(0);
+		int x = v.getInt(1);
+		int y = v.getInt(2);
 		CGroupController.no_notify_append(uuid, x, y);
 		
-		ClientManager.send_except(client, p);
+		ClientManager.send_canvas_except(client, CCanvasController.get_group_canvas(uuid), p);
 	}
 	public static void GROUP_APPEND_CLUSTER(CalicoPacket p, Client client)
 	{
-		long uuid = p.getLong();
-		int count = p.getCharInt();
+		PacketView v = PacketView.of(p);
+		long uuid = v.getLong(0);
+		int count = v.getCharInt(1);
 		
+		int offset = v.getEndOffset(1);
 		for(int i=0;i<count;i++)
 		{
-			int x = p.getInt();
-			int y = p.getInt();
+			int x = p.getIntAt(offset);
+			int y = p.getIntAt(offset + ByteUtils.SIZE_OF_INT);
+			offset = offset + ByteUtils.SIZE_OF_INT * 2;
 			CGroupController.no_notify_append(uuid, x, y);
 		}
 		
-		ClientManager.send_except(client, p);
+		ClientManager.send_canvas_except(client, CCanvasController.get_group_canvas(uuid), p);
 	}
 	
 	public static void GROUP_MOVE(CalicoPacket p, Client client)
 	{
-		long uuid = p.getLong();
-		int x = p.getInt();
-		int y = p.getInt();
+		PacketView v = PacketView.of(p);
+		long uuid = v.getLong(0);
+		int x = v.getInt(1);
+		int y = v.getInt(2);
 		CGroupController.no_notify_move(uuid, x, y);
 		
-		ClientManager.send_except(client, p);
+		ClientManager.send_canvas_except(client, CCanvasController.get_group_canvas(uuid), p);
 	}
 	public static void GROUP_MOVE_START(CalicoPacket p, Client client)
 	{
@@ -451,7 +599,7 @@ public class ProcessQueue
 		
 		CGroupController.no_notify_move_start(guuid);
 		
-		ClientManager.send_except(client, p);
+		ClientManager.send_canvas_except(client, CCanvasController.get_group_canvas(guuid), p);
 	}
 	public static void GROUP_MOVE_END(CalicoPacket p, Client client)
 	{
@@ -461,7 +609,7 @@ public class ProcessQueue
 		
 		CGroupController.no_notify_move_end(uuid, x, y);
 		
-		ClientManager.send_except(client, p);
+		ClientManager.send_canvas_except(client, CCanvasController.get_group_canvas(uuid), p);
 		CCanvasController.snapshot_group(uuid);	
 	}
 	public static void GROUP_DROP(CalicoPacket p, Client client)
@@ -473,25 +621,28 @@ public class ProcessQueue
 		else
 			return;
 		
+		// Dropping deletes it, so find the canvas first
+		long cuid = CCanvasController.get_group_canvas(uuid);
 		CGroupController.no_notify_drop(uuid, true);
 		//CGroupController.drop(uuid);
 		
 		if(client!=null)
 		{
 			if (wasPerm)
-				CCanvasController.snapshot_group(uuid);
-			ClientManager.send_except(client, p);
+				CCanvasController.snapshot(cuid);
+			ClientManager.send_canvas_except(client, cuid, p);
 		}
 	}
 	public static void GROUP_DELETE(CalicoPacket p, Client client)
 	{
 		long uuid = p.getLong();
+		long cuid = CCanvasController.get_group_canvas(uuid);
 		CGroupController.no_notify_delete(uuid);
-		ClientManager.send_except(client, p);
+		ClientManager.send_canvas_except(client, cuid, p);
 		
 		if(client!=null)// && CGroupController.groups.get(uuid).isPermanent())
 		{
-			CCanvasController.snapshot_group(uuid);
+			CCanvasController.snapshot(cuid);
 		}
 	}
 	public static void GROUP_FINISH(CalicoPacket p, Client client)
@@ -504,10 +655,11 @@ public class ProcessQueue
 			// This is a real client, so we should calculate the parenting for them
 //			CGroupController.finish(uuid);
 			CGroupController.no_notify_finish(uuid, captureChildren);
-			ClientManager.send_except(client, p);
+			long cuid = CCanvasController.get_group_canvas(uuid);
+			ClientManager.send_canvas_except(client, cuid, p);
 			
 			if (captureChildren)
-				ClientManager.send( CGroupController.groups.get(uuid).getParentingUpdatePackets() );
+				ClientManager.send_canvas(cuid, CGroupController.groups.get(uuid).getParentingUpdatePackets() );
 //				CGroupController.calculateParenting(uuid);
 		}
 		else
@@ -566,7 +718,7 @@ public class ProcessQueue
 		}
 		
 		CGroupController.no_notify_copy(guuid, 0l, UUIDMappings, true);
-		ClientManager.send_except(client,p);
+		ClientManager.send_canvas_except(client, CCanvasController.get_group_canvas(guuid), p);
 	}
 	
 	public static void GROUP_SET_TEXT(CalicoPacket p, Client client)
@@ -575,7 +727,7 @@ public class ProcessQueue
 		String str = p.getString();
 		
 		CGroupController.no_notify_set_text(uuid, str);
-		ClientManager.send_except(client, p);
+		ClientManager.send_canvas_except(client, CCanvasController.get_group_canvas(uuid), p);
 		
 	}
 	
@@ -607,7 +759,7 @@ public class ProcessQueue
 		{
 			CCanvasController.snapshot_group(uuid);
 			
-			ClientManager.send_except(client, p);
+			ClientManager.send_canvas_except(client, CCanvasController.get_group_canvas(uuid), p);
 		}
 	}
 	
@@ -622,11 +774,13 @@ public class ProcessQueue
 	
 	public static void GROUP_RECTIFY(CalicoPacket p, Client client)
 	{
-		ClientManager.send_except(client, p);
+		long uuid = p.getLong();
+		ClientManager.send_canvas_except(client, CCanvasController.get_group_canvas(uuid), p);
 	}
 	public static void GROUP_CIRCLIFY(CalicoPacket p, Client client)
 	{
-		ClientManager.send_except(client, p);
+		long uuid = p.getLong();
+		ClientManager.send_canvas_except(client, CCanvasController.get_group_canvas(uuid), p);
 	}
 	
 	
@@ -725,7 +879,7 @@ public class ProcessQueue
 
 		if(client!=null)
 		{
-			ClientManager.send_except(client, p);
+			ClientManager.send_canvas_except(client, cuid, p);
 			if (isperm)
 				CCanvasController.snapshot_group(uuid);
 			else
@@ -791,7 +945,7 @@ public class ProcessQueue
 
 		if (client != null)
 		{
-			ClientManager.send_except(client, p);
+			ClientManager.send_canvas_except(client, cuid, p);
 		}
 	}
 	
@@ -804,7 +958,7 @@ public class ProcessQueue
 		int y = p.getInt();
 		
 		if (!CGroupController.createImageGroup(uuid, cuuid, imageURL, x, y))
-			ClientManager.send(client, CalicoPacket.getPacket(NetworkCommand.GROUP_IMAGE_LOAD,0l));
+			ClientManager.send(client, PacketBuilder.command(NetworkCommand.GROUP_IMAGE_LOAD).putLong(0L).build());
 
 		//Don't broadcast it to the clients... the server will download the image to have it locally and then broadcast the link to that.
 	}
@@ -818,7 +972,7 @@ public class ProcessQueue
 		
 		if (client != null)
 		{
-			ClientManager.send_except(client, p);
+			ClientManager.send_canvas_except(client, CCanvasController.get_group_canvas(guuid), p);
 //			CCanvasController.snapshot_group(guuid);
 		}
 	}
@@ -834,7 +988,7 @@ public class ProcessQueue
 		
 		if (client != null)
 		{
-			ClientManager.send_except(client, p);
+			ClientManager.send_canvas_except(client, CCanvasController.get_group_canvas(guuid), p);
 			CCanvasController.snapshot_group(guuid);
 		}
 	}
@@ -850,7 +1004,7 @@ public class ProcessQueue
 		CGroupController.no_notify_create_text_scrap(guuid, cuuid, text, x, y);
 		if (client != null)
 		{
-			ClientManager.send_except(client, p);
+			ClientManager.send_canvas_except(client, cuuid, p);
 			CCanvasController.snapshot_group(guuid);
 		}
 	}
@@ -867,7 +1021,7 @@ public class ProcessQueue
 		
 		if (client != null)
 		{
-			ClientManager.send_except(client, p);
+			ClientManager.send_canvas_except(client, CCanvasController.get_group_canvas(guuid), p);
 		}
 		
 		if(client!=null && CGroupController.isPermanent(guuid))
@@ -884,6 +1038,13 @@ public class ProcessQueue
 	{
 		String username = p.getString();
 		String password = p.getString();
+		
+		// Newer clients tell us what they can handle
+		int capabilities = 0;
+		if(p.remaining()>=ByteUtils.SIZE_OF_INT)
+		{
+			capabilities = p.getInt();
+		}
 
 		// check auth
 		if( ClientManager.checkAuth(username, password) )
@@ -901,6 +1062,25 @@ public class ProcessQueue
 			// Respond with AUTH OK
 			ClientManager.send(client, CalicoPacket.command(NetworkCommand.AUTH_OK) );
 			
+			if(capabilities!=0)
+			{
+				int accepted = 0;
+				if(COptions.client.network.compression)
+				{
+					accepted = accepted | (capabilities & NetworkCommand.CAPABILITY_COMPRESSION);
+				}
+				if(COptions.client.network.udp)
+				{
+					accepted = accepted | (capabilities & NetworkCommand.CAPABILITY_UDP);
+				}
+				if(COptions.client.network.batch)
+				{
+					accepted = accepted | (capabilities & NetworkCommand.CAPABILITY_BATCH);
+				}
+				ClientManager.getClientThread(client.getClientID()).setCapabilities(accepted);
+				ClientManager.send(client, PacketBuilder.command(NetworkCommand.CAPABILITIES).putInt(accepted).build());
+			}
+			
 			CalicoPluginManager.sendEventToPlugins(new ClientConnect(client));
 			
 		}
@@ -912,12 +1092,15 @@ public class ProcessQueue
 	
 	public static void HEARTBEAT(CalicoPacket p, Client client)
 	{
-		long canvas = p.getLong();
-		int sig = p.getInt();
+		PacketView v = PacketView.of(p);
+		long canvas = v.getLong(0);
+		int sig = v.getInt(1);
 		
+		// The running signature should always be right, but if it doesn't match, work it out
+		// properly before telling the client it is out of sync (this also fixes the running one)
 		if (CCanvasController.getCanvasSignature(canvas) != sig
 			&& !ClientConsistencyListener.ignoreConsistencyCheck
-			&& CCanvasController.canvases.get(canvas).get_signature() != sig)
+			&& CCanvasController.canvases.get(canvas).checkSignature() != sig)
 		{
 			ClientManager.out_of_sync_clients.add(client.getClientID());
 			ClientManager.send(client, CalicoPacket.command(NetworkCommand.CONSISTENCY_FAILED));
@@ -1000,7 +1183,7 @@ public class ProcessQueue
 		);
 		
 
-		ClientManager.send_except(client, p);
+		ClientManager.send_canvas_except(client, cuid, p);
 		
 		if(client!=null)
 		{
@@ -1012,14 +1195,15 @@ public class ProcessQueue
 	public static void ARROW_DELETE(CalicoPacket p, Client client)
 	{
 		long u = p.getLong();
+		long cuid = CCanvasController.get_arrow_canvas(u);
 
 		CArrowController.no_notify_delete(u);
 
-		ClientManager.send_except(client, p);
+		ClientManager.send_canvas_except(client, cuid, p);
 
 		if(client!=null)
 		{
-			CCanvasController.snapshot_arrow(u);
+			CCanvasController.snapshot(cuid);
 		}
 
 	}
@@ -1036,8 +1220,9 @@ public class ProcessQueue
 		}
 
 		CArrowController.arrows.get(u).setArrowType(type);
+		CCanvasController.touch(u);
 		
-		ClientManager.send_except(client, p);
+		ClientManager.send_canvas_except(client, CCanvasController.get_arrow_canvas(u), p);
 	}
 	public static void ARROW_SET_COLOR(CalicoPacket p, Client client)
 	{
@@ -1053,8 +1238,9 @@ public class ProcessQueue
 		}
 
 		CArrowController.arrows.get(u).setColor(r, g, b);
+		CCanvasController.touch(u);
 
-		ClientManager.send_except(client, p);
+		ClientManager.send_canvas_except(client, CCanvasController.get_arrow_canvas(u), p);
 	}
 	
 	public static void CONNECTOR_LOAD(CalicoPacket p, Client client)
@@ -1081,7 +1267,7 @@ public class ProcessQueue
 		
 		CConnectorController.no_notify_create(uuid, cuid, color, thickness, head, tail, orthogonalDistance, travelDistance, anchorHead, anchorTail);
 		
-		ClientManager.send_except(client, p);
+		ClientManager.send_canvas_except(client, cuid, p);
 		
 		if(client!=null)
 		{
@@ -1092,13 +1278,14 @@ public class ProcessQueue
 	public static void CONNECTOR_DELETE(CalicoPacket p, Client client)
 	{
 		long uuid = p.getLong();
+		long cuid = CCanvasController.get_connector_canvas(uuid);
 		CConnectorController.no_notify_delete(uuid);
 
-		ClientManager.send_except(client, p);
+		ClientManager.send_canvas_except(client, cuid, p);
 		
 		if(client!=null)
 		{
-			CCanvasController.snapshot_connector(uuid);
+			CCanvasController.snapshot(cuid);
 		}
 	}
 	
@@ -1107,7 +1294,7 @@ public class ProcessQueue
 		long uuid = p.getLong();
 		CConnectorController.no_notify_linearize(uuid);
 
-		ClientManager.send_except(client, p);
+		ClientManager.send_canvas_except(client, CCanvasController.get_connector_canvas(uuid), p);
 		
 		if(client!=null)
 		{
@@ -1117,14 +1304,15 @@ public class ProcessQueue
 	
 	public static void CONNECTOR_MOVE_ANCHOR(CalicoPacket p, Client client)
 	{
-		long uuid = p.getLong();
-		int type = p.getInt();
-		int x = p.getInt();
-		int y = p.getInt();
+		PacketView v = PacketView.of(p);
+		long uuid = v.getLong(0);
+		int type = v.getInt(1);
+		int x = v.getInt(2);
+		int y = v.getInt(3);
 		
 		CConnectorController.no_notify_move_group_anchor(uuid, type, x, y);
 
-		ClientManager.send_except(client, p);
+		ClientManager.send_canvas_except(client, CConnectorController.getConnectorCanvasUUID(uuid), p);
 		
 		if(client!=null)
 		{
@@ -1139,7 +1327,7 @@ public class ProcessQueue
 		
 		CConnectorController.no_notify_move_group_anchor_start(uuid, type);
 
-		ClientManager.send_except(client, p);
+		ClientManager.send_canvas_except(client, CConnectorController.getConnectorCanvasUUID(uuid), p);
 
 	}
 	
@@ -1150,7 +1338,7 @@ public class ProcessQueue
 		
 		CConnectorController.no_notify_move_group_anchor_end(uuid, type);
 
-		ClientManager.send_except(client, p);
+		ClientManager.send_canvas_except(client, CConnectorController.getConnectorCanvasUUID(uuid), p);
 		
 		if(client!=null)
 		{
@@ -1161,13 +1349,15 @@ public class ProcessQueue
 	public static void ELEMENT_ADD(CalicoPacket p, Client client)
 	{
 		ComposableElement element = ComposableElementController.getElementFromPacket(p);
+		long cuid = 0L;
 		
 		if (element != null)
 		{
 			ComposableElementController.no_notify_addElement(element);
+			cuid = CCanvasArena.canvasOf(element.getComponentUUID());
 		}
 		
-		ClientManager.send_except(client, p);
+		ClientManager.send_canvas_except(client, cuid, p);
 	}
 	
 	public static void ELEMENT_REMOVE(CalicoPacket p, Client client)
@@ -1177,7 +1367,7 @@ public class ProcessQueue
 		
 		ComposableElementController.no_notify_removeElement(euuid, cuuid);
 		
-		ClientManager.send_except(client, p);
+		ClientManager.send_canvas_except(client, CCanvasArena.canvasOf(cuuid), p);
 	}
 	
 
@@ -1195,25 +1385,28 @@ public class ProcessQueue
 		
 		CStrokeController.no_notify_start(uuid, cuid, puid, new Color(red, green, blue), thickness);
 
-		ClientManager.send_except(client, p);
+		ClientManager.send_canvas_except(client, cuid, p);
 	}
 	public static void STROKE_APPEND(CalicoPacket p, Client client)
 	{
-		long uuid = p.getLong();
-		int numpoints = p.getCharInt();
+		PacketView v = PacketView.of(p);
+		long uuid = v.getLong(0);
+		int numpoints = v.getCharInt(1);
 		
 		int x = 0;
 		int y = 0;
 		
+		int offset = v.getEndOffset(1);
 		for(int i=0;i<numpoints;i++)
 		{
-			x = p.getInt();
-			y = p.getInt();
+			x = p.getIntAt(offset);
+			y = p.getIntAt(offset + ByteUtils.SIZE_OF_INT);
+			offset = offset + ByteUtils.SIZE_OF_INT * 2;
 
 			CStrokeController.no_notify_append(uuid, x, y);
 		}
 		
-		ClientManager.send_except(client, p);
+		ClientManager.send_canvas_except(client, CCanvasController.get_stroke_canvas(uuid), p);
 		
 	}
 	public static void STROKE_FINISH(CalicoPacket p, Client client)
@@ -1221,7 +1414,7 @@ public class ProcessQueue
 		long uuid = p.getLong();
 
 		CStrokeController.no_notify_finish(uuid);
-		ClientManager.send_except(client, p);
+		ClientManager.send_canvas_except(client, CCanvasController.get_stroke_canvas(uuid), p);
 		
 		// Make a snapshot
 		if(client!=null)
@@ -1241,7 +1434,7 @@ public class ProcessQueue
 		
 		CStrokeController.no_notify_set_color(uuid, new Color(red, green, blue));
 		
-		ClientManager.send_except(client, p);
+		ClientManager.send_canvas_except(client, CCanvasController.get_stroke_canvas(uuid), p);
 	}
 	public static void STROKE_SET_PARENT(CalicoPacket p, Client client)
 	{
@@ -1251,25 +1444,27 @@ public class ProcessQueue
 		if (CStrokeController.exists(uuid))
 		{
 			CStrokeController.strokes.get(uuid).setParentUUID(puid);
-			ClientManager.send_except(client, p);
+			ClientManager.send_canvas_except(client, CCanvasController.get_stroke_canvas(uuid), p);
 		}
 	}
 	public static void STROKE_MOVE(CalicoPacket p, Client client)
 	{
-		long uuid = p.getLong();
-		int x = p.getInt();
-		int y = p.getInt();
+		PacketView v = PacketView.of(p);
+		long uuid = v.getLong(0);
+		int x = v.getInt(1);
+		int y = v.getInt(2);
 
 		CStrokeController.no_notify_move(uuid, x, y);
 		
-		ClientManager.send_except(client, p);
+		ClientManager.send_canvas_except(client, CCanvasController.get_stroke_canvas(uuid), p);
 	}
 	public static void STROKE_DELETE(CalicoPacket p, Client client)
 	{
 		long uuid = p.getLong();
+		long cuid = CCanvasController.get_stroke_canvas(uuid);
 		CStrokeController.no_notify_delete(uuid);
 
-		ClientManager.send_except(client, p);
+		ClientManager.send_canvas_except(client, cuid, p);
 
 //		if(client!=null)
 //		{
@@ -1322,7 +1517,7 @@ public class ProcessQueue
 		
 		CStrokeController.no_notify_finish(uuid);
 
-		ClientManager.send_except(client, p);
+		ClientManager.send_canvas_except(client, cuid, p);
 		if (client != null)
 			CCanvasController.snapshot_stroke(uuid);
 	}
@@ -1335,7 +1530,7 @@ public class ProcessQueue
 		if (CStrokeController.strokes.containsKey(uuid))
 		{
 			CStrokeController.strokes.get(uuid).rotate(r);
-			ClientManager.send_except(client, p);
+			ClientManager.send_canvas_except(client, CCanvasController.get_stroke_canvas(uuid), p);
 		}
 	}
 	
@@ -1348,7 +1543,7 @@ public class ProcessQueue
 		if (CStrokeController.strokes.containsKey(uuid))
 		{
 			CStrokeController.strokes.get(uuid).scale(sX, sY);
-			ClientManager.send_except(client, p);
+			ClientManager.send_canvas_except(client, CCanvasController.get_stroke_canvas(uuid), p);
 		}
 	}
 	
@@ -1358,8 +1553,10 @@ public class ProcessQueue
 		
 		if (CStrokeController.strokes.containsKey(uuid))
 		{
+			// Not ephemeral: the stroke is gone here, so a client that lost this would keep it
+			long cuid = CCanvasController.get_stroke_canvas(uuid);
 			CStrokeController.no_notify_delete(uuid);
-			ClientManager.send_except(client, p);
+			ClientManager.send_canvas_except(client, cuid, p);
 		}
 		
 	}
@@ -1371,7 +1568,7 @@ public class ProcessQueue
 
 		if (CStrokeController.strokes.containsKey(uuid))
 		{
-			ClientManager.send_except(client, p);
+			ClientManager.send_canvas_except(client, CCanvasController.get_stroke_canvas(uuid), p);
 		}
 	}
 	
@@ -1381,7 +1578,7 @@ public class ProcessQueue
 		
 		if (CStrokeController.strokes.containsKey(uuid))
 		{
-			ClientManager.send_except(client, p);
+			ClientManager.send_canvas_except(client, CCanvasController.get_stroke_canvas(uuid), p);
 		}
 	}
 	
@@ -1406,7 +1603,7 @@ public class ProcessQueue
 		
 		long guuid = CStrokeController.no_notify_makeScrap(suuid, new_guuid);
 		
-		ClientManager.send_except(client, p);
+		ClientManager.send_canvas_except(client, CCanvasController.get_group_canvas(guuid), p);
 		
 		if(client!=null && CGroupController.groups.get(guuid).isPermanent())
 		{
@@ -1423,7 +1620,7 @@ public class ProcessQueue
 		
 		long guuid = CStrokeController.no_notify_makeShrunkScrap(suuid, new_guuid);
 		
-		ClientManager.send_except(client, p);
+		ClientManager.send_canvas_except(client, CCanvasController.get_group_canvas(guuid), p);
 		
 		if(client!=null && CGroupController.groups.get(guuid).isPermanent())
 		{
@@ -1437,14 +1634,15 @@ public class ProcessQueue
 	{
 		long suuid = p.getLong();
 		long temp_guuid = p.getLong();
+		long cuid = CCanvasController.get_stroke_canvas(suuid);
 		
 		CStrokeController.no_notify_deleteArea(suuid, temp_guuid);
 		
-		ClientManager.send_except(client, p);
+		ClientManager.send_canvas_except(client, cuid, p);
 		
 		if(client!=null)
 		{
-			CCanvasController.snapshot_stroke(suuid);
+			CCanvasController.snapshot(cuid);
 		}
 	}
 	
@@ -1459,7 +1657,7 @@ public class ProcessQueue
 	
 	public static void RESTORE_START(CalicoPacket p)
 	{
-		CCanvasController.canvases.clear();
+		CCanvasController.no_notify_evict_all();
 		CCanvas.clearState();
 	}
 	
@@ -1472,7 +1670,7 @@ public class ProcessQueue
 		
 		if (client != null)
 		{
-			ClientManager.send_except(client, p);
+			ClientManager.send_canvas_except(client, CCanvasController.get_list_canvas(luuid), p);
 			CCanvasController.snapshot_group(luuid);
 		}
 	}
@@ -1489,7 +1687,7 @@ public class ProcessQueue
 		
 		if (client != null)
 		{
-			ClientManager.send_except(client, p);
+			ClientManager.send_canvas_except(client, cuuid, p);
 			CCanvasController.snapshot_group(luuid);
 		}
 	}
@@ -1506,7 +1704,7 @@ public class ProcessQueue
 		
 		if (client != null)
 		{
-			ClientManager.send_except(client, p);
+			ClientManager.send_canvas_except(client, cuid, p);
 			CCanvasController.snapshot(CGroupController.groups.get(luuid).getCanvasUUID());
 		}
 	}
@@ -1520,14 +1718,28 @@ public class ProcessQueue
 		int y = p.getInt();
 		String name = p.getString();
 		int byteArraySize = p.getInt();
-		byte[] bytes = new byte[byteArraySize];
-		bytes = p.getByteArray(byteArraySize);
 
 		try
 		{
-			CImageController.save_to_disk(uuid, name, bytes);
+			if (p instanceof SpooledPacket)
+			{
+				// Big upload, the image is still sitting in the spool file
+				SpooledPacket spooled = (SpooledPacket) p;
+				try
+				{
+					CImageController.save_to_disk(uuid, name, spooled.getFile(), spooled.getBodyOffset(), byteArraySize);
+				}
+				finally
+				{
+					spooled.release();
+				}
+			}
+			else
+			{
+				CImageController.save_to_disk(uuid, name, p.getByteArray(byteArraySize));
+			}
 			if (!CGroupController.createImageGroup(uuid, cuuid, CImageController.getImageURL(uuid), x, y))
-				ClientManager.send(client, CalicoPacket.getPacket(NetworkCommand.GROUP_IMAGE_LOAD,0l));
+				ClientManager.send(client, PacketBuilder.command(NetworkCommand.GROUP_IMAGE_LOAD).putLong(0L).build());
 		}
 		catch (Exception e)
 		{
@@ -1578,16 +1790,24 @@ public class ProcessQueue
 		}
 		
 		// Remove them from the old canvas
-		if(CCanvasController.canvases.containsKey(oldCUID)) {
-			CCanvasController.canvases.get(cuid).removeClient(clientid);
+		if(oldCUID!=cuid && CCanvasController.canvases.containsKey(oldCUID)) {
+			CCanvasController.canvases.get(oldCUID).removeClient(clientid);
 		}
 		
 		ClientManager.getClientThread(clientid).setCurrentCanvasUUID(cuid);
 		
 		CCanvasController.canvases.get(cuid).addClient(clientid);
 		
+		// If edits to this canvas were held back from them, bring them up to date
+		if(ClientManager.getClientThread(clientid).clearCanvasStale(cuid))
+		{
+			ClientManager.send(client, PacketBuilder.command(NetworkCommand.CANVAS_CLEAR_FOR_SC).putLong(cuid).build());
+			ClientManager.send(client, CCanvasController.canvases.get(cuid).getUpdatePackets());
+			ClientManager.send(client, PacketBuilder.command(NetworkCommand.CANVAS_SC_FINISH).putLong(cuid).build());
+		}
+		
 		int[] clientIds = CCanvasController.canvases.get(cuid).getClients();
-		CalicoPacket outPacket = CalicoPacket.getPacket(NetworkCommand.PRESENCE_CANVAS_USERS, cuid, clientIds.length);
+		CalicoPacket outPacket = PacketBuilder.command(NetworkCommand.PRESENCE_CANVAS_USERS).putLong(cuid).putInt(clientIds.length).build();
 		if(clientIds.length>0) {
 			for(int j=0;j<clientIds.length;j++) {
 				outPacket.putInt(clientIds[j]);
@@ -1607,7 +1827,7 @@ public class ProcessQueue
 		CCanvasController.canvases.get(cuid).removeClient(clientid);
 		
 		int[] clientIds = CCanvasController.canvases.get(cuid).getClients();
-		CalicoPacket outPacket = CalicoPacket.getPacket(NetworkCommand.PRESENCE_CANVAS_USERS, cuid, clientIds.length);
+		CalicoPacket outPacket = PacketBuilder.command(NetworkCommand.PRESENCE_CANVAS_USERS).putLong(cuid).putInt(clientIds.length).build();
 		if(clientIds.length>0) {
 			for(int j=0;j<clientIds.length;j++) {
 				outPacket.putInt(clientIds[j]);
@@ -1628,7 +1848,7 @@ public class ProcessQueue
 		if(uuids.length>0) {
 			for(int i=0;i<uuids.length;i++) {
 				int[] clientIds = CCanvasController.canvases.get(uuids[i]).getClients();
-				CalicoPacket outPacket = CalicoPacket.getPacket(NetworkCommand.PRESENCE_CANVAS_USERS, uuids[i], clientIds.length);
+				CalicoPacket outPacket = PacketBuilder.command(NetworkCommand.PRESENCE_CANVAS_USERS).putLong(uuids[i]).putInt(clientIds.length).build();
 				if(clientIds.length>0) {
 					for(int j=0;j<clientIds.length;j++) {
 						outPacket.putInt(clientIds[j]);
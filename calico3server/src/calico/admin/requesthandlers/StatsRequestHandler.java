@@ -12,10 +12,17 @@ import org.apache.http.util.*;
 
 import org.json.me.*;
 
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+
 import calico.*;
 import calico.admin.*;
 import calico.admin.exceptions.*;
 import calico.clients.*;
+import calico.components.CCanvasArena;
+import calico.events.CalicoEventHandler;
+import calico.networking.FrameCompressor;
+import calico.networking.OutboundFrame;
+import calico.networking.netstuff.BufferPool;
 import calico.utils.Ticker;
 
 public class StatsRequestHandler extends AdminBasicRequestHandler
@@ -36,6 +43,28 @@ public class StatsRequestHandler extends AdminBasicRequestHandler
 		
 		props.setProperty("Server.AvgTickRate", ""+Ticker.ticker.getAverageTickrate() );
 		
+		props.setProperty("Network.FramesBuilt", ""+OutboundFrame.getTotalBuilt() );
+		props.setProperty("Network.FramesQueued", ""+OutboundFrame.getTotalEnqueued() );
+		props.setProperty("Network.CompressedEnvelopes", ""+FrameCompressor.getTotalEnvelopes() );
+		props.setProperty("Network.CompressionRawBytes", ""+FrameCompressor.getTotalRawBytes() );
+		props.setProperty("Network.CompressionBytes", ""+FrameCompressor.getTotalCompressedBytes() );
+		props.setProperty("Network.CompressionCpuMs", ""+(FrameCompressor.getTotalNanos() / 1000000L) );
+		props.setProperty("Network.BufferPoolAcquired", ""+BufferPool.getTotalAcquired() );
+		props.setProperty("Network.BufferPoolHits", ""+BufferPool.getTotalHits() );
+		props.setProperty("Network.BufferPoolHitRate", ""+BufferPool.getHitRate() );
+		props.setProperty("Network.BufferPoolReleased", ""+BufferPool.getTotalReleased() );
+		props.setProperty("Network.BufferPoolDiscarded", ""+BufferPool.getTotalDiscarded() );
+		props.setProperty("Network.BufferPoolBytes", ""+BufferPool.getPooledBytes() );
+		props.setProperty("Network.MalformedPackets", ""+ProcessQueue.getTotalRejected() );
+		props.putAll(CalicoEventHandler.getStats());
+		CanvasExecutor.addStats(props);
+		
+		ObjectArrayList<CCanvasArena> arenas = CCanvasArena.getArenas();
+		for(int i=0;i<arenas.size();i++)
+		{
+			arenas.get(i).addTo(props, "Canvas."+arenas.get(i).getCanvasUUID());
+		}
+		
 		//getAverageTickrate
 		
 		throw new SuccessException(props);
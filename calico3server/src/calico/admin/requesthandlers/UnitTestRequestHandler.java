@@ -3,10 +3,16 @@ package calico.admin.requesthandlers;
 
 import java.awt.Color;
 import java.awt.Rectangle;
+import java.awt.Point;
+import java.awt.Polygon;
 import java.awt.geom.Ellipse2D;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.GeneralPath;
 import java.awt.geom.PathIterator;
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.*;
 
 import org.apache.batik.dom.*;
@@ -23,14 +29,23 @@ import org.w3c.dom.*;
 import calico.admin.*;
 import calico.admin.exceptions.*;
 import calico.clients.*;
+import calico.components.AnchorPoint;
+import calico.components.CArrow;
+import calico.components.CCanvas;
+import calico.components.CCanvasSpatialIndex;
 import calico.controllers.*;
+import calico.networking.FrameDecoder;
+import calico.networking.NetworkReactor;
 import calico.networking.netstuff.ByteUtils;
 import calico.networking.netstuff.CalicoPacket;
 import calico.networking.netstuff.NetworkCommand;
+import calico.networking.netstuff.PacketBuilder;
 import calico.utils.*;
 import calico.uuid.*;
 import calico.*;
 
+import it.unimi.dsi.fastutil.longs.Long2ReferenceArrayMap;
+
 import java.util.zip.*;
 
 public class UnitTestRequestHandler extends AdminBasicRequestHandler
@@ -64,6 +79,30 @@ public class UnitTestRequestHandler extends AdminBasicRequestHandler
 		{
 			test_packetsize(Integer.valueOf(params.getProperty("size","1000")));
 		}
+		else if(testToRun.equals("PACKETBUILDER"))
+		{
+			test_packetbuilder(resp, Integer.valueOf(params.getProperty("iterations","1000000")));
+		}
+		else if(testToRun.equals("REGISTRY"))
+		{
+			test_registry(resp, Integer.valueOf(params.getProperty("lookups","1000000")));
+		}
+		else if(testToRun.equals("SPATIAL"))
+		{
+			test_spatial(resp, Integer.valueOf(params.getProperty("queries","10000")));
+		}
+		else if(testToRun.equals("GEOMETRY"))
+		{
+			test_geometry(resp, Integer.valueOf(params.getProperty("checks","100000")));
+		}
+		else if(testToRun.equals("UNDO"))
+		{
+			test_undo(resp, Integer.valueOf(params.getProperty("edits","200")));
+		}
+		else if(testToRun.equals("UNDOREPLAY"))
+		{
+			test_undo_replay(resp);
+		}
 		else
 		{
 			resp.setProperty("Status", "NO TEST SPECIFIED");
@@ -150,6 +189,805 @@ public class UnitTestRequestHandler extends AdminBasicRequestHandler
 		}
 	}
 	
+	/**
+	 * A loop for the timing tests below. run() returns something built from what the loop
+	 * did, so the JIT can't throw the work away, and the tests compare it between loops.
+	 */
+	private static abstract class TimedLoop
+	{
+		long result = 0L;
+	
+		abstract long run();
+	}
+	
+	/**
+	 * Runs the loop once so the JIT has seen it, then again timed, and keeps the result of
+	 * the timed run in loop.result
+	 * @param loop
+	 * @return how long the timed run took, in nanoseconds
+	 */
+	private static long time(TimedLoop loop)
+	{
+		loop.run();
+		long start = System.nanoTime();
+		loop.result = loop.run();
+		return System.nanoTime() - start;
+	}
+	
+	/**
+	 * Records a check and marks the whole test FAILED if it didn't hold
+	 * @param resp
+	 * @param name
+	 * @param passed
+	 */
+	private static void check(Properties resp, String name, boolean passed)
+	{
+		resp.setProperty(name, ""+passed);
+		if(!passed)
+		{
+			resp.setProperty("Status", "FAILED");
+			String failed = resp.getProperty("Failed");
+			resp.setProperty("Failed", failed==null ? name : failed+","+name);
+		}
+	}
+	
+	/**
+	 * Times CalicoPacket.getPacket against PacketBuilder for a few common packet shapes,
+	 * and checks that both make the same bytes.
+	 * /debug/unittest?test=PACKETBUILDER&iterations=1000000
+	 */
+	private void test_packetbuilder(Properties resp, int iterations)
+	{
+		final int count = Math.max(1, iterations);
+		final long uuid = 2938471928374L;
+		final String user = "someuser";
+		final String message = "No more undo history";
+	
+		// Same bytes?
+		boolean same = Arrays.equals(
+				CalicoPacket.getPacket(NetworkCommand.GROUP_MOVE, uuid, 12, -7).export(),
+				PacketBuilder.command(NetworkCommand.GROUP_MOVE).putLong(uuid).putInt(12).putInt(-7).build().export())
+			&& Arrays.equals(
+				CalicoPacket.getPacket(NetworkCommand.CANVAS_LOCK, uuid, true, user, 1234L).export(),
+				PacketBuilder.command(NetworkCommand.CANVAS_LOCK).putLong(uuid).putBoolean(true).putString(user).putLong(1234L).build().export())
+			&& Arrays.equals(
+				CalicoPacket.getPacket(NetworkCommand.GROUP_SCALE, uuid, 1.5, 0.25).export(),
+				PacketBuilder.command(NetworkCommand.GROUP_SCALE).putLong(uuid).putDouble(1.5).putDouble(0.25).build().export())
+			&& Arrays.equals(
+				CalicoPacket.getPacket(NetworkCommand.STATUS_MESSAGE, "\u00e9\u4e2d\ud83d\ude00 ok").export(),
+				PacketBuilder.command(NetworkCommand.STATUS_MESSAGE).putString("\u00e9\u4e2d\ud83d\ude00 ok").build().export());
+		check(resp, "PacketBuilder.SameBytes", same);
+	
+		TimedLoop getPacket = new TimedLoop() {
+			long run()
+			{
+				long sink = 0L;
+				for(int i=0;i<count;i++)
+				{
+					sink = sink + CalicoPacket.getPacket(NetworkCommand.GROUP_MOVE, uuid, i, -i).getLength();
+					sink = sink + CalicoPacket.getPacket(NetworkCommand.CANVAS_LOCK, uuid, true, user, (long) i).getLength();
+					sink = sink + CalicoPacket.getPacket(NetworkCommand.STATUS_MESSAGE, message).getLength();
+				}
+				return sink;
+			}
+		};
+		TimedLoop builder = new TimedLoop() {
+			long run()
+			{
+				long sink = 0L;
+				for(int i=0;i<count;i++)
+				{
+					sink = sink + PacketBuilder.command(NetworkCommand.GROUP_MOVE).putLong(uuid).putInt(i).putInt(-i).build().getLength();
+					sink = sink + PacketBuilder.command(NetworkCommand.CANVAS_LOCK).putLong(uuid).putBoolean(true).putString(user).putLong(i).build().getLength();
+					sink = sink + PacketBuilder.command(NetworkCommand.STATUS_MESSAGE).putString(message).build().getLength();
+				}
+				return sink;
+			}
+		};
+		long getPacketNanos = time(getPacket);
+		long builderNanos = time(builder);
+	
+		resp.setProperty("PacketBuilder.Iterations", ""+count);
+		resp.setProperty("PacketBuilder.GetPacketNsPerPacket", ""+(getPacketNanos / (count * 3L)));
+		resp.setProperty("PacketBuilder.BuilderNsPerPacket", ""+(builderNanos / (count * 3L)));
+		check(resp, "PacketBuilder.SameLengths", getPacket.result==builder.result);
+	}
+	
+	/**
+	 * Times UUIDRegistry lookups against the Long2ReferenceArrayMap the registries used to
+	 * be, for a few registry sizes, and checks that every uuid put in is found again.
+	 * /debug/unittest?test=REGISTRY&lookups=1000000
+	 */
+	private void test_registry(Properties resp, int lookups)
+	{
+		final int count = Math.max(1, lookups);
+		int[] sizes = {10, 100, 1000, 10000, 100000};
+		Random rand = new Random(42L);
+	
+		for(int s=0;s<sizes.length;s++)
+		{
+			final int size = sizes[s];
+			final long[] uuids = new long[size];
+			final UUIDRegistry<Object> registry = new UUIDRegistry<Object>();
+			final Long2ReferenceArrayMap<Object> arrayMap = new Long2ReferenceArrayMap<Object>();
+			for(int i=0;i<size;i++)
+			{
+				uuids[i] = rand.nextLong();
+				registry.put(uuids[i], uuids);
+				// The array map is what the registries used to be, past 10k it takes too long to fill
+				if(size<=10000)
+				{
+					arrayMap.put(uuids[i], uuids);
+				}
+			}
+	
+			TimedLoop registryLookups = new TimedLoop() {
+				long run()
+				{
+					long found = 0L;
+					for(int i=0;i<count;i++)
+					{
+						if(registry.get(uuids[i % size])!=null)
+						{
+							found++;
+						}
+					}
+					return found;
+				}
+			};
+			long registryNanos = time(registryLookups);
+			resp.setProperty("Registry."+size+".NsPerLookup", ""+((double) registryNanos / count));
+			check(resp, "Registry."+size+".AllFound", registryLookups.result==count);
+	
+			if(size<=10000)
+			{
+				// The array map gets fewer lookups, otherwise it would run for minutes
+				final int arrayLookups = Math.max(1, count / Math.max(1, size / 100));
+				TimedLoop arrayMapLookups = new TimedLoop() {
+					long run()
+					{
+						long found = 0L;
+						for(int i=0;i<arrayLookups;i++)
+						{
+							if(arrayMap.get(uuids[i % size])!=null)
+							{
+								found++;
+							}
+						}
+						return found;
+					}
+				};
+				long arrayNanos = time(arrayMapLookups);
+				resp.setProperty("Registry."+size+".ArrayMapNsPerLookup", ""+((double) arrayNanos / arrayLookups));
+				check(resp, "Registry."+size+".ArrayMapAllFound", arrayMapLookups.result==arrayLookups);
+			}
+		}
+		resp.setProperty("Registry.Lookups", ""+count);
+	}
+	
+	/**
+	 * Finds the smallest group holding a stroke, the way parenting does, by testing every
+	 * group and by testing only what the spatial index hands back. Both should find the same
+	 * group. Then checks that a canvas finds the same arrows after updateSignature() has
+	 * rebuilt its indexes.
+	 * /debug/unittest?test=SPATIAL&queries=10000
+	 */
+	private void test_spatial(Properties resp, int queries)
+	{
+		final int count = Math.max(1, queries);
+		int[] sizes = {100, 1000, 10000};
+		Random rand = new Random(42L);
+	
+		for(int s=0;s<sizes.length;s++)
+		{
+			final int size = sizes[s];
+	
+			// Scraps scattered over a canvas big enough that they don't all overlap
+			int extent = (int) Math.sqrt(size) * 200;
+			final GeneralPath[] groups = new GeneralPath[size];
+			final double[] areas = new double[size];
+			final CCanvasSpatialIndex index = new CCanvasSpatialIndex(COptions.canvas.spatial_cell_size);
+			for(int i=0;i<size;i++)
+			{
+				int w = 40 + rand.nextInt(300);
+				int h = 40 + rand.nextInt(300);
+				groups[i] = new GeneralPath(new Rectangle(rand.nextInt(extent), rand.nextInt(extent), w, h));
+				areas[i] = w * h;
+				index.put(i, groups[i].getBounds2D());
+			}
+	
+			final GeneralPath[] strokes = new GeneralPath[256];
+			for(int i=0;i<strokes.length;i++)
+			{
+				int x = rand.nextInt(extent);
+				int y = rand.nextInt(extent);
+				strokes[i] = new GeneralPath();
+				strokes[i].moveTo(x, y);
+				for(int p=0;p<20;p++)
+				{
+					strokes[i].lineTo(x + rand.nextInt(30), y + rand.nextInt(30));
+				}
+			}
+	
+			TimedLoop scan = new TimedLoop() {
+				long run()
+				{
+					long sum = 0L;
+					for(int q=0;q<count;q++)
+					{
+						GeneralPath stroke = strokes[q % strokes.length];
+						int smallest = -1;
+						for(int i=0;i<size;i++)
+						{
+							if((smallest==-1 || areas[i]<areas[smallest]) && spatial_contains(groups[i], stroke))
+							{
+								smallest = i;
+							}
+						}
+						sum = sum + smallest;
+					}
+					return sum;
+				}
+			};
+			final long[] candidates = new long[1];
+			TimedLoop indexed = new TimedLoop() {
+				long run()
+				{
+					long sum = 0L;
+					candidates[0] = 0L;
+					for(int q=0;q<count;q++)
+					{
+						GeneralPath stroke = strokes[q % strokes.length];
+						long[] near = index.query(stroke.getBounds2D());
+						candidates[0] = candidates[0] + near.length;
+						int smallest = -1;
+						for(int n=0;n<near.length;n++)
+						{
+							int i = (int) near[n];
+							if((smallest==-1 || areas[i]<areas[smallest]) && spatial_contains(groups[i], stroke))
+							{
+								smallest = i;
+							}
+						}
+						sum = sum + smallest;
+					}
+					return sum;
+				}
+			};
+			long scanNanos = time(scan);
+			long indexNanos = time(indexed);
+	
+			resp.setProperty("Spatial."+size+".ScanNsPerQuery", ""+(scanNanos / count));
+			resp.setProperty("Spatial."+size+".IndexNsPerQuery", ""+(indexNanos / count));
+			resp.setProperty("Spatial."+size+".CandidatesPerQuery", ""+((double) candidates[0] / count));
+			check(resp, "Spatial."+size+".SameResults", scan.result==indexed.result);
+		}
+		resp.setProperty("Spatial.Queries", ""+count);
+		resp.setProperty("Spatial.CellSize", ""+COptions.canvas.spatial_cell_size);
+		
+		// Rebuilding the signature rebuilds the canvas's indexes too, it should find the same arrows after
+		long cuid = UUIDAllocator.getUUID();
+		CCanvas canvas = new CCanvas(cuid);
+		CCanvasController.canvases.put(cuid, canvas);
+		for(int i=0;i<200;i++)
+		{
+			int x = rand.nextInt(4000);
+			int y = rand.nextInt(4000);
+			CArrowController.no_notify_start(UUIDAllocator.getUUID(), cuid, CArrow.TYPE_NORM_HEAD_B, Color.BLACK,
+				new AnchorPoint(CArrow.TYPE_CANVAS, cuid, x, y),
+				new AnchorPoint(CArrow.TYPE_CANVAS, cuid, x + rand.nextInt(300), y + rand.nextInt(300)));
+		}
+		Rectangle[] areas = new Rectangle[64];
+		long[][] before = new long[areas.length][];
+		for(int i=0;i<areas.length;i++)
+		{
+			areas[i] = new Rectangle(rand.nextInt(4000), rand.nextInt(4000), 100 + rand.nextInt(400), 100 + rand.nextInt(400));
+			before[i] = canvas.getChildArrowsNear(areas[i]);
+		}
+		canvas.updateSignature();
+		boolean sameArrows = true;
+		for(int i=0;i<areas.length;i++)
+		{
+			sameArrows = sameArrows && Arrays.equals(before[i], canvas.getChildArrowsNear(areas[i]));
+		}
+		CCanvasController.no_notify_evict(cuid);
+		check(resp, "Spatial.RebuildSameArrows", sameArrows);
+	}
+	
+	// Same test as CGroup.containsShape
+	private static boolean spatial_contains(GeneralPath container, GeneralPath shape)
+	{
+		Polygon polygon = Geometry.getPolyFromPath(shape.getPathIterator(null));
+		int totalNotContained = 0;
+		for(int i=0;i<polygon.npoints;i++)
+		{
+			if (!container.contains(new Point(polygon.xpoints[i], polygon.ypoints[i])))
+			{
+				totalNotContained++;
+			}
+			if (totalNotContained > polygon.npoints*.1)
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Times the group containment check (at least 90% of a stroke's points inside a scrap)
+	 * the old way, flattening both paths on every call, against cached PathGeometry, and
+	 * checks that point tests agree with GeneralPath.contains.
+	 * /debug/unittest?test=GEOMETRY&checks=100000
+	 */
+	private void test_geometry(Properties resp, int checks)
+	{
+		final int count = Math.max(1, checks);
+		Random rand = new Random(42L);
+	
+		// Scraps and strokes shaped the way CGroup and CStroke make them
+		final GeneralPath[] groups = new GeneralPath[64];
+		final GeneralPath[] strokes = new GeneralPath[64];
+		for(int i=0;i<groups.length;i++)
+		{
+			Polygon outline = new Polygon();
+			int n = 40 + rand.nextInt(120);
+			int radius = 100 + rand.nextInt(200);
+			for(int p=0;p<n;p++)
+			{
+				double t = 2 * Math.PI * p / n;
+				outline.addPoint(500 + (int) (radius * Math.cos(t)), 500 + (int) (radius * Math.sin(t)));
+			}
+			AffineTransform transform = AffineTransform.getRotateInstance(rand.nextDouble(), 500, 500);
+			groups[i] = (GeneralPath) Geometry.getBezieredPoly(outline).createTransformedShape(transform);
+	
+			Polygon line = new Polygon();
+			int x = 250 + rand.nextInt(500);
+			int y = 250 + rand.nextInt(500);
+			for(int p=0;p<20+rand.nextInt(80);p++)
+			{
+				x = x + rand.nextInt(11) - 5;
+				y = y + rand.nextInt(11) - 5;
+				line.addPoint(x, y);
+			}
+			strokes[i] = Geometry.getBezieredPoly(line);
+		}
+		final PathGeometry[] groupGeometry = new PathGeometry[groups.length];
+		final PathGeometry[] strokeGeometry = new PathGeometry[strokes.length];
+		for(int i=0;i<groups.length;i++)
+		{
+			groupGeometry[i] = PathGeometry.of(groups[i]);
+			strokeGeometry[i] = PathGeometry.of(strokes[i]);
+		}
+	
+		// Do they agree?
+		long mismatches = 0L;
+		for(int i=0;i<count;i++)
+		{
+			int g = i % groups.length;
+			double x = rand.nextInt(1000);
+			double y = rand.nextInt(1000);
+			if(groups[g].contains(x, y)!=groupGeometry[g].contains(x, y))
+			{
+				mismatches++;
+			}
+		}
+		resp.setProperty("Geometry.PointMismatches", ""+mismatches);
+		check(resp, "Geometry.SamePoints", mismatches==0L);
+	
+		TimedLoop paths = new TimedLoop() {
+			long run()
+			{
+				long sum = 0L;
+				for(int i=0;i<count;i++)
+				{
+					GeneralPath container = groups[i % groups.length];
+					Polygon polygon = Geometry.getPolyFromPath(strokes[(i / groups.length) % strokes.length].getPathIterator(null));
+					int totalNotContained = 0;
+					boolean contained = true;
+					for(int p=0;p<polygon.npoints && contained;p++)
+					{
+						if (!container.contains(new Point(polygon.xpoints[p], polygon.ypoints[p])))
+						{
+							totalNotContained++;
+						}
+						contained = totalNotContained <= polygon.npoints*.1;
+					}
+					sum = sum + (contained ? i : 0);
+				}
+				return sum;
+			}
+		};
+		TimedLoop cached = new TimedLoop() {
+			long run()
+			{
+				long sum = 0L;
+				for(int i=0;i<count;i++)
+				{
+					PathGeometry container = groupGeometry[i % groups.length];
+					PathGeometry shape = strokeGeometry[(i / groups.length) % strokes.length];
+					int npoints = shape.getNumPoints();
+					int totalNotContained = 0;
+					boolean contained = true;
+					for(int p=0;p<npoints && contained;p++)
+					{
+						if (!container.contains(shape.getX(p), shape.getY(p)))
+						{
+							totalNotContained++;
+						}
+						contained = totalNotContained <= npoints*.1;
+					}
+					sum = sum + (contained ? i : 0);
+				}
+				return sum;
+			}
+		};
+		long oldNanos = time(paths);
+		long newNanos = time(cached);
+	
+		resp.setProperty("Geometry.Checks", ""+count);
+		resp.setProperty("Geometry.PathNsPerCheck", ""+(oldNanos / count));
+		resp.setProperty("Geometry.CachedNsPerCheck", ""+(newNanos / count));
+		check(resp, "Geometry.SameResults", paths.result==cached.result);
+	}
+	
+	/**
+	 * Times what a snapshot costs on a canvas full of strokes when each edit moves one of
+	 * them: copying the whole canvas (what the undo history used to keep per edit) against
+	 * the undo log, which only looks at what was touched. Then undoes them all, which only
+	 * deletes and reloads what each edit touched. Uses a scratch canvas that is dropped
+	 * afterwards.
+	 * /debug/unittest?test=UNDO&edits=200
+	 */
+	private void test_undo(Properties resp, int edits)
+	{
+		edits = Math.max(1, edits);
+		int[] sizes = {100, 1000, 5000};
+		Random rand = new Random(42L);
+		
+		for(int s=0;s<sizes.length;s++)
+		{
+			int size = sizes[s];
+			long cuid = UUIDAllocator.getUUID();
+			CCanvas canvas = new CCanvas(cuid);
+			CCanvasController.canvases.put(cuid, canvas);
+			
+			long[] strokes = new long[size];
+			for(int i=0;i<size;i++)
+			{
+				strokes[i] = UUIDAllocator.getUUID();
+				CStrokeController.no_notify_start(strokes[i], cuid);
+				int x = rand.nextInt(4000);
+				int y = rand.nextInt(4000);
+				for(int p=0;p<30;p++)
+				{
+					CStrokeController.no_notify_append(strokes[i], x + p * 3, y + rand.nextInt(10));
+				}
+				CStrokeController.no_notify_finish(strokes[i]);
+			}
+			canvas.saveCurrentCanvasState();
+			
+			long fullNanos = 0L;
+			long fullBytes = 0L;
+			long logNanos = 0L;
+			for(int i=0;i<edits;i++)
+			{
+				CStrokeController.no_notify_move(strokes[rand.nextInt(size)], 5, 5);
+				
+				long start = System.nanoTime();
+				CalicoPacket[] packets = canvas.getUpdatePackets();
+				fullNanos = fullNanos + (System.nanoTime() - start);
+				for(int p=0;p<packets.length;p++)
+				{
+					fullBytes = fullBytes + packets[p].getBufferSize();
+				}
+				
+				start = System.nanoTime();
+				canvas.saveCurrentCanvasState();
+				logNanos = logNanos + (System.nanoTime() - start);
+			}
+			
+			long logBytes = canvas.getUndoBytes() / Math.max(1, canvas.getUndoEdits());
+			
+			// Then undo all the way back
+			int recorded = canvas.getUndoEdits();
+			int undone = 0;
+			long start = System.nanoTime();
+			while(undone<edits && canvas.performUndo())
+			{
+				undone++;
+			}
+			long undoNanos = System.nanoTime() - start;
+			
+			CCanvasController.no_notify_evict(cuid);
+			
+			resp.setProperty("Undo."+size+".FullSnapshotNsPerEdit", ""+(fullNanos / edits));
+			resp.setProperty("Undo."+size+".FullSnapshotBytesPerEdit", ""+(fullBytes / edits));
+			resp.setProperty("Undo."+size+".LogSnapshotNsPerEdit", ""+(logNanos / edits));
+			resp.setProperty("Undo."+size+".LogBytesPerEdit", ""+logBytes);
+			resp.setProperty("Undo."+size+".UndoNsPerEdit", ""+(undoNanos / Math.max(1, undone)));
+			check(resp, "Undo."+size+".UndoneAll", undone==Math.min(edits, recorded));
+		}
+		resp.setProperty("Undo.Edits", ""+edits);
+		resp.setProperty("Undo.CheckpointInterval", ""+COptions.canvas.undo_checkpoint_interval);
+	}
+	
+	/**
+	 * Makes a run of edits on a scratch canvas: nested scraps, strokes, text, the lock, an
+	 * arrow hanging off a scrap, deleting scraps with children in them and a temp scrap.
+	 * Then undoes them all and redoes them all, checking after each step that the canvas
+	 * sends out the same packets it did when that edit was made. Temp scraps are dropped
+	 * when a canvas is restored, so the last step should look like the one before it.
+	 * Each step also has to reach clients as one run of packets, sent once, with
+	 * CANVAS_SC_FINISH last.
+	 * /debug/unittest?test=UNDOREPLAY
+	 */
+	private void test_undo_replay(Properties resp) throws IOException
+	{
+		long cuid = UUIDAllocator.getUUID();
+		CCanvas canvas = new CCanvas(cuid);
+		CCanvasController.canvases.put(cuid, canvas);
+		ArrayList<List<String>> states = new ArrayList<List<String>>();
+		states.add(undo_state(canvas));
+		
+		long outer = undo_box(cuid, 0, 0, 1000, 1000, true);
+		canvas.saveCurrentCanvasState();
+		states.add(undo_state(canvas));
+		long parent = undo_box(cuid, 2000, 2000, 300, 300, true);
+		canvas.saveCurrentCanvasState();
+		states.add(undo_state(canvas));
+		long child = undo_box(cuid, 2050, 2050, 100, 100, true);
+		canvas.saveCurrentCanvasState();
+		states.add(undo_state(canvas));
+		
+		// Into the outer scrap, taking its child along
+		CGroupController.no_notify_move(parent, -1900, -1900);
+		canvas.saveCurrentCanvasState();
+		states.add(undo_state(canvas));
+		
+		long stroke = undo_stroke(cuid, 200, 200);
+		CCanvasController.snapshot_stroke(stroke);
+		states.add(undo_state(canvas));
+		CGroupController.no_notify_set_text(outer, "outer");
+		CCanvasController.snapshot_group(outer);
+		states.add(undo_state(canvas));
+		CStrokeController.no_notify_delete(stroke);
+		canvas.saveCurrentCanvasState();
+		states.add(undo_state(canvas));
+		canvas.setCanvasLock(true, "unittest", 1234L);
+		canvas.saveCurrentCanvasState();
+		states.add(undo_state(canvas));
+		
+		long arrow = UUIDAllocator.getUUID();
+		CArrowController.no_notify_start(arrow, cuid, CArrow.TYPE_NORM_HEAD_B, Color.BLACK,
+			new AnchorPoint(CArrow.TYPE_GROUP, outer, 50, 50),
+			new AnchorPoint(CArrow.TYPE_CANVAS, cuid, 3000, 3000));
+		CCanvasController.snapshot_arrow(arrow);
+		states.add(undo_state(canvas));
+		CGroupController.no_notify_set_text(parent, "parent");
+		CCanvasController.snapshot_group(parent);
+		states.add(undo_state(canvas));
+		
+		long other = undo_box(cuid, 3000, 3000, 500, 500, true);
+		canvas.saveCurrentCanvasState();
+		states.add(undo_state(canvas));
+		long inside = undo_stroke(cuid, 3100, 3100);
+		CCanvasController.snapshot_stroke(inside);
+		states.add(undo_state(canvas));
+		CGroupController.no_notify_delete(other);
+		canvas.saveCurrentCanvasState();
+		states.add(undo_state(canvas));
+		
+		// Undoing this has to bring back the scraps and strokes inside it, and the arrow
+		CGroupController.no_notify_delete(outer);
+		canvas.saveCurrentCanvasState();
+		states.add(undo_state(canvas));
+		
+		long temp = undo_box(cuid, 5000, 5000, 200, 200, false);
+		canvas.saveCurrentCanvasState();
+		states.add(states.get(states.size() - 1));
+		
+		SentPackets sent = new SentPackets();
+		
+		int mismatches = 0;
+		int badRuns = 0;
+		for(int i=states.size()-2;i>=0;i--)
+		{
+			if(!canvas.performUndo() || !undo_state(canvas).equals(states.get(i)))
+			{
+				mismatches++;
+			}
+			if(!undo_sent_once(sent.take(), cuid))
+			{
+				badRuns++;
+			}
+		}
+		check(resp, "UndoReplay.NoMoreUndo", !canvas.performUndo());
+		for(int i=1;i<states.size();i++)
+		{
+			if(!canvas.performRedo() || !undo_state(canvas).equals(states.get(i)))
+			{
+				mismatches++;
+			}
+			if(!undo_sent_once(sent.take(), cuid))
+			{
+				badRuns++;
+			}
+		}
+		check(resp, "UndoReplay.NoMoreRedo", !canvas.performRedo());
+		check(resp, "UndoReplay.NothingMoreSent", sent.take().isEmpty());
+		check(resp, "UndoReplay.TempScrapDropped", !CGroupController.exists(temp));
+		
+		sent.close();
+		CCanvasController.no_notify_evict(cuid);
+		
+		resp.setProperty("UndoReplay.Steps", ""+((states.size() - 1) * 2));
+		resp.setProperty("UndoReplay.Mismatches", ""+mismatches);
+		resp.setProperty("UndoReplay.BadRuns", ""+badRuns);
+		check(resp, "UndoReplay.SameStates", mismatches==0);
+		check(resp, "UndoReplay.SentOnce", badRuns==0);
+	}
+	
+	// One step's packets: something changed, nothing went out twice and CANVAS_SC_FINISH came last
+	private static boolean undo_sent_once(List<CalicoPacket> packets, long cuid)
+	{
+		boolean ok = packets.size()>1;
+		HashSet<String> seen = new HashSet<String>();
+		for(int i=0;i<packets.size();i++)
+		{
+			CalicoPacket packet = packets.get(i);
+			packet.rewind();
+			boolean finish = packet.getInt()==NetworkCommand.CANVAS_SC_FINISH && packet.getLong()==cuid;
+			if(finish!=(i==packets.size() - 1) || !seen.add(Arrays.toString(packet.export())))
+			{
+				ok = false;
+			}
+			packet.release();
+		}
+		return ok;
+	}
+	
+	/**
+	 * A client whose reactor is never started, so whatever is sent to it can be written out
+	 * by hand and read back off the other end of its socket
+	 */
+	private static class SentPackets
+	{
+		private ServerSocketChannel server;
+		private SocketChannel peer;
+		private NetworkReactor reactor;
+		private ClientThread client = null;
+		private FrameDecoder decoder = new FrameDecoder();
+		
+		SentPackets() throws IOException
+		{
+			this.server = ServerSocketChannel.open();
+			this.server.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+			this.peer = SocketChannel.open(this.server.socket().getLocalSocketAddress());
+			this.peer.configureBlocking(false);
+			SocketChannel channel = this.server.accept();
+			channel.configureBlocking(false);
+			
+			this.reactor = new NetworkReactor(-1);
+			ClientManager.newClientThread(channel, this.reactor);
+			int[] clients = ClientManager.get_clientids();
+			for(int i=0;i<clients.length;i++)
+			{
+				ClientThread thread = ClientManager.getClientThread(clients[i]);
+				if(thread!=null && thread.getSocketChannel()==channel)
+				{
+					this.client = thread;
+				}
+			}
+			if(this.client==null)
+			{
+				close();
+				throw new IOException("The client was not registered");
+			}
+		}
+		
+		/**
+		 * Everything sent since the last call. Stops once the run ends with CANVAS_SC_FINISH
+		 * and nothing else comes, or after two seconds.
+		 */
+		List<CalicoPacket> take() throws IOException
+		{
+			ArrayList<CalicoPacket> packets = new ArrayList<CalicoPacket>();
+			long deadline = System.currentTimeMillis() + 2000L;
+			boolean drained = false;
+			while(true)
+			{
+				if(!drained)
+				{
+					drained = this.client.nioWrite();
+				}
+				int read = this.decoder.readFrom(this.peer);
+				CalicoPacket packet = null;
+				while((packet = this.decoder.nextFrame())!=null)
+				{
+					packets.add(packet);
+				}
+				if(drained && read==0 && !this.decoder.isReceivingFrame()
+					&& (packets.isEmpty() || finished(packets) || System.currentTimeMillis()>deadline))
+				{
+					return packets;
+				}
+			}
+		}
+		
+		private static boolean finished(List<CalicoPacket> packets)
+		{
+			CalicoPacket last = packets.get(packets.size() - 1);
+			last.rewind();
+			return last.getInt()==NetworkCommand.CANVAS_SC_FINISH;
+		}
+		
+		void close()
+		{
+			if(this.client!=null)
+			{
+				ClientManager.kill(this.client.getClientID());
+			}
+			this.reactor.shutdown();
+			try
+			{
+				this.peer.close();
+				this.server.close();
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	// What the canvas sends out, in an order that doesn't depend on how it got there
+	private static List<String> undo_state(CCanvas canvas)
+	{
+		CalicoPacket[] packets = canvas.getUpdatePackets();
+		ArrayList<String> state = new ArrayList<String>(packets.length);
+		for(int i=0;i<packets.length;i++)
+		{
+			state.add(Arrays.toString(packets[i].export()));
+		}
+		Collections.sort(state);
+		return state;
+	}
+	
+	private static long undo_box(long cuid, int x, int y, int w, int h, boolean perm)
+	{
+		long uuid = UUIDAllocator.getUUID();
+		CGroupController.no_notify_start(uuid, cuid, 0L, perm);
+		// Plenty of points along each side, the way a drawn scrap has them
+		for(int i=0;i<10;i++)
+		{
+			CGroupController.no_notify_append(uuid, x + w * i / 10, y);
+		}
+		for(int i=0;i<10;i++)
+		{
+			CGroupController.no_notify_append(uuid, x + w, y + h * i / 10);
+		}
+		for(int i=0;i<10;i++)
+		{
+			CGroupController.no_notify_append(uuid, x + w - w * i / 10, y + h);
+		}
+		for(int i=0;i<=10;i++)
+		{
+			CGroupController.no_notify_append(uuid, x, y + h - h * i / 10);
+		}
+		CGroupController.no_notify_finish(uuid, false, true);
+		return uuid;
+	}
+	
+	private static long undo_stroke(long cuid, int x, int y)
+	{
+		long uuid = UUIDAllocator.getUUID();
+		CStrokeController.no_notify_start(uuid, cuid);
+		for(int i=0;i<10;i++)
+		{
+			CStrokeController.no_notify_append(uuid, x + i * 5, y + i * 3);
+		}
+		CStrokeController.no_notify_finish(uuid);
+		return uuid;
+	}
+	
 	private void test_strokes()
 	{
 		// Allocate a huge pool of UUIDs
@@ -9,16 +9,19 @@ public class ClientConsistencyListener implements CalicoEventListener {
 
 	private static ClientConsistencyListener instance;
 	
-	public static boolean ignoreConsistencyCheck = false;
+	// Set from the async event lane, read by HEARTBEAT
+	public static volatile boolean ignoreConsistencyCheck = false;
 	
 	public ClientConsistencyListener()
 	{
-		CalicoEventHandler.getInstance().addListener(NetworkCommand.GROUP_MOVE_START, this, CalicoEventHandler.PASSIVE_LISTENER);
-		CalicoEventHandler.getInstance().addListener(NetworkCommand.GROUP_MOVE_END, this, CalicoEventHandler.PASSIVE_LISTENER);
-		CalicoEventHandler.getInstance().addListener(NetworkCommand.ERASE_START, this, CalicoEventHandler.PASSIVE_LISTENER);
-		CalicoEventHandler.getInstance().addListener(NetworkCommand.ERASE_END, this, CalicoEventHandler.PASSIVE_LISTENER);
-		CalicoEventHandler.getInstance().addListener(NetworkCommand.CONNECTOR_MOVE_ANCHOR_START, this, CalicoEventHandler.PASSIVE_LISTENER);
-		CalicoEventHandler.getInstance().addListener(NetworkCommand.CONNECTOR_MOVE_ANCHOR_END, this, CalicoEventHandler.PASSIVE_LISTENER);
+		// Only flips a flag, so it doesn't need to hold up the packet thread. START and END
+		// are for the same canvas, so the lane keeps them in order.
+		CalicoEventHandler.getInstance().addListener(NetworkCommand.GROUP_MOVE_START, this, CalicoEventHandler.ASYNC_PASSIVE_LISTENER);
+		CalicoEventHandler.getInstance().addListener(NetworkCommand.GROUP_MOVE_END, this, CalicoEventHandler.ASYNC_PASSIVE_LISTENER);
+		CalicoEventHandler.getInstance().addListener(NetworkCommand.ERASE_START, this, CalicoEventHandler.ASYNC_PASSIVE_LISTENER);
+		CalicoEventHandler.getInstance().addListener(NetworkCommand.ERASE_END, this, CalicoEventHandler.ASYNC_PASSIVE_LISTENER);
+		CalicoEventHandler.getInstance().addListener(NetworkCommand.CONNECTOR_MOVE_ANCHOR_START, this, CalicoEventHandler.ASYNC_PASSIVE_LISTENER);
+		CalicoEventHandler.getInstance().addListener(NetworkCommand.CONNECTOR_MOVE_ANCHOR_END, this, CalicoEventHandler.ASYNC_PASSIVE_LISTENER);
 		
 //		System.out.println("~~~~~~~~~~~~ Instanciated Consisteny listener!! ~~~~~~~~~~~~");
 	}
@@ -64,19 +64,49 @@ public class ClientManager
 	
 	public static void setClientChallenge(int clientid, long challenge)
 	{
-		challenge2clientid.put(challenge, clientid);
+		synchronized(challenge2clientid)
+		{
+			challenge2clientid.put(challenge, clientid);
+		}
 	}
 	public static int getClientFromChallenge(long challenge)
 	{
-		return challenge2clientid.get(challenge);
+		synchronized(challenge2clientid)
+		{
+			return challenge2clientid.get(challenge);
+		}
+	}
+	public static void clearClientChallenge(long challenge)
+	{
+		synchronized(challenge2clientid)
+		{
+			challenge2clientid.remove(challenge);
+		}
 	}
 	
 	public static void setClientUDPSocket(InetSocketAddress sockAddress, int clientid)
 	{
-		udpsockets2clientid.put(sockAddress, clientid);
+		synchronized(udpsockets2clientid)
+		{
+			udpsockets2clientid.put(sockAddress, clientid);
+		}
 		
 		getClientThread(clientid).setUDPSocketAddress(sockAddress);
 	}
+	public static int getClientFromUDPSocket(InetSocketAddress sockAddress)
+	{
+		synchronized(udpsockets2clientid)
+		{
+			return udpsockets2clientid.getInt(sockAddress);
+		}
+	}
+	public static void removeClientUDPSocket(InetSocketAddress sockAddress)
+	{
+		synchronized(udpsockets2clientid)
+		{
+			udpsockets2clientid.removeInt(sockAddress);
+		}
+	}
 	
 	
 	public static Properties getClientProperties(int clientid, boolean withPrefix)
@@ -116,6 +146,32 @@ public class ClientManager
 		
 	}//newClientThread
 	
+	public static void newClientThread(SocketChannel channel, NetworkReactor reactor)
+	{
+		int clientid = new Long(UUIDAllocator.getUUID()).intValue();
+		
+		try
+		{
+			ClientThread client = new ClientThread(clientid, channel, reactor);
+			threads.put(clientid, client);
+			clientids.add(clientid);
+			reactor.register(client);
+		}
+		catch(IOException e)
+		{
+			threads.remove(clientid);
+			clientids.remove(clientid);
+			e.printStackTrace();
+			try
+			{
+				channel.close();
+			}
+			catch(IOException e2)
+			{
+			}
+		}
+	}//newClientThread
+	
 	
 	
 	public static void drop(int clientid, String message)
@@ -183,12 +239,14 @@ public class ClientManager
 		if(p==null)
 			return;
 		
+		// Serialize once, every client gets the same frame
+		OutboundFrame frame = OutboundFrame.of(p);
 		
 		int clients[] = clientids.toIntArray().clone();
 		
 		for(int i=0;i<clients.length;i++)
 		{
-			send(clients[i], p);
+			send(clients[i], frame);
 		}
 	}
 	
@@ -202,11 +260,20 @@ public class ClientManager
 			return;
 		
 		
+		OutboundFrame[] frames = new OutboundFrame[p.length];
+		for(int i=0;i<p.length;i++)
+		{
+			frames[i] = OutboundFrame.of(p[i]);
+		}
+		
 		int clients[] = clientids.toIntArray().clone();
 		
 		for(int i=0;i<clients.length;i++)
 		{
-			send(clients[i], p);
+			for(int j=0;j<frames.length;j++)
+			{
+				send(clients[i], frames[j]);
+			}
 		}
 	}
 
@@ -232,6 +299,14 @@ public class ClientManager
 		getClientThread(clientid).send(p);
 	}
 	
+	public static void send(final int clientid, final OutboundFrame frame)
+	{
+		if(clientid==-1 || clientid==0 || frame==null || !threads.containsKey(clientid))
+			return;
+		
+		getClientThread(clientid).send(frame);
+	}
+	
 	public static void send(final int clientid, final CalicoPacket[] p)
 	{
 		if(clientid==-1 || clientid==0 || p==null || !threads.containsKey(clientid))
@@ -257,18 +332,260 @@ public class ClientManager
 		if(p==null || clientid==-1 || clientid==0)
 			return;
 		
+		OutboundFrame frame = null;
+		
 		int clients[] = clientids.toIntArray();
 		
 		for(int i=0;i<clients.length;i++)
 		{
 			if(clients[i]!=clientid)
 			{
-				send(clients[i], p);
+				if(frame==null)
+				{
+					frame = OutboundFrame.of(p);
+				}
+				send(clients[i], frame);
 			}
 		}
 	}
 	
 	
+	/**
+	 * Sends a packet that is fine to lose (and is stale by the time a newer one arrives).
+	 * It goes over UDP if the client is on the UDP lane, otherwise over TCP as usual.
+	 * @param clientid
+	 * @param p
+	 */
+	public static void send_ephemeral(final int clientid, final CalicoPacket p)
+	{
+		if(p==null || !threads.containsKey(clientid))
+			return;
+		
+		getClientThread(clientid).sendEphemeral(p);
+	}
+	
+	public static void send_ephemeral(final Client c, final CalicoPacket p)
+	{
+		if(c==null)
+			return;
+		
+		send_ephemeral(c.getClientID(), p);
+	}
+	
+	/**
+	 * Like send_except, but for ephemeral packets (see send_ephemeral)
+	 * @param c
+	 * @param p
+	 */
+	public static void send_ephemeral_except(final Client c, final CalicoPacket p)
+	{
+		if(p==null || c==null)
+			return;
+		
+		int clientid = c.getClientID();
+		int clients[] = clientids.toIntArray();
+		
+		for(int i=0;i<clients.length;i++)
+		{
+			if(clients[i]!=clientid)
+			{
+				send_ephemeral(clients[i], p);
+			}
+		}
+	}
+	
+	
+	/**
+	 * Sends a run of packets to one client. If the client can take COMPRESSED envelopes and
+	 * the run is over client.network.compression_threshold, it is sent as envelopes.
+	 * @param c
+	 * @param packets
+	 */
+	public static void send_bulk(final Client c, final CalicoPacket[] packets)
+	{
+		if(c==null || packets==null || !threads.containsKey(c.getClientID()))
+			return;
+		
+		ClientThread thread = getClientThread(c.getClientID());
+		
+		long total = 0L;
+		for(int i=0;i<packets.length;i++)
+		{
+			total = total + packets[i].getLength();
+		}
+		
+		if(!COptions.client.network.compression || !thread.hasCapability(NetworkCommand.CAPABILITY_COMPRESSION)
+			|| total<COptions.client.network.compression_threshold)
+		{
+			send(c, packets);
+			return;
+		}
+		
+		int start = 0;
+		while(start<packets.length)
+		{
+			int end = start;
+			int batch = 0;
+			while(end<packets.length && (end==start || batch + packets[end].getLength()<=COptions.client.network.compression_batch_bytes))
+			{
+				batch = batch + packets[end].getLength();
+				end++;
+			}
+			
+			FrameCompressor.Result result = FrameCompressor.compress(packets, start, end);
+			if(result==null)
+			{
+				for(int i=start;i<end;i++)
+				{
+					thread.send(packets[i]);
+				}
+			}
+			else
+			{
+				thread.countCompression(result.rawSize, result.packet.getLength(), result.nanos);
+				thread.send(result.packet);
+			}
+			start = end;
+		}
+	}
+	
+	/**
+	 * Sends a (large) packet to all clients. Clients that can take COMPRESSED envelopes get
+	 * it compressed, the envelope is only built once.
+	 * @param p
+	 */
+	public static void send_bulk(CalicoPacket p)
+	{
+		if(p==null)
+			return;
+		
+		if(!COptions.client.network.compression || p.getLength()<COptions.client.network.compression_threshold)
+		{
+			send(p);
+			return;
+		}
+		
+		OutboundFrame plain = null;
+		OutboundFrame compressed = null;
+		FrameCompressor.Result result = null;
+		boolean tried = false;
+		
+		int clients[] = clientids.toIntArray().clone();
+		for(int i=0;i<clients.length;i++)
+		{
+			if(!threads.containsKey(clients[i]))
+			{
+				continue;
+			}
+			ClientThread thread = getClientThread(clients[i]);
+			
+			if(thread.hasCapability(NetworkCommand.CAPABILITY_COMPRESSION))
+			{
+				if(!tried)
+				{
+					tried = true;
+					result = FrameCompressor.compress(p);
+					if(result!=null)
+					{
+						compressed = OutboundFrame.of(result.packet);
+					}
+				}
+				if(compressed!=null)
+				{
+					thread.countCompression(result.rawSize, result.packet.getLength(), 0L);
+					thread.send(compressed);
+					continue;
+				}
+			}
+			
+			if(plain==null)
+			{
+				plain = OutboundFrame.of(p);
+			}
+			thread.send(plain);
+		}
+	}
+	
+	/**
+	 * Relays an edit that only affects one canvas. With client.network.canvas_scoped_fanout
+	 * enabled, only clients viewing that canvas (or who have not told us what they are
+	 * viewing) get the packet. Everyone else is marked as stale for the canvas and gets a
+	 * resync of it when they enter it (PRESENCE_VIEW_CANVAS).
+	 * @param c the client that made the edit
+	 * @param cuid the canvas that was edited (0 if unknown)
+	 * @param p
+	 */
+	public static void send_canvas_except(final Client c, final long cuid, final CalicoPacket p)
+	{
+		if(!COptions.client.network.canvas_scoped_fanout || cuid==0L || c==null)
+		{
+			send_except(c, p);
+			return;
+		}
+		if(p==null)
+			return;
+		
+		int clientid = c.getClientID();
+		OutboundFrame frame = null;
+		
+		int clients[] = clientids.toIntArray();
+		
+		for(int i=0;i<clients.length;i++)
+		{
+			if(clients[i]==clientid || !threads.containsKey(clients[i]))
+			{
+				continue;
+			}
+			
+			ClientThread thread = getClientThread(clients[i]);
+			long viewing = thread.getCurrentCanvasUUID();
+			if(viewing==cuid || viewing==0L)
+			{
+				if(frame==null)
+				{
+					frame = OutboundFrame.of(p);
+				}
+				thread.send(frame);
+			}
+			else
+			{
+				thread.markCanvasStale(cuid);
+			}
+		}
+	}
+	
+	/**
+	 * Sends packets that change one canvas to everyone who has it. With
+	 * client.network.canvas_scoped_fanout enabled, only clients viewing that canvas (or who
+	 * have not told us what they are viewing) get them, everyone else is marked as stale for
+	 * it. Big runs go out compressed, as with send_bulk.
+	 * @param cuid
+	 * @param packets
+	 */
+	public static void send_canvas(final long cuid, final CalicoPacket[] packets)
+	{
+		if(packets==null)
+			return;
+		
+		int clients[] = clientids.toIntArray().clone();
+		for(int i=0;i<clients.length;i++)
+		{
+			if(!threads.containsKey(clients[i]))
+			{
+				continue;
+			}
+			
+			ClientThread thread = getClientThread(clients[i]);
+			long viewing = thread.getCurrentCanvasUUID();
+			if(COptions.client.network.canvas_scoped_fanout && viewing!=cuid && viewing!=0L)
+			{
+				thread.markCanvasStale(cuid);
+				continue;
+			}
+			send_bulk(thread.getClient(), packets);
+		}
+	}
+	
 	/**
 	 * @deprecated
 	 * @see #get_client_string(int)
@@ -335,6 +652,8 @@ public class ClientManager
 		
 		long[] canvasids = CCanvasController.canvases.keySet().toLongArray();
 		
+		// Collect everything first, so that it can be sent compressed
+		ArrayList<CalicoPacket> updates = new ArrayList<CalicoPacket>();
 		
 		for(int j=0;j<canvasids.length;j++)
 		{
@@ -344,16 +663,25 @@ public class ClientManager
 			CalicoPacket[] packets = can.getUpdatePackets();
 			for(int i=0;i<packets.length;i++)
 			{
-				send(client, packets[i]);
+				updates.add(packets[i]);
 			}
 		}
 		
 		//calico state elements
 		for (CalicoStateElement element : CalicoPluginManager.calicoStateExtensions)
 		{
-			send(client, element.getCalicoStateElementUpdatePackets());
+			CalicoPacket[] packets = element.getCalicoStateElementUpdatePackets();
+			if(packets!=null)
+			{
+				for(int i=0;i<packets.length;i++)
+				{
+					updates.add(packets[i]);
+				}
+			}
 		}
 		
+		send_bulk(client, updates.toArray(new CalicoPacket[updates.size()]));
+		
 		// Stuff!
 		ClientManager.send(client, CalicoPacket.command(NetworkCommand.CONSISTENCY_FINISH));
 		
@@ -376,7 +704,7 @@ public class ClientManager
 		boolean foundUUID = false;
 		// Send away!
 //		ClientManager.send(client, CalicoPacket.command(NetworkCommand.CONSISTENCY_CHECK));
-		ClientManager.send(client, CalicoPacket.getPacket(NetworkCommand.CONSISTENCY_CHECK_CONTINUE, lastSuccessfullySentUUID));
+		ClientManager.send(client, PacketBuilder.command(NetworkCommand.CONSISTENCY_CHECK_CONTINUE).putLong(lastSuccessfullySentUUID).build());
 		
 		/*
 		 * TODO:
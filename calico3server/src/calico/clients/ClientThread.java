@@ -17,14 +17,14 @@ import java.nio.*;
 import java.nio.channels.*;
 
 import java.util.*;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.net.*;
 import java.io.*;
 
 import org.apache.log4j.Logger;
 
 import it.unimi.dsi.fastutil.objects.*;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import it.unimi.dsi.fastutil.io.*;
 
 
@@ -44,6 +44,7 @@ public class ClientThread extends Thread
 	
 	private OutputStream out = null;
 	private InputStream in = null;
+	private ReadableByteChannel inChannel = null;
 	
 	private long lastHearbeat = 0L;
 	private long lastHeartbeatToClient = 0L;
@@ -54,18 +55,66 @@ public class ClientThread extends Thread
 	
 	private String username = "null";
 
-	private long totalBytesSent = 0;
 	private long totalBytesRecv = 0;
 	
 	private InetSocketAddress udpSocketAddress = null;
+	private int udpSendSequence = 0;
+	private int udpReceiveSequence = 0;
+	private boolean udpReceivedAny = false;
+	private long udpSent = 0L;
+	private long udpReceived = 0L;
+	private long udpStale = 0L;
+	private long udpFallbacks = 0L;
 	
 	private long currentCanvasUUID = 0L;
 	
 	private long tempScrapUUID = 0L;
 	
-	private BlockingQueue<CalicoPacket> outboundPackets = new LinkedBlockingQueue<CalicoPacket>();
+	// NetworkCommand.CAPABILITY_* flags that were agreed on at JOIN
+	private int capabilities = 0;
+	private long compressedFrames = 0L;
+	private long compressionRawBytes = 0L;
+	private long compressionBytes = 0L;
+	private long compressionNanos = 0L;
+	private long malformedPackets = 0L;
+	private long batchesReceived = 0L;
+	
+	// Canvases that have had edits held back from this client (client.network.canvas_scoped_fanout)
+	private LongOpenHashSet staleCanvases = new LongOpenHashSet();
+	private long totalStaleMarks = 0L;
+	private long totalResyncs = 0L;
+	
+	private OutboundQueue outboundPackets = new OutboundQueue();
 //	private ObjectArrayList<CalicoPacket> outboundPackets = new ObjectArrayList<CalicoPacket>();
 	//private ObjectLinkedOpenHashSet<CalicoPacket> outboundPackets = new ObjectLinkedOpenHashSet<CalicoPacket>();
+	private OutboundWriter writer = new OutboundWriter(this.outboundPackets);
+	
+	// These are only used when the client is serviced by a NetworkReactor (client.network.engine=nio)
+	private SocketChannel channel = null;
+	private NetworkReactor reactor = null;
+	private SelectionKey selectionKey = null;
+	private FrameDecoder decoder = null;
+	private AtomicBoolean writeScheduled = new AtomicBoolean(false);
+	private AtomicBoolean disconnected = new AtomicBoolean(false);
+	private volatile boolean closeRequested = false;
+	
+	// Packets held back while a canvas worker's mailbox is full, the socket isn't read until these are through
+	private ArrayDeque<CalicoPacket> heldPackets = new ArrayDeque<CalicoPacket>();
+	private long readPauses = 0L;
+	private long datagramsDropped = 0L;
+	private final Runnable resumeReading = new Runnable() {
+		public void run()
+		{
+			reactor.requestResume(ClientThread.this);
+		}
+	};
+	
+	// Set when the outbound queue went over its budget (client.network.overflow_policy)
+	private volatile boolean resyncRequested = false;
+	private volatile boolean overflowDisconnect = false;
+	private long totalResyncsForced = 0L;
+	// Set while a resync for an NIO client is being built on its own thread
+	private AtomicBoolean resyncRunning = new AtomicBoolean(false);
 
 
 	public ClientThread(int clientid, Socket socket) throws IOException
@@ -82,6 +131,8 @@ public class ClientThread extends Thread
 		this.out = this.sock.getOutputStream();
 
 		this.in = this.sock.getInputStream();
+		this.inChannel = Channels.newChannel(this.in);
+		this.decoder = new FrameDecoder();
 		
 		makeClientString();
 
@@ -93,6 +144,36 @@ public class ClientThread extends Thread
 		// Add to the client->id thing
 	}
 	
+	/**
+	 * Creates a client that is serviced by a NetworkReactor instead of its own thread.
+	 * The thread is never started, the reactor calls nioRead/nioWrite/nioCheckAlive.
+	 * @param clientid
+	 * @param channel
+	 * @param reactor
+	 * @throws IOException
+	 */
+	public ClientThread(int clientid, SocketChannel channel, NetworkReactor reactor) throws IOException
+	{
+		super("ClientThread-"+clientid);
+		this.clientid = clientid;
+		this.channel = channel;
+		this.reactor = reactor;
+		this.sock = channel.socket();
+		this.sock.setTcpNoDelay(true);
+		
+		this.client = new Client( this.sock.getInetAddress(), this.sock.getPort(), this.clientid );
+		
+		this.decoder = new FrameDecoder();
+		
+		makeClientString();
+		
+		// we need to setup a first heartbeat (otherwise they will always timeout)
+		this.lastHearbeat = System.currentTimeMillis();
+
+		ClientManager.logger.debug("CLIENT "+this.clientid+" ENGINE: nio ("+reactor.getName()+")");
+		ClientManager.logger.debug("CLIENT "+this.clientid+" NODELAY: "+this.sock.getTcpNoDelay());
+	}
+	
 	/**
 	 * This is meant to be run ONLY ONCE by the constructor.
 	 * The purpose of this method is to steal the outbound queue for a client if that client thread disconnected, and resend all data.
@@ -137,9 +218,68 @@ public class ClientThread extends Thread
 		}
 	}
 	
-	public void setUDPSocketAddress(InetSocketAddress sockAddy)
+	public synchronized void setUDPSocketAddress(InetSocketAddress sockAddy)
 	{
 		this.udpSocketAddress = sockAddy;
+		this.udpReceivedAny = false;
+	}
+	
+	public InetSocketAddress getUDPSocketAddress()
+	{
+		return this.udpSocketAddress;
+	}
+	
+	/**
+	 * Sends a packet that is fine to lose. It goes out as a UDP_SEQUENCED datagram if this
+	 * client is on the UDP lane, and over TCP if it isn't (or the datagram can't be sent).
+	 * @param p
+	 */
+	public void sendEphemeral(CalicoPacket p)
+	{
+		InetSocketAddress address = this.udpSocketAddress;
+		if(COptions.client.network.udp && address!=null && hasCapability(NetworkCommand.CAPABILITY_UDP))
+		{
+			// Numbered and sent under the lock, so the numbers go out in order
+			synchronized(this)
+			{
+				if(UDPPacketHandler.sendSequenced(address, this.udpSendSequence + 1, p))
+				{
+					this.udpSendSequence++;
+					this.udpSent++;
+					return;
+				}
+				this.udpFallbacks++;
+			}
+		}
+		send(p);
+	}
+	
+	/**
+	 * Checks the sequence number of a UDP_SEQUENCED datagram from this client
+	 * @param sequence
+	 * @return false if it is older than one we already got
+	 */
+	public synchronized boolean acceptUDPSequence(int sequence)
+	{
+		// Compare by difference so the sequence can wrap around
+		if(this.udpReceivedAny && sequence - this.udpReceiveSequence <= 0)
+		{
+			this.udpStale++;
+			return false;
+		}
+		this.udpReceivedAny = true;
+		this.udpReceiveSequence = sequence;
+		this.udpReceived++;
+		return true;
+	}
+	
+	/**
+	 * Handles a packet that arrived over UDP, the same way as one from the socket
+	 * @param packet the packet, positioned at the command
+	 */
+	public void receiveDatagram(CalicoPacket packet)
+	{
+		dispatchPacket(packet, true);
 	}
 	
 	private void makeClientString()
@@ -163,6 +303,61 @@ public class ClientThread extends Thread
 		return this.currentCanvasUUID;
 	}
 	
+	public void setCapabilities(int capabilities)
+	{
+		this.capabilities = capabilities;
+		this.writer.setBatching(hasCapability(NetworkCommand.CAPABILITY_BATCH));
+	}
+	
+	public boolean hasCapability(int capability)
+	{
+		return (this.capabilities & capability)==capability;
+	}
+	
+	/**
+	 * Records a COMPRESSED envelope that was sent to this client
+	 * @param rawSize
+	 * @param compressedSize
+	 * @param nanos time spent compressing for this client (0 if it was shared)
+	 */
+	public synchronized void countCompression(int rawSize, int compressedSize, long nanos)
+	{
+		this.compressedFrames++;
+		this.compressionRawBytes = this.compressionRawBytes + rawSize;
+		this.compressionBytes = this.compressionBytes + compressedSize;
+		this.compressionNanos = this.compressionNanos + nanos;
+	}
+	
+	/**
+	 * Records that an edit to this canvas was not sent to this client
+	 * @param cuid
+	 */
+	public void markCanvasStale(long cuid)
+	{
+		synchronized(this.staleCanvases)
+		{
+			this.staleCanvases.add(cuid);
+			this.totalStaleMarks++;
+		}
+	}
+	
+	/**
+	 * @param cuid
+	 * @return true if the canvas was stale, and the client needs a resync of it
+	 */
+	public boolean clearCanvasStale(long cuid)
+	{
+		synchronized(this.staleCanvases)
+		{
+			if(this.staleCanvases.remove(cuid))
+			{
+				this.totalResyncs++;
+				return true;
+			}
+			return false;
+		}
+	}
+	
 	
 	public Client getClient()
 	{
@@ -203,9 +398,19 @@ public class ClientThread extends Thread
 			CCanvasController.canvases.get(this.currentCanvasUUID).removeClient(this.clientid);
 		}
 		
+		if(isNio())
+		{
+			// The reactor sends the LEAVE, then closes the channel
+			this.closeRequested = true;
+			this.outboundPackets.offer(OutboundFrame.of(CalicoPacket.getPacket(NetworkCommand.LEAVE, message)).retain());
+			this.reactor.requestWrite(this);
+			return;
+		}
+		
 		try
 		{
-			sendInternal(CalicoPacket.getPacket(NetworkCommand.LEAVE, message));
+			this.outboundPackets.offer(OutboundFrame.of(CalicoPacket.getPacket(NetworkCommand.LEAVE, message)).retain());
+			flushOutbound();
 		}
 		catch (Exception e)
 		{
@@ -228,6 +433,19 @@ public class ClientThread extends Thread
 	
 	
 	public void send(CalicoPacket p)
+	{
+		if(p==null)
+		{
+			return;
+		}
+		send(OutboundFrame.of(p));
+	}
+	
+	/**
+	 * Queues a frame that may be shared with other clients
+	 * @param frame
+	 */
+	public void send(OutboundFrame frame)
 	{
 		// Add the packet to the send buffer
 		long currTime = (new Date()).getTime();
@@ -235,35 +453,138 @@ public class ClientThread extends Thread
 		{
 			ClientManager.kill(this.clientid);
 		}
-		this.outboundPackets.add(p);
+		if(this.overflowDisconnect)
+		{
+			// They are on their way out, there is no point in queueing anything else
+			return;
+		}
+		if(!this.outboundPackets.offer(frame.retain()))
+		{
+			handleQueueOverflow();
+		}
+		
+		if(isNio() && this.writeScheduled.compareAndSet(false, true))
+		{
+			this.reactor.requestWrite(this);
+		}
 	}
 	
-	private void sendInternal(CalicoPacket p) throws SocketException, IOException
+	/**
+	 * Called when the outbound queue is over client.network.max_queue_bytes. The policies
+	 * escalate: coalesce, then drop ephemeral packets, then resync, and finally disconnect.
+	 */
+	private void handleQueueOverflow()
 	{
-		// If it is null, then we don't even bother
-		if(p==null)
+		int policy = OutboundQueue.parsePolicy(COptions.client.network.overflow_policy);
+		
+		if(policy==OutboundQueue.POLICY_COALESCE)
 		{
-			return; 
+			this.outboundPackets.coalesce();
+			if(!this.outboundPackets.isOverBudget())
+			{
+				return;
+			}
+			policy = OutboundQueue.POLICY_DROP_EPHEMERAL;
 		}
-
-		// Packet Size
-		byte[] sizeArray = new byte[ByteUtils.SIZE_OF_INT];
-		ByteUtils.writeInt(sizeArray, p.getLength(), 0);
-		BinIO.storeBytes(sizeArray, this.out);
-		
-		this.totalBytesSent = this.totalBytesSent + p.getLength() + ByteUtils.SIZE_OF_INT;
 		
-		// Send it
-		BinIO.storeBytes(p.getBuffer(), this.out);
+		if(policy==OutboundQueue.POLICY_DROP_EPHEMERAL)
+		{
+			this.outboundPackets.dropEphemeral();
+			if(!this.outboundPackets.isOverBudget())
+			{
+				return;
+			}
+			policy = OutboundQueue.POLICY_RESYNC;
+		}
 		
-		// Need to update the hearbeat
-		this.lastHearbeat = System.currentTimeMillis();
+		if(policy==OutboundQueue.POLICY_RESYNC && !this.resyncRequested)
+		{
+			// Nothing queued is worth sending anymore, they get the whole state again instead
+			logger.warn("\""+toString()+"\" outbound queue is over budget, forcing a resync");
+			this.outboundPackets.clear();
+			this.resyncRequested = true;
+			return;
+		}
 		
-		// Log it
-//		if(ProcessQueue.logger.isDebugEnabled())
-//		{
-//			ProcessQueue.logger.debug("TX \""+toString()+"\" "+p.toString());
-//		}
+		// Either the policy is disconnect, or the resync itself did not fit
+		logger.warn("\""+toString()+"\" outbound queue is over budget, disconnecting");
+		this.overflowDisconnect = true;
+		this.outboundPackets.clear();
+		if(isNio())
+		{
+			ClientManager.drop(this.clientid, "Your connection is too slow to keep up with the session");
+		}
+		else
+		{
+			// A LEAVE could block this (unrelated) thread on their full socket, so just close it.
+			// The client thread notices and cleans up after itself.
+			try
+			{
+				this.sock.close();
+			}
+			catch(IOException e)
+			{
+			}
+		}
+	}
+	
+	/**
+	 * Sends the consistency update that the resync overflow policy asked for. This runs
+	 * on the client's own thread, or for NIO clients on one started by schedulePendingResync(),
+	 * not on whoever overflowed the queue.
+	 */
+	private void processPendingResync()
+	{
+		if(!this.resyncRequested || this.overflowDisconnect)
+		{
+			return;
+		}
+		this.totalResyncsForced++;
+		ClientManager.sendConsistencyUpdate(this.client);
+		this.resyncRequested = false;
+	}
+	
+	/**
+	 * NIO clients share their reactor, and building a resync walks every canvas, so it is
+	 * built on a thread of its own. send() only queues the packets and wakes the reactor.
+	 */
+	private void schedulePendingResync()
+	{
+		if(!this.resyncRequested || this.overflowDisconnect || !this.resyncRunning.compareAndSet(false, true))
+		{
+			return;
+		}
+		Thread t = new Thread("Resync-"+this.clientid) {
+			public void run()
+			{
+				try
+				{
+					processPendingResync();
+				}
+				finally
+				{
+					resyncRunning.set(false);
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+	
+	/**
+	 * Writes everything that is queued up, batched into as few socket writes as possible
+	 * @throws IOException
+	 */
+	private void flushOutbound() throws IOException
+	{
+		synchronized(this.writer)
+		{
+			if(this.writer.flush(this.out)>0)
+			{
+				// Need to update the hearbeat
+				this.lastHearbeat = System.currentTimeMillis();
+			}
+		}
 	}
 
 	private byte[] old_getPacket() throws IOException
@@ -289,76 +610,6 @@ public class ClientThread extends Thread
 		return CalicoPacket.getPacket(NetworkCommand.CLIENT_INFO, this.clientid, this.username);
 	}
 	
-	private CalicoPacket getPacket() throws IOException
-	{
-		// Get the packet size
-		byte[] data = new byte[ByteUtils.SIZE_OF_INT];
-		BinIO.loadBytes(this.in, data);
-		
-		
-		int size = ByteUtils.readInt(data, 0);
-		
-		//CalicoServer.logger.debug("PACKET SIZE: "+size);
-		CalicoPacket packet = new CalicoPacket( size );
-		
-		int available = in.available();
-		int offset = 0;
-		
-		try
-		{
-			while (offset < size)
-			{
-	//			logger.info("Input stream doesn't have enough byte, blocking for 10ms. (Need: " + 4 + ", has: " + available);
-				Thread.sleep(COptions.client.threadopts.sleeptime);
-				available = in.available();
-				if (offset + available > size)
-					available = size - offset;
-				BinIO.loadBytes(this.in, packet.getBuffer(), offset, available);
-				offset += available;
-				if (size > COptions.client.network.cluster_size)
-				{
-					System.out.println("Loading large packet (" + size + "), " + ((double)offset)/((double)size) * 100 + " percent complete");
-				}
-			}
-		}
-		catch (Exception e)
-		{
-			logger.error(e.getMessage());
-			e.printStackTrace();
-		}
-		
-		
-//		BinIO.loadBytes(this.in, packet.getBuffer());
-		
-
-		this.totalBytesRecv = this.totalBytesRecv + size + ByteUtils.SIZE_OF_INT;
-
-		return packet;
-	}
-	
-	private void sendPacketQueue() throws IOException
-	{
-		sendPacketQueue(0);
-	}
-	
-	private void sendPacketQueue(int depth) throws IOException
-	{
-		if(!this.outboundPackets.isEmpty())
-		{
-			try {
-				sendInternal(this.outboundPackets.take());
-			} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-			if(depth<20)
-			{
-				sendPacketQueue(++depth);
-			}
-		}
-	}
-	
-	
 	public void run()
 	{
 		try
@@ -369,6 +620,7 @@ public class ClientThread extends Thread
 			// Loop forever
 			while(true)
 			{
+				processPendingResync();
 				
 				// Are they disconnected?
 				if(!this.sock.isConnected() || this.sock.isClosed() || this.sock.isInputShutdown() || this.sock.isOutputShutdown())
@@ -385,60 +637,21 @@ public class ClientThread extends Thread
 				if(!this.outboundPackets.isEmpty())
 				{
 					// we have things to send!
-					sendPacketQueue();
+					flushOutbound();
 					//sendInternal(this.outboundPackets.remove(0));
 					//ClientManager.logger.debug("CLIENT "+toString()+" SEND QUEUE SIZE IS "+this.outboundPackets.size());
 				}
 				else if (System.currentTimeMillis() - lastHeartbeatToClient > 2000)
 				{
-					send(CalicoPacket.getPacket(NetworkCommand.HEARTBEAT));
-					sendPacketQueue();
+					send(PacketBuilder.command(NetworkCommand.HEARTBEAT).build());
+					flushOutbound();
 					lastHeartbeatToClient = System.currentTimeMillis();
 				}
 				
-				// Do we have anything to read?
-				int availableInboundBytes = this.in.available();
-				if(availableInboundBytes>=4)
+				// Do we have anything to read? (Big packets are read a bit at a time, so we keep sending while they come in)
+				if(this.in.available()>0 && readAndDispatch(this.inChannel)<0)
 				{
-					// Ok, read the packet
-					CalicoPacket packet = getPacket();//new CalicoPacket( getPacket() );
-					
-					// Update the hearbeat
-					
-	
-					// What kind is it? (We can ignore the heartbeat packets)
-					int com = packet.getInt();
-//					if(com==NetworkCommand.HEARTBEAT)
-//					{
-////						System.out.println("Heart beat");
-//						// We can just ignore this
-//					}
-//					else
-//					{
-						try
-						{
-							//Only canvas specific commands are sent to a canvas thread. 
-							//if (com >= 200 && com <= 3000 && currentCanvasUUID != 0l && com != 1200)
-							if (currentCanvasUUID != 0l && CalicoServer.canvasCommands.containsKey(com))
-							{
-								synchronized(CalicoServer.canvasThreads)
-								{
-									if (!CalicoServer.canvasThreads.containsKey(currentCanvasUUID))
-									{
-										CalicoServer.canvasThreads.put(currentCanvasUUID, new CanvasThread(currentCanvasUUID));
-									}
-									CalicoServer.canvasThreads.get(currentCanvasUUID).addPacketToQueue(com, this.client, packet);
-								}
-							}
-							else
-								ProcessQueue.receive(com, this.client, packet);
-						}
-						catch (Exception e)
-						{
-							e.printStackTrace();
-						}
-//					}
-					this.lastHearbeat = System.currentTimeMillis();
+					throw new EOFException("Client closed the connection");
 				}
 				
 				try
@@ -457,13 +670,7 @@ public class ClientThread extends Thread
 		}
 		catch(ClientTimedOutException e)
 		{
-			ClientManager.logger.info("\""+toString()+"\" has timed out");
-			
-			CalicoPacket resp2 = new CalicoPacket();
-			resp2.putInt(NetworkCommand.STATUS_MESSAGE);
-			resp2.putString(getUsername()+" has timed out");
-			// Send it to everyone else
-			ClientManager.send_except(this.clientid, resp2);
+			notifyTimedOut();
 		}
 		catch (SocketException e)
 		{
@@ -486,14 +693,368 @@ public class ClientThread extends Thread
 		}
 		finally
 		{
-			if (tempScrapUUID != 0l && CGroupController.exists(tempScrapUUID)
-					&& !CGroupController.groups.get(tempScrapUUID).isPermanent())
+			cleanupAfterDisconnect();
+		}
+	}
+	
+	/**
+	 * Reads whatever is available, and dispatches every packet that is now complete
+	 * @param source
+	 * @return the number of packets dispatched, or -1 if the client closed the connection
+	 * @throws IOException
+	 */
+	private int readAndDispatch(ReadableByteChannel source) throws IOException
+	{
+		int read = this.decoder.readFrom(source);
+		if(read<0)
+		{
+			return -1;
+		}
+		if(read>0)
+		{
+			this.totalBytesRecv = this.totalBytesRecv + read;
+			
+			// A big packet can take a while to come in, but we are still hearing from them
+			this.lastHearbeat = System.currentTimeMillis();
+		}
+		
+		int count = 0;
+		CalicoPacket packet = null;
+		while((packet = this.decoder.nextFrame())!=null)
+		{
+			dispatchPacket(packet, false);
+			count++;
+		}
+		return count;
+	}
+	
+	/**
+	 * Routes an inbound packet. Only canvas specific commands are sent to a canvas thread.
+	 * @param packet the packet, positioned at the command
+	 * @param datagram true if it came in over UDP (on the UDP thread, not this client's)
+	 */
+	private void dispatchPacket(CalicoPacket packet, boolean datagram)
+	{
+		if(!datagram && !this.heldPackets.isEmpty())
+		{
+			// Behind the ones already waiting, so they still run in order
+			this.heldPackets.add(packet);
+			return;
+		}
+		
+		int com = packet.getInt();
+		try
+		{
+			if(packet instanceof SpooledPacket && !ProcessQueue.acceptsSpooledPacket(com))
+			{
+				// The handler needs the whole thing in memory
+				SpooledPacket spooled = (SpooledPacket) packet;
+				try
+				{
+					packet = spooled.load();
+				}
+				finally
+				{
+					spooled.release();
+				}
+				packet.getInt();
+			}
+			
+			if(!ProcessQueue.validatePacket(com, packet))
+			{
+				synchronized(this)
+				{
+					this.malformedPackets++;
+				}
+				logger.warn("\""+toString()+"\" sent a malformed "+NetworkCommand.getFormat(com).getName()+" ["+packet.getLength()+"], dropping it");
+				packet.release();
+				return;
+			}
+			
+			if(com==NetworkCommand.BATCH)
+			{
+				dispatchBatch(packet, datagram);
+				return;
+			}
+			
+			//if (com >= 200 && com <= 3000 && currentCanvasUUID != 0l && com != 1200)
+			if (currentCanvasUUID != 0l && CalicoServer.canvasCommands.containsKey(com))
+			{
+				// The canvas worker releases it when done
+				if(!isNio() && !datagram)
+				{
+					// This is our own thread, it can wait for the worker
+					CanvasExecutor.dispatch(currentCanvasUUID, com, this.client, packet);
+				}
+				else if(!CanvasExecutor.offer(currentCanvasUUID, com, this.client, packet, datagram ? null : this.resumeReading))
+				{
+					if(datagram)
+					{
+						// The UDP thread serves everyone, and a datagram could have been lost anyway
+						synchronized(this)
+						{
+							this.datagramsDropped++;
+						}
+						packet.release();
+					}
+					else
+					{
+						holdPacket(packet);
+					}
+				}
+			}
+			else
 			{
-				CGroupController.drop(tempScrapUUID);
-				tempScrapUUID = 0L;
+				try
+				{
+					ProcessQueue.receive(com, this.client, packet);
+				}
+				finally
+				{
+					if(ProcessQueue.releasesPacket(com))
+					{
+						packet.release();
+					}
+				}
 			}
-			//System.out.println("CALLING THE FINALLY");
-			ClientManager.drop(clientid, "");
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+		}
+		
+		// Update the hearbeat
+		this.lastHearbeat = System.currentTimeMillis();
+	}
+	
+	/**
+	 * Unpacks a BATCH frame and dispatches each packet in it, in order
+	 * @param batch the BATCH packet, positioned after the command
+	 * @param datagram true if it came in over UDP
+	 */
+	private void dispatchBatch(CalicoPacket batch, boolean datagram)
+	{
+		try
+		{
+			int count = batch.getInt();
+			int offset = ByteUtils.SIZE_OF_INT * 2;
+			int length = batch.getLength();
+			
+			synchronized(this)
+			{
+				this.batchesReceived++;
+			}
+			
+			for(int i=0;i<count;i++)
+			{
+				int size = offset + ByteUtils.SIZE_OF_INT <= length ? batch.getIntAt(offset) : -1;
+				offset = offset + ByteUtils.SIZE_OF_INT;
+				if(size<ByteUtils.SIZE_OF_INT || size > length - offset || batch.getIntAt(offset)==NetworkCommand.BATCH)
+				{
+					synchronized(this)
+					{
+						this.malformedPackets++;
+					}
+					logger.warn("\""+toString()+"\" sent a malformed BATCH (packet "+i+" of "+count+"), dropping the rest of it");
+					return;
+				}
+				
+				dispatchPacket(batch.slice(offset, size), datagram);
+				offset = offset + size;
+			}
+		}
+		finally
+		{
+			batch.release();
+		}
+	}
+	
+	/**
+	 * Holds a packet back until the canvas worker it is for has room, and stops reading from
+	 * the socket until then (the worker calls resumeReading, see nioResume())
+	 * @param packet
+	 */
+	private void holdPacket(CalicoPacket packet)
+	{
+		packet.rewind();
+		this.heldPackets.add(packet);
+		synchronized(this)
+		{
+			this.readPauses++;
+		}
+		if(this.selectionKey!=null && this.selectionKey.isValid())
+		{
+			this.selectionKey.interestOps(this.selectionKey.interestOps() & ~SelectionKey.OP_READ);
+		}
+	}
+	
+	private void notifyTimedOut()
+	{
+		ClientManager.logger.info("\""+toString()+"\" has timed out");
+		
+		CalicoPacket resp2 = new CalicoPacket();
+		resp2.putInt(NetworkCommand.STATUS_MESSAGE);
+		resp2.putString(getUsername()+" has timed out");
+		// Send it to everyone else
+		ClientManager.send_except(this.clientid, resp2);
+	}
+	
+	private void cleanupAfterDisconnect()
+	{
+		this.decoder.close();
+		
+		if (tempScrapUUID != 0l && CGroupController.exists(tempScrapUUID)
+				&& !CGroupController.groups.get(tempScrapUUID).isPermanent())
+		{
+			CGroupController.drop(tempScrapUUID);
+			tempScrapUUID = 0L;
+		}
+		//System.out.println("CALLING THE FINALLY");
+		ClientManager.drop(clientid, "");
+		
+		if(this.udpSocketAddress!=null)
+		{
+			ClientManager.removeClientUDPSocket(this.udpSocketAddress);
+			this.udpSocketAddress = null;
+		}
+		
+		// Nothing else is going to be written, let go of the shared frames
+		if(isNio())
+		{
+			this.writer.discard();
+			CalicoPacket held = null;
+			while((held = this.heldPackets.poll())!=null)
+			{
+				held.release();
+			}
+		}
+		this.outboundPackets.clear();
+	}
+	
+	
+	//////////////////////////////////////////////////////////////////////////////////
+	// NIO (these are called by the NetworkReactor thread that owns this client)
+	
+	public boolean isNio()
+	{
+		return this.channel!=null;
+	}
+	
+	public SocketChannel getSocketChannel()
+	{
+		return this.channel;
+	}
+	
+	public void setSelectionKey(SelectionKey key)
+	{
+		this.selectionKey = key;
+	}
+	
+	public SelectionKey getSelectionKey()
+	{
+		return this.selectionKey;
+	}
+	
+	public boolean isCloseRequested()
+	{
+		return this.closeRequested;
+	}
+	
+	/**
+	 * Reads what is available and dispatches every complete packet
+	 * @return false if the client closed the connection
+	 * @throws IOException
+	 */
+	public boolean nioRead() throws IOException
+	{
+		int count = readAndDispatch(this.channel);
+		if(count<0)
+		{
+			return false;
+		}
+		this.reactor.countFrames(count);
+		return true;
+	}
+	
+	/**
+	 * @return OP_READ, or 0 while packets are held back for a full canvas worker
+	 */
+	public int getReadInterest()
+	{
+		return this.heldPackets.isEmpty() ? SelectionKey.OP_READ : 0;
+	}
+	
+	/**
+	 * Dispatches the packets that were held back, in order, and starts reading again once
+	 * they are all through. If a worker is still full they stay held.
+	 */
+	public void nioResume()
+	{
+		ArrayDeque<CalicoPacket> held = this.heldPackets;
+		this.heldPackets = new ArrayDeque<CalicoPacket>();
+		CalicoPacket packet = null;
+		while((packet = held.poll())!=null)
+		{
+			dispatchPacket(packet, false);
+		}
+		
+		if(this.heldPackets.isEmpty() && this.selectionKey.isValid())
+		{
+			this.selectionKey.interestOps(this.selectionKey.interestOps() | SelectionKey.OP_READ);
+		}
+	}
+	
+	/**
+	 * Writes as much of the outbound queue as the socket will take without blocking
+	 * @return true if the queue was fully written
+	 * @throws IOException
+	 */
+	public boolean nioWrite() throws IOException
+	{
+		this.writeScheduled.set(false);
+		long framesBefore = this.writer.getTotalFrames();
+		boolean drained = this.writer.flush(this.channel);
+		if(this.writer.getTotalFrames()!=framesBefore)
+		{
+			this.lastHearbeat = System.currentTimeMillis();
+		}
+		return drained;
+	}
+	
+	/**
+	 * Checks for a timeout, and sends our heartbeat if the connection has been quiet
+	 * @param now
+	 * @return false if the client should be disconnected
+	 */
+	public boolean nioCheckAlive(long now)
+	{
+		if(this.closeRequested)
+		{
+			return false;
+		}
+		schedulePendingResync();
+		// While packets are held back we aren't reading, so we wouldn't hear their heartbeat
+		if(this.heldPackets.isEmpty() && (now - this.lastHearbeat)>=COptions.client.network.timeout)
+		{
+			notifyTimedOut();
+			return false;
+		}
+		if(this.outboundPackets.isEmpty() && (now - this.lastHeartbeatToClient) > 2000)
+		{
+			send(PacketBuilder.command(NetworkCommand.HEARTBEAT).build());
+			this.lastHeartbeatToClient = now;
+		}
+		return true;
+	}
+	
+	/**
+	 * Called by the reactor once the channel has been closed
+	 */
+	public void nioDisconnected()
+	{
+		if(this.disconnected.compareAndSet(false, true))
+		{
+			cleanupAfterDisconnect();
 		}
 	}
 	
@@ -524,9 +1085,37 @@ public class ClientThread extends Thread
 		props.setProperty(prefix+"clientid", ""+this.clientid);
 		props.setProperty(prefix+"username", this.username);
 		props.setProperty(prefix+"heartbeat", ""+(System.currentTimeMillis() - this.lastHearbeat));
+		props.setProperty(prefix+"engine", isNio() ? "nio ("+this.reactor.getName()+")" : "thread");
+		props.setProperty(prefix+"canvas", ""+this.currentCanvasUUID);
+		synchronized(this.staleCanvases)
+		{
+			props.setProperty(prefix+"canvas.stale", ""+this.staleCanvases.size());
+			props.setProperty(prefix+"canvas.stale_marks", ""+this.totalStaleMarks);
+			props.setProperty(prefix+"canvas.resyncs", ""+this.totalResyncs);
+		}
 		
-		props.setProperty(prefix+"bytes_sent", ""+this.totalBytesSent);
+		props.setProperty(prefix+"bytes_sent", ""+this.writer.getTotalBytes());
 		props.setProperty(prefix+"bytes_recv", ""+this.totalBytesRecv);
+		this.writer.toProperties(props, prefix);
+		this.outboundPackets.toProperties(props, prefix);
+		props.setProperty(prefix+"queue.resyncs", ""+this.totalResyncsForced);
+		
+		props.setProperty(prefix+"capabilities", ""+this.capabilities);
+		synchronized(this)
+		{
+			props.setProperty(prefix+"compression.frames", ""+this.compressedFrames);
+			props.setProperty(prefix+"compression.raw_bytes", ""+this.compressionRawBytes);
+			props.setProperty(prefix+"compression.bytes", ""+this.compressionBytes);
+			if(this.compressionRawBytes>0)
+			{
+				props.setProperty(prefix+"compression.ratio", String.format("%.3f", (double) this.compressionBytes / this.compressionRawBytes));
+			}
+			props.setProperty(prefix+"compression.cpu_ms", ""+(this.compressionNanos / 1000000L));
+			props.setProperty(prefix+"malformed_packets", ""+this.malformedPackets);
+			props.setProperty(prefix+"batches_received", ""+this.batchesReceived);
+			props.setProperty(prefix+"read_pauses", ""+this.readPauses);
+			props.setProperty(prefix+"datagrams_dropped", ""+this.datagramsDropped);
+		}
 		
 		props.setProperty(prefix+"tcp.host", ""+this.sock.getInetAddress().getHostAddress());
 		props.setProperty(prefix+"tcp.port", ""+this.sock.getPort());
@@ -549,6 +1138,10 @@ public class ClientThread extends Thread
 		{
 			props.setProperty(prefix+"udp.host", ""+this.udpSocketAddress.getHostName());
 			props.setProperty(prefix+"udp.port", ""+this.udpSocketAddress.getPort());
+			props.setProperty(prefix+"udp.sent", ""+this.udpSent);
+			props.setProperty(prefix+"udp.received", ""+this.udpReceived);
+			props.setProperty(prefix+"udp.stale", ""+this.udpStale);
+			props.setProperty(prefix+"udp.fallbacks", ""+this.udpFallbacks);
 		}
 		catch(Exception e)
 		{
@@ -0,0 +1,82 @@
+package calico.components;
+
+import it.unimi.dsi.fastutil.longs.LongLinkedOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+
+/**
+ * One type of element (strokes, groups...) across every canvas. Lookups by uuid go through
+ * the CCanvasArena index to the arena that holds the element.
+ */
+public class ArenaRegistry<V>
+{
+	private final int kind;
+
+	/**
+	 * @param kind one of CCanvasArena.STROKES, GROUPS, ARROWS or CONNECTORS
+	 */
+	public ArenaRegistry(int kind)
+	{
+		this.kind = kind;
+	}
+
+	public V get(long uuid)
+	{
+		CCanvasArena arena = CCanvasArena.of(uuid);
+		return arena==null ? null : arena.<V>get(this.kind, uuid);
+	}
+
+	public boolean containsKey(long uuid)
+	{
+		return get(uuid)!=null;
+	}
+
+	/**
+	 * @param cuid the canvas the element is on
+	 * @param uuid
+	 * @param element
+	 */
+	public void put(long cuid, long uuid, V element)
+	{
+		CCanvasArena.forCanvas(cuid).put(this.kind, uuid, element);
+	}
+
+	/**
+	 * @param uuid
+	 * @return whatever was removed, or null
+	 */
+	public V remove(long uuid)
+	{
+		CCanvasArena arena = CCanvasArena.of(uuid);
+		return arena==null ? null : arena.<V>remove(this.kind, uuid);
+	}
+
+	/**
+	 * @return a copy of the uuids on every canvas
+	 */
+	public LongSet keySet()
+	{
+		LongLinkedOpenHashSet uuids = new LongLinkedOpenHashSet();
+		ObjectArrayList<CCanvasArena> arenas = CCanvasArena.getArenas();
+		for(int i=0;i<arenas.size();i++)
+		{
+			long[] kids = arenas.get(i).getUUIDs(this.kind);
+			for(int k=0;k<kids.length;k++)
+			{
+				uuids.add(kids[k]);
+			}
+		}
+		return uuids;
+	}
+
+	public int size()
+	{
+		int size = 0;
+		ObjectArrayList<CCanvasArena> arenas = CCanvasArena.getArenas();
+		for(int i=0;i<arenas.size();i++)
+		{
+			size = size + arenas.get(i).size(this.kind);
+		}
+		return size;
+	}
+}
@@ -115,6 +115,7 @@ public class CArrow
 		{
 			this.anchorB.translate(x, y);
 		}
+		signatureChanged();
 	}
 	
 	
@@ -155,6 +156,7 @@ public class CArrow
 			}
 		}
 		this.anchorA = anchor;
+		signatureChanged();
 	}
 	public void setAnchorB(AnchorPoint anchor)
 	{
@@ -166,6 +168,7 @@ public class CArrow
 			}
 		}
 		this.anchorB = anchor;
+		signatureChanged();
 	}
 
 	public CalicoPacket[] getUpdatePackets()
@@ -247,6 +250,16 @@ public class CArrow
 		}
 	} 
 	
+	/**
+	 * Keeps the canvas's running signature up to date
+	 */
+	private void signatureChanged()
+	{
+		if (this.anchorA == null || this.anchorB == null)
+			return;
+		CCanvasController.no_notify_update_signature(this.canvasuid, this.uuid, get_signature());
+	}
+	
 	public int get_signature() {
 		
 		// TODO Auto-generated method stub
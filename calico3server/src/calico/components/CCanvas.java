@@ -1,34 +1,38 @@
 package calico.components;
 
 import it.unimi.dsi.fastutil.ints.IntArraySet;
-import it.unimi.dsi.fastutil.longs.LongArraySet;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongLinkedOpenHashSet;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 
 import java.awt.Color;
 import java.awt.Font;
 import java.awt.Graphics2D;
+import java.awt.Shape;
+import java.awt.geom.Rectangle2D;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.NoSuchElementException;
 import java.util.Properties;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import calico.COptions;
-import calico.clients.Client;
+import calico.components.decorators.CGroupDecorator;
 import calico.controllers.CArrowController;
+import calico.controllers.CCanvasController;
 import calico.controllers.CConnectorController;
 import calico.controllers.CGroupController;
 import calico.controllers.CStrokeController;
-import calico.events.CalicoEventHandler;
-import calico.events.CalicoEventListener;
 import calico.networking.netstuff.CalicoPacket;
 import calico.networking.netstuff.NetworkCommand;
+import calico.networking.netstuff.PacketBuilder;
+import calico.utils.PathGeometry;
 import calico.uuid.UUIDAllocator;
 
 public class CCanvas
-	implements CalicoEventListener
 {
 	private static final AtomicInteger INDEX_COUNTER = new AtomicInteger(1);
 	
@@ -48,22 +52,43 @@ public class CCanvas
 	private long lock_last_set_at_time = 0l;
 		
 
-	private LongArraySet strokes = new LongArraySet();
-	private LongArraySet groups = new LongArraySet();
-	private LongArraySet arrows = new LongArraySet();
-	private LongArraySet lists = new LongArraySet();
-	private LongArraySet connectors = new LongArraySet();
+	// Hashed so lookups don't scan, linked so getUpdatePackets still sees them in the order they were added
+	private LongLinkedOpenHashSet strokes = new LongLinkedOpenHashSet();
+	private LongLinkedOpenHashSet groups = new LongLinkedOpenHashSet();
+	private LongLinkedOpenHashSet arrows = new LongLinkedOpenHashSet();
+	private LongLinkedOpenHashSet lists = new LongLinkedOpenHashSet();
+	private LongLinkedOpenHashSet connectors = new LongLinkedOpenHashSet();
 	
 	public ObjectArrayList<Object> keypairs = new ObjectArrayList<Object>();
 	
 	private IntArraySet clients = new IntArraySet();
 
 	
-	private ObjectArrayList<CCanvasBackupState> snapshots = new ObjectArrayList<CCanvasBackupState>();
-	private int snapshotIndex = 0;
+	// The undo log, hash tree and spatial indexes aren't thread safe on their own. They are
+	// only used while holding this canvas's monitor, which is why every method reaching them
+	// is synchronized.
+	
+	// What changed with each snapshot, so undo/redo only has to put back what an edit touched
+	private final CCanvasUndoLog undoLog = new CCanvasUndoLog(this);
 	
 	private ArrayList<Integer> eventsThatUpdateSignature;
+
+	// The signature is kept as a running total of what each child adds to it, so it
+	// never has to walk the whole canvas. See updateSignature(long, int).
+	private Long2IntOpenHashMap signatureParts = new Long2IntOpenHashMap();
 	private int signature = 0;
+	private int signatureRepairs = 0;
+	
+	// Same children, but hashed into a tree so clients can find what differs (see CCanvasHashTree)
+	private CCanvasHashTree hashTree = new CCanvasHashTree();
+	
+	// The elements themselves
+	private final CCanvasArena arena;
+	
+	// Where the groups, strokes and arrows are, so parenting only has to test the ones nearby
+	private CCanvasSpatialIndex groupIndex = new CCanvasSpatialIndex(COptions.canvas.spatial_cell_size);
+	private CCanvasSpatialIndex strokeIndex = new CCanvasSpatialIndex(COptions.canvas.spatial_cell_size);
+	private CCanvasSpatialIndex arrowIndex = new CCanvasSpatialIndex(COptions.canvas.spatial_cell_size);
 	
 	
 
@@ -84,10 +109,12 @@ public class CCanvas
 	{
 		this.uuid = u;
 		this.index = INDEX_COUNTER.getAndIncrement();
+		this.arena = CCanvasArena.forCanvas(u);
 
-		snapshots.add(0, getBackupState());
-		
-		setupEventListeners();
+		synchronized(this)
+		{
+			this.undoLog.start();
+		}
 	}
 	
 	/**
@@ -97,6 +124,7 @@ public class CCanvas
 	public CCanvas(long u, int s)
 	{
 		this.uuid = u;
+		this.arena = CCanvasArena.forCanvas(u);
 
 	}
 	
@@ -115,6 +143,11 @@ public class CCanvas
 		return index;
 	}
 	
+	public CCanvasArena getArena()
+	{
+		return this.arena;
+	}
+	
 	public CCanvasBackupState getBackupState()
 	{
 		return new CCanvasBackupState(this.uuid, getUpdatePackets());
@@ -122,78 +155,158 @@ public class CCanvas
 	
 	
 	// This will save a canvas revision to the undo history
-	public void saveCurrentCanvasState()
+	public synchronized void saveCurrentCanvasState()
+	{
+		this.undoLog.snapshot();
+	}
+	
+	/**
+	 * Tells the undo history an element changed in a way the canvas may not have heard
+	 * about (text, colour, and so on), so the next snapshot looks at it
+	 * @param uuid
+	 */
+	public synchronized void touch(long uuid)
 	{
-		// If we have gone over the size limit, then we should remove one
-		if(snapshots.size()>=COptions.canvas.max_snapshots)//COptions.CanvasMaxSnapshots)
+		this.undoLog.touch(uuid);
+	}
+	
+	/**
+	 * Runs the undo sequence
+	 * @return true if we were able to undo
+	 */
+	public boolean performUndo()
+	{
+		CalicoPacket[] changes;
+		synchronized(this)
 		{
-			snapshots.remove(0);
+			changes = this.undoLog.undo();
 		}
-		else
+		return applyUndoChanges(changes);
+	}
+	
+	public boolean performRedo()
+	{
+		CalicoPacket[] changes;
+		synchronized(this)
 		{
-			// We only increment the pointer if we havent removed anything
-			snapshotIndex++;
+			changes = this.undoLog.redo();
 		}
-		
-		// We need to clear out any redo history
-		if(snapshotIndex<snapshots.size())
+		return applyUndoChanges(changes);
+	}
+	
+	// Applies what the undo log says changed. Done without holding the canvas, since it
+	// goes through the controllers (which come back to it)
+	private boolean applyUndoChanges(CalicoPacket[] changes)
+	{
+		if(changes==null)
 		{
-			snapshots.removeElements(snapshotIndex, snapshots.size());
+			return false;
 		}
-		
-		// Add the current state to the snapshot
-		snapshots.add(getBackupState());
+		CCanvasController.apply_state_change(this.uuid, changes);
+		synchronized(this)
+		{
+			this.undoLog.absorb();
+		}
+		return true;
 	}
 	
+	/**
+	 * @return how many edits the undo history holds
+	 */
+	public synchronized int getUndoEdits()
+	{
+		return this.undoLog.getEditCount();
+	}
 	
+	/**
+	 * @return the bytes of packets the undo history holds for its edits
+	 */
+	public synchronized long getUndoBytes()
+	{
+		return this.undoLog.getEditBytes();
+	}
 	
 	/**
-	 * Runs the undo sequence
-	 * @return true if we were able to undo
+	 * What one child (or the canvas lock, for the canvas's own uuid) looks like right now,
+	 * as the same packets getUpdatePackets() would send for it
+	 * @param uid
+	 * @return null if it isn't on this canvas
 	 */
-	public boolean performUndo()
+	synchronized CCanvasUndoLog.Element getUndoElement(long uid)
 	{
-		try
+		if(uid==this.uuid)
 		{
-			snapshotIndex--;
-			
-			if(snapshotIndex<0)
-			{
-				throw new NoSuchElementException();
-			}
-			
-			getBackupState().updateToNewState(snapshots.get(snapshotIndex));
-			
-			
-			return true;
+			return new CCanvasUndoLog.Element(CCanvasUndoLog.LOCK, new CalicoPacket[]{ getLockPacket() }, null, null);
 		}
-		catch(NoSuchElementException e)
+		if(this.groups.contains(uid))
 		{
-			snapshotIndex++;
-			return false;
+			CGroup group = this.arena.get(CCanvasArena.GROUPS, uid);
+			return group==null ? null : new CCanvasUndoLog.Element(CCanvasUndoLog.GROUP, group.getUpdatePackets(false),
+				group.getParentingUpdatePackets(), new long[]{ group.getParentUUID() });
 		}
-		
-	}
-	public boolean performRedo()
-	{
-		try
+		if(this.arrows.contains(uid))
 		{
-			snapshotIndex++;
-			
-			if(snapshotIndex>=snapshots.size())
+			CArrow arrow = this.arena.get(CCanvasArena.ARROWS, uid);
+			return arrow==null ? null : new CCanvasUndoLog.Element(CCanvasUndoLog.ARROW, arrow.getUpdatePackets(), null,
+				new long[]{ getAnchorGroup(arrow.getAnchorA()), getAnchorGroup(arrow.getAnchorB()) });
+		}
+		if(this.connectors.contains(uid))
+		{
+			CConnector connector = this.arena.get(CCanvasArena.CONNECTORS, uid);
+			if(connector==null)
 			{
-				throw new NoSuchElementException();
+				return null;
 			}
-			
-			getBackupState().updateToNewState(snapshots.get(snapshotIndex));
-			
-			return true;
+			CalicoPacket[] packets = connector.getUpdatePackets();
+			CalicoPacket[] elements = connector.getComposableElements();
+			if(elements!=null && elements.length>0)
+			{
+				CalicoPacket[] both = new CalicoPacket[(packets==null ? 0 : packets.length) + elements.length];
+				if(packets!=null)
+				{
+					System.arraycopy(packets, 0, both, 0, packets.length);
+				}
+				System.arraycopy(elements, 0, both, both.length - elements.length, elements.length);
+				packets = both;
+			}
+			return new CCanvasUndoLog.Element(CCanvasUndoLog.CONNECTOR, packets, null, null);
 		}
-		catch(NoSuchElementException e)
+		if(this.strokes.contains(uid))
 		{
-			snapshotIndex--;
-			return false;
+			CStroke stroke = this.arena.get(CCanvasArena.STROKES, uid);
+			return stroke==null ? null : new CCanvasUndoLog.Element(CCanvasUndoLog.STROKE, stroke.getUpdatePackets(), null,
+				new long[]{ stroke.getParentUUID() });
+		}
+		return null;
+	}
+	
+	/**
+	 * @param uid a group on this canvas
+	 * @return what is in it right now (strokes, groups, arrows and connectors)
+	 */
+	synchronized long[] getUndoChildren(long uid)
+	{
+		CGroup group = this.groups.contains(uid) ? this.arena.<CGroup>get(CCanvasArena.GROUPS, uid) : null;
+		if(group==null)
+		{
+			return new long[0];
 		}
+		LongArrayList children = new LongArrayList();
+		children.addElements(children.size(), group.getChildStrokes());
+		children.addElements(children.size(), group.getChildGroups());
+		children.addElements(children.size(), group.getChildArrows());
+		children.addElements(children.size(), group.getChildConnectors());
+		return children.toLongArray();
+	}
+	
+	private static long getAnchorGroup(AnchorPoint anchor)
+	{
+		return anchor!=null && anchor.getType()==CArrow.TYPE_GROUP ? anchor.getUUID() : 0L;
+	}
+	
+	private CalicoPacket getLockPacket()
+	{
+		return PacketBuilder.command(NetworkCommand.CANVAS_LOCK).putLong(this.uuid).putBoolean(lock_value).putString(this.lock_last_set_by_user).putLong(this.lock_last_set_at_time).build();
 	}
 	
 	public String getCoordText()
@@ -219,17 +332,28 @@ public class CCanvas
 	
 	public void addChildStroke(long s)
 	{
-		this.strokes.add(s);
+		if(this.strokes.add(s))
+		{
+			addSignaturePart(s, CStrokeController.get_parent(s), CStrokeController.get_signature(s));
+			reindex(s);
+		}
 	}
 	
 	public void addChildConnector(long s)
 	{
-		this.connectors.add(s);
+		if(this.connectors.add(s))
+		{
+			addSignaturePart(s, 0L, CConnectorController.get_signature(s));
+		}
 	}
 	
 	public void addChildGroup(long s)
 	{
-		this.groups.add(s);
+		if(this.groups.add(s))
+		{
+			addSignaturePart(s, CGroupController.get_parent(s), CGroupController.get_signature(s));
+			reindex(s);
+		}
 	}
 	
 	public void addChildList(long lUUID)
@@ -239,17 +363,28 @@ public class CCanvas
 	
 	public void deleteChildGroup(long s)
 	{
-		this.groups.remove(s);
+		if(this.groups.remove(s))
+		{
+			removeSignaturePart(s);
+			unindex(this.groupIndex, s);
+		}
 	}
 	
 	public void deleteChildStroke(long s)
 	{
-		this.strokes.remove(s);
+		if(this.strokes.remove(s))
+		{
+			removeSignaturePart(s);
+			unindex(this.strokeIndex, s);
+		}
 	}
 	
 	public void deleteChildConnector(long s)
 	{
-		this.connectors.remove(s);
+		if(this.connectors.remove(s))
+		{
+			removeSignaturePart(s);
+		}
 	}
 		
 	public long[] getChildStrokes()
@@ -276,26 +411,161 @@ public class CCanvas
 	
 	public void addChildArrow(long uid)
 	{
-		this.arrows.add(uid);
+		if(this.arrows.add(uid))
+		{
+			addSignaturePart(uid, 0L, CArrowController.get_signature(uid));
+			reindex(uid);
+		}
 	}
 	public void deleteChildArrow(long uid)
 	{
-		this.arrows.remove(uid);
+		if(this.arrows.remove(uid))
+		{
+			removeSignaturePart(uid);
+			unindex(this.arrowIndex, uid);
+		}
 	}
 	public long[] getChildArrows()
 	{
 		return this.arrows.toLongArray();
 	}
+	
+	/**
+	 * Forgets every child in one go, along with the signature and hash tree. The elements
+	 * themselves are in the arena, see CCanvasController.no_notify_clear()
+	 */
+	public synchronized void clearChildren()
+	{
+		this.undoLog.touchAll();
+		this.undoLog.touch(this.uuid);
+		touchAll(this.strokes);
+		touchAll(this.groups);
+		touchAll(this.arrows);
+		touchAll(this.connectors);
+		this.strokes.clear();
+		this.groups.clear();
+		this.arrows.clear();
+		this.lists.clear();
+		this.connectors.clear();
+		this.signatureParts.clear();
+		this.hashTree.clear();
+		this.signature = 0;
+		this.groupIndex.clear();
+		this.strokeIndex.clear();
+		this.arrowIndex.clear();
+	}
+	
+	private void touchAll(LongLinkedOpenHashSet children)
+	{
+		LongIterator it = children.iterator();
+		while(it.hasNext())
+		{
+			this.undoLog.touch(it.nextLong());
+		}
+	}
+	
+	/**
+	 * The groups that might contain shape: every group whose bounding box overlaps shape's,
+	 * plus any the index can't place. They come back in the same order as getChildGroups(),
+	 * and still need the real containment test.
+	 * @param shape
+	 * @return
+	 */
+	public synchronized long[] getChildGroupsNear(Shape shape)
+	{
+		Rectangle2D bounds = boundsForQuery(shape);
+		return bounds==null ? getChildGroups() : this.groupIndex.query(bounds);
+	}
+	
+	/**
+	 * The groups that might contain the point, in the same order as getChildGroups()
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public synchronized long[] getChildGroupsAt(double x, double y)
+	{
+		return this.groupIndex.query(x, y);
+	}
+	
+	/**
+	 * The strokes that might be inside shape, see getChildGroupsNear(Shape)
+	 * @param shape
+	 * @return
+	 */
+	public synchronized long[] getChildStrokesNear(Shape shape)
+	{
+		Rectangle2D bounds = boundsForQuery(shape);
+		return bounds==null ? getChildStrokes() : this.strokeIndex.query(bounds);
+	}
+	
+	/**
+	 * The arrows that might have an end inside shape, see getChildGroupsNear(Shape)
+	 * @param shape
+	 * @return
+	 */
+	public synchronized long[] getChildArrowsNear(Shape shape)
+	{
+		Rectangle2D bounds = boundsForQuery(shape);
+		return bounds==null ? getChildArrows() : this.arrowIndex.query(bounds);
+	}
+	
+	// Null means don't narrow it down (a shape with no points is contained by anything)
+	private static Rectangle2D boundsForQuery(Shape shape)
+	{
+		if(shape==null || shape.getPathIterator(null).isDone())
+		{
+			return null;
+		}
+		return shape.getBounds2D();
+	}
+	
+	/**
+	 * Puts a child in the spatial index where it is now. Anything without a settled shape of
+	 * its own (unfinished strokes, decorators, which borrow the shape of the group they wrap)
+	 * goes in without bounds, so every query returns it.
+	 * @param uuid
+	 */
+	private synchronized void reindex(long uuid)
+	{
+		if(this.groups.contains(uuid))
+		{
+			CGroup group = this.arena.get(CCanvasArena.GROUPS, uuid);
+			PathGeometry geometry = group==null || group instanceof CGroupDecorator ? null : group.getGeometry();
+			this.groupIndex.put(uuid, geometry==null ? null : geometry.getBounds2D());
+		}
+		else if(this.strokes.contains(uuid))
+		{
+			CStroke stroke = this.arena.get(CCanvasArena.STROKES, uuid);
+			PathGeometry geometry = stroke==null || !stroke.isFinished() ? null : stroke.getGeometry();
+			this.strokeIndex.put(uuid, geometry==null ? null : geometry.getBounds2D());
+		}
+		else if(this.arrows.contains(uuid))
+		{
+			CArrow arrow = this.arena.get(CCanvasArena.ARROWS, uuid);
+			Rectangle2D bounds = null;
+			if(arrow!=null && arrow.getAnchorA()!=null && arrow.getAnchorB()!=null)
+			{
+				bounds = new Rectangle2D.Double(arrow.getAnchorA().getPoint().x, arrow.getAnchorA().getPoint().y, 0, 0);
+				bounds.add(arrow.getAnchorB().getPoint());
+			}
+			this.arrowIndex.put(uuid, bounds);
+		}
+	}
+	
+	private synchronized void unindex(CCanvasSpatialIndex index, long uuid)
+	{
+		index.remove(uuid);
+	}
 
 	public CalicoPacket getInfoPacket()
 	{
-		return CalicoPacket.getPacket(
-			NetworkCommand.CANVAS_INFO,
-			this.uuid,
-			this.gridCoordTxt,
-			this.gridx,
-			this.gridy
-		);
+		return PacketBuilder.command(NetworkCommand.CANVAS_INFO)
+			.putLong(this.uuid)
+			.putString(this.gridCoordTxt)
+			.putInt(this.gridx)
+			.putInt(this.gridy)
+			.build();
 	}
 	
 	public void render(Graphics2D g)
@@ -313,14 +583,14 @@ public class CCanvas
 		long[] groupa = groups.toLongArray();
 		for(int i=0;i<groupa.length;i++)
 		{
-			CGroupController.groups.get(groupa[i]).render(g);
+			this.arena.<CGroup>get(CCanvasArena.GROUPS, groupa[i]).render(g);
 		}
 		
 		
 		long[] strokea = strokes.toLongArray();
 		for(int i=0;i<strokea.length;i++)
 		{
-			CStrokeController.strokes.get(strokea[i]).render(g);
+			this.arena.<CStroke>get(CCanvasArena.STROKES, strokea[i]).render(g);
 		}
 	}
 	
@@ -349,7 +619,7 @@ public class CCanvas
 				// we only want to load root groups
 				if(true /*CGroupController.groups.get(grouparr[i]).getParentUUID()==0L*/)
 				{
-					packetlist.addElements(packetlist.size(), CGroupController.groups.get(grouparr[i]).getUpdatePackets(false) );
+					packetlist.addElements(packetlist.size(), this.arena.<CGroup>get(CCanvasArena.GROUPS, grouparr[i]).getUpdatePackets(false) );
 					
 					// Load the children of that group
 //					long[] groupChildren = CGroupController.groups.get(grouparr[i]).getChildGroups();
@@ -373,7 +643,7 @@ public class CCanvas
 				//if (!CGroupController.groups.get(grouparr[i]).isPermanent)
 				//	continue;
 				
-				CalicoPacket[] packets = CGroupController.groups.get(grouparr[i]).getParentingUpdatePackets();
+				CalicoPacket[] packets = this.arena.<CGroup>get(CCanvasArena.GROUPS, grouparr[i]).getParentingUpdatePackets();
 				for(int x=0;x<packets.length;x++)
 				{
 					packetlist.add(packets[x]);
@@ -387,7 +657,7 @@ public class CCanvas
 		{
 			for(int i=0;i<arlist.length;i++)
 			{
-				CalicoPacket[] packets = CArrowController.arrows.get(arlist[i]).getUpdatePackets();
+				CalicoPacket[] packets = this.arena.<CArrow>get(CCanvasArena.ARROWS, arlist[i]).getUpdatePackets();
 				if(packets!=null && packets.length>0)
 				{
 					packetlist.addElements(packetlist.size(), packets);
@@ -400,12 +670,13 @@ public class CCanvas
 		{
 			for(int i=0;i<ctrlist.length;i++)
 			{
-				CalicoPacket[] packets = CConnectorController.connectors.get(ctrlist[i]).getUpdatePackets();
+				CConnector connector = this.arena.get(CCanvasArena.CONNECTORS, ctrlist[i]);
+				CalicoPacket[] packets = connector.getUpdatePackets();
 				if(packets!=null && packets.length>0)
 				{
 					packetlist.addElements(packetlist.size(), packets);
 				}
-				packets = CConnectorController.connectors.get(ctrlist[i]).getComposableElements();
+				packets = connector.getComposableElements();
 				if(packets!=null && packets.length>0)
 				{
 					packetlist.addElements(packetlist.size(), packets);
@@ -418,7 +689,7 @@ public class CCanvas
 		{
 			for(int i=0;i<bgearr.length;i++)
 			{
-				CalicoPacket[] packets = CStrokeController.strokes.get(bgearr[i]).getUpdatePackets();
+				CalicoPacket[] packets = this.arena.<CStroke>get(CCanvasArena.STROKES, bgearr[i]).getUpdatePackets();
 				if(packets!=null && packets.length>0)
 				{
 					packetlist.addElements(packetlist.size(), packets);
@@ -426,7 +697,7 @@ public class CCanvas
 			}
 		}//
 		
-		packetlist.addElements(0, new CalicoPacket[] { CalicoPacket.getPacket(NetworkCommand.CANVAS_LOCK, this.uuid, lock_value, this.lock_last_set_by_user, this.lock_last_set_at_time)});
+		packetlist.addElements(0, new CalicoPacket[] { getLockPacket() });
 		
 		return packetlist.toArray(new CalicoPacket[]{});
 	}
@@ -447,6 +718,11 @@ public class CCanvas
 		props.setProperty("child.strokes", Arrays.toString(getChildStrokes()) );
 		props.setProperty("child.arrows", Arrays.toString(getChildArrows()) );
 		props.setProperty("child.connectors", Arrays.toString(getChildConnectors()) );
+		props.setProperty("signature", ""+getSignature());
+		props.setProperty("signature.repairs", ""+this.signatureRepairs);
+		props.setProperty("hashtree.root", Long.toHexString(getHashTreeRoot()));
+		props.setProperty("undo.edits", ""+getUndoEdits());
+		props.setProperty("undo.bytes", ""+getUndoBytes());
 		return props;
 	}
 
@@ -468,6 +744,7 @@ public class CCanvas
 		this.lock_value = lock;
 		this.lock_last_set_by_user = user;
 		this.lock_last_set_at_time = time;
+		touch(this.uuid);
 	}
 	
 	public boolean getLockValue()
@@ -489,39 +766,7 @@ public class CCanvas
 		this.lock_value = false;
 		this.lock_last_set_by_user = "";
 		this.lock_last_set_at_time = 0l;
-	}
-	
-	private void setupEventListeners()
-	{
-		CalicoEventHandler.getInstance().addListenerForType("GROUP", this, CalicoEventHandler.PASSIVE_LISTENER);
-		CalicoEventHandler.getInstance().addListenerForType("STROKE", this, CalicoEventHandler.PASSIVE_LISTENER);
-		CalicoEventHandler.getInstance().addListenerForType("ARROW", this, CalicoEventHandler.PASSIVE_LISTENER);
-		CalicoEventHandler.getInstance().addListenerForType("CONNECTOR", this, CalicoEventHandler.PASSIVE_LISTENER);
-		CalicoEventHandler.getInstance().addListenerForType("CANVAS", this, CalicoEventHandler.PASSIVE_LISTENER);
-		CalicoEventHandler.getInstance().addListenerForType("LIST", this, CalicoEventHandler.PASSIVE_LISTENER);
-		CalicoEventHandler.getInstance().addListenerForType("PALETTE", this, CalicoEventHandler.PASSIVE_LISTENER);
-	}
-
-	@Override
-	public void handleCalicoEvent(int event, CalicoPacket p, Client client) {
-		if (event > 2200)
-		{
-//			System.out.println("awesome!");
-		}
-		try
-		{
-			p.rewind();
-			p.getInt();
-			p.getLong();
-			long c = p.getLong();
-			if (c != this.getUUID())
-				return;
-		}
-		catch (Exception e)
-		{
-			//do nothing
-		}
-		updateSignature();
+		touch(this.uuid);
 	}
 	
 	public int get_signature()
@@ -601,15 +846,208 @@ public class CCanvas
 		return p;
 	}
 	
-	public void updateSignature()
+	private synchronized void addSignaturePart(long uuid, long parent, int sig)
+	{
+		// put() gives back the old part (or 0 if there wasn't one)
+		this.signature = this.signature - this.signatureParts.put(uuid, sig) + sig;
+		this.hashTree.put(uuid, parent, sig);
+		this.undoLog.touch(uuid);
+	}
+	
+	private synchronized void removeSignaturePart(long uuid)
 	{
-		this.signature = get_signature();
+		this.signature = this.signature - this.signatureParts.remove(uuid);
+		this.hashTree.remove(uuid);
+		this.undoLog.touch(uuid);
 	}
 	
-	public int getSignature()
+	/**
+	 * Called by a child when something its signature depends on changed. Does nothing if
+	 * the element isn't (or isn't yet) on this canvas.
+	 * @param uuid the child
+	 * @param sig its new signature
+	 */
+	public synchronized void updateSignature(long uuid, int sig)
+	{
+		if(this.signatureParts.containsKey(uuid))
+		{
+			this.signature = this.signature - this.signatureParts.put(uuid, sig) + sig;
+			this.hashTree.update(uuid, sig);
+			this.undoLog.touch(uuid);
+			
+			// Everything that moves or reshapes a child changes its signature too
+			reindex(uuid);
+		}
+	}
+	
+	/**
+	 * Called by a stroke or group when it gets a new parent, so the hash tree can move it
+	 * @param uuid the child
+	 * @param parent the group it is in now, or 0
+	 */
+	public synchronized void updateParent(long uuid, long parent)
+	{
+		this.hashTree.setParent(uuid, parent);
+		this.undoLog.touch(uuid);
+	}
+	
+	/**
+	 * Lists an element's children with their hashes, so a client can see which ones differ.
+	 * 
+	 * CONSISTENCY_HASH_NODE CUUID UUID HASH SUBTREE_HASH COUNT {CHILD_UUID CHILD_SUBTREE_HASH}...
+	 * 
+	 * For the whole canvas the uuid is 0 (and its own hash is 0). If the element isn't on
+	 * this canvas both hashes are 0 and there are no children, so the client should drop it.
+	 * @param node
+	 * @return
+	 */
+	public synchronized CalicoPacket getHashNodePacket(long node)
+	{
+		long[] kids = this.hashTree.getChildren(node);
+		PacketBuilder builder = PacketBuilder.command(NetworkCommand.CONSISTENCY_HASH_NODE)
+			.putLong(this.uuid)
+			.putLong(node)
+			.putLong(this.hashTree.getHash(node))
+			.putLong(this.hashTree.getSubtreeHash(node))
+			.putInt(kids.length);
+		for(int i=0;i<kids.length;i++)
+		{
+			builder.putLong(kids[i]).putLong(this.hashTree.getSubtreeHash(kids[i]));
+		}
+		return builder.build();
+	}
+	
+	/**
+	 * The packets to reload one element and everything under it, in the same order
+	 * getUpdatePackets() would send them
+	 * @param node
+	 * @return
+	 */
+	public synchronized CalicoPacket[] getSubtreeUpdatePackets(long node)
+	{
+		ObjectArrayList<CalicoPacket> packetlist = new ObjectArrayList<CalicoPacket>();
+		if(!this.hashTree.contains(node))
+		{
+			return new CalicoPacket[0];
+		}
+		
+		// Everything under the node, parents before their children
+		LongArrayList subtree = new LongArrayList();
+		subtree.add(node);
+		for(int i=0;i<subtree.size();i++)
+		{
+			subtree.addElements(subtree.size(), this.hashTree.getChildren(subtree.getLong(i)));
+		}
+		
+		for(int i=0;i<subtree.size();i++)
+		{
+			long uid = subtree.getLong(i);
+			if(CGroupController.exists(uid))
+			{
+				packetlist.addElements(packetlist.size(), CGroupController.groups.get(uid).getUpdatePackets(false));
+			}
+		}
+		for(int i=0;i<subtree.size();i++)
+		{
+			long uid = subtree.getLong(i);
+			if(CGroupController.exists(uid))
+			{
+				packetlist.addElements(packetlist.size(), CGroupController.groups.get(uid).getParentingUpdatePackets());
+			}
+		}
+		for(int i=0;i<subtree.size();i++)
+		{
+			long uid = subtree.getLong(i);
+			CalicoPacket[] packets = null;
+			if(CArrowController.exists(uid))
+			{
+				packets = CArrowController.arrows.get(uid).getUpdatePackets();
+			}
+			else if(CConnectorController.exists(uid))
+			{
+				packetlist.addElements(packetlist.size(), CConnectorController.connectors.get(uid).getUpdatePackets());
+				packets = CConnectorController.connectors.get(uid).getComposableElements();
+			}
+			else if(CStrokeController.exists(uid))
+			{
+				packets = CStrokeController.strokes.get(uid).getUpdatePackets();
+			}
+			if(packets!=null && packets.length>0)
+			{
+				packetlist.addElements(packetlist.size(), packets);
+			}
+		}
+		return packetlist.toArray(new CalicoPacket[]{});
+	}
+	
+	public synchronized long getHashTreeRoot()
+	{
+		return this.hashTree.getRoot();
+	}
+	
+	/**
+	 * Rebuilds the running signature from every child
+	 */
+	public synchronized void updateSignature()
+	{
+		this.signatureParts.clear();
+		this.hashTree.clear();
+		this.signature = 0;
+		this.groupIndex.clear();
+		this.strokeIndex.clear();
+		this.arrowIndex.clear();
+		
+		long[] strokear = getChildStrokes();
+		for(int i=0;i<strokear.length;i++)
+		{
+			addSignaturePart(strokear[i], CStrokeController.get_parent(strokear[i]), CStrokeController.get_signature(strokear[i]));
+			reindex(strokear[i]);
+		}
+		long[] groupar = getChildGroups();
+		for(int i=0;i<groupar.length;i++)
+		{
+			addSignaturePart(groupar[i], CGroupController.get_parent(groupar[i]), CGroupController.get_signature(groupar[i]));
+			reindex(groupar[i]);
+		}
+		long[] arrar = getChildArrows();
+		for(int i=0;i<arrar.length;i++)
+		{
+			addSignaturePart(arrar[i], 0L, CArrowController.get_signature(arrar[i]));
+			reindex(arrar[i]);
+		}
+		long[] ctrar = getChildConnectors();
+		for(int i=0;i<ctrar.length;i++)
+		{
+			addSignaturePart(ctrar[i], 0L, CConnectorController.get_signature(ctrar[i]));
+		}
+	}
+	
+	public synchronized int getSignature()
 	{
 		return this.signature;
 	}
+	
+	/**
+	 * Works the signature out from scratch, and if the running total doesn't agree (something
+	 * changed a child without telling us) the running total is rebuilt.
+	 * @return the signature
+	 */
+	public synchronized int checkSignature()
+	{
+		int sig = get_signature();
+		if(sig!=this.signature)
+		{
+			this.signatureRepairs++;
+			CCanvasController.logger.warn("Canvas "+this.uuid+" signature was "+this.signature+", should be "+sig+", rebuilding it");
+			updateSignature();
+		}
+		return sig;
+	}
+	
+	public int getSignatureRepairs()
+	{
+		return this.signatureRepairs;
+	}
 
 }
 
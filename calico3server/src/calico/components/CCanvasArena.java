@@ -0,0 +1,357 @@
+package calico.components;
+
+import it.unimi.dsi.fastutil.longs.Long2ReferenceLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+
+import java.awt.Polygon;
+import java.util.Properties;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import calico.utils.UUIDRegistry;
+
+/**
+ * Holds every stroke, group, arrow and connector of one canvas.
+ *
+ * These used to sit in one static map per type (plus a uuid to canvas map per type), so
+ * clearing or dropping a canvas meant deleting its elements one at a time out of maps
+ * every canvas shares. Now each canvas has its own arena, and the only thing shared is a
+ * thin index of element uuid to arena. Clearing, copying, evicting or snapshotting a canvas
+ * only has to look at its own arena.
+ *
+ * The controllers still look elements up by uuid alone through an ArenaRegistry, which
+ * goes through the index.
+ *
+ * Most changes come from the canvas's worker, but not all of them: copying into another
+ * canvas, restores and admin pages change an arena from other threads, and admin pages,
+ * backups and clients loading a canvas read it. So reads take the read lock and changes
+ * take the write lock.
+ */
+public class CCanvasArena
+{
+	public static final int STROKES = 0;
+	public static final int GROUPS = 1;
+	public static final int ARROWS = 2;
+	public static final int CONNECTORS = 3;
+	private static final int KINDS = 4;
+
+	// Element uuid -> arena. Striped so workers adding to different canvases mostly don't meet.
+	private static final int INDEX_STRIPES = 16;
+	private static final UUIDRegistry<CCanvasArena>[] index = newIndex();
+
+	// Canvas uuid -> arena
+	private static final UUIDRegistry<CCanvasArena> arenas = new UUIDRegistry<CCanvasArena>();
+
+	private final long canvasuuid;
+
+	// Linked so everything comes out in the order it was added
+	private final Long2ReferenceLinkedOpenHashMap<?>[] elements = new Long2ReferenceLinkedOpenHashMap<?>[KINDS];
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private CCanvasArena(long canvasuuid)
+	{
+		this.canvasuuid = canvasuuid;
+		for(int i=0;i<KINDS;i++)
+		{
+			this.elements[i] = new Long2ReferenceLinkedOpenHashMap<Object>();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static UUIDRegistry<CCanvasArena>[] newIndex()
+	{
+		UUIDRegistry<CCanvasArena>[] stripes = new UUIDRegistry[INDEX_STRIPES];
+		for(int i=0;i<stripes.length;i++)
+		{
+			stripes[i] = new UUIDRegistry<CCanvasArena>();
+		}
+		return stripes;
+	}
+
+	private static UUIDRegistry<CCanvasArena> stripe(long uuid)
+	{
+		int h = (int) (uuid ^ (uuid >>> 32));
+		h = h ^ (h >>> 16);
+		return index[(h & 0x7fffffff) % INDEX_STRIPES];
+	}
+
+	/**
+	 * Gets the arena for a canvas, making it if there isn't one yet
+	 * @param cuid
+	 * @return
+	 */
+	public static CCanvasArena forCanvas(long cuid)
+	{
+		CCanvasArena arena = arenas.get(cuid);
+		if(arena==null)
+		{
+			CCanvasArena made = new CCanvasArena(cuid);
+			arena = arenas.putIfAbsent(cuid, made);
+			if(arena==null)
+			{
+				arena = made;
+			}
+		}
+		return arena;
+	}
+
+	/**
+	 * @param uuid an element
+	 * @return the arena holding it, or null
+	 */
+	public static CCanvasArena of(long uuid)
+	{
+		return stripe(uuid).get(uuid);
+	}
+
+	/**
+	 * @param uuid an element
+	 * @return the canvas it is on, or 0
+	 */
+	public static long canvasOf(long uuid)
+	{
+		CCanvasArena arena = of(uuid);
+		return arena==null ? 0L : arena.canvasuuid;
+	}
+
+	/**
+	 * @return every arena, in the order the canvases were made
+	 */
+	public static ObjectArrayList<CCanvasArena> getArenas()
+	{
+		return arenas.values();
+	}
+
+	/**
+	 * Drops a canvas's arena and everything in it
+	 * @param cuid
+	 */
+	public static void evict(long cuid)
+	{
+		CCanvasArena arena = arenas.remove(cuid);
+		if(arena!=null)
+		{
+			arena.clear();
+		}
+	}
+
+	/**
+	 * Drops every arena
+	 */
+	public static void evictAll()
+	{
+		ObjectArrayList<CCanvasArena> all = arenas.values();
+		arenas.clear();
+		for(int i=0;i<all.size();i++)
+		{
+			all.get(i).clear();
+		}
+	}
+
+	public long getCanvasUUID()
+	{
+		return this.canvasuuid;
+	}
+
+	@SuppressWarnings("unchecked")
+	private <V> Long2ReferenceLinkedOpenHashMap<V> map(int kind)
+	{
+		return (Long2ReferenceLinkedOpenHashMap<V>) this.elements[kind];
+	}
+
+	public <V> V get(int kind, long uuid)
+	{
+		this.lock.readLock().lock();
+		try
+		{
+			return this.<V>map(kind).get(uuid);
+		}
+		finally
+		{
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Adds an element. If the uuid is in another arena it is taken out of that one first.
+	 * @param kind
+	 * @param uuid
+	 * @param element
+	 */
+	public <V> void put(int kind, long uuid, V element)
+	{
+		CCanvasArena previous = stripe(uuid).put(uuid, this);
+		if(previous!=null && previous!=this)
+		{
+			previous.drop(uuid);
+		}
+
+		this.lock.writeLock().lock();
+		try
+		{
+			this.<V>map(kind).put(uuid, element);
+		}
+		finally
+		{
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	public <V> V remove(int kind, long uuid)
+	{
+		V removed;
+		boolean stillHeld = false;
+		this.lock.writeLock().lock();
+		try
+		{
+			removed = this.<V>map(kind).remove(uuid);
+			for(int i=0;i<KINDS && !stillHeld;i++)
+			{
+				stillHeld = this.elements[i].containsKey(uuid);
+			}
+		}
+		finally
+		{
+			this.lock.writeLock().unlock();
+		}
+
+		if(removed!=null && !stillHeld)
+		{
+			stripe(uuid).remove(uuid, this);
+		}
+		return removed;
+	}
+
+	// Takes uuid out of every kind, without touching the index (it already points elsewhere)
+	private void drop(long uuid)
+	{
+		this.lock.writeLock().lock();
+		try
+		{
+			for(int i=0;i<KINDS;i++)
+			{
+				this.elements[i].remove(uuid);
+			}
+		}
+		finally
+		{
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @param kind
+	 * @return the uuids, in the order they were added
+	 */
+	public long[] getUUIDs(int kind)
+	{
+		this.lock.readLock().lock();
+		try
+		{
+			return this.elements[kind].keySet().toLongArray();
+		}
+		finally
+		{
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param kind
+	 * @return the elements, in the order they were added
+	 */
+	public <V> ObjectArrayList<V> getElements(int kind)
+	{
+		this.lock.readLock().lock();
+		try
+		{
+			return new ObjectArrayList<V>(this.<V>map(kind).values());
+		}
+		finally
+		{
+			this.lock.readLock().unlock();
+		}
+	}
+
+	public int size(int kind)
+	{
+		this.lock.readLock().lock();
+		try
+		{
+			return this.elements[kind].size();
+		}
+		finally
+		{
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Drops everything in the arena, and takes it all out of the index
+	 * @return how many elements were dropped
+	 */
+	public int clear()
+	{
+		LongArrayList dropped = new LongArrayList();
+		this.lock.writeLock().lock();
+		try
+		{
+			for(int i=0;i<KINDS;i++)
+			{
+				dropped.addAll(this.elements[i].keySet());
+				this.elements[i].clear();
+			}
+		}
+		finally
+		{
+			this.lock.writeLock().unlock();
+		}
+
+		for(int i=0;i<dropped.size();i++)
+		{
+			long uuid = dropped.getLong(i);
+			stripe(uuid).remove(uuid, this);
+		}
+		return dropped.size();
+	}
+
+	/**
+	 * Element counts, and how much the point arrays of strokes and groups take up
+	 * @param props
+	 * @param prefix
+	 */
+	public void addTo(Properties props, String prefix)
+	{
+		ObjectArrayList<CStroke> strokes = getElements(STROKES);
+		ObjectArrayList<CGroup> groups = getElements(GROUPS);
+
+		long points = 0L;
+		long pointBytes = 0L;
+		for(int i=0;i<strokes.size();i++)
+		{
+			Polygon poly = strokes.get(i).getRawPolygon();
+			if(poly!=null)
+			{
+				points = points + poly.npoints;
+				pointBytes = pointBytes + 4L * (poly.xpoints.length + poly.ypoints.length);
+			}
+		}
+		for(int i=0;i<groups.size();i++)
+		{
+			Polygon poly = groups.get(i).getRawPolygon();
+			if(poly!=null)
+			{
+				points = points + poly.npoints;
+				pointBytes = pointBytes + 4L * (poly.xpoints.length + poly.ypoints.length);
+			}
+		}
+
+		props.setProperty(prefix+".Strokes", ""+strokes.size());
+		props.setProperty(prefix+".Groups", ""+groups.size());
+		props.setProperty(prefix+".Arrows", ""+size(ARROWS));
+		props.setProperty(prefix+".Connectors", ""+size(CONNECTORS));
+		props.setProperty(prefix+".Points", ""+points);
+		props.setProperty(prefix+".PointBytes", ""+pointBytes);
+	}
+}
@@ -66,10 +66,10 @@ public class CCanvasBackupState extends BackupState
 		for (int i = 0;i < packetlist.length; i++)
 		{
 			canvasLoadPacket.putInt(packetlist[i].getBufferSize());
-			canvasLoadPacket.putBytes(packetlist[i].getBuffer());
+			canvasLoadPacket.putBytes(packetlist[i].detachBuffer());
 		}
 		
-		ClientManager.send(canvasLoadPacket);
+		ClientManager.send_bulk(canvasLoadPacket);
 		ProcessQueue.receive(NetworkCommand.CANVAS_LOAD, null, canvasLoadPacket);
 		
 		
@@ -0,0 +1,291 @@
+package calico.components;
+
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+
+/**
+ * A hash tree over the elements of a canvas, so a client that is out of sync can find
+ * which elements differ without reloading the whole canvas.
+ *
+ * Every element has its own hash, hash(uuid, signature), made from the same signature
+ * the HEARTBEAT uses. A node's subtree hash is its own hash plus the subtree hashes of its
+ * children (groups hold groups and strokes, everything else sits at the top). Since it is
+ * a plain sum, a change only has to be added to the element and the nodes above it, and
+ * the root is just the sum of every element no matter how they are parented.
+ *
+ * Elements hang off the parent they say they have. If that parent isn't in the tree (yet),
+ * they sit at the top until it shows up.
+ */
+public class CCanvasHashTree
+{
+	private Long2LongOpenHashMap own = new Long2LongOpenHashMap();
+	private Long2LongOpenHashMap subtree = new Long2LongOpenHashMap();
+	private Long2LongOpenHashMap parents = new Long2LongOpenHashMap();
+
+	// Children by the parent they name, even if that parent isn't in the tree
+	private Long2ObjectOpenHashMap<LongOpenHashSet> children = new Long2ObjectOpenHashMap<LongOpenHashSet>();
+
+	// Elements with no parent in the tree
+	private LongOpenHashSet top = new LongOpenHashSet();
+
+	private long root = 0L;
+
+	/**
+	 * The hash of one element. Clients have to work this out the exact same way.
+	 * @param uuid
+	 * @param sig the element's get_signature()
+	 * @return
+	 */
+	public static long hash(long uuid, int sig)
+	{
+		long h = uuid * 0x9E3779B97F4A7C15L + sig;
+		h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+		h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+		return h ^ (h >>> 33);
+	}
+
+	public boolean contains(long uuid)
+	{
+		return this.own.containsKey(uuid);
+	}
+
+	private long getEffectiveParent(long uuid)
+	{
+		long parent = this.parents.get(uuid);
+		return this.own.containsKey(parent) ? parent : 0L;
+	}
+
+	private LongOpenHashSet getChildSet(long parent)
+	{
+		LongOpenHashSet set = this.children.get(parent);
+		if(set==null)
+		{
+			set = new LongOpenHashSet();
+			this.children.put(parent, set);
+		}
+		return set;
+	}
+
+	private void removeFromChildSet(long parent, long uuid)
+	{
+		LongOpenHashSet set = this.children.get(parent);
+		if(set!=null)
+		{
+			set.remove(uuid);
+			if(set.isEmpty())
+			{
+				this.children.remove(parent);
+			}
+		}
+	}
+
+	/**
+	 * Adds delta to the subtree hash of node and everything above it
+	 * @param node
+	 * @param delta
+	 */
+	private void propagate(long node, long delta)
+	{
+		// A parenting loop would spin forever, so never walk further than there are nodes
+		int guard = this.own.size();
+		while(node!=0L && guard-->=0)
+		{
+			this.subtree.addTo(node, delta);
+			node = getEffectiveParent(node);
+		}
+	}
+
+	/**
+	 * Adds an element (or updates it, if it is already here)
+	 * @param uuid
+	 * @param parent the group it is in, or 0
+	 * @param sig
+	 */
+	public void put(long uuid, long parent, int sig)
+	{
+		if(contains(uuid))
+		{
+			update(uuid, sig);
+			setParent(uuid, parent);
+			return;
+		}
+
+		long h = hash(uuid, sig);
+		this.own.put(uuid, h);
+		this.root = this.root + h;
+		this.parents.put(uuid, parent);
+		getChildSet(parent).add(uuid);
+
+		// Anything that was waiting for this as its parent hangs off it now
+		long sub = h;
+		LongOpenHashSet kids = this.children.get(uuid);
+		if(kids!=null)
+		{
+			long[] kidar = kids.toLongArray();
+			for(int i=0;i<kidar.length;i++)
+			{
+				this.top.remove(kidar[i]);
+				sub = sub + this.subtree.get(kidar[i]);
+			}
+		}
+		this.subtree.put(uuid, sub);
+
+		long p = getEffectiveParent(uuid);
+		if(p==0L)
+		{
+			this.top.add(uuid);
+		}
+		else
+		{
+			propagate(p, sub);
+		}
+	}
+
+	/**
+	 * The element's signature changed
+	 * @param uuid
+	 * @param sig
+	 */
+	public void update(long uuid, int sig)
+	{
+		if(!contains(uuid))
+		{
+			return;
+		}
+		long h = hash(uuid, sig);
+		long delta = h - this.own.put(uuid, h);
+		if(delta!=0L)
+		{
+			this.root = this.root + delta;
+			propagate(uuid, delta);
+		}
+	}
+
+	public void remove(long uuid)
+	{
+		if(!contains(uuid))
+		{
+			return;
+		}
+		long p = getEffectiveParent(uuid);
+		long sub = this.subtree.remove(uuid);
+		this.root = this.root - this.own.remove(uuid);
+		if(p==0L)
+		{
+			this.top.remove(uuid);
+		}
+		else
+		{
+			propagate(p, -sub);
+		}
+		removeFromChildSet(this.parents.remove(uuid), uuid);
+
+		// Its children have no parent in the tree now
+		LongOpenHashSet kids = this.children.get(uuid);
+		if(kids!=null)
+		{
+			this.top.addAll(kids);
+		}
+	}
+
+	/**
+	 * Moves an element (and everything under it) to a new parent
+	 * @param uuid
+	 * @param parent the group, or 0
+	 */
+	public void setParent(long uuid, long parent)
+	{
+		if(!contains(uuid) || this.parents.get(uuid)==parent)
+		{
+			return;
+		}
+		long sub = this.subtree.get(uuid);
+
+		long old = getEffectiveParent(uuid);
+		if(old==0L)
+		{
+			this.top.remove(uuid);
+		}
+		else
+		{
+			propagate(old, -sub);
+		}
+		removeFromChildSet(this.parents.get(uuid), uuid);
+
+		this.parents.put(uuid, parent);
+		getChildSet(parent).add(uuid);
+		long p = getEffectiveParent(uuid);
+		if(p==0L)
+		{
+			this.top.add(uuid);
+		}
+		else
+		{
+			propagate(p, sub);
+		}
+	}
+
+	public void clear()
+	{
+		this.own.clear();
+		this.subtree.clear();
+		this.parents.clear();
+		this.children.clear();
+		this.top.clear();
+		this.root = 0L;
+	}
+
+	/**
+	 * @return the hash of the whole canvas
+	 */
+	public long getRoot()
+	{
+		return this.root;
+	}
+
+	/**
+	 * @param uuid
+	 * @return the element's own hash, or 0 if it isn't here
+	 */
+	public long getHash(long uuid)
+	{
+		return this.own.get(uuid);
+	}
+
+	/**
+	 * @param uuid the element, or 0 for the whole canvas
+	 * @return the hash of it and everything under it, or 0 if it isn't here
+	 */
+	public long getSubtreeHash(long uuid)
+	{
+		if(uuid==0L)
+		{
+			return this.root;
+		}
+		return this.subtree.get(uuid);
+	}
+
+	/**
+	 * @param uuid the element, or 0 for the top of the canvas
+	 * @return the elements directly under it
+	 */
+	public long[] getChildren(long uuid)
+	{
+		if(uuid==0L)
+		{
+			return this.top.toLongArray();
+		}
+		LongOpenHashSet kids = this.children.get(uuid);
+		if(kids==null || !contains(uuid))
+		{
+			return new long[0];
+		}
+		return kids.toLongArray();
+	}
+
+	public int size()
+	{
+		return this.own.size();
+	}
+}
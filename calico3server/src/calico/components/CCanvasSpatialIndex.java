@@ -0,0 +1,291 @@
+package calico.components;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+
+import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Bounding boxes of the elements on a canvas, bucketed into a uniform grid, so parenting
+ * and containment checks only have to run the exact geometry tests on elements whose box
+ * overlaps the one they are looking for.
+ *
+ * An element with no bounds (unfinished, or a decorator whose shape is somebody else's) is
+ * handed back by every query, so the answer is always a superset of what a full scan would
+ * find. Elements too big for the grid are kept off to the side and checked one by one.
+ *
+ * Queries hand back uuids in the order they were added, which is the order the canvas lists
+ * its children, so callers picking "the first smallest" still pick the same one.
+ */
+public class CCanvasSpatialIndex
+{
+	// An element covering more cells than this goes in the large set instead
+	private static final int MAX_CELLS_PER_ENTRY = 64;
+
+	// A query covering more cells than this just looks at every entry
+	private static final int MAX_CELLS_PER_QUERY = 256;
+
+	private static final Comparator<Entry> BY_SEQUENCE = new Comparator<Entry>() {
+		public int compare(Entry a, Entry b)
+		{
+			return a.seq<b.seq ? -1 : (a.seq==b.seq ? 0 : 1);
+		}
+	};
+
+	private static class Entry
+	{
+		final long uuid;
+		final long seq;
+		boolean bounded = false;
+		boolean large = false;
+		int minX, minY, maxX, maxY;
+		int stamp = 0;
+
+		Entry(long uuid, long seq)
+		{
+			this.uuid = uuid;
+			this.seq = seq;
+		}
+
+		boolean overlaps(int minX, int minY, int maxX, int maxY)
+		{
+			return this.minX<=maxX && minX<=this.maxX && this.minY<=maxY && minY<=this.maxY;
+		}
+	}
+
+	private final int cellSize;
+
+	private Long2ObjectOpenHashMap<Entry> entries = new Long2ObjectOpenHashMap<Entry>();
+	private Long2ObjectOpenHashMap<LongOpenHashSet> cells = new Long2ObjectOpenHashMap<LongOpenHashSet>();
+	private LongOpenHashSet large = new LongOpenHashSet();
+	private LongOpenHashSet unbounded = new LongOpenHashSet();
+
+	private long nextSeq = 0L;
+	private int stamp = 0;
+
+	public CCanvasSpatialIndex(int cellSize)
+	{
+		this.cellSize = Math.max(1, cellSize);
+	}
+
+	private int cell(int coord)
+	{
+		return (int) Math.floor((double) coord / this.cellSize);
+	}
+
+	private static long cellKey(int cx, int cy)
+	{
+		return ((long) cx << 32) | (cy & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Adds an element, or moves it if it is already here (it keeps its place in the order)
+	 * @param uuid
+	 * @param bounds its bounding box, or null if it hasn't got one
+	 */
+	public void put(long uuid, Rectangle2D bounds)
+	{
+		Entry entry = this.entries.get(uuid);
+		if(entry==null)
+		{
+			entry = new Entry(uuid, this.nextSeq++);
+			this.entries.put(uuid, entry);
+		}
+		else
+		{
+			unlink(entry);
+		}
+
+		if(bounds==null)
+		{
+			entry.bounded = false;
+			this.unbounded.add(uuid);
+			return;
+		}
+
+		entry.bounded = true;
+		entry.minX = (int) Math.floor(bounds.getMinX());
+		entry.minY = (int) Math.floor(bounds.getMinY());
+		entry.maxX = (int) Math.ceil(bounds.getMaxX());
+		entry.maxY = (int) Math.ceil(bounds.getMaxY());
+
+		int cx0 = cell(entry.minX), cx1 = cell(entry.maxX);
+		int cy0 = cell(entry.minY), cy1 = cell(entry.maxY);
+		if((long) (cx1 - cx0 + 1) * (cy1 - cy0 + 1) > MAX_CELLS_PER_ENTRY)
+		{
+			entry.large = true;
+			this.large.add(uuid);
+			return;
+		}
+
+		entry.large = false;
+		for(int cx=cx0;cx<=cx1;cx++)
+		{
+			for(int cy=cy0;cy<=cy1;cy++)
+			{
+				long key = cellKey(cx, cy);
+				LongOpenHashSet set = this.cells.get(key);
+				if(set==null)
+				{
+					set = new LongOpenHashSet();
+					this.cells.put(key, set);
+				}
+				set.add(uuid);
+			}
+		}
+	}
+
+	public void remove(long uuid)
+	{
+		Entry entry = this.entries.remove(uuid);
+		if(entry!=null)
+		{
+			unlink(entry);
+		}
+	}
+
+	public boolean contains(long uuid)
+	{
+		return this.entries.containsKey(uuid);
+	}
+
+	public int size()
+	{
+		return this.entries.size();
+	}
+
+	public void clear()
+	{
+		this.entries.clear();
+		this.cells.clear();
+		this.large.clear();
+		this.unbounded.clear();
+	}
+
+	// Takes the entry out of wherever its bounds put it
+	private void unlink(Entry entry)
+	{
+		if(!entry.bounded)
+		{
+			this.unbounded.remove(entry.uuid);
+			return;
+		}
+		if(entry.large)
+		{
+			this.large.remove(entry.uuid);
+			return;
+		}
+
+		int cx0 = cell(entry.minX), cx1 = cell(entry.maxX);
+		int cy0 = cell(entry.minY), cy1 = cell(entry.maxY);
+		for(int cx=cx0;cx<=cx1;cx++)
+		{
+			for(int cy=cy0;cy<=cy1;cy++)
+			{
+				long key = cellKey(cx, cy);
+				LongOpenHashSet set = this.cells.get(key);
+				if(set!=null)
+				{
+					set.remove(entry.uuid);
+					if(set.isEmpty())
+					{
+						this.cells.remove(key);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param bounds
+	 * @return everything whose box overlaps bounds (edges count), plus everything without bounds
+	 */
+	public long[] query(Rectangle2D bounds)
+	{
+		return query((int) Math.floor(bounds.getMinX()), (int) Math.floor(bounds.getMinY()),
+			(int) Math.ceil(bounds.getMaxX()), (int) Math.ceil(bounds.getMaxY()));
+	}
+
+	/**
+	 * @param x
+	 * @param y
+	 * @return everything whose box holds the point, plus everything without bounds
+	 */
+	public long[] query(double x, double y)
+	{
+		return query((int) Math.floor(x), (int) Math.floor(y), (int) Math.ceil(x), (int) Math.ceil(y));
+	}
+
+	private long[] query(int minX, int minY, int maxX, int maxY)
+	{
+		ObjectArrayList<Entry> found = new ObjectArrayList<Entry>();
+		int mark = ++this.stamp;
+
+		int cx0 = cell(minX), cx1 = cell(maxX);
+		int cy0 = cell(minY), cy1 = cell(maxY);
+		if((long) (cx1 - cx0 + 1) * (cy1 - cy0 + 1) > MAX_CELLS_PER_QUERY)
+		{
+			ObjectIterator<Entry> it = this.entries.values().iterator();
+			while(it.hasNext())
+			{
+				Entry entry = it.next();
+				if(!entry.bounded || entry.overlaps(minX, minY, maxX, maxY))
+				{
+					found.add(entry);
+				}
+			}
+		}
+		else
+		{
+			for(int cx=cx0;cx<=cx1;cx++)
+			{
+				for(int cy=cy0;cy<=cy1;cy++)
+				{
+					LongOpenHashSet set = this.cells.get(cellKey(cx, cy));
+					if(set==null)
+					{
+						continue;
+					}
+					LongIterator it = set.iterator();
+					while(it.hasNext())
+					{
+						Entry entry = this.entries.get(it.nextLong());
+						if(entry.stamp!=mark && entry.overlaps(minX, minY, maxX, maxY))
+						{
+							entry.stamp = mark;
+							found.add(entry);
+						}
+					}
+				}
+			}
+			LongIterator it = this.large.iterator();
+			while(it.hasNext())
+			{
+				Entry entry = this.entries.get(it.nextLong());
+				if(entry.overlaps(minX, minY, maxX, maxY))
+				{
+					found.add(entry);
+				}
+			}
+			it = this.unbounded.iterator();
+			while(it.hasNext())
+			{
+				found.add(this.entries.get(it.nextLong()));
+			}
+		}
+
+		Entry[] sorted = found.toArray(new Entry[found.size()]);
+		Arrays.sort(sorted, BY_SEQUENCE);
+		long[] uuids = new long[sorted.length];
+		for(int i=0;i<sorted.length;i++)
+		{
+			uuids[i] = sorted[i].uuid;
+		}
+		return uuids;
+	}
+}
@@ -0,0 +1,500 @@
+package calico.components;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongLinkedOpenHashSet;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+
+import java.util.Arrays;
+
+import calico.COptions;
+import calico.networking.netstuff.CalicoPacket;
+import calico.networking.netstuff.NetworkCommand;
+import calico.networking.netstuff.PacketBuilder;
+
+/**
+ * The undo history of one canvas, kept as a log of edits instead of a copy of the whole
+ * canvas per edit.
+ *
+ * The log keeps the canvas as it stood at the last snapshot, as the packets of each element,
+ * and the canvas tells it which elements it has touched since (touch()). A snapshot only
+ * looks at those, plus the groups they are or were in (a group's parenting packets list its
+ * children), and records what each one looked like before and after. Undo puts the befores
+ * back, redo the afters, so an edit costs about as much as the elements it touched, and the
+ * packets undo/redo hand back only delete and reload those (see step()).
+ *
+ * Anything that changes without the canvas hearing about it gets picked up by the full
+ * checkpoint every COptions.canvas.undo_checkpoint_interval snapshots, which looks at every
+ * element and records what it finds as an edit of its own.
+ */
+public class CCanvasUndoLog
+{
+	static final byte LOCK = 0;
+	static final byte GROUP = 1;
+	static final byte ARROW = 2;
+	static final byte CONNECTOR = 3;
+	static final byte STROKE = 4;
+
+	private static final long[] NO_UUIDS = new long[0];
+
+	/**
+	 * What one element looked like at a snapshot
+	 */
+	static class Element
+	{
+		final byte kind;
+		final byte[][] packets;
+		final byte[][] parenting;
+		final long[] related;
+
+		/**
+		 * @param kind
+		 * @param packets what loads it, in the order getUpdatePackets() would send them
+		 * @param parenting for groups, the packets listing their children (sent once every group is loaded)
+		 * @param related the groups whose parenting packets list this element
+		 */
+		Element(byte kind, CalicoPacket[] packets, CalicoPacket[] parenting, long[] related)
+		{
+			this.kind = kind;
+			this.packets = export(packets);
+			this.parenting = export(parenting);
+			this.related = related==null ? NO_UUIDS : related;
+		}
+
+		private static byte[][] export(CalicoPacket[] packets)
+		{
+			if(packets==null)
+			{
+				return new byte[0][];
+			}
+			byte[][] bytes = new byte[packets.length][];
+			for(int i=0;i<packets.length;i++)
+			{
+				bytes[i] = packets[i].export();
+			}
+			return bytes;
+		}
+
+		boolean sameAs(Element other)
+		{
+			return other!=null && this.kind==other.kind
+				&& Arrays.deepEquals(this.packets, other.packets)
+				&& Arrays.deepEquals(this.parenting, other.parenting);
+		}
+
+		long size()
+		{
+			long size = 0L;
+			for(int i=0;i<this.packets.length;i++)
+			{
+				size = size + this.packets[i].length;
+			}
+			for(int i=0;i<this.parenting.length;i++)
+			{
+				size = size + this.parenting[i].length;
+			}
+			return size;
+		}
+	}
+
+	/**
+	 * Everything one snapshot changed. A null before means the element was added, a null
+	 * after means it was removed.
+	 */
+	private static class Edit
+	{
+		final long[] uuids;
+		final Element[] before;
+		final Element[] after;
+
+		Edit(long[] uuids, Element[] before, Element[] after)
+		{
+			this.uuids = uuids;
+			this.before = before;
+			this.after = after;
+		}
+	}
+
+	private final CCanvas canvas;
+
+	// The canvas as of the last snapshot (or the last undo/redo)
+	private Long2ObjectLinkedOpenHashMap<Element> committed = new Long2ObjectLinkedOpenHashMap<Element>();
+
+	// Touched since then
+	private LongLinkedOpenHashSet touched = new LongLinkedOpenHashSet();
+
+	private ObjectArrayList<Edit> edits = new ObjectArrayList<Edit>();
+	// How many of the edits are applied (the rest can be redone)
+	private int index = 0;
+	private int sinceCheckpoint = 0;
+
+	public CCanvasUndoLog(CCanvas canvas)
+	{
+		this.canvas = canvas;
+	}
+
+	/**
+	 * Takes the canvas as it is now as where the history starts (the lock is always there,
+	 * so undoing the first edit to it has something to go back to)
+	 */
+	public void start()
+	{
+		this.committed.clear();
+		this.touched.clear();
+		this.edits.clear();
+		this.index = 0;
+		touch(this.canvas.getUUID());
+		absorb();
+	}
+
+	/**
+	 * Notes that an element (or the canvas lock, for the canvas's own uuid) may have changed
+	 * @param uuid
+	 */
+	public void touch(long uuid)
+	{
+		if(uuid!=0L)
+		{
+			this.touched.add(uuid);
+		}
+	}
+
+	/**
+	 * Notes that everything may have changed (the canvas got cleared, say)
+	 */
+	public void touchAll()
+	{
+		this.touched.addAll(this.committed.keySet());
+	}
+
+	/**
+	 * Records what changed since the last snapshot as one undoable edit, and throws away
+	 * anything that could have been redone
+	 */
+	public void snapshot()
+	{
+		LongLinkedOpenHashSet seen = new LongLinkedOpenHashSet(this.touched);
+		Edit edit = diff(this.touched.toLongArray(), seen);
+		this.touched.clear();
+
+		if(++this.sinceCheckpoint >= Math.max(1, COptions.canvas.undo_checkpoint_interval))
+		{
+			// Whatever else differs changed without the canvas hearing about it, so it goes in
+			// as an edit of its own ahead of this one rather than being undone along with it
+			this.sinceCheckpoint = 0;
+			LongArrayList missed = new LongArrayList();
+			addUnseen(missed, seen, this.committed.keySet().toLongArray());
+			addUnseen(missed, seen, new long[]{this.canvas.getUUID()});
+			addUnseen(missed, seen, this.canvas.getChildGroups());
+			addUnseen(missed, seen, this.canvas.getChildArrows());
+			addUnseen(missed, seen, this.canvas.getChildConnectors());
+			addUnseen(missed, seen, this.canvas.getChildStrokes());
+			Edit extra = diff(missed.toLongArray(), seen);
+			if(extra.uuids.length>0)
+			{
+				record(extra);
+			}
+		}
+
+		record(edit);
+	}
+
+	private static void addUnseen(LongArrayList list, LongLinkedOpenHashSet seen, long[] uuids)
+	{
+		for(int i=0;i<uuids.length;i++)
+		{
+			if(seen.add(uuids[i]))
+			{
+				list.add(uuids[i]);
+			}
+		}
+	}
+
+	/**
+	 * Compares the elements (then the groups listing them, which don't need their own groups
+	 * looked at) with what was committed, and commits them as they are now
+	 * @param work
+	 * @param seen uuids already looked at, these are added to it
+	 * @return what changed
+	 */
+	private Edit diff(long[] work, LongLinkedOpenHashSet seen)
+	{
+		LongArrayList uuids = new LongArrayList();
+		ObjectArrayList<Element> before = new ObjectArrayList<Element>();
+		ObjectArrayList<Element> after = new ObjectArrayList<Element>();
+
+		LongArrayList related = new LongArrayList();
+		for(int pass=0;pass<2;pass++)
+		{
+			for(int i=0;i<work.length;i++)
+			{
+				long uuid = work[i];
+				Element was = this.committed.get(uuid);
+				Element now = this.canvas.getUndoElement(uuid);
+				if(pass==0)
+				{
+					addRelated(related, seen, was);
+					addRelated(related, seen, now);
+				}
+				if(was==null ? now==null : was.sameAs(now))
+				{
+					continue;
+				}
+				uuids.add(uuid);
+				before.add(was);
+				after.add(now);
+				put(uuid, now);
+			}
+			work = related.toLongArray();
+		}
+		return new Edit(uuids.toLongArray(), before.toArray(new Element[before.size()]), after.toArray(new Element[after.size()]));
+	}
+
+	/**
+	 * Adds an edit as the latest, throwing away anything that could have been redone
+	 * @param edit
+	 */
+	private void record(Edit edit)
+	{
+		if(this.index < this.edits.size())
+		{
+			this.edits.removeElements(this.index, this.edits.size());
+		}
+		this.edits.add(edit);
+		while(this.edits.size() > Math.max(0, COptions.canvas.max_snapshots - 1))
+		{
+			this.edits.remove(0);
+		}
+		this.index = this.edits.size();
+	}
+
+	private static void addRelated(LongArrayList related, LongLinkedOpenHashSet seen, Element element)
+	{
+		if(element==null)
+		{
+			return;
+		}
+		for(int i=0;i<element.related.length;i++)
+		{
+			if(element.related[i]!=0L && seen.add(element.related[i]))
+			{
+				related.add(element.related[i]);
+			}
+		}
+	}
+
+	private void put(long uuid, Element element)
+	{
+		if(element==null)
+		{
+			this.committed.remove(uuid);
+		}
+		else
+		{
+			this.committed.put(uuid, element);
+		}
+	}
+
+	public boolean canUndo()
+	{
+		return this.index > 0;
+	}
+
+	public boolean canRedo()
+	{
+		return this.index < this.edits.size();
+	}
+
+	/**
+	 * Steps back one edit
+	 * @return the packets that take the canvas back, or null if there is nothing to undo
+	 */
+	public CalicoPacket[] undo()
+	{
+		if(!canUndo())
+		{
+			return null;
+		}
+		Edit edit = this.edits.get(--this.index);
+		return step(edit.uuids, edit.before);
+	}
+
+	/**
+	 * Steps forward one edit
+	 * @return the packets that take the canvas forward, or null if there is nothing to redo
+	 */
+	public CalicoPacket[] redo()
+	{
+		if(!canRedo())
+		{
+			return null;
+		}
+		Edit edit = this.edits.get(this.index++);
+		return step(edit.uuids, edit.after);
+	}
+
+	/**
+	 * Takes whatever was touched as it is now, without making an edit of it. Called once an
+	 * undo or redo has been applied to the canvas, since applying it touches things (and may
+	 * tidy some up, like temp scraps).
+	 */
+	public void absorb()
+	{
+		long[] work = this.touched.toLongArray();
+		this.touched.clear();
+		for(int i=0;i<work.length;i++)
+		{
+			put(work[i], this.canvas.getUndoElement(work[i]));
+		}
+	}
+
+	/**
+	 * Sets the given elements to how they should be, and works out the packets that get the
+	 * canvas there: deletes for whatever is going or changing, then loads for whatever is
+	 * coming back, in the same order a CANVAS_LOAD would have them. Deleting a group takes its
+	 * children with it, so those are loaded again too, and the groups listing anything that
+	 * was reloaded get their children set again so nothing ends up out of order.
+	 */
+	private CalicoPacket[] step(long[] uuids, Element[] target)
+	{
+		LongLinkedOpenHashSet reload = new LongLinkedOpenHashSet(uuids);
+		for(int i=0;i<uuids.length;i++)
+		{
+			Element current = this.committed.get(uuids[i]);
+			if(current!=null && current.kind==GROUP)
+			{
+				addChildren(reload, uuids[i]);
+			}
+		}
+		long[] order = reload.toLongArray();
+
+		ObjectArrayList<CalicoPacket> packets = new ObjectArrayList<CalicoPacket>();
+
+		// Deletes, children before the groups they are in
+		LongLinkedOpenHashSet parents = new LongLinkedOpenHashSet();
+		addDeletes(packets, order, STROKE, NetworkCommand.STROKE_DELETE, parents);
+		addDeletes(packets, order, CONNECTOR, NetworkCommand.CONNECTOR_DELETE, parents);
+		addDeletes(packets, order, ARROW, NetworkCommand.ARROW_DELETE, parents);
+		long[] reversed = new long[order.length];
+		for(int i=0;i<order.length;i++)
+		{
+			reversed[i] = order[order.length - 1 - i];
+		}
+		addDeletes(packets, reversed, GROUP, NetworkCommand.GROUP_DELETE, parents);
+
+		for(int i=0;i<uuids.length;i++)
+		{
+			put(uuids[i], target[i]);
+		}
+
+		// Loads, with the children of every group involved set once all the groups are there
+		for(int i=0;i<order.length;i++)
+		{
+			Element element = this.committed.get(order[i]);
+			if(element!=null)
+			{
+				parents.add(order[i]);
+				addParents(parents, element);
+			}
+		}
+		addLoads(packets, order, LOCK);
+		addLoads(packets, order, GROUP);
+		LongIterator it = parents.iterator();
+		while(it.hasNext())
+		{
+			Element group = this.committed.get(it.nextLong());
+			if(group!=null && group.kind==GROUP)
+			{
+				addPackets(packets, group.parenting);
+			}
+		}
+		addLoads(packets, order, ARROW);
+		addLoads(packets, order, CONNECTOR);
+		addLoads(packets, order, STROKE);
+
+		return packets.toArray(new CalicoPacket[packets.size()]);
+	}
+
+	// Everything under a group on the canvas right now
+	private void addChildren(LongLinkedOpenHashSet reload, long group)
+	{
+		long[] children = this.canvas.getUndoChildren(group);
+		for(int i=0;i<children.length;i++)
+		{
+			if(reload.add(children[i]) && this.committed.containsKey(children[i]) && this.committed.get(children[i]).kind==GROUP)
+			{
+				addChildren(reload, children[i]);
+			}
+		}
+	}
+
+	private void addDeletes(ObjectArrayList<CalicoPacket> packets, long[] uuids, byte kind, int command, LongLinkedOpenHashSet parents)
+	{
+		for(int i=0;i<uuids.length;i++)
+		{
+			Element element = this.committed.get(uuids[i]);
+			if(element!=null && element.kind==kind)
+			{
+				packets.add(PacketBuilder.command(command).putLong(uuids[i]).build());
+				addParents(parents, element);
+			}
+		}
+	}
+
+	private void addLoads(ObjectArrayList<CalicoPacket> packets, long[] uuids, byte kind)
+	{
+		for(int i=0;i<uuids.length;i++)
+		{
+			Element element = this.committed.get(uuids[i]);
+			if(element!=null && element.kind==kind)
+			{
+				addPackets(packets, element.packets);
+			}
+		}
+	}
+
+	private static void addParents(LongLinkedOpenHashSet parents, Element element)
+	{
+		for(int i=0;i<element.related.length;i++)
+		{
+			if(element.related[i]!=0L)
+			{
+				parents.add(element.related[i]);
+			}
+		}
+	}
+
+	private static void addPackets(ObjectArrayList<CalicoPacket> packets, byte[][] bytes)
+	{
+		for(int i=0;i<bytes.length;i++)
+		{
+			packets.add(new CalicoPacket(bytes[i]));
+		}
+	}
+
+	/**
+	 * @return how many edits are kept (undoable and redoable)
+	 */
+	public int getEditCount()
+	{
+		return this.edits.size();
+	}
+
+	/**
+	 * @return the bytes of packets held by the edits (not counting the committed canvas)
+	 */
+	public long getEditBytes()
+	{
+		long size = 0L;
+		for(int e=0;e<this.edits.size();e++)
+		{
+			Edit edit = this.edits.get(e);
+			for(int i=0;i<edit.uuids.length;i++)
+			{
+				size = size + (edit.before[i]==null ? 0L : edit.before[i].size()) + (edit.after[i]==null ? 0L : edit.after[i].size());
+			}
+		}
+		return size;
+	}
+}
@@ -135,6 +135,7 @@ public class CConnector extends PComposite implements Composable{
 	{
 		orthogonalDistance = new double[]{0.0, 0.0};
 		travelDistance = new double[]{0.0, 1.0};
+		signatureChanged();
 	}
 	
 	public void savePosition(int anchorType)
@@ -196,6 +197,7 @@ public class CConnector extends PComposite implements Composable{
 		case TYPE_TAIL: anchorTailUUID = uuid;
 			break;
 		}
+		signatureChanged();
 	}
 	
 	public long getAnchorUUID(int anchorType)
@@ -221,6 +223,7 @@ public class CConnector extends PComposite implements Composable{
 			break;
 
 		}
+		signatureChanged();
 	}
 	
 	public Point getAnchorPoint(int anchorType)
@@ -277,6 +280,7 @@ public class CConnector extends PComposite implements Composable{
 		{
 			pointTail.setLocation(pointTail.x + deltaX, pointTail.y + deltaY);
 		}
+		signatureChanged();
 	}
 	
 	public void moveAnchor(int type, int deltaX, int deltaY)
@@ -289,6 +293,7 @@ public class CConnector extends PComposite implements Composable{
 		{
 			pointTail.setLocation(pointTail.x + deltaX, pointTail.y + deltaY);
 		}
+		signatureChanged();
 	}
 
 	
@@ -376,6 +381,16 @@ public class CConnector extends PComposite implements Composable{
 		return getUpdatePackets(this.uuid, this.canvasUID);
 	}	
 	
+	/**
+	 * Keeps the canvas's running signature up to date
+	 */
+	private void signatureChanged()
+	{
+		if (this.pointHead == null || this.orthogonalDistance == null)
+			return;
+		CCanvasController.no_notify_update_signature(this.canvasUID, this.uuid, get_signature());
+	}
+	
 	public int get_signature() {
 
 		int sig = (int) (this.orthogonalDistance.length + pointHead.x + pointHead.y + anchorTailUUID);
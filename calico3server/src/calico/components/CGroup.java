@@ -13,6 +13,7 @@ import calico.controllers.CGroupController;
 import calico.controllers.CStrokeController;
 import calico.utils.CalicoUtils;
 import calico.utils.Geometry;
+import calico.utils.PathGeometry;
 import calico.uuid.*;
 
 import java.util.*;
@@ -54,6 +55,9 @@ public class CGroup {
 
 //	private GeneralPath smoothedPath;
 	private GeneralPath pathReferenceShadow;	//this shadows the path reference attribute on the client side
+	
+	// pathReferenceShadow read into arrays, made when first needed (see getGeometry())
+	private PathGeometry geometry = null;
 	protected double scaleX = 1.0d, scaleY = 1.0d;
 	protected double rotation = 0.0d;
 
@@ -63,17 +67,17 @@ public class CGroup {
 	protected double groupArea = 0.0;
 
 	// These are all the child groups
-	protected LongArraySet childGroups = new LongArraySet();
+	protected LongLinkedOpenHashSet childGroups = new LongLinkedOpenHashSet();
 
 	// the child BGElements, this ARE NOT bgelements that are in child groups
-	protected LongArraySet childStrokes = new LongArraySet();
+	protected LongLinkedOpenHashSet childStrokes = new LongLinkedOpenHashSet();
 	
-	protected LongArraySet childConnectors = new LongArraySet();
+	protected LongLinkedOpenHashSet childConnectors = new LongLinkedOpenHashSet();
 
 	protected boolean isDeleted = false;
 
 	// list of arrows
-	protected LongArraySet childArrows = new LongArraySet();
+	protected LongLinkedOpenHashSet childArrows = new LongLinkedOpenHashSet();
 
 	protected String text = "";
 	private boolean textSet = false;
@@ -112,7 +116,7 @@ public class CGroup {
 		pack.putInt(Arrays.hashCode(getChildArrows()));
 		pack.putInt(Arrays.hashCode(getChildConnectors()));
 
-		return pack.getBuffer();
+		return pack.detachBuffer();
 	}
 
 	public boolean isPermanent() {
@@ -121,15 +125,18 @@ public class CGroup {
 
 	public void setPermanent(boolean perm) {
 		this.isPermanent = perm;
+		signatureChanged();
 	}
 
 	public void setText(String t) {
 		this.text = t;
 		this.textSet = true;
+		signatureChanged();
 	}
 
 	public void addPoint(int x, int y) {
 		this.points.addPoint(x, y);
+		signatureChanged();
 	}
 
 	/**
@@ -203,6 +210,22 @@ public class CGroup {
 		return pathReferenceShadow;
 	}
 	
+	/**
+	 * The path's vertices, bounds and segments, kept until the path changes. Use this rather
+	 * than flattening getPathReference() for containment checks.
+	 * @return null if there is no path yet
+	 */
+	public PathGeometry getGeometry()
+	{
+		PathGeometry g = this.geometry;
+		if (g == null && pathReferenceShadow != null)
+		{
+			g = PathGeometry.of(pathReferenceShadow);
+			this.geometry = g;
+		}
+		return g;
+	}
+	
 	public Polygon getRawPolygon() {
 		return points;
 	}
@@ -229,6 +252,7 @@ public class CGroup {
 		
 		logger.trace("Changing parent for " + uuid + ": " + this.puid + " -> " + u);
 		this.puid = u;
+		CCanvasController.no_notify_update_parent(this.cuid, this.uuid, u);
 		if (CGroupController.exists(u))
 		{
 			CGroup parent = CGroupController.groups.get(u);
@@ -401,6 +425,7 @@ public class CGroup {
 		
 //		smoothedPath = ;
 		pathReferenceShadow = Geometry.getBezieredPoly(points);
+		geometry = null;
 
 		// Notify the clients of the perm status of this group.
 		setPermanent(isPermanent());
@@ -557,8 +582,9 @@ public class CGroup {
 	}
 	
 	public boolean containsPoint(int x, int y) {
-		if (getPathReference() != null)
-			return getPathReference().contains(x, y);
+		PathGeometry containerGroup = getGeometry();
+		if (containerGroup != null)
+			return containerGroup.contains(x, y);
 		else
 			return false;
 	}
@@ -567,18 +593,31 @@ public class CGroup {
 	{
 		if (shape == null)
 			return false;
-		Polygon polygon = Geometry.getPolyFromPath(shape.getPathIterator(null));
-		GeneralPath containerGroup = getPathReference();
+		return containsShape(PathGeometry.of(shape));
+	}
+
+	/**
+	 * Same as containsShape(Shape), for a shape that is already flattened (another
+	 * element's getGeometry(), say)
+	 * @param shape
+	 * @return true if at least 90% of the shape's points are inside this group
+	 */
+	public boolean containsShape(PathGeometry shape)
+	{
+		if (shape == null)
+			return false;
+		PathGeometry containerGroup = getGeometry();
 		if (containerGroup == null)
 			return false;
+		int npoints = shape.getNumPoints();
 		int totalNotContained = 0;
-		for(int i=0;i<polygon.npoints;i++)
+		for(int i=0;i<npoints;i++)
 		{
-			if (!containerGroup.contains(new Point(polygon.xpoints[i], polygon.ypoints[i])))
+			if (!containerGroup.contains(shape.getX(i), shape.getY(i)))
 			{
 				totalNotContained++;
 			}
-			if (totalNotContained > polygon.npoints*.1)
+			if (totalNotContained > npoints*.1)
 				return false;
 		}
 		return true;
@@ -687,7 +726,7 @@ public class CGroup {
 		double smallestGroupArea = Double.MAX_VALUE;
 
 		// Now, we check all other groups.
-		long[] grouparr = CCanvasController.canvases.get(cuid).getChildGroups();
+		long[] grouparr = CCanvasController.canvases.get(cuid).getChildGroupsNear(getPathReference());
 		if (grouparr.length > 0) {
 			for (int i = 0; i < grouparr.length; i++) {
 				if (grouparr[i] != this.uuid
@@ -874,14 +913,15 @@ public class CGroup {
 
 	public void calculateParenting(boolean includeStrokes, int x, int y) {
 
-		// Check the bounds for the other items on the canvas.
+		// Check the bounds for the other items on the canvas. Only the ones
+		// whose bounds overlap ours can end up inside us.
 
 		long[] grouparr = CCanvasController.canvases.get(this.cuid)
-				.getChildGroups();
+				.getChildGroupsNear(getPathReference());
 		long[] bgearr = CCanvasController.canvases.get(this.cuid)
-				.getChildStrokes();
+				.getChildStrokesNear(getPathReference());
 		long[] ararr = CCanvasController.canvases.get(this.cuid)
-				.getChildArrows();
+				.getChildArrowsNear(getPathReference());
 
 		// Check to see if any groups are inside of this.
 		if (grouparr.length > 0) {
@@ -1007,6 +1047,7 @@ public class CGroup {
 
 		// Area
 		this.groupArea = PolygonUtils.PolygonArea(areaTemp);
+		signatureChanged();
 	}
 
 	private Rectangle getTextBounds(String t) {
@@ -1020,22 +1061,22 @@ public class CGroup {
 	
 	public void clearChildGroups() {
 		this.childGroups.clear();
-		this.childGroups = new LongArraySet();
+		this.childGroups = new LongLinkedOpenHashSet();
 	}
 
 	public void clearChildStrokes() {
 		this.childStrokes.clear();
-		this.childStrokes = new LongArraySet();
+		this.childStrokes = new LongLinkedOpenHashSet();
 	}
 
 	public void clearChildArrows() {
 		this.childArrows.clear();
-		this.childArrows = new LongArraySet();
+		this.childArrows = new LongLinkedOpenHashSet();
 	}
 	
 	public void clearChildConnectors() {
 		this.childConnectors.clear();
-		this.childConnectors = new LongArraySet();
+		this.childConnectors = new LongLinkedOpenHashSet();
 	}
 
 	// TODO: Finish this
@@ -1175,10 +1216,12 @@ public class CGroup {
 		this.groupArea = PolygonUtils.PolygonArea(this.points);
 //		smoothedPath = 
 		pathReferenceShadow = Geometry.getBezieredPoly(points);
+		geometry = null;
 		
 		scaleX = 1.0d;
 		scaleY = 1.0d;
 		rotation = 0.0d;
+		signatureChanged();
 	}
 	
 	public void printBounds()
@@ -1196,7 +1239,9 @@ public class CGroup {
 		PAffineTransform piccoloTextTransform = getPTransform();
 		GeneralPath p = (GeneralPath) Geometry.getBezieredPoly(points).createTransformedShape(piccoloTextTransform);
 		pathReferenceShadow = p;
-		this.groupArea = PolygonUtils.PolygonArea(Geometry.getPolyFromPath(p.getPathIterator(null)));
+		geometry = null;
+		this.groupArea = PolygonUtils.PolygonArea(getGeometry().toPolygon());
+		signatureChanged();
 	}
 
 	public PAffineTransform getPTransform() {
@@ -1452,9 +1497,10 @@ public class CGroup {
 	
 	public boolean canParent(Shape s, double area)
 	{
+		PathGeometry geometry = PathGeometry.of(s);
 		if (area < -1)
-			area = PolygonUtils.PolygonArea(Geometry.getPolyFromPath(s.getPathIterator(null)));
-		if (this.containsShape(s) && this.groupArea > area)
+			area = PolygonUtils.PolygonArea(geometry.toPolygon());
+		if (this.containsShape(geometry) && this.groupArea > area)
 			return true;
 		
 		return false;
@@ -1477,6 +1523,17 @@ public class CGroup {
 			CGroupController.groups.get(puid).recomputeValues();
 	}
 
+	/**
+	 * Keeps the canvas's running signature up to date, call this after anything
+	 * get_signature() uses changes
+	 */
+	private void signatureChanged() {
+		// Deleted groups have no points, and are already off the canvas
+		if (this.points == null)
+			return;
+		CCanvasController.no_notify_update_signature(this.cuid, this.uuid, get_signature());
+	}
+
 	public int get_signature() {
 		int sig = this.points.npoints + this.points.xpoints[0]
 		      + this.points.ypoints[0] + this.text.length() + (int)(this.rotation*10) + (int)(this.scaleX*10) + (int)(this.scaleY*10);
@@ -33,6 +33,9 @@ public class CStroke
 	private Polygon points = new Polygon();
 	private GeneralPath smoothedPath;
 	private GeneralPath pathReferenceShadow;	//this shadows the path reference attribute on the client side
+	
+	// pathReferenceShadow read into arrays, made when first needed (see getGeometry())
+	private PathGeometry geometry = null;
 	protected double scaleX = 1.0d, scaleY = 1.0d;
 	protected double rotation = 0.0d;
 	
@@ -91,7 +94,7 @@ public class CStroke
 		pack.putInt(Arrays.hashCode(this.points.ypoints) );
 		pack.putInt(color.getRGB());
 		pack.putFloat(thickness);
-		return pack.getBuffer();
+		return pack.detachBuffer();
 	}
 	
 	
@@ -106,6 +109,21 @@ public class CStroke
 		return pathReferenceShadow;
 	}
 	
+	/**
+	 * The path's vertices, bounds and segments, kept until the path changes
+	 * @return null if there is no path yet
+	 */
+	public PathGeometry getGeometry()
+	{
+		PathGeometry g = this.geometry;
+		if (g == null && pathReferenceShadow != null)
+		{
+			g = PathGeometry.of(pathReferenceShadow);
+			this.geometry = g;
+		}
+		return g;
+	}
+	
 	/**
 	 * Has this been finished (Should we discard anymore BGE_FInished packets)
 	 * @return
@@ -118,6 +136,7 @@ public class CStroke
 	public void forceSetFinished(boolean fin)
 	{
 		this.finished = fin;
+		signatureChanged();
 	}
 	
 	
@@ -125,10 +144,11 @@ public class CStroke
 	{
 		logger.trace("Changing parent for " + uuid + ": " + this.parent + " -> " + newParentUUID);
 		this.parent = newParentUUID;
+		CCanvasController.no_notify_update_parent(this.canvasuid, this.uuid, newParentUUID);
 	}
 
 	public Polygon getPolygon() {
-		return Geometry.getPolyFromPath(pathReferenceShadow.getPathIterator(null));
+		return getGeometry().toPolygon();
 	}
 	
 	public Polygon getRawPolygon() {
@@ -137,11 +157,10 @@ public class CStroke
 	
 	public boolean isContainedInPath(GeneralPath path)
 	{
-		Polygon p = Geometry.getPolyFromPath(getPathReference().getPathIterator(null));
-		for(int i=0;i<p.npoints;i++)
+		PathGeometry p = getGeometry();
+		for(int i=0;i<p.getNumPoints();i++)
 		{
-			Point point = new Point(p.xpoints[i], p.ypoints[i]);
-			if(!path.contains(point))
+			if(!path.contains(p.getX(i), p.getY(i)))
 			{
 				return false;
 			}
@@ -316,6 +335,13 @@ public class CStroke
 			smoothedPath.lineTo(x, y);
 			pathReferenceShadow.lineTo(x,y);
 		}
+		geometry = null;
+		
+		// Unfinished strokes don't count towards the signature
+		if(this.finished)
+		{
+			signatureChanged();
+		}
 	}
 	
 	public void batch_append(int[] x, int[] y)
@@ -324,6 +350,10 @@ public class CStroke
 		{
 			points.addPoint(x[i], y[i]);
 		}
+		if(this.finished)
+		{
+			signatureChanged();
+		}
 	}
 
 	/**
@@ -342,6 +372,7 @@ public class CStroke
 		
 		smoothedPath = getBezieredPoly(points);
 		pathReferenceShadow = smoothedPath;
+		geometry = null;
 		applyAffineTransform();
 //		pointsOriginal = new Polygon(points.xpoints, points.ypoints, points.npoints);
 	}//
@@ -356,7 +387,7 @@ public class CStroke
 		double smallestArea = Double.MAX_VALUE;
 		long smallestGroupUUID = 0L;
 		
-		long[] groupList = CCanvasController.canvases.get(this.canvasuid).getChildGroups();
+		long[] groupList = CCanvasController.canvases.get(this.canvasuid).getChildGroupsNear(getPathReference());
 		
 		if(groupList.length>0)
 		{
@@ -509,7 +540,9 @@ public class CStroke
 		piccoloTextTransform.rotate(rotation, midPoint.getX(), midPoint.getY());
 		piccoloTextTransform.scaleAboutPoint(scaleX, midPoint.getX(), midPoint.getY());
 		GeneralPath p = (GeneralPath) getBezieredPoly(points).createTransformedShape(piccoloTextTransform);
-		pathReferenceShadow = p;		
+		pathReferenceShadow = p;
+		geometry = null;
+		signatureChanged();
 	}
 	
 	public PAffineTransform getPTransform() {
@@ -561,6 +594,15 @@ public class CStroke
 		return scaleX;
 	}
 	
+	/**
+	 * Keeps the canvas's running signature up to date, call this after anything
+	 * get_signature() uses changes
+	 */
+	private void signatureChanged()
+	{
+		CCanvasController.no_notify_update_signature(this.canvasuid, this.uuid, get_signature());
+	}
+	
 	public int get_signature()
 	{
 		if (!finished)
@@ -11,6 +11,7 @@ import java.util.Map.Entry;
 
 import calico.components.CConnector;
 import calico.components.composable.connectors.ArrowheadElement;
+import calico.controllers.CCanvasController;
 import calico.components.composable.connectors.CardinalityElement;
 import calico.components.composable.connectors.ColorElement;
 import calico.components.composable.connectors.HighlightElement;
@@ -43,6 +44,7 @@ public class ComposableElementController {
 		Long2ReferenceAVLTreeMap<ComposableElement> componentElements = elementList.get(cuuid);
 		componentElements.put(euuid, e);
 		e.applyElement();
+		CCanvasController.touch(cuuid);
 	}
 	
 	/**
@@ -67,6 +69,7 @@ public class ComposableElementController {
 			{
 				elementList.remove(cuuid);
 			}
+			CCanvasController.touch(cuuid);
 		}
 	}
 	
@@ -86,6 +89,7 @@ public class ComposableElementController {
 		}
 		
 		elementList.remove(cuuid);
+		CCanvasController.touch(cuuid);
 	}
 	
 	/**
@@ -22,6 +22,7 @@ import calico.networking.netstuff.ByteUtils;
 import calico.networking.netstuff.CalicoPacket;
 import calico.networking.netstuff.NetworkCommand;
 import calico.utils.Geometry;
+import calico.utils.PathGeometry;
 
 public abstract class CGroupDecorator extends CGroup {
 
@@ -90,6 +91,12 @@ public abstract class CGroupDecorator extends CGroup {
 			return null;
 		return getDecoratedGroup().getPathReference();
 	}
+	
+	public PathGeometry getGeometry() {
+		if (getDecoratedGroup() == null)
+			return null;
+		return getDecoratedGroup().getGeometry();
+	}
 
 	public Polygon getRawPolygon() {
 		return getDecoratedGroup().getRawPolygon();
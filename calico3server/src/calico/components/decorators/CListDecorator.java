@@ -17,6 +17,7 @@ import calico.controllers.CGroupDecoratorController;
 import calico.controllers.CStrokeController;
 import calico.networking.netstuff.CalicoPacket;
 import calico.networking.netstuff.NetworkCommand;
+import calico.utils.PathGeometry;
 
 public class CListDecorator extends CGroupDecorator {
 	
@@ -101,6 +102,14 @@ public class CListDecorator extends CGroupDecorator {
 		return this.containsPoint((int)shape.getBounds2D().getCenterX(), (int)shape.getBounds2D().getCenterY());
 	}
 	
+	@Override
+	public boolean containsShape(PathGeometry shape)
+	{
+		if (shape == null)
+			return false;
+		return this.containsPoint((int)shape.getBounds2D().getCenterX(), (int)shape.getBounds2D().getCenterY());
+	}
+	
 	@Override
 	public void recomputeBounds()
 	{
@@ -14,7 +14,7 @@ import it.unimi.dsi.fastutil.longs.*;
 
 public class CArrowController
 {
-	public static Long2ReferenceArrayMap<CArrow> arrows = new Long2ReferenceArrayMap<CArrow>();
+	public static ArenaRegistry<CArrow> arrows = new ArenaRegistry<CArrow>(CCanvasArena.ARROWS);
 	
 	
 	public static void setup()
@@ -29,12 +29,10 @@ public class CArrowController
 	
 	public static void no_notify_start(long uuid, long cuid, int type, Color color, AnchorPoint pointa, AnchorPoint pointb)
 	{
-		CCanvasController.set_arrow_canvas(uuid, cuid);
-		
 		if (exists(uuid))
 			no_notify_delete(uuid);
 		// create the object
-		arrows.put(uuid, new CArrow(uuid, cuid, type, color, pointa, pointb));
+		arrows.put(cuid, uuid, new CArrow(uuid, cuid, type, color, pointa, pointb));
 
 		// Add to the canvas
 		CCanvasController.no_notify_add_child_arrow(cuid, uuid);
@@ -95,7 +93,7 @@ public class CArrowController
 		no_notify_delete(uuid);
 		
 		// Notify
-		ClientManager.send(CalicoPacket.getPacket( NetworkCommand.ARROW_DELETE, uuid ));
+		ClientManager.send(PacketBuilder.command(NetworkCommand.ARROW_DELETE).putLong(uuid).build());
 	}
 	
 	
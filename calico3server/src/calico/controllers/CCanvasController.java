@@ -3,9 +3,13 @@ package calico.controllers;
 import calico.*;
 import calico.clients.*;
 import calico.components.*;
+import calico.components.composable.ComposableElementController;
+import calico.events.CalicoEventHandler;
 import calico.networking.*;
 import calico.networking.netstuff.*;
 import calico.utils.CalicoUtils;
+import calico.utils.PathGeometry;
+import calico.utils.UUIDRegistry;
 import calico.uuid.*;
 
 import java.awt.*;
@@ -21,56 +25,33 @@ public class CCanvasController
 {
 	public static Logger logger = Logger.getLogger(CCanvasController.class.getName());
 	
-	public static Long2ReferenceArrayMap<CCanvas> canvases = new Long2ReferenceArrayMap<CCanvas>();
-	private static Long2LongAVLTreeMap arrow_canvas = new Long2LongAVLTreeMap();
-	private static Long2LongAVLTreeMap connector_canvas = new Long2LongAVLTreeMap();
-	private static Long2LongAVLTreeMap group_canvas = new Long2LongAVLTreeMap();
-	private static Long2LongAVLTreeMap stroke_canvas = new Long2LongAVLTreeMap();
-	private static Long2LongAVLTreeMap list_canvas = new Long2LongAVLTreeMap();
+	public static UUIDRegistry<CCanvas> canvases = new UUIDRegistry<CCanvas>();
 	
 	public static void setup()
 	{
-		arrow_canvas.defaultReturnValue(0L);
-		group_canvas.defaultReturnValue(0L);
-		stroke_canvas.defaultReturnValue(0L);
-		connector_canvas.defaultReturnValue(0L);
 	}
 	
-	public static void set_arrow_canvas(long uuid, long cuid)
-	{
-		arrow_canvas.put(uuid, cuid);
-	}
-	public static void set_connector_canvas(long uuid, long cuid)
-	{
-		connector_canvas.put(uuid, cuid);
-	}
-	public static void set_stroke_canvas(long uuid, long cuid)
-	{
-		stroke_canvas.put(uuid, cuid);
-	}
-	public static void set_group_canvas(long uuid, long cuid)
-	{
-		group_canvas.put(uuid, cuid);
-	}
+	// Which canvas an element is on comes from the arena index (see CCanvasArena). Once an
+	// element is deleted it isn't on any canvas, so look the canvas up before deleting.
 	public static long get_group_canvas(long uuid)
 	{
-		return group_canvas.get(uuid);
+		return CCanvasArena.canvasOf(uuid);
 	}
 	public static long get_arrow_canvas(long uuid)
 	{
-		return arrow_canvas.get(uuid);
+		return CCanvasArena.canvasOf(uuid);
 	}
 	public static long get_connector_canvas(long uuid)
 	{
-		return connector_canvas.get(uuid);
+		return CCanvasArena.canvasOf(uuid);
 	}
 	public static long get_stroke_canvas(long uuid)
 	{
-		return stroke_canvas.get(uuid);
+		return CCanvasArena.canvasOf(uuid);
 	}
 	public static long get_list_canvas(long uuid)
 	{
-		return list_canvas.get(uuid);
+		return CCanvasArena.canvasOf(uuid);
 	}	
 	
 	
@@ -154,6 +135,36 @@ public class CCanvasController
 		}
 	}
 	
+	/**
+	 * Tells the canvas that one of its children's signatures changed
+	 * @param uuid the canvas
+	 * @param cuuid the child
+	 * @param sig its new signature
+	 */
+	public static void no_notify_update_signature(long uuid, long cuuid, int sig)
+	{
+		CCanvas canvas = canvases.get(uuid);
+		if (canvas != null)
+		{
+			canvas.updateSignature(cuuid, sig);
+		}
+	}
+	
+	/**
+	 * Tells the canvas that one of its children was put in a different group
+	 * @param uuid the canvas
+	 * @param cuuid the child
+	 * @param puid the group, or 0
+	 */
+	public static void no_notify_update_parent(long uuid, long cuuid, long puid)
+	{
+		CCanvas canvas = canvases.get(uuid);
+		if (canvas != null)
+		{
+			canvas.updateParent(cuuid, puid);
+		}
+	}
+	
 	public static void no_notify_add_child_list(long uuid, long luuid)
 	{
 		CCanvas canvas = canvases.get(uuid);
@@ -175,7 +186,8 @@ public class CCanvasController
 	
 	public static long get_smallest_containing_group_for_path(long canvas_uuid, GeneralPath path)
 	{
-		long[] uuids = canvases.get(canvas_uuid).getChildGroups();
+		long[] uuids = canvases.get(canvas_uuid).getChildGroupsNear(path);
+		PathGeometry geometry = PathGeometry.of(path);
 		
 		long group_uuid = 0L;
 		double group_area = Double.MAX_VALUE;
@@ -184,7 +196,7 @@ public class CCanvasController
 		{
 			for(int i=0;i<uuids.length;i++)
 			{
-				if( (CGroupController.groups.get(uuids[i]).getArea()< group_area) && CGroupController.group_contains_shape(uuids[i], path) )
+				if( (CGroupController.groups.get(uuids[i]).getArea()< group_area) && CGroupController.group_contains_shape(uuids[i], geometry) )
 				{
 					group_area =CGroupController.groups.get(uuids[i]).getArea();
 					group_uuid = uuids[i];
@@ -202,9 +214,29 @@ public class CCanvasController
 	 */
 	public static void snapshot(long uuid)
 	{
+		if (!canvases.containsKey(uuid))
+		{
+			return;
+		}
 		canvases.get(uuid).saveCurrentCanvasState();
 	}
 	
+	/**
+	 * Tells the canvas holding an element that it changed, so the next snapshot looks at it
+	 * (for changes that don't go through the canvas, like a connector's composable elements)
+	 * @param uuid the element
+	 */
+	public static void touch(long uuid)
+	{
+		long cuid = CCanvasArena.canvasOf(uuid);
+		
+		if (!canvases.containsKey(cuid))
+		{
+			return;
+		}
+		canvases.get(cuid).touch(uuid);
+	}
+	
 	/**
 	 * Takes a snapshot of the canvas that contains this stroke
 	 * @param uuid The UUID of the Stroke that changed
@@ -217,7 +249,9 @@ public class CCanvasController
 		{
 			return;
 		}
-		canvases.get( cuid ).saveCurrentCanvasState();
+		// The element itself may have changed in ways the canvas didn't hear about
+		canvases.get(cuid).touch(uuid);
+		canvases.get(cuid).saveCurrentCanvasState();
 	}
 	
 	/**
@@ -232,7 +266,8 @@ public class CCanvasController
 		{
 			return;
 		}
-		canvases.get(  get_group_canvas(uuid)  ).saveCurrentCanvasState();
+		canvases.get(cuid).touch(uuid);
+		canvases.get(cuid).saveCurrentCanvasState();
 	}
 	public static void snapshot_arrow(long uuid)
 	{
@@ -242,7 +277,8 @@ public class CCanvasController
 		{
 			return;
 		}
-		canvases.get( get_arrow_canvas(uuid) ).saveCurrentCanvasState();
+		canvases.get(cuid).touch(uuid);
+		canvases.get(cuid).saveCurrentCanvasState();
 	}
 	public static void snapshot_connector(long uuid)
 	{
@@ -252,53 +288,56 @@ public class CCanvasController
 		{
 			return;
 		}
-		canvases.get( get_connector_canvas(uuid) ).saveCurrentCanvasState();
+		canvases.get(cuid).touch(uuid);
+		canvases.get(cuid).saveCurrentCanvasState();
 	}
 	public static void snapshot_list(long uuid)
 	{
-		canvases.get( get_list_canvas(uuid) ).saveCurrentCanvasState();
+		CCanvas canvas = canvases.get( get_list_canvas(uuid) );
+		canvas.touch(uuid);
+		canvas.saveCurrentCanvasState();
 	}
 
 
 	public static void no_notify_clear(long uuid)
 	{
 		// CLEAR IT OUT
-		canvases.get(uuid).resetLock();
-		long[] groups = canvases.get(uuid).getChildGroups();
-		long[] strokes = canvases.get(uuid).getChildStrokes();
-		long[] arrows  = canvases.get(uuid).getChildArrows();
-		long[] connectors = canvases.get(uuid).getChildConnectors();
-		
-		if(strokes.length>0)
-		{
-			for(int i=0;i<strokes.length;i++)
-			{
-				CStrokeController.no_notify_delete(strokes[i]);
-			}
-		}
-		
-		if(arrows.length>0)
-		{
-			for(int i=0;i<arrows.length;i++)
-			{
-				CArrowController.no_notify_delete(arrows[i]);
-			}
-		}
+		CCanvas canvas = canvases.get(uuid);
+		canvas.resetLock();
 		
-		if(groups.length>0)
+		// Everything a delete would tidy up is on this canvas, apart from the connectors' composable elements
+		long[] connectors = canvas.getArena().getUUIDs(CCanvasArena.CONNECTORS);
+		for(int i=0;i<connectors.length;i++)
 		{
-			for(int i=0;i<groups.length;i++)
-			{
-				CGroupController.no_notify_delete(groups[i]);
-			}
+			ComposableElementController.no_notify_removeAllElements(connectors[i]);
 		}
 		
-		if(connectors.length>0)
+		canvas.clearChildren();
+		canvas.getArena().clear();
+	}
+	
+	/**
+	 * Drops a canvas and everything on it
+	 * @param uuid
+	 */
+	public static void no_notify_evict(long uuid)
+	{
+		canvases.remove(uuid);
+		CCanvasArena.evict(uuid);
+		CalicoEventHandler.getInstance().removeCanvasListeners(uuid);
+	}
+	
+	/**
+	 * Drops every canvas and everything on them
+	 */
+	public static void no_notify_evict_all()
+	{
+		long[] cuids = canvases.keySet().toLongArray();
+		canvases.clear();
+		CCanvasArena.evictAll();
+		for(int i=0;i<cuids.length;i++)
 		{
-			for(int i=0;i<connectors.length;i++)
-			{
-				CConnectorController.no_notify_delete(connectors[i]);
-			}
+			CalicoEventHandler.getInstance().removeCanvasListeners(cuids[i]);
 		}
 	}
 	
@@ -316,8 +355,60 @@ public class CCanvasController
 	public static void state_change_complete(long uuid)
 	{	
 		no_notify_state_change_complete(uuid);
-		ClientManager.send(CalicoPacket.getPacket(NetworkCommand.CANVAS_SC_FINISH, uuid));
+		ClientManager.send(PacketBuilder.command(NetworkCommand.CANVAS_SC_FINISH).putLong(uuid).build());
+		
+	}
+	
+	/**
+	 * Takes a canvas to a new state by applying just what changed (deletes and loads, see
+	 * CCanvasUndoLog), rather than clearing and reloading it like CANVAS_LOAD does. The
+	 * packets are replayed with no client, so none of the handlers relay them.
+	 * @param uuid the canvas
+	 * @param packets
+	 * @return the temp scraps that were loaded and dropped again
+	 */
+	public static LongArrayList no_notify_apply_state_change(long uuid, CalicoPacket[] packets)
+	{
+		LongArrayList loaded = new LongArrayList();
+		for(int i=0;i<packets.length;i++)
+		{
+			packets[i].rewind();
+			int comm = packets[i].getInt();
+			if(comm==NetworkCommand.GROUP_LOAD)
+			{
+				loaded.add(packets[i].getLong());
+				packets[i].rewind();
+				packets[i].getInt();
+			}
+			ProcessQueue.receive(comm, null, packets[i]);
+		}
 		
+		//Remove temp scraps after undo/redo
+		LongArrayList dropped = new LongArrayList();
+		for(int i=0;i<loaded.size();i++)
+		{
+			if(CGroupController.exists(loaded.getLong(i)) && !CGroupController.groups.get(loaded.getLong(i)).isPermanent())
+			{
+				CGroupController.no_notify_drop(loaded.getLong(i));
+				dropped.add(loaded.getLong(i));
+			}
+		}
+		return dropped;
+	}
+	
+	public static void apply_state_change(long uuid, CalicoPacket[] packets)
+	{
+		LongArrayList dropped = no_notify_apply_state_change(uuid, packets);
+		no_notify_state_change_complete(uuid);
+		
+		// Everything goes out once, in one run, so clients finish the state change last
+		CalicoPacket[] send = Arrays.copyOf(packets, packets.length + dropped.size() + 1);
+		for(int i=0;i<dropped.size();i++)
+		{
+			send[packets.length + i] = PacketBuilder.command(NetworkCommand.GROUP_DROP).putLong(dropped.getLong(i)).build();
+		}
+		send[send.length - 1] = PacketBuilder.command(NetworkCommand.CANVAS_SC_FINISH).putLong(uuid).build();
+		ClientManager.send_canvas(uuid, send);
 	}
 	
 	// for some damn reason, parenting checks are not working as they should, so this just rechecks parents on everything
@@ -328,6 +419,7 @@ public class CCanvasController
 	
 	public static void copy_canvas(long cuidFrom, long cuidTo){
 		logger.debug("CCanvasController.copy_canvas");
+		CCanvasArena from = canvases.get(cuidFrom).getArena();
 		long[] groups = canvases.get(cuidFrom).getChildGroups();
 		long[] strokes = canvases.get(cuidFrom).getChildStrokes();
 		long[] arrows  = canvases.get(cuidFrom).getChildArrows();
@@ -338,7 +430,7 @@ public class CCanvasController
 		{			
 			for(int i=0;i<groups.length;i++)
 			{
-				CGroup temp = CGroupController.groups.get(groups[i]);
+				CGroup temp = from.get(CCanvasArena.GROUPS, groups[i]);
 				
 				if(temp.getParentUUID()==0l && temp.isPermanent()){
 					long new_uuid = UUIDAllocator.getUUID();
@@ -351,7 +443,7 @@ public class CCanvasController
 		{			
 			for(int i=0;i<strokes.length;i++)
 			{				
-				CStroke temp = CStrokeController.strokes.get(strokes[i]);
+				CStroke temp = from.get(CCanvasArena.STROKES, strokes[i]);
 				if(temp.getParentUUID()==0l){
 					
 					long new_uuid = UUIDAllocator.getUUID();
@@ -363,7 +455,7 @@ public class CCanvasController
 		{			
 			for(int i=0;i<arrows.length;i++)
 			{	
-				CArrow temp = CArrowController.arrows.get(arrows[i]);
+				CArrow temp = from.get(CCanvasArena.ARROWS, arrows[i]);
 				if(temp.getAnchorA().getUUID()==cuidFrom||temp.getAnchorB().getUUID()==cuidFrom||(temp.getAnchorA().getUUID()!=temp.getAnchorB().getUUID())){				
 					long new_uuid = UUIDAllocator.getUUID();
 					AnchorPoint anchorA = temp.getAnchorA().clone();
@@ -389,7 +481,7 @@ public class CCanvasController
 		{			
 			for(int i=0;i<connectors.length;i++)
 			{	
-				CConnector temp = CConnectorController.connectors.get(connectors[i]);				
+				CConnector temp = from.get(CCanvasArena.CONNECTORS, connectors[i]);				
 				long new_uuid = UUIDAllocator.getUUID();
 				
 				if (groupMappings.containsKey(temp.getAnchorUUID(CConnector.TYPE_HEAD)) && 
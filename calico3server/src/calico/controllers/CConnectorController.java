@@ -7,12 +7,13 @@ import java.awt.geom.Line2D;
 import java.awt.geom.Rectangle2D;
 import java.util.ArrayList;
 
-import it.unimi.dsi.fastutil.longs.Long2ReferenceAVLTreeMap;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 
 import org.apache.log4j.Logger;
 
 import calico.clients.ClientManager;
+import calico.components.ArenaRegistry;
+import calico.components.CCanvasArena;
 import calico.components.CConnector;
 import calico.components.CStroke;
 import calico.networking.netstuff.NetworkCommand;
@@ -26,15 +27,19 @@ public class CConnectorController {
 	/**
 	 * This is the database of all the BGElements
 	 */
-	public static Long2ReferenceAVLTreeMap<CConnector> connectors = new Long2ReferenceAVLTreeMap<CConnector>();
+	public static ArenaRegistry<CConnector> connectors = new ArenaRegistry<CConnector>(CCanvasArena.CONNECTORS);
 	
 	public static boolean exists(long uuid)
 	{
 		return connectors.containsKey(uuid);
 	}
 	
-	private static long getConnectorCanvasUUID(long uuid)
+	public static long getConnectorCanvasUUID(long uuid)
 	{
+		if(!exists(uuid))
+		{
+			return 0L;
+		}
 		return connectors.get(uuid).getCanvasUUID();
 	}
 	
@@ -62,7 +67,7 @@ public class CConnectorController {
 			no_notify_delete(uuid);
 		}
 		// add to the DB
-		connectors.put(uuid, new CConnector(uuid, cuid, color, thickness, head, tail, orthogonalDistance, travelDistance, anchorHead, anchorTail));
+		connectors.put(cuid, uuid, new CConnector(uuid, cuid, color, thickness, head, tail, orthogonalDistance, travelDistance, anchorHead, anchorTail));
 		
 		// Add to the canvas
 		CCanvasController.no_notify_add_child_connector(cuid, uuid);
@@ -11,6 +11,7 @@ import calico.networking.*;
 import calico.networking.netstuff.*;
 import calico.utils.CalicoUtils;
 import calico.utils.Geometry;
+import calico.utils.PathGeometry;
 import calico.uuid.*;
 
 import java.awt.*;
@@ -34,7 +35,7 @@ import it.unimi.dsi.fastutil.longs.*;
 
 public class CGroupController
 {
-	public static Long2ReferenceArrayMap<CGroup> groups = new Long2ReferenceArrayMap<CGroup>();
+	public static ArenaRegistry<CGroup> groups = new ArenaRegistry<CGroup>(CCanvasArena.GROUPS);
 
 	static Logger logger = Logger.getLogger(CGroupController.class.getName());
 
@@ -52,15 +53,12 @@ public class CGroupController
 	
 	public static void no_notify_start(final long uuid, final long cuid, final long puid, final boolean isPerm)
 	{
-		// Set the canvas for this group (this is just for lookup, nothing else)
-		CCanvasController.set_group_canvas(uuid, cuid);
-		
 		if(exists(uuid))
 		{
 			no_notify_drop(uuid);
 		}
 		
-		groups.put(uuid, new CGroup(uuid, cuid, puid, isPerm));
+		groups.put(cuid, uuid, new CGroup(uuid, cuid, puid, isPerm));
 		
 		// Add to the canvas
 		CCanvasController.no_notify_add_child_group(cuid, uuid);
@@ -191,7 +189,7 @@ public class CGroupController
 		
 		
 		// Send the finished packet
-		ClientManager.send( CalicoPacket.getPacket(NetworkCommand.GROUP_FINISH, uuid, captureChildren));
+		ClientManager.send( PacketBuilder.command(NetworkCommand.GROUP_FINISH).putLong(uuid).putBoolean(captureChildren).build());
 		if (captureChildren)
 			ClientManager.send( groups.get(uuid).getParentingUpdatePackets() );
 		
@@ -210,7 +208,7 @@ public class CGroupController
 		if(!exists(uuid)){return;}
 		
 		no_notify_delete(uuid);
-		ClientManager.send(CalicoPacket.getPacket(NetworkCommand.GROUP_DELETE, uuid));
+		ClientManager.send(PacketBuilder.command(NetworkCommand.GROUP_DELETE).putLong(uuid).build());
 	}
 	
 	public static void append(long uuid, int x, int y)
@@ -297,7 +295,7 @@ public class CGroupController
 				continue;
 			}
 			
-			CalicoPacket p = new CalicoPacket(packets[i].getBuffer());
+			CalicoPacket p = packets[i].copy();
 			ProcessQueue.receive(p.getInt(), null, p);
 		}
 	}
@@ -416,7 +414,7 @@ public class CGroupController
 			ClientManager.send(CGroupController.groups.get(new_uuid).getParentingUpdatePackets());
 		//if (new_puuid == 0l)
 			//recheck_parent(new_uuid);
-		ClientManager.send(CalicoPacket.getPacket(NetworkCommand.CANVAS_SC_FINISH, new_canvasuuid));
+		ClientManager.send(PacketBuilder.command(NetworkCommand.CANVAS_SC_FINISH).putLong(new_canvasuuid).build());
 		return groupMappings;
 		
 		
@@ -734,7 +732,7 @@ public class CGroupController
 		if(!exists(uuid)){return;}
 		
 		no_notify_drop(uuid, true);
-		ClientManager.send(CalicoPacket.getPacket( NetworkCommand.GROUP_DROP, uuid ) );
+		ClientManager.send(PacketBuilder.command(NetworkCommand.GROUP_DROP).putLong(uuid).build());
 	}
 	
 	
@@ -750,7 +748,7 @@ public class CGroupController
 		if(!exists(uuid)){return;}
 		
 		no_notify_move_end(uuid, x, y);
-		ClientManager.send(CalicoPacket.getPacket(NetworkCommand.GROUP_MOVE_END, uuid, x, y));
+		ClientManager.send(PacketBuilder.command(NetworkCommand.GROUP_MOVE_END).putLong(uuid).putInt(x).putInt(y).build());
 		//ClientManager.send(groups.get(uuid).getParentingUpdatePackets());
 	}
 	
@@ -798,34 +796,34 @@ public class CGroupController
 		
 		no_notify_set_permanent(uuid, isPerm);
 		
-		ClientManager.send( CalicoPacket.getPacket( NetworkCommand.GROUP_SET_PERM, uuid, (isPerm ? 1 : 0) ));
+		ClientManager.send( PacketBuilder.command(NetworkCommand.GROUP_SET_PERM).putLong(uuid).putInt(isPerm ? 1 : 0).build());
 	}
 	
 	public static void start(long uuid, long cuid, long puid, boolean isperm)
 	{
 		no_notify_start(uuid, cuid, puid, isperm);
-		ClientManager.send( CalicoPacket.getPacket( NetworkCommand.GROUP_START, uuid, cuid, puid, (isperm ? 1 : 0)) );
+		ClientManager.send( PacketBuilder.command(NetworkCommand.GROUP_START).putLong(uuid).putLong(cuid).putLong(puid).putInt(isperm ? 1 : 0).build());
 	}
 	public static void move(long uuid, int x, int y)
 	{
 		no_notify_move(uuid, x, y);
-		ClientManager.send(CalicoPacket.getPacket(NetworkCommand.GROUP_MOVE, uuid, x, y));
+		ClientManager.send(PacketBuilder.command(NetworkCommand.GROUP_MOVE).putLong(uuid).putInt(x).putInt(y).build());
 	}
 
 	public static void set_parent(final long uuid, final long puid)
 	{
 		no_notify_set_parent(uuid, puid);
-		ClientManager.send( CalicoPacket.getPacket(NetworkCommand.GROUP_SET_PARENT, uuid, puid ));
+		ClientManager.send( PacketBuilder.command(NetworkCommand.GROUP_SET_PARENT).putLong(uuid).putLong(puid).build());
 	}
 	
 	public static void rotate(long uuid, double theta) {
 		no_notify_rotate(uuid, theta);
-		ClientManager.send( CalicoPacket.getPacket(NetworkCommand.GROUP_ROTATE, uuid, theta ));
+		ClientManager.send( PacketBuilder.command(NetworkCommand.GROUP_ROTATE).putLong(uuid).putDouble(theta).build());
 	}
 
 	public static void scale(long uuid, double scaleX, double scaleY) {
 		no_notify_scale(uuid, scaleX, scaleY);
-		ClientManager.send( CalicoPacket.getPacket(NetworkCommand.GROUP_SCALE, uuid, scaleX, scaleY ));
+		ClientManager.send( PacketBuilder.command(NetworkCommand.GROUP_SCALE).putLong(uuid).putDouble(scaleX).putDouble(scaleY).build());
 	}
 	
 	public static void no_notify_set_parent(long uuid, long puid)
@@ -876,7 +874,7 @@ public class CGroupController
 	{
 		if(!exists(uuid)){return;}
 		no_notify_set_text(uuid,str);
-		ClientManager.send( CalicoPacket.getPacket(NetworkCommand.GROUP_SET_TEXT, uuid, str));
+		ClientManager.send( PacketBuilder.command(NetworkCommand.GROUP_SET_TEXT).putLong(uuid).putString(str).build());
 	}
 	
 	public static void no_notify_remove_child_stroke(final long uuid, final long csuuid)
@@ -961,7 +959,7 @@ public class CGroupController
 	{
 		if(!groups.containsKey(containerUUID) || !groups.containsKey(checkUUID)){return false;}
 		
-		return CGroupController.groups.get(containerUUID).containsShape(groups.get(checkUUID).getPathReference());
+		return CGroupController.groups.get(containerUUID).containsShape(groups.get(checkUUID).getGeometry());
 //		return group_contains_path(containerUUID, CGroupController.groups.get(checkUUID).getPathReference() );
 	}
 	
@@ -973,6 +971,20 @@ public class CGroupController
 //		return group_contains_path(containerUUID, CGroupController.groups.get(checkUUID).getPathReference() );
 	}
 	
+	/**
+	 * Same as group_contains_shape(long, Shape), for when the shape is checked against
+	 * several groups and only needs flattening once
+	 * @param containerUUID
+	 * @param shape
+	 * @return
+	 */
+	public static boolean group_contains_shape(final long containerUUID, PathGeometry shape)
+	{
+		if(!groups.containsKey(containerUUID)){return false;}
+		
+		return CGroupController.groups.get(containerUUID).containsShape(shape);
+	}
+	
 	
 	/**
 	 * Check to see if the requested group contains the entirety of the polygon
@@ -1033,7 +1045,7 @@ public class CGroupController
 			return false;
 		}
 		else
-			return groups.get(containerUUID).containsShape(CStrokeController.strokes.get(checkUUID).getPathReference());
+			return groups.get(containerUUID).containsShape(CStrokeController.strokes.get(checkUUID).getGeometry());
 			//return CStrokeController.strokes.get(checkUUID).isContainedInPath(CGroupController.groupdb.get(containerUUID).getPathReference());
 	}
 	
@@ -1073,7 +1085,7 @@ public class CGroupController
 	
 	public static void makeRectangle(long guuid, int x, int y, int width, int height) {
 		no_notify_make_rectangle(guuid, x, y, width, height);
-		ClientManager.send( CalicoPacket.getPacket( NetworkCommand.GROUP_MAKE_RECTANGLE, guuid, x, y, width, height ));
+		ClientManager.send( PacketBuilder.command(NetworkCommand.GROUP_MAKE_RECTANGLE).putLong(guuid).putInt(x).putInt(y).putInt(width).putInt(height).build());
 	}
 	
 	public static void no_notify_make_rectangle(long guuid, int x, int y, int width, int height) {
@@ -1153,15 +1165,12 @@ public class CGroupController
 	public static void no_notify_create_image_group(long uuid, long cuid,
 			long puid, String imgURL, int imgX, int imgY, int imageWidth, int imageHeight) {
 		// TODO Auto-generated method stub
-		// Set the canvas for this group (this is just for lookup, nothing else)
-		CCanvasController.set_group_canvas(uuid, cuid);
-		
 		if(exists(uuid))
 		{
 			no_notify_drop(uuid);
 		}
 		
-		groups.put(uuid, new CGroupImage(uuid, cuid, puid, imgURL, imgX, imgY, imageWidth, imageHeight));
+		groups.put(cuid, uuid, new CGroupImage(uuid, cuid, puid, imgURL, imgX, imgY, imageWidth, imageHeight));
 		
 		// Add to the canvas
 		CCanvasController.no_notify_add_child_group(cuid, uuid);
@@ -1201,7 +1210,7 @@ public class CGroupController
 
 	public static long get_smallest_containing_group_for_point(long canvas_uuid, Point p)
 	{
-		long[] uuids = CCanvasController.canvases.get(canvas_uuid).getChildGroups();
+		long[] uuids = CCanvasController.canvases.get(canvas_uuid).getChildGroupsAt(p.getX(), p.getY());
 		
 		long group_uuid = 0L;
 		double group_area = Double.MAX_VALUE;
@@ -1210,7 +1219,7 @@ public class CGroupController
 		{
 			for(int i=0;i<uuids.length;i++)
 			{
-				if( (CGroupController.groups.get(uuids[i]).getArea()< group_area) && CGroupController.groups.get(uuids[i]).getPathReference().contains(p)
+				if( (CGroupController.groups.get(uuids[i]).getArea()< group_area) && CGroupController.groups.get(uuids[i]).containsPoint(p.x, p.y)
 						&& CGroupController.groups.get(uuids[i]).isPermanent())
 				{
 					group_area = CGroupController.groups.get(uuids[i]).getArea();
@@ -1254,7 +1263,7 @@ public class CGroupController
 	
 	public static void move_start(long guuid) {
 		no_notify_move_start(guuid);
-		ClientManager.send(CalicoPacket.getPacket(NetworkCommand.GROUP_MOVE_START, guuid));
+		ClientManager.send(PacketBuilder.command(NetworkCommand.GROUP_MOVE_START).putLong(guuid).build());
 	}
 	
 	public static void no_notify_move_start(long guuid) {
@@ -1286,6 +1295,18 @@ public class CGroupController
 		return groups.get(uuid).get_signature();
 	}
 	
+	/**
+	 * @param uuid
+	 * @return the group it is in, or 0
+	 */
+	public static long get_parent(long uuid)
+	{
+		if (!exists(uuid))
+			return 0L;
+		
+		return groups.get(uuid).getParentUUID();
+	}
+	
 	public static String get_signature_debug_output(long uuid)
 	{
 		if(!exists(uuid)){return "";}
@@ -31,10 +31,8 @@ public class CGroupDecoratorController {
 			CGroupController.logger.debug("Need to delete group "+uuid);
 		}
 		
-		CCanvasController.set_group_canvas(uuid, cuuid);
-		
 		// Add to the Groups
-		CGroupController.groups.put(uuid, groupToLoad);
+		CGroupController.groups.put(cuuid, uuid, groupToLoad);
 		
 		CCanvasController.canvases.get(cuuid).addChildGroup(uuid);
 	}
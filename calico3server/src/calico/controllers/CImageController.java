@@ -1,7 +1,5 @@
 package calico.controllers;
 
-import it.unimi.dsi.fastutil.longs.Long2ReferenceArrayMap;
-
 import java.awt.Dimension;
 import java.awt.Image;
 import java.awt.image.ImageObserver;
@@ -18,6 +16,7 @@ import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.channels.FileChannel;
 import java.util.Iterator;
 
 import javax.imageio.ImageIO;
@@ -29,11 +28,12 @@ import org.apache.log4j.Logger;
 
 import calico.COptions;
 import calico.components.CGroup;
+import calico.utils.UUIDRegistry;
 import calico.uuid.UUIDAllocator;
 
 public class CImageController
 {
-	public static Long2ReferenceArrayMap<CGroup> groups = new Long2ReferenceArrayMap<CGroup>();
+	public static UUIDRegistry<CGroup> groups = new UUIDRegistry<CGroup>();
 
 	private static Logger logger = Logger.getLogger(CImageController.class.getName());
 
@@ -93,6 +93,53 @@ public class CImageController
 	
 	public static void save_to_disk(long uuid, String name, byte[] image) throws IOException {
 		
+	    File imageFile = createImageFile(uuid, name);
+	    
+	    OutputStream os = new FileOutputStream(imageFile);
+	    
+	    os.write(image);
+	    
+	    os.close();
+	    
+	}
+	
+	/**
+	 * Saves an image that is part of a larger file (a spooled upload) without reading it into memory
+	 * @param uuid
+	 * @param name
+	 * @param source
+	 * @param offset where the image starts in source
+	 * @param length
+	 * @throws IOException
+	 */
+	public static void save_to_disk(long uuid, String name, File source, long offset, long length) throws IOException {
+		
+		File imageFile = createImageFile(uuid, name);
+		
+		FileInputStream in = new FileInputStream(source);
+		FileOutputStream out = new FileOutputStream(imageFile);
+		try
+		{
+			FileChannel inChannel = in.getChannel();
+			FileChannel outChannel = out.getChannel();
+			long done = 0L;
+			while (done < length)
+			{
+				long count = inChannel.transferTo(offset + done, length - done, outChannel);
+				if (count <= 0)
+					throw new IOException("Image data is shorter than expected (" + done + " of " + length + ")");
+				done += count;
+			}
+		}
+		finally
+		{
+			in.close();
+			out.close();
+		}
+	}
+	
+	private static File createImageFile(long uuid, String name) throws IOException
+	{
 		if (imageExists(uuid))
 		{
 			try
@@ -117,14 +164,7 @@ public class CImageController
 			backupFile.createFile();
 		backupFile.close();
 	    
-	    File imageFile = new File(filePath);
-	    
-	    OutputStream os = new FileOutputStream(imageFile);
-	    
-	    os.write(image);
-	    
-	    os.close();
-	    
+		return new File(filePath);
 	}
 	
 	public static String getImagePath(final long imageUUID)
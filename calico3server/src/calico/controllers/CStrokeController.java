@@ -23,7 +23,7 @@ import it.unimi.dsi.fastutil.longs.*;
  */
 public class CStrokeController
 {
-	public static Long2ReferenceAVLTreeMap<CStroke> strokes = new Long2ReferenceAVLTreeMap<CStroke>();
+	public static ArenaRegistry<CStroke> strokes = new ArenaRegistry<CStroke>(CCanvasArena.STROKES);
 	private static Logger logger = Logger.getLogger(CStrokeController.class.getName());
 	
 	public static boolean exists(long uuid)
@@ -40,7 +40,7 @@ public class CStrokeController
 	public static long makeScrap(long suuid, long new_guuid)
 	{
 		long ret = no_notify_makeScrap(suuid, new_guuid);
-		ClientManager.send(CalicoPacket.getPacket(NetworkCommand.STROKE_MAKE_SCRAP, suuid, new_guuid));
+		ClientManager.send(PacketBuilder.command(NetworkCommand.STROKE_MAKE_SCRAP).putLong(suuid).putLong(new_guuid).build());
 		
 		return ret;
 	}
@@ -48,7 +48,7 @@ public class CStrokeController
 	public static long makeShrunkScrap(long suuid, long new_guuid)
 	{
 		long ret = no_notify_makeShrunkScrap(suuid, new_guuid);
-		ClientManager.send(CalicoPacket.getPacket(NetworkCommand.STROKE_MAKE_SHRUNK_SCRAP, suuid, new_guuid));
+		ClientManager.send(PacketBuilder.command(NetworkCommand.STROKE_MAKE_SHRUNK_SCRAP).putLong(suuid).putLong(new_guuid).build());
 		
 		return ret;
 	}
@@ -56,7 +56,7 @@ public class CStrokeController
 	public static void deleteArea(long suuid, long temp_guuid)
 	{
 		no_notify_deleteArea(suuid, temp_guuid);
-		ClientManager.send(CalicoPacket.getPacket(NetworkCommand.STROKE_DELETE_AREA, suuid, temp_guuid));
+		ClientManager.send(PacketBuilder.command(NetworkCommand.STROKE_DELETE_AREA).putLong(suuid).putLong(temp_guuid).build());
 	}
 	
 	public static long no_notify_makeScrap(long suuid, long new_guuid)
@@ -108,9 +108,7 @@ public class CStrokeController
 	
 	public static void no_notify_start(long uuid, long cuid, long puid, Color color, float thickness)
 	{
-		CCanvasController.set_stroke_canvas(uuid, cuid);
-		
-		strokes.put(uuid, new CStroke(uuid, cuid, puid, color, thickness));
+		strokes.put(cuid, uuid, new CStroke(uuid, cuid, puid, color, thickness));
 		
 		CCanvasController.no_notify_add_child_stroke(cuid, uuid);
 		
@@ -160,7 +158,7 @@ public class CStrokeController
 		if(!exists(uuid)){return;}
 		
 		no_notify_delete(uuid);
-		ClientManager.send(CalicoPacket.getPacket(NetworkCommand.STROKE_DELETE, uuid));
+		ClientManager.send(PacketBuilder.command(NetworkCommand.STROKE_DELETE).putLong(uuid).build());
 	}
 	
 	public static void no_notify_set_color(long uuid, Color color)
@@ -168,6 +166,7 @@ public class CStrokeController
 		if(!exists(uuid)){return;}
 		
 		strokes.get(uuid).setColor(color);
+		CCanvasController.touch(uuid);
 	}
 	
 	
@@ -242,7 +241,7 @@ public class CStrokeController
 	{
 		if(!exists(uuid)){return;}
 		// Resend to all
-		ClientManager.send(CalicoPacket.getPacket(NetworkCommand.STROKE_SET_PARENT, uuid, strokes.get(uuid).getParentUUID()	));
+		ClientManager.send(PacketBuilder.command(NetworkCommand.STROKE_SET_PARENT).putLong(uuid).putLong(strokes.get(uuid).getParentUUID()).build());
 	}
 	
 	public static void copy(long uuid, long new_uuid, long new_puuid, long new_canvasuuid, int shift_x, int shift_y)
@@ -271,7 +270,7 @@ public class CStrokeController
 	{
 		for (int i = 0; i < packets.length; i++)
 		{
-			CalicoPacket p = new CalicoPacket(packets[i].getBuffer());
+			CalicoPacket p = packets[i].copy();
 			ProcessQueue.receive(p.getInt(), null, p);
 		}
 	}
@@ -339,6 +338,18 @@ public class CStrokeController
 		return strokes.get(uuid).get_signature();
 	}
 	
+	/**
+	 * @param uuid
+	 * @return the group it is in, or 0
+	 */
+	public static long get_parent(long uuid)
+	{
+		if (!exists(uuid))
+			return 0L;
+		
+		return strokes.get(uuid).getParentUUID();
+	}
+	
 	public static String get_signature_debug_output(long uuid)
 	{
 		if (!exists(uuid))
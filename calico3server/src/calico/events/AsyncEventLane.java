@@ -0,0 +1,111 @@
+package calico.events;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import calico.clients.Client;
+import calico.networking.netstuff.CalicoPacket;
+
+/**
+ * A thread that runs ASYNC_PASSIVE_LISTENER listeners, one event at a time in the order
+ * they were fired. Events for a canvas always go to the same lane, so they stay in order.
+ *
+ * The queue is bounded (server.events.async_queue_size). If it fills up, the packet thread
+ * waits for room instead of dropping the event.
+ */
+public class AsyncEventLane extends Thread
+{
+	private static Logger logger = Logger.getLogger(AsyncEventLane.class.getName());
+
+	private static class Task
+	{
+		int event;
+		CalicoPacket packet;
+		Client client;
+		CalicoEventHandler.Registration[] listeners;
+	}
+
+	private ArrayBlockingQueue<Task> queue;
+
+	private AtomicLong totalQueued = new AtomicLong(0L);
+	private AtomicLong totalStalls = new AtomicLong(0L);
+
+	public AsyncEventLane(int index, int capacity)
+	{
+		super("AsyncEventLane-"+index);
+		setDaemon(true);
+		this.queue = new ArrayBlockingQueue<Task>(capacity);
+	}
+
+	/**
+	 * @param event
+	 * @param packet a copy that nobody else is using
+	 * @param client
+	 * @param listeners
+	 */
+	public void enqueue(int event, CalicoPacket packet, Client client, CalicoEventHandler.Registration[] listeners)
+	{
+		Task task = new Task();
+		task.event = event;
+		task.packet = packet;
+		task.client = client;
+		task.listeners = listeners;
+
+		this.totalQueued.incrementAndGet();
+		if(this.queue.offer(task))
+		{
+			return;
+		}
+
+		// Full, so wait for it (dropping would leave the listeners out of date)
+		this.totalStalls.incrementAndGet();
+		try
+		{
+			this.queue.put(task);
+		}
+		catch(InterruptedException e)
+		{
+			logger.warn("Interrupted waiting for "+getName()+", event "+event+" was not delivered");
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public void run()
+	{
+		while(true)
+		{
+			Task task = null;
+			try
+			{
+				task = this.queue.take();
+			}
+			catch(InterruptedException e)
+			{
+				return;
+			}
+
+			for(int i=0;i<task.listeners.length;i++)
+			{
+				task.packet.rewind();
+				CalicoEventHandler.invoke(task.listeners[i], task.event, task.packet, task.client);
+			}
+		}
+	}
+
+	public long getTotalQueued()
+	{
+		return this.totalQueued.get();
+	}
+
+	public long getTotalStalls()
+	{
+		return this.totalStalls.get();
+	}
+
+	public int getQueueDepth()
+	{
+		return this.queue.size();
+	}
+}
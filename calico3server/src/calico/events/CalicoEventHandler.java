@@ -3,52 +3,129 @@ package calico.events;
 import java.lang.reflect.*;
 
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import it.unimi.dsi.fastutil.ints.Int2ReferenceOpenHashMap;
-import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.longs.Long2ReferenceOpenHashMap;
+import calico.COptions;
 import calico.clients.Client;
+import calico.components.CCanvasArena;
+import calico.controllers.CCanvasController;
+import calico.networking.netstuff.ByteUtils;
 import calico.networking.netstuff.CalicoPacket;
+import calico.networking.netstuff.NetCommandFormat;
 import calico.networking.netstuff.NetworkCommand;
 
 public class CalicoEventHandler {
-	
+
 	/**
 	 * ACTION_PERFORMER_LISTENER are for listeners that "own" a particular event. The primary
 	 * users of this listener are plugins do not have their method located in PacketHandler or ProcessQueue.
-	 * 
+	 *
 	 * These listeners will be notified first
 	 */
 	public static final int ACTION_PERFORMER_LISTENER = 1;
-	
+
 	/**
 	 * PASSIVE_LISTENER are for listeners that respond to some event, such as updating their local variables
 	 * in response to a user entering a canvas.
 	 */
 	public static final int PASSIVE_LISTENER = 2;
 
+	/**
+	 * ASYNC_PASSIVE_LISTENER are passive listeners that don't need to run before the next packet
+	 * is processed. They are called on an AsyncEventLane with their own copy of the packet, and
+	 * events for the same canvas reach them in the order they were fired.
+	 */
+	public static final int ASYNC_PASSIVE_LISTENER = 3;
+
+	/**
+	 * One listener registered for an event
+	 */
+	static class Registration
+	{
+		final CalicoEventListener listener;
+		final int type;
+		final ListenerStats stats;
+
+		Registration(CalicoEventListener listener, int type, ListenerStats stats)
+		{
+			this.listener = listener;
+			this.type = type;
+			this.stats = stats;
+		}
+	}
+
+	/**
+	 * How long a listener has spent in handleCalicoEvent (over every event it listens to)
+	 */
+	static class ListenerStats
+	{
+		AtomicLong calls = new AtomicLong(0L);
+		AtomicLong nanos = new AtomicLong(0L);
+		AtomicLong maxNanos = new AtomicLong(0L);
+		AtomicLong errors = new AtomicLong(0L);
+
+		void record(long took)
+		{
+			this.calls.incrementAndGet();
+			this.nanos.addAndGet(took);
+			long max = this.maxNanos.get();
+			while (took > max && !this.maxNanos.compareAndSet(max, took))
+			{
+				max = this.maxNanos.get();
+			}
+		}
+	}
+
+	private static final Registration[] NO_LISTENERS = new Registration[0];
+
+	// The arrays are never changed once they are in a map, adding a listener puts in a new
+	// array. So fireEvent only needs the lock to look one up, not while calling the listeners.
+	private static final Object lock = new Object();
+
+	private static Int2ReferenceOpenHashMap<Registration[]> eventListeners;
+
+	// Listeners that only care about one canvas: event -> canvas uuid -> listeners
+	private static Int2ReferenceOpenHashMap<Long2ReferenceOpenHashMap<Registration[]>> canvasListeners;
+
+	private static IdentityHashMap<CalicoEventListener, ListenerStats> listenerStats = new IdentityHashMap<CalicoEventListener, ListenerStats>();
+
+	// Started the first time someone registers an ASYNC_PASSIVE_LISTENER
+	private static AsyncEventLane[] lanes = null;
+
+	// The NetworkCommand fields, read once so addListenerForType doesn't need reflection
+	private static String[] commandNames = new String[0];
+	private static int[] commandValues = new int[0];
+
+	// Last, since the constructor needs everything above
 	private static CalicoEventHandler instance = new CalicoEventHandler();
-	
-	private static Int2ReferenceOpenHashMap<ArrayList<CalicoEventListener>> eventListeners;
-	
+
 	public static CalicoEventHandler getInstance()
 	{
 		return instance;
 	}
-	
+
 	public CalicoEventHandler()
 	{
-		eventListeners = new Int2ReferenceOpenHashMap<ArrayList<CalicoEventListener>>();
+		eventListeners = new Int2ReferenceOpenHashMap<Registration[]>();
+		canvasListeners = new Int2ReferenceOpenHashMap<Long2ReferenceOpenHashMap<Registration[]>>();
 		registerEvents();
 //		System.out.println("Instanciated the Calico Event Handler Class!");
 	}
-	
-	
-	
+
+
+
 	private void registerEvents()
 	{
 		Class<?> rootClass = NetworkCommand.class;
 		Field[] fields = rootClass.getFields();
-		
+
+		ArrayList<String> names = new ArrayList<String>();
+		ArrayList<Integer> values = new ArrayList<Integer>();
 		try
 		{
 			for (int i = 0; i < fields.length; i++)
@@ -58,6 +135,8 @@ public class CalicoEventHandler {
 					fields[i].setAccessible(true);
 					int value = fields[i].getInt(NetworkCommand.class);
 					addEvent(value);
+					names.add(fields[i].getName());
+					values.add(value);
 //					System.out.println("Registering event for: " + fields[i].getName() + ", value: " + fields[i].getInt(NetworkCommand.class));
 				}
 			}
@@ -67,81 +146,343 @@ public class CalicoEventHandler {
 			e.printStackTrace();
 		}
 
+		commandNames = names.toArray(new String[names.size()]);
+		commandValues = new int[values.size()];
+		for (int i = 0; i < commandValues.length; i++)
+		{
+			commandValues[i] = values.get(i).intValue();
+		}
 	}
-	
+
 	public boolean addEvent(int value)
 	{
-		if (eventListeners.containsKey(value))
+		synchronized (lock)
 		{
-			return false;
+			if (eventListeners.containsKey(value))
+			{
+				return false;
+			}
+			eventListeners.put(value, NO_LISTENERS);
+			return true;
 		}
-		eventListeners.put(value, new ArrayList<CalicoEventListener>());
-		return true;
 	}
-	
-	public void addListener(int event, CalicoEventListener listener, int listenerType)
+
+	/**
+	 * Makes a copy of the array with the listener added (action performers go first)
+	 * @param listeners
+	 * @param listener
+	 * @param listenerType
+	 * @return
+	 */
+	private static Registration[] with(Registration[] listeners, CalicoEventListener listener, int listenerType)
 	{
-		if (!eventListeners.containsKey(event) || listener == null)
-			return;
-		
+		ListenerStats stats = listenerStats.get(listener);
+		if (stats == null)
+		{
+			stats = new ListenerStats();
+			listenerStats.put(listener, stats);
+		}
+		if (listenerType == ASYNC_PASSIVE_LISTENER)
+		{
+			startLanes();
+		}
+
+		Registration reg = new Registration(listener, listenerType, stats);
+		Registration[] copy = new Registration[listeners.length + 1];
 		if (listenerType == CalicoEventHandler.ACTION_PERFORMER_LISTENER)
-			eventListeners.get(event).add(0, listener);
+		{
+			copy[0] = reg;
+			System.arraycopy(listeners, 0, copy, 1, listeners.length);
+		}
 		else
-			eventListeners.get(event).add(listener);
-		
+		{
+			System.arraycopy(listeners, 0, copy, 0, listeners.length);
+			copy[listeners.length] = reg;
+		}
+		return copy;
+	}
+
+	public void addListener(int event, CalicoEventListener listener, int listenerType)
+	{
+		synchronized (lock)
+		{
+			if (!eventListeners.containsKey(event) || listener == null)
+				return;
+
+			eventListeners.put(event, with(eventListeners.get(event), listener, listenerType));
+		}
+
 //		System.out.println("Added listener " + listener.getClass().getName() + " for value " + event);
 	}
-	
+
 	public void addGlobalListener(CalicoEventListener listener)
 	{
-		int[] keySet = eventListeners.keySet().toIntArray();
-		
-		for (int i = 0; i < keySet.length; i++)
+		synchronized (lock)
 		{
-			eventListeners.get(keySet[i]).add(listener);
+			int[] keySet = eventListeners.keySet().toIntArray();
+
+			for (int i = 0; i < keySet.length; i++)
+			{
+				eventListeners.put(keySet[i], with(eventListeners.get(keySet[i]), listener, PASSIVE_LISTENER));
+			}
 		}
 	}
-	
+
 	public void addListenerForType(String type, CalicoEventListener listener, int listenerType)
 	{
-		Class<?> rootClass = NetworkCommand.class;
-		Field[] fields = rootClass.getFields();
-		
-		try
+		for (int i = 0; i < commandNames.length; i++)
 		{
-			for (int i = 0; i < fields.length; i++)
+			if (commandNames[i].startsWith(type))
 			{
-				if (fields[i].getType() == int.class)
-				{
-					if (fields[i].getName().length() >= type.length() && fields[i].getName().substring(0, type.length()).compareTo(type) == 0)
-					{
-						fields[i].setAccessible(true);
-						int command = fields[i].getInt(NetworkCommand.class);
-						if (listenerType == CalicoEventHandler.ACTION_PERFORMER_LISTENER)
-							eventListeners.get(command).add(0, listener);
-						else
-							eventListeners.get(command).add(listener);
-//						eventListeners.get(command).add(listener);
-					}
-				}
+				addListener(commandValues[i], listener, listenerType);
+			}
+		}
+	}
+
+	/**
+	 * Like addListener, but the listener only hears the event when it is for this canvas
+	 * (see getTargetCanvas)
+	 * @param canvas
+	 * @param event
+	 * @param listener
+	 * @param listenerType
+	 */
+	public void addCanvasListener(long canvas, int event, CalicoEventListener listener, int listenerType)
+	{
+		synchronized (lock)
+		{
+			if (!eventListeners.containsKey(event) || listener == null)
+				return;
+
+			Long2ReferenceOpenHashMap<Registration[]> byCanvas = canvasListeners.get(event);
+			if (byCanvas == null)
+			{
+				byCanvas = new Long2ReferenceOpenHashMap<Registration[]>();
+				byCanvas.defaultReturnValue(NO_LISTENERS);
+				canvasListeners.put(event, byCanvas);
+			}
+			byCanvas.put(canvas, with(byCanvas.get(canvas), listener, listenerType));
+		}
+	}
+
+	public void addCanvasListenerForType(long canvas, String type, CalicoEventListener listener, int listenerType)
+	{
+		for (int i = 0; i < commandNames.length; i++)
+		{
+			if (commandNames[i].startsWith(type))
+			{
+				addCanvasListener(canvas, commandValues[i], listener, listenerType);
+			}
+		}
+	}
+
+	/**
+	 * Drops every listener registered for this canvas (it is being evicted or deleted)
+	 * @param canvas
+	 */
+	public void removeCanvasListeners(long canvas)
+	{
+		synchronized (lock)
+		{
+			int[] events = canvasListeners.keySet().toIntArray();
+			for (int i = 0; i < events.length; i++)
+			{
+				canvasListeners.get(events[i]).remove(canvas);
+			}
+		}
+	}
+
+	/**
+	 * Works out which canvas a packet is for, from its first two fields if they are longs
+	 * (see NetCommandFormat). Each one can be the canvas itself or something on it, like the
+	 * UUID CUUID ... of the packets that create something. Commands without a format only
+	 * have their first field looked at, which is a uuid for all of them that have one.
+	 * Events fire once the packet has been handled, so something that was just deleted
+	 * isn't on a canvas any more.
+	 * @param p
+	 * @return the canvas uuid, or 0 if it isn't for any one canvas
+	 */
+	public static long getTargetCanvas(CalicoPacket p)
+	{
+		if (p.getLength() < ByteUtils.SIZE_OF_INT)
+			return 0L;
+		NetCommandFormat fmt = NetworkCommand.getFormat(p.getCommand());
+		boolean known = fmt.getFieldCount() > 0;
+		int fields = known ? Math.min(2, fmt.getFieldCount()) : 1;
+
+		int offset = ByteUtils.SIZE_OF_INT;
+		for (int i = 0; i < fields && (!known || fmt.getFieldType(i) == 'L'); i++)
+		{
+			if (offset + ByteUtils.SIZE_OF_LONG > p.getLength())
+				return 0L;
+			long uuid = p.getLongAt(offset);
+			offset = offset + ByteUtils.SIZE_OF_LONG;
+			if (uuid == 0L)
+				continue;
+			if (CCanvasController.exists(uuid))
+				return uuid;
+			long canvas = CCanvasArena.canvasOf(uuid);
+			if (canvas != 0L)
+				return canvas;
+		}
+		return 0L;
+	}
+
+	public void fireEvent(int event, CalicoPacket p, Client client)
+	{
+		Registration[] listeners = null;
+		Long2ReferenceOpenHashMap<Registration[]> byCanvas = null;
+		synchronized (lock)
+		{
+			listeners = eventListeners.get(event);
+			byCanvas = canvasListeners.get(event);
+		}
+		if (listeners == null)
+			return;
+
+		// Only look for the canvas if someone is listening by canvas
+		long canvas = -1L;
+		Registration[] canvasOnly = NO_LISTENERS;
+		if (byCanvas != null)
+		{
+			canvas = getTargetCanvas(p);
+			synchronized (lock)
+			{
+				canvasOnly = byCanvas.get(canvas);
 			}
 		}
+
+		int async = fire(listeners, event, p, client) + fire(canvasOnly, event, p, client);
+		if (async == 0)
+			return;
+
+		// Everything async goes to one lane together, with its own copy of the packet
+		// (the packet thread releases the original as soon as we return)
+		Registration[] asyncListeners = new Registration[async];
+		int n = collectAsync(listeners, asyncListeners, 0);
+		collectAsync(canvasOnly, asyncListeners, n);
+
+		if (canvas == -1L)
+		{
+			canvas = getTargetCanvas(p);
+		}
+		AsyncEventLane[] l = lanes;
+		int lane = (int) ((canvas ^ (canvas >>> 32)) & 0x7fffffff) % l.length;
+		l[lane].enqueue(event, p.copy(), client, asyncListeners);
+	}
+
+	/**
+	 * Calls the listeners that run on this thread
+	 * @return how many were left for the async lane
+	 */
+	private static int fire(Registration[] listeners, int event, CalicoPacket p, Client client)
+	{
+		int async = 0;
+		for (int i = 0; i < listeners.length; i++)
+		{
+			if (listeners[i].type == ASYNC_PASSIVE_LISTENER)
+				async++;
+			else
+				invoke(listeners[i], event, p, client);
+		}
+		return async;
+	}
+
+	private static int collectAsync(Registration[] listeners, Registration[] into, int n)
+	{
+		for (int i = 0; i < listeners.length; i++)
+		{
+			if (listeners[i].type == ASYNC_PASSIVE_LISTENER)
+				into[n++] = listeners[i];
+		}
+		return n;
+	}
+
+	/**
+	 * Calls one listener and times it. A listener that throws doesn't stop the others.
+	 */
+	static void invoke(Registration reg, int event, CalicoPacket p, Client client)
+	{
+		long start = System.nanoTime();
+		try
+		{
+			reg.listener.handleCalicoEvent(event, p, client);
+		}
 		catch (Exception e)
 		{
+			reg.stats.errors.incrementAndGet();
 			e.printStackTrace();
 		}
+		reg.stats.record(System.nanoTime() - start);
 	}
-	
-	public void fireEvent(int event, CalicoPacket p, Client client)
+
+	private static void startLanes()
 	{
-		if (!eventListeners.containsKey(event))
+		if (lanes != null)
 			return;
-		
-		ArrayList<CalicoEventListener> listeners = eventListeners.get(event);
-		
-		for (CalicoEventListener listener : listeners)
-			listener.handleCalicoEvent(event, p, client);
-	}
-	
-	
+
+		AsyncEventLane[] l = new AsyncEventLane[Math.max(1, COptions.server.events.async_lanes)];
+		for (int i = 0; i < l.length; i++)
+		{
+			l[i] = new AsyncEventLane(i, Math.max(1, COptions.server.events.async_queue_size));
+			l[i].start();
+		}
+		lanes = l;
+	}
+
+	/**
+	 * Listener timings (added up by class, since one class can register many listeners) and how
+	 * the async lanes are doing, for the stats page
+	 * @return
+	 */
+	public static Properties getStats()
+	{
+		// TreeMap so they come out sorted
+		TreeMap<String, long[]> byClass = new TreeMap<String, long[]>();
+		synchronized (lock)
+		{
+			for (CalicoEventListener listener : listenerStats.keySet())
+			{
+				ListenerStats stats = listenerStats.get(listener);
+				String name = listener.getClass().getName();
+				long[] totals = byClass.get(name);
+				if (totals == null)
+				{
+					totals = new long[5];
+					byClass.put(name, totals);
+				}
+				totals[0] = totals[0] + 1;
+				totals[1] = totals[1] + stats.calls.get();
+				totals[2] = totals[2] + stats.nanos.get();
+				totals[3] = Math.max(totals[3], stats.maxNanos.get());
+				totals[4] = totals[4] + stats.errors.get();
+			}
+		}
+
+		Properties props = new Properties();
+		for (String name : byClass.keySet())
+		{
+			long[] totals = byClass.get(name);
+			props.setProperty("Events."+name+".Instances", ""+totals[0]);
+			props.setProperty("Events."+name+".Calls", ""+totals[1]);
+			props.setProperty("Events."+name+".TotalMs", ""+(totals[2] / 1000000L));
+			props.setProperty("Events."+name+".AvgMicros", ""+(totals[1] == 0 ? 0 : totals[2] / totals[1] / 1000L));
+			props.setProperty("Events."+name+".MaxMicros", ""+(totals[3] / 1000L));
+			props.setProperty("Events."+name+".Errors", ""+totals[4]);
+		}
+
+		AsyncEventLane[] l = lanes;
+		if (l != null)
+		{
+			for (int i = 0; i < l.length; i++)
+			{
+				props.setProperty("Events.AsyncLane"+i+".Queued", ""+l[i].getTotalQueued());
+				props.setProperty("Events.AsyncLane"+i+".Stalls", ""+l[i].getTotalStalls());
+				props.setProperty("Events.AsyncLane"+i+".Depth", ""+l[i].getQueueDepth());
+			}
+		}
+		return props;
+	}
+
+
 }
@@ -0,0 +1,125 @@
+package calico.networking;
+
+import calico.networking.netstuff.ByteUtils;
+import calico.networking.netstuff.NetworkCommand;
+
+/**
+ * Merges a queued delta with the one that is queued right after it, for a client that
+ * has not caught up yet.
+ *
+ * Only relative updates to the same element are merged, so applying the merged packet
+ * is the same as applying both:
+ * GROUP_MOVE / STROKE_MOVE (UUID, DX, DY) add up the deltas,
+ * CONNECTOR_MOVE_ANCHOR (UUID, TYPE, DX, DY) adds up the deltas for the same anchor,
+ * STROKE_APPEND (UUID, NUMCOORDS, X1, Y1 ... XN, YN) concatenates the coordinates.
+ * Packets are often bigger than their arguments (CalicoPacket starts out with 50 bytes),
+ * anything after the arguments is left out of the merged packet.
+ */
+public class FrameCoalescer
+{
+	// Offsets into the frame: length, command, then the arguments
+	private static final int ARGS = ByteUtils.SIZE_OF_INT * 2;
+	private static final int MOVE_SIZE = ARGS + ByteUtils.SIZE_OF_LONG + ByteUtils.SIZE_OF_INT * 2;
+	private static final int ANCHOR_SIZE = ARGS + ByteUtils.SIZE_OF_LONG + ByteUtils.SIZE_OF_INT * 3;
+	private static final int APPEND_HEADER_SIZE = ARGS + ByteUtils.SIZE_OF_LONG + ByteUtils.SIZE_OF_CHAR;
+	private static final int COORD_SIZE = ByteUtils.SIZE_OF_INT * 2;
+
+	/**
+	 * @param command
+	 * @return true if frames with this command can ever be merged
+	 */
+	public static boolean isMergeable(int command)
+	{
+		switch(command)
+		{
+			case NetworkCommand.GROUP_MOVE:
+			case NetworkCommand.STROKE_MOVE:
+			case NetworkCommand.CONNECTOR_MOVE_ANCHOR:
+			case NetworkCommand.STROKE_APPEND:
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @param older the frame that is already queued
+	 * @param newer the frame that is being queued right behind it
+	 * @return a new frame with the effect of both, or null if they can't be merged
+	 */
+	public static OutboundFrame merge(OutboundFrame older, OutboundFrame newer)
+	{
+		if(older.getCommand()!=newer.getCommand() || !isMergeable(newer.getCommand()))
+		{
+			return null;
+		}
+
+		byte[] a = older.getData();
+		byte[] b = newer.getData();
+
+		// Must be about the same element
+		if(a.length<ARGS + ByteUtils.SIZE_OF_LONG || b.length<ARGS + ByteUtils.SIZE_OF_LONG
+			|| ByteUtils.readLong(a, ARGS)!=ByteUtils.readLong(b, ARGS))
+		{
+			return null;
+		}
+
+		switch(newer.getCommand())
+		{
+			case NetworkCommand.GROUP_MOVE:
+			case NetworkCommand.STROKE_MOVE:
+				return mergeDelta(a, b, MOVE_SIZE, ARGS + ByteUtils.SIZE_OF_LONG);
+
+			case NetworkCommand.CONNECTOR_MOVE_ANCHOR:
+				if(a.length<ANCHOR_SIZE || b.length<ANCHOR_SIZE
+					|| ByteUtils.readInt(a, ARGS + ByteUtils.SIZE_OF_LONG)!=ByteUtils.readInt(b, ARGS + ByteUtils.SIZE_OF_LONG))
+				{
+					// different anchor
+					return null;
+				}
+				return mergeDelta(a, b, ANCHOR_SIZE, ARGS + ByteUtils.SIZE_OF_LONG + ByteUtils.SIZE_OF_INT);
+
+			case NetworkCommand.STROKE_APPEND:
+				return mergeAppend(a, b);
+		}
+		return null;
+	}
+
+	private static OutboundFrame mergeDelta(byte[] a, byte[] b, int size, int deltaOffset)
+	{
+		if(a.length<size || b.length<size)
+		{
+			return null;
+		}
+
+		byte[] merged = new byte[size];
+		System.arraycopy(a, 0, merged, 0, size);
+		ByteUtils.writeInt(merged, size - ByteUtils.SIZE_OF_INT, 0);
+		ByteUtils.writeInt(merged, ByteUtils.readInt(a, deltaOffset) + ByteUtils.readInt(b, deltaOffset), deltaOffset);
+		ByteUtils.writeInt(merged, ByteUtils.readInt(a, deltaOffset + ByteUtils.SIZE_OF_INT) + ByteUtils.readInt(b, deltaOffset + ByteUtils.SIZE_OF_INT), deltaOffset + ByteUtils.SIZE_OF_INT);
+		return OutboundFrame.wrap(merged);
+	}
+
+	private static OutboundFrame mergeAppend(byte[] a, byte[] b)
+	{
+		if(a.length<APPEND_HEADER_SIZE || b.length<APPEND_HEADER_SIZE)
+		{
+			return null;
+		}
+
+		int countA = (int) ByteUtils.readChar(a, ARGS + ByteUtils.SIZE_OF_LONG);
+		int countB = (int) ByteUtils.readChar(b, ARGS + ByteUtils.SIZE_OF_LONG);
+		int usedA = APPEND_HEADER_SIZE + countA * COORD_SIZE;
+		if(a.length<usedA || b.length<APPEND_HEADER_SIZE + countB * COORD_SIZE
+			|| countA + countB > Character.MAX_VALUE)
+		{
+			return null;
+		}
+
+		byte[] merged = new byte[APPEND_HEADER_SIZE + (countA + countB) * COORD_SIZE];
+		System.arraycopy(a, 0, merged, 0, usedA);
+		System.arraycopy(b, APPEND_HEADER_SIZE, merged, usedA, countB * COORD_SIZE);
+		ByteUtils.writeInt(merged, merged.length - ByteUtils.SIZE_OF_INT, 0);
+		ByteUtils.writeChar(merged, (char) (countA + countB), ARGS + ByteUtils.SIZE_OF_LONG);
+		return OutboundFrame.wrap(merged);
+	}
+}
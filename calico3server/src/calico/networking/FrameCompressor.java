@@ -0,0 +1,131 @@
+package calico.networking;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+import calico.COptions;
+import calico.networking.netstuff.BufferPool;
+import calico.networking.netstuff.ByteUtils;
+import calico.networking.netstuff.CalicoPacket;
+import calico.networking.netstuff.NetworkCommand;
+
+/**
+ * Packs a run of packets into one COMPRESSED envelope, for clients that advertised
+ * NetworkCommand.CAPABILITY_COMPRESSION when they joined.
+ *
+ * Envelope: COMPRESSED <RAWSIZE> <DEFLATED BYTES...>
+ * The inflated bytes are: <COUNT> then, for each packet, <SIZE> <PACKET BYTES>
+ * which the client processes in order, exactly as if they had been sent one at a time.
+ */
+public class FrameCompressor
+{
+	private static AtomicLong totalEnvelopes = new AtomicLong(0L);
+	private static AtomicLong totalRawBytes = new AtomicLong(0L);
+	private static AtomicLong totalCompressedBytes = new AtomicLong(0L);
+	private static AtomicLong totalNanos = new AtomicLong(0L);
+
+	/**
+	 * The result of compressing a batch
+	 */
+	public static class Result
+	{
+		public CalicoPacket packet;
+		public int rawSize;
+		public long nanos;
+	}
+
+	/**
+	 * @param packets
+	 * @param from first packet to include
+	 * @param to one past the last packet to include
+	 * @return the envelope, or null if compression did not make it smaller
+	 */
+	public static Result compress(CalicoPacket[] packets, int from, int to)
+	{
+		long start = System.nanoTime();
+
+		int rawSize = ByteUtils.SIZE_OF_INT;
+		for(int i=from;i<to;i++)
+		{
+			rawSize = rawSize + ByteUtils.SIZE_OF_INT + packets[i].getLength();
+		}
+
+		// Both scratch buffers come from the pool, they can be bigger than asked for
+		byte[] raw = BufferPool.acquire(rawSize);
+		byte[] compressed = BufferPool.acquire(rawSize);
+		Deflater deflater = new Deflater(COptions.client.network.compression_level);
+		CalicoPacket envelope = null;
+		try
+		{
+			ByteUtils.writeInt(raw, to - from, 0);
+			int pos = ByteUtils.SIZE_OF_INT;
+			for(int i=from;i<to;i++)
+			{
+				ByteUtils.writeInt(raw, packets[i].getLength(), pos);
+				pos = pos + ByteUtils.SIZE_OF_INT;
+				packets[i].copyTo(raw, pos);
+				pos = pos + packets[i].getLength();
+			}
+
+			int compressedSize = 0;
+			deflater.setInput(raw, 0, rawSize);
+			deflater.finish();
+			while(!deflater.finished() && compressedSize<rawSize)
+			{
+				compressedSize = compressedSize + deflater.deflate(compressed, compressedSize, rawSize - compressedSize);
+			}
+			if(!deflater.finished())
+			{
+				// It got bigger, so it isn't worth it
+				return null;
+			}
+
+			envelope = new CalicoPacket(ByteUtils.SIZE_OF_INT * 2 + compressedSize);
+			envelope.putInt(NetworkCommand.COMPRESSED);
+			envelope.putInt(rawSize);
+			envelope.putBytes(compressed, 0, compressedSize);
+		}
+		finally
+		{
+			deflater.end();
+			BufferPool.release(raw);
+			BufferPool.release(compressed);
+		}
+
+		Result result = new Result();
+		result.packet = envelope;
+		result.rawSize = rawSize;
+		result.nanos = System.nanoTime() - start;
+
+		totalEnvelopes.incrementAndGet();
+		totalRawBytes.addAndGet(rawSize);
+		totalCompressedBytes.addAndGet(envelope.getLength());
+		totalNanos.addAndGet(result.nanos);
+		return result;
+	}
+
+	public static Result compress(CalicoPacket p)
+	{
+		return compress(new CalicoPacket[]{p}, 0, 1);
+	}
+
+	public static long getTotalEnvelopes()
+	{
+		return totalEnvelopes.get();
+	}
+
+	public static long getTotalRawBytes()
+	{
+		return totalRawBytes.get();
+	}
+
+	public static long getTotalCompressedBytes()
+	{
+		return totalCompressedBytes.get();
+	}
+
+	public static long getTotalNanos()
+	{
+		return totalNanos.get();
+	}
+}
@@ -0,0 +1,233 @@
+package calico.networking;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+import calico.COptions;
+import calico.networking.netstuff.ByteUtils;
+import calico.networking.netstuff.CalicoPacket;
+
+/**
+ * Non-blocking framing for the CalicoPacket wire format (4 byte length, then the body).
+ *
+ * Bytes are read from the channel into a fixed read buffer, and then split into
+ * complete packets. A partially received packet is kept between reads, so a large
+ * frame that trickles in never blocks the thread that owns this connection.
+ *
+ * Frames over client.network.max_frame_size are refused. Frames over
+ * client.network.spool_threshold are written to a temp file as they arrive, and
+ * come out as a SpooledPacket holding only the start of the body in memory.
+ * Other frames get a buffer from the BufferPool, whoever handles the packet decides
+ * whether it can be released (see ProcessQueue.releasesPacket).
+ */
+public class FrameDecoder
+{
+	private ByteBuffer readBuffer = null;
+
+	private byte[] header = new byte[ByteUtils.SIZE_OF_INT];
+	private int headerOffset = 0;
+
+	// The start of a spooled body that is kept in memory
+	private static final int SPOOL_HEAD_SIZE = 65536;
+
+	private CalicoPacket frame = null;
+	private int frameOffset = 0;
+
+	// Only used while a spooled frame is being received
+	private int frameSize = 0;
+	private File spoolFile = null;
+	private FileOutputStream spoolOut = null;
+	private FileChannel spoolChannel = null;
+
+	private long totalBytesRead = 0L;
+
+	public FrameDecoder()
+	{
+		this.readBuffer = ByteBuffer.allocate(COptions.client.network.read_buffer_size);
+		this.readBuffer.flip();
+	}
+
+	/**
+	 * Reads whatever the channel has available into the read buffer
+	 * @param channel
+	 * @return the number of bytes read, or -1 if the channel has reached end of stream
+	 * @throws IOException
+	 */
+	public int readFrom(ReadableByteChannel channel) throws IOException
+	{
+		this.readBuffer.compact();
+		int read = 0;
+		try
+		{
+			read = channel.read(this.readBuffer);
+		}
+		finally
+		{
+			this.readBuffer.flip();
+		}
+
+		if(read>0)
+		{
+			this.totalBytesRead = this.totalBytesRead + read;
+		}
+		return read;
+	}
+
+	/**
+	 * Pulls the next complete packet out of the bytes that have been read so far.
+	 * @return the packet (positioned at 0), or null if no complete packet is buffered
+	 * @throws IOException if the stream contains an invalid frame size
+	 */
+	public CalicoPacket nextFrame() throws IOException
+	{
+		while(this.readBuffer.hasRemaining())
+		{
+			if(this.frame==null)
+			{
+				// Still reading the size
+				int toCopy = Math.min(this.readBuffer.remaining(), this.header.length - this.headerOffset);
+				this.readBuffer.get(this.header, this.headerOffset, toCopy);
+				this.headerOffset = this.headerOffset + toCopy;
+
+				if(this.headerOffset<this.header.length)
+				{
+					return null;
+				}
+
+				int size = ByteUtils.readInt(this.header, 0);
+				this.headerOffset = 0;
+				if(size<0 || size>COptions.client.network.max_frame_size)
+				{
+					throw new IOException("Invalid frame size "+size+" (max is "+COptions.client.network.max_frame_size+")");
+				}
+
+				this.frameSize = size;
+				this.frameOffset = 0;
+				if(size>COptions.client.network.spool_threshold && size>SPOOL_HEAD_SIZE)
+				{
+					startSpool();
+					this.frame = new CalicoPacket(SPOOL_HEAD_SIZE);
+				}
+				else
+				{
+					this.frame = CalicoPacket.fromPool(size);
+				}
+			}
+
+			int toCopy = Math.min(this.readBuffer.remaining(), this.frameSize - this.frameOffset);
+			if(this.spoolChannel==null)
+			{
+				this.frame.readFrom(this.readBuffer, this.frameOffset, toCopy);
+			}
+			else
+			{
+				spool(toCopy);
+			}
+			this.frameOffset = this.frameOffset + toCopy;
+
+			if(this.frameOffset==this.frameSize)
+			{
+				return completeFrame();
+			}
+		}
+
+		// Zero length frames never touch the read buffer
+		if(this.frame!=null && this.frameOffset==this.frameSize)
+		{
+			return completeFrame();
+		}
+		return null;
+	}
+
+	/**
+	 * @return true if part of a frame has been received
+	 */
+	public boolean isReceivingFrame()
+	{
+		return this.frame!=null || this.headerOffset>0;
+	}
+
+	private void startSpool() throws IOException
+	{
+		this.spoolFile = File.createTempFile("calico-frame-", ".spool");
+		this.spoolOut = new FileOutputStream(this.spoolFile);
+		this.spoolChannel = this.spoolOut.getChannel();
+	}
+
+	/**
+	 * Writes the next count bytes of the read buffer to the spool file, keeping a copy of the start of the body
+	 * @param count
+	 * @throws IOException
+	 */
+	private void spool(int count) throws IOException
+	{
+		int headCopy = Math.min(count, SPOOL_HEAD_SIZE - this.frameOffset);
+		if(headCopy>0)
+		{
+			int pos = this.readBuffer.position();
+			this.frame.readFrom(this.readBuffer, this.frameOffset, headCopy);
+			this.readBuffer.position(pos);
+		}
+
+		ByteBuffer chunk = this.readBuffer.duplicate();
+		chunk.limit(chunk.position() + count);
+		while(chunk.hasRemaining())
+		{
+			this.spoolChannel.write(chunk);
+		}
+		this.readBuffer.position(this.readBuffer.position() + count);
+	}
+
+	private CalicoPacket completeFrame() throws IOException
+	{
+		CalicoPacket done = this.frame;
+		if(this.spoolChannel!=null)
+		{
+			this.spoolOut.close();
+			done = new SpooledPacket(this.frame.detachBuffer(), this.spoolFile, this.frameSize);
+			this.spoolOut = null;
+			this.spoolChannel = null;
+			this.spoolFile = null;
+		}
+		this.frame = null;
+		this.frameOffset = 0;
+		this.frameSize = 0;
+		return done;
+	}
+
+	/**
+	 * Throws away a partially received frame (the connection is gone)
+	 */
+	public void close()
+	{
+		if(this.spoolOut!=null)
+		{
+			try
+			{
+				this.spoolOut.close();
+			}
+			catch(IOException e)
+			{
+			}
+			this.spoolFile.delete();
+			this.spoolOut = null;
+			this.spoolChannel = null;
+			this.spoolFile = null;
+		}
+		if(this.frame!=null)
+		{
+			this.frame.release();
+		}
+		this.frame = null;
+	}
+
+	public long getTotalBytesRead()
+	{
+		return this.totalBytesRead;
+	}
+
+}
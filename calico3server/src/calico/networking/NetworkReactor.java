@@ -0,0 +1,300 @@
+package calico.networking;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.log4j.Logger;
+
+import calico.COptions;
+import calico.clients.ClientThread;
+
+/**
+ * A selector thread that services a set of non-blocking client connections.
+ *
+ * Each reactor reads and frames inbound data, hands complete packets to the client
+ * (which routes them to ProcessQueue or a CanvasThread), and writes queued outbound
+ * packets whenever the socket can take them. A handful of these replace the
+ * thread-per-client ClientThread loop when client.network.engine=nio.
+ *
+ * A reactor never waits on a canvas worker. When a client's packets don't fit in the worker's
+ * mailbox, that client stops being read (OP_READ is dropped from its key) until the worker
+ * asks for it to be resumed, everyone else on the reactor carries on.
+ */
+public class NetworkReactor extends Thread
+{
+	private static Logger logger = Logger.getLogger(NetworkReactor.class.getName());
+
+	private Selector selector = null;
+
+	private ConcurrentLinkedQueue<ClientThread> pendingRegistrations = new ConcurrentLinkedQueue<ClientThread>();
+	private ConcurrentLinkedQueue<ClientThread> pendingWrites = new ConcurrentLinkedQueue<ClientThread>();
+	private ConcurrentLinkedQueue<ClientThread> pendingResumes = new ConcurrentLinkedQueue<ClientThread>();
+
+	private long lastIdleCheck = 0L;
+
+	private long totalSelects = 0L;
+	private long totalFramesRead = 0L;
+
+	public NetworkReactor(int reactorid) throws IOException
+	{
+		super("NetworkReactor-"+reactorid);
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * Hands a new connection to this reactor. The channel is registered on the reactor thread.
+	 * @param client
+	 */
+	public void register(ClientThread client)
+	{
+		this.pendingRegistrations.add(client);
+		this.selector.wakeup();
+	}
+
+	/**
+	 * Asks the reactor to flush the client's outbound queue
+	 * @param client
+	 */
+	public void requestWrite(ClientThread client)
+	{
+		this.pendingWrites.add(client);
+		this.selector.wakeup();
+	}
+
+	/**
+	 * Asks the reactor to hand the client's held back packets to the canvas workers again, and
+	 * to start reading from it once they are all through
+	 * @param client
+	 */
+	public void requestResume(ClientThread client)
+	{
+		this.pendingResumes.add(client);
+		this.selector.wakeup();
+	}
+
+	public int getConnectionCount()
+	{
+		return this.selector.keys().size();
+	}
+
+	public void run()
+	{
+		logger.info(getName()+" started");
+		while(this.selector.isOpen())
+		{
+			try
+			{
+				this.selector.select(COptions.client.network.reactor_select_timeout);
+				this.totalSelects++;
+
+				processRegistrations();
+				processWrites();
+				processResumes();
+
+				Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+				while(keys.hasNext())
+				{
+					SelectionKey key = keys.next();
+					keys.remove();
+					processKey(key);
+				}
+
+				long now = System.currentTimeMillis();
+				if(now - this.lastIdleCheck >= COptions.client.network.reactor_select_timeout)
+				{
+					this.lastIdleCheck = now;
+					checkConnections(now);
+				}
+			}
+			catch(Exception e)
+			{
+				// Never let one bad connection take out everyone on this reactor
+				logger.error(getName()+" error: "+e.getMessage());
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void processRegistrations()
+	{
+		ClientThread client = null;
+		while((client = this.pendingRegistrations.poll())!=null)
+		{
+			try
+			{
+				SocketChannel channel = client.getSocketChannel();
+				channel.configureBlocking(false);
+				SelectionKey key = channel.register(this.selector, SelectionKey.OP_READ, client);
+				client.setSelectionKey(key);
+			}
+			catch(IOException e)
+			{
+				logger.warn("Unable to register client "+client.getClientID()+": "+e.getMessage());
+				client.nioDisconnected();
+			}
+		}
+	}
+
+	private void processWrites()
+	{
+		ClientThread client = null;
+		while((client = this.pendingWrites.poll())!=null)
+		{
+			SelectionKey key = client.getSelectionKey();
+			if(key==null || !key.isValid())
+			{
+				continue;
+			}
+			flush(key, client);
+		}
+	}
+
+	private void processResumes()
+	{
+		ClientThread client = null;
+		while((client = this.pendingResumes.poll())!=null)
+		{
+			SelectionKey key = client.getSelectionKey();
+			if(key==null || !key.isValid())
+			{
+				continue;
+			}
+			try
+			{
+				client.nioResume();
+			}
+			catch(CancelledKeyException e)
+			{
+				close(key, client);
+			}
+		}
+	}
+
+	private void processKey(SelectionKey key)
+	{
+		ClientThread client = (ClientThread) key.attachment();
+		try
+		{
+			if(key.isValid() && key.isReadable())
+			{
+				if(!client.nioRead())
+				{
+					close(key, client);
+					return;
+				}
+			}
+			if(key.isValid() && key.isWritable())
+			{
+				flush(key, client);
+			}
+		}
+		catch(CancelledKeyException e)
+		{
+			close(key, client);
+		}
+		catch(IOException e)
+		{
+			logger.debug("Client "+client.getClientID()+" I/O error: "+e.getMessage());
+			close(key, client);
+		}
+	}
+
+	private void flush(SelectionKey key, ClientThread client)
+	{
+		try
+		{
+			if(client.nioWrite())
+			{
+				if(client.isCloseRequested())
+				{
+					// Everything (including the LEAVE) has been sent
+					close(key, client);
+					return;
+				}
+				key.interestOps(client.getReadInterest());
+			}
+			else
+			{
+				// The socket buffer is full, wait until we can write again
+				key.interestOps(client.getReadInterest() | SelectionKey.OP_WRITE);
+			}
+		}
+		catch(CancelledKeyException e)
+		{
+			close(key, client);
+		}
+		catch(IOException e)
+		{
+			logger.debug("Client "+client.getClientID()+" write error: "+e.getMessage());
+			close(key, client);
+		}
+	}
+
+	/**
+	 * Checks timeouts and heartbeats, and cleans up connections that were dropped from another thread
+	 * @param now
+	 */
+	private void checkConnections(long now)
+	{
+		Object[] keys = this.selector.keys().toArray();
+		for(int i=0;i<keys.length;i++)
+		{
+			SelectionKey key = (SelectionKey) keys[i];
+			ClientThread client = (ClientThread) key.attachment();
+			if(!key.isValid() || !key.channel().isOpen())
+			{
+				close(key, client);
+			}
+			else if(!client.nioCheckAlive(now))
+			{
+				close(key, client);
+			}
+		}
+	}
+
+	private void close(SelectionKey key, ClientThread client)
+	{
+		key.cancel();
+		try
+		{
+			key.channel().close();
+		}
+		catch(IOException e)
+		{
+			// already closed
+		}
+		client.nioDisconnected();
+	}
+
+	public void countFrames(int count)
+	{
+		this.totalFramesRead = this.totalFramesRead + count;
+	}
+
+	public long getTotalFramesRead()
+	{
+		return this.totalFramesRead;
+	}
+
+	public long getTotalSelects()
+	{
+		return this.totalSelects;
+	}
+
+	public void shutdown()
+	{
+		try
+		{
+			this.selector.close();
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+}
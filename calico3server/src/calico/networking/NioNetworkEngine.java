@@ -0,0 +1,76 @@
+package calico.networking;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import org.apache.log4j.Logger;
+
+import calico.COptions;
+import calico.clients.ClientManager;
+
+/**
+ * Accepts client connections and spreads them over a small, fixed pool of NetworkReactors.
+ * This is used instead of the ClientThread-per-socket loop when client.network.engine=nio.
+ * The wire format is the same in both modes.
+ */
+public class NioNetworkEngine
+{
+	private static Logger logger = Logger.getLogger(NioNetworkEngine.class.getName());
+
+	private static NetworkReactor[] reactors = new NetworkReactor[0];
+
+	private static int nextReactor = 0;
+
+	public static boolean isEnabled()
+	{
+		return COptions.client.network.engine.equalsIgnoreCase("nio");
+	}
+
+	public static NetworkReactor[] getReactors()
+	{
+		return reactors;
+	}
+
+	/**
+	 * Starts the reactors, then accepts connections forever
+	 * @param host
+	 * @param port
+	 * @throws IOException
+	 */
+	public static void listen(InetAddress host, int port) throws IOException
+	{
+		int reactorCount = Math.max(1, COptions.client.network.reactor_threads);
+
+		reactors = new NetworkReactor[reactorCount];
+		for(int i=0;i<reactorCount;i++)
+		{
+			reactors[i] = new NetworkReactor(i);
+			reactors[i].setDaemon(true);
+			reactors[i].start();
+		}
+		logger.info("Started "+reactorCount+" network reactors");
+
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.socket().setReuseAddress(true);
+		server.socket().bind(new InetSocketAddress(host, port), 50);
+
+		logger.info("Opening socket (nio)");
+		while(server.isOpen())
+		{
+			SocketChannel channel = server.accept();
+			ClientManager.newClientThread(channel, nextReactor());
+		}
+	}
+
+	private static NetworkReactor nextReactor()
+	{
+		// Round robin, the accept loop is the only caller
+		NetworkReactor reactor = reactors[nextReactor];
+		nextReactor = (nextReactor + 1) % reactors.length;
+		return reactor;
+	}
+
+}
@@ -0,0 +1,175 @@
+package calico.networking;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import calico.networking.netstuff.ByteUtils;
+import calico.networking.netstuff.CalicoPacket;
+
+/**
+ * A packet that has already been put into wire format (4 byte length, then the body).
+ *
+ * The bytes are copied out of the CalicoPacket when the frame is built, so changing the
+ * packet afterwards has no effect on what gets sent. A broadcast builds one frame and
+ * puts that same frame into every recipient's queue; each queue holds a reference
+ * until the frame has been written (or thrown away).
+ */
+public final class OutboundFrame
+{
+	private static AtomicLong totalBuilt = new AtomicLong(0L);
+	private static AtomicLong totalEnqueued = new AtomicLong(0L);
+
+	private final byte[] data;
+	private final int command;
+	private final AtomicInteger refs = new AtomicInteger(0);
+
+	private OutboundFrame(byte[] data, int command)
+	{
+		this.data = data;
+		this.command = command;
+	}
+
+	/**
+	 * Serializes the packet into a new frame
+	 * @param p
+	 * @return the frame, or null if p is null
+	 */
+	public static OutboundFrame of(CalicoPacket p)
+	{
+		if(p==null)
+		{
+			return null;
+		}
+
+		int length = p.getLength();
+		byte[] data = new byte[length + ByteUtils.SIZE_OF_INT];
+		ByteUtils.writeInt(data, length, 0);
+		p.copyTo(data, ByteUtils.SIZE_OF_INT);
+
+		int command = 0;
+		if(length>=ByteUtils.SIZE_OF_INT)
+		{
+			command = ByteUtils.readInt(data, ByteUtils.SIZE_OF_INT);
+		}
+
+		totalBuilt.incrementAndGet();
+		return new OutboundFrame(data, command);
+	}
+
+	/**
+	 * Wraps bytes that are already in wire format. The array must not be changed afterwards.
+	 * @param data
+	 * @return
+	 */
+	static OutboundFrame wrap(byte[] data)
+	{
+		totalBuilt.incrementAndGet();
+		return new OutboundFrame(data, ByteUtils.readInt(data, ByteUtils.SIZE_OF_INT));
+	}
+
+	/**
+	 * The raw frame, for building merged frames. Never modify it.
+	 */
+	byte[] getData()
+	{
+		return this.data;
+	}
+
+	/**
+	 * @return the NetworkCommand of the packet
+	 */
+	public int getCommand()
+	{
+		return this.command;
+	}
+
+	/**
+	 * Reads a long out of the packet's arguments
+	 * @param offset byte offset from the end of the command
+	 * @return the value, or 0 if the packet is too short
+	 */
+	public long getLong(int offset)
+	{
+		int pos = ByteUtils.SIZE_OF_INT * 2 + offset;
+		if(pos + ByteUtils.SIZE_OF_LONG > this.data.length)
+		{
+			return 0L;
+		}
+		return ByteUtils.readLong(this.data, pos);
+	}
+
+	/**
+	 * @return the size of the frame on the wire, including the length prefix
+	 */
+	public int size()
+	{
+		return this.data.length;
+	}
+
+	/**
+	 * Copies the whole frame into dest
+	 * @param dest
+	 * @param offset
+	 */
+	public void copyTo(byte[] dest, int offset)
+	{
+		System.arraycopy(this.data, 0, dest, offset, this.data.length);
+	}
+
+	public void writeTo(OutputStream out) throws IOException
+	{
+		out.write(this.data, 0, this.data.length);
+	}
+
+	/**
+	 * @return a new read-only view of the frame, with its own position
+	 */
+	public ByteBuffer asReadOnlyBuffer()
+	{
+		return ByteBuffer.wrap(this.data).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Called when the frame is put into a queue
+	 * @return this
+	 */
+	public OutboundFrame retain()
+	{
+		this.refs.incrementAndGet();
+		totalEnqueued.incrementAndGet();
+		return this;
+	}
+
+	/**
+	 * Called when a queue is done with the frame
+	 * @return the number of queues still holding this frame
+	 */
+	public int release()
+	{
+		return this.refs.decrementAndGet();
+	}
+
+	public int getReferenceCount()
+	{
+		return this.refs.get();
+	}
+
+	/**
+	 * @return the number of frames that have been serialized
+	 */
+	public static long getTotalBuilt()
+	{
+		return totalBuilt.get();
+	}
+
+	/**
+	 * @return the number of times a frame has been queued for a client
+	 */
+	public static long getTotalEnqueued()
+	{
+		return totalEnqueued.get();
+	}
+}
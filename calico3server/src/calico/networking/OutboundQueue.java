@@ -0,0 +1,276 @@
+package calico.networking;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Properties;
+
+import calico.COptions;
+import calico.networking.netstuff.NetworkCommand;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+
+/**
+ * A client's outbound queue, bounded by client.network.max_queue_bytes.
+ *
+ * The queue itself never refuses a frame, offer() just reports when the budget is
+ * exceeded. The owner then applies client.network.overflow_policy, using coalesce(),
+ * dropEphemeral() and clear() to get back under the budget (or gives up on the client).
+ * With client.network.coalesce_deltas, a delta that is queued behind one for the same
+ * element is merged into it (see FrameCoalescer).
+ */
+public class OutboundQueue
+{
+	public static final int POLICY_COALESCE = 0;
+	public static final int POLICY_DROP_EPHEMERAL = 1;
+	public static final int POLICY_RESYNC = 2;
+	public static final int POLICY_DISCONNECT = 3;
+
+	private static class Entry
+	{
+		OutboundFrame frame;
+		long queuedAt;
+
+		Entry(OutboundFrame frame, long queuedAt)
+		{
+			this.frame = frame;
+			this.queuedAt = queuedAt;
+		}
+	}
+
+	private LinkedList<Entry> entries = new LinkedList<Entry>();
+	private long bytes = 0L;
+
+	private long maxBytes = 0L;
+	private int maxDepth = 0;
+	private long totalDequeued = 0L;
+	private long totalWait = 0L;
+	private long maxWait = 0L;
+	private long totalOverflows = 0L;
+	private long totalDropped = 0L;
+	private long totalCoalesced = 0L;
+	private long totalMerged = 0L;
+
+	/**
+	 * @param policy the value of client.network.overflow_policy
+	 * @return one of the POLICY_ constants (disconnect if it is not recognized)
+	 */
+	public static int parsePolicy(String policy)
+	{
+		if(policy.equalsIgnoreCase("coalesce"))
+		{
+			return POLICY_COALESCE;
+		}
+		else if(policy.equalsIgnoreCase("drop_ephemeral"))
+		{
+			return POLICY_DROP_EPHEMERAL;
+		}
+		else if(policy.equalsIgnoreCase("resync"))
+		{
+			return POLICY_RESYNC;
+		}
+		return POLICY_DISCONNECT;
+	}
+
+	/**
+	 * Ephemeral packets only matter while they are fresh, and can be thrown away when a client falls behind
+	 * @param command
+	 * @return
+	 */
+	public static boolean isEphemeral(int command)
+	{
+		switch(command)
+		{
+			case NetworkCommand.HEARTBEAT:
+			case NetworkCommand.PRESENCE_CANVAS_USERS:
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Adds the frame (the caller must have retained it)
+	 * @param frame
+	 * @return false if the queue is now over its byte budget
+	 */
+	public synchronized boolean offer(OutboundFrame frame)
+	{
+		// If the last frame is still waiting, the client is behind, so try to fold this one into it
+		if(COptions.client.network.coalesce_deltas && !this.entries.isEmpty() && FrameCoalescer.isMergeable(frame.getCommand()))
+		{
+			Entry tail = this.entries.getLast();
+			OutboundFrame merged = FrameCoalescer.merge(tail.frame, frame);
+			if(merged!=null)
+			{
+				this.bytes = this.bytes - tail.frame.size() + merged.size();
+				tail.frame.release();
+				frame.release();
+				tail.frame = merged.retain();
+				this.totalMerged++;
+				return !isOverBudget();
+			}
+		}
+		
+		this.entries.addLast(new Entry(frame, System.currentTimeMillis()));
+		this.bytes = this.bytes + frame.size();
+
+		if(this.entries.size()>this.maxDepth)
+		{
+			this.maxDepth = this.entries.size();
+		}
+		if(this.bytes>this.maxBytes)
+		{
+			this.maxBytes = this.bytes;
+		}
+
+		if(isOverBudget())
+		{
+			this.totalOverflows++;
+			return false;
+		}
+		return true;
+	}
+
+	public synchronized OutboundFrame poll()
+	{
+		Entry entry = this.entries.pollFirst();
+		if(entry==null)
+		{
+			return null;
+		}
+		this.bytes = this.bytes - entry.frame.size();
+
+		long wait = System.currentTimeMillis() - entry.queuedAt;
+		this.totalDequeued++;
+		this.totalWait = this.totalWait + wait;
+		if(wait>this.maxWait)
+		{
+			this.maxWait = wait;
+		}
+		return entry.frame;
+	}
+
+	public synchronized boolean isEmpty()
+	{
+		return this.entries.isEmpty();
+	}
+
+	public synchronized int size()
+	{
+		return this.entries.size();
+	}
+
+	public synchronized long getBytes()
+	{
+		return this.bytes;
+	}
+
+	public synchronized boolean isOverBudget()
+	{
+		return COptions.client.network.max_queue_bytes>0 && this.bytes>COptions.client.network.max_queue_bytes;
+	}
+
+	/**
+	 * Throws away frames that have been superseded by a newer frame for the same thing.
+	 * @return the number of bytes that were freed
+	 */
+	public synchronized long coalesce()
+	{
+		long before = this.bytes;
+
+		// Walk from the newest frame back, only keeping the newest heartbeat and user list for each canvas
+		boolean seenHeartbeat = false;
+		LongOpenHashSet seenPresence = new LongOpenHashSet();
+
+		Iterator<Entry> it = this.entries.descendingIterator();
+		while(it.hasNext())
+		{
+			Entry entry = it.next();
+			int command = entry.frame.getCommand();
+			boolean superseded = false;
+			if(command==NetworkCommand.HEARTBEAT)
+			{
+				superseded = seenHeartbeat;
+				seenHeartbeat = true;
+			}
+			else if(command==NetworkCommand.PRESENCE_CANVAS_USERS)
+			{
+				superseded = !seenPresence.add(entry.frame.getLong(0));
+			}
+
+			if(superseded)
+			{
+				it.remove();
+				this.bytes = this.bytes - entry.frame.size();
+				entry.frame.release();
+				this.totalCoalesced++;
+			}
+		}
+
+		return before - this.bytes;
+	}
+
+	/**
+	 * Throws away every ephemeral frame
+	 * @return the number of bytes that were freed
+	 */
+	public synchronized long dropEphemeral()
+	{
+		long before = this.bytes;
+		Iterator<Entry> it = this.entries.iterator();
+		while(it.hasNext())
+		{
+			Entry entry = it.next();
+			if(isEphemeral(entry.frame.getCommand()))
+			{
+				it.remove();
+				this.bytes = this.bytes - entry.frame.size();
+				entry.frame.release();
+				this.totalDropped++;
+			}
+		}
+		return before - this.bytes;
+	}
+
+	/**
+	 * Throws away everything
+	 * @return the number of frames that were dropped
+	 */
+	public synchronized int clear()
+	{
+		int count = this.entries.size();
+		Entry entry = null;
+		while((entry = this.entries.pollFirst())!=null)
+		{
+			entry.frame.release();
+		}
+		this.bytes = 0L;
+		this.totalDropped = this.totalDropped + count;
+		return count;
+	}
+
+	public synchronized void toProperties(Properties props, String prefix)
+	{
+		props.setProperty(prefix+"queue.depth", ""+this.entries.size());
+		props.setProperty(prefix+"queue.bytes", ""+this.bytes);
+		props.setProperty(prefix+"queue.max_depth", ""+this.maxDepth);
+		props.setProperty(prefix+"queue.max_bytes", ""+this.maxBytes);
+		props.setProperty(prefix+"queue.budget", ""+COptions.client.network.max_queue_bytes);
+		if(!this.entries.isEmpty())
+		{
+			props.setProperty(prefix+"queue.oldest_ms", ""+(System.currentTimeMillis() - this.entries.getFirst().queuedAt));
+		}
+		else
+		{
+			props.setProperty(prefix+"queue.oldest_ms", "0");
+		}
+		if(this.totalDequeued>0)
+		{
+			props.setProperty(prefix+"queue.avg_wait_ms", ""+(this.totalWait / this.totalDequeued));
+		}
+		props.setProperty(prefix+"queue.max_wait_ms", ""+this.maxWait);
+		props.setProperty(prefix+"queue.overflows", ""+this.totalOverflows);
+		props.setProperty(prefix+"queue.dropped", ""+this.totalDropped);
+		props.setProperty(prefix+"queue.coalesced", ""+this.totalCoalesced);
+		props.setProperty(prefix+"queue.merged", ""+this.totalMerged);
+	}
+}
@@ -0,0 +1,320 @@
+package calico.networking;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Properties;
+
+import calico.COptions;
+import calico.networking.netstuff.ByteUtils;
+import calico.networking.netstuff.NetworkCommand;
+
+/**
+ * Drains a client's outbound queue in batches.
+ *
+ * Instead of writing the size and the body of every packet separately, everything
+ * that is queued (up to client.network.max_flush_bytes per flush) is written with a
+ * single write call: one copy into a scratch buffer for stream sockets, or one
+ * gathering write for channels. The flush counters show how well this is batching.
+ * Frames are released once they have been written.
+ *
+ * For clients that take BATCH frames, the frames of each write also go out as a single
+ * BATCH frame (SIZE BATCH COUNT, then the frames as they are, since a queued frame is
+ * already SIZE PACKET). The client then handles one frame per write instead of one per
+ * packet. A write with only one frame in it is sent as is.
+ */
+public class OutboundWriter
+{
+	// Most platforms limit the number of buffers in a single writev call
+	private static final int MAX_GATHER_BUFFERS = 512;
+
+	// SIZE BATCH COUNT
+	private static final int BATCH_HEADER_SIZE = ByteUtils.SIZE_OF_INT * 3;
+
+	private OutboundQueue queue = null;
+
+	// Stream mode
+	private byte[] scratch = null;
+
+	// Channel mode, frames that were pulled off the queue but not fully written yet
+	private ByteBuffer[] gather = null;
+	private OutboundFrame[] gatherFrames = null;
+	private int gatherOffset = 0;
+	private int gatherCount = 0;
+	private ByteBuffer batchHeader = null;
+
+	private volatile boolean batching = false;
+
+	private long totalFlushes = 0L;
+	private long totalFrames = 0L;
+	private long totalBytes = 0L;
+	private int maxFramesPerFlush = 0;
+	private long totalBatches = 0L;
+	private long totalBatchedFrames = 0L;
+
+	public OutboundWriter(OutboundQueue queue)
+	{
+		this.queue = queue;
+	}
+
+	/**
+	 * @param batching true if the client takes BATCH frames
+	 */
+	public void setBatching(boolean batching)
+	{
+		this.batching = batching;
+	}
+
+	/**
+	 * Writes everything in the queue to a blocking stream
+	 * @param out
+	 * @return the number of packets written
+	 * @throws IOException
+	 */
+	public int flush(OutputStream out) throws IOException
+	{
+		int maxFlush = Math.max(COptions.client.network.max_flush_bytes, BATCH_HEADER_SIZE + ByteUtils.SIZE_OF_INT);
+		if(this.scratch==null || this.scratch.length!=maxFlush)
+		{
+			this.scratch = new byte[maxFlush];
+		}
+
+		// Leave room at the front for the BATCH header
+		int header = this.batching ? BATCH_HEADER_SIZE : 0;
+
+		int written = 0;
+		int used = header;
+		int frames = 0;
+		OutboundFrame frame = null;
+		while((frame = this.queue.poll())!=null)
+		{
+			int frameSize = frame.size();
+			if(used + frameSize > this.scratch.length && frames>0)
+			{
+				writeScratch(out, header, used, frames);
+				used = header;
+				frames = 0;
+			}
+
+			if(header + frameSize > this.scratch.length)
+			{
+				// Too big to batch, send it on its own
+				frame.writeTo(out);
+				countFlush(1, frameSize);
+			}
+			else
+			{
+				frame.copyTo(this.scratch, used);
+				used = used + frameSize;
+				frames++;
+			}
+			frame.release();
+			written++;
+		}
+
+		if(frames>0)
+		{
+			writeScratch(out, header, used, frames);
+		}
+		if(written>0)
+		{
+			out.flush();
+		}
+		return written;
+	}
+
+	/**
+	 * Writes the frames in the scratch buffer, as one BATCH frame if there is room for the header
+	 * @param out
+	 * @param header the room left for the header (0 if not batching)
+	 * @param used
+	 * @param frames
+	 * @throws IOException
+	 */
+	private void writeScratch(OutputStream out, int header, int used, int frames) throws IOException
+	{
+		if(header==0 || frames<2)
+		{
+			out.write(this.scratch, header, used - header);
+			countFlush(frames, used - header);
+			return;
+		}
+		ByteUtils.writeInt(this.scratch, used - ByteUtils.SIZE_OF_INT, 0);
+		ByteUtils.writeInt(this.scratch, NetworkCommand.BATCH, ByteUtils.SIZE_OF_INT);
+		ByteUtils.writeInt(this.scratch, frames, ByteUtils.SIZE_OF_INT * 2);
+		out.write(this.scratch, 0, used);
+		countFlush(frames, used);
+		countBatch(frames);
+	}
+
+	/**
+	 * Writes as much of the queue as a non-blocking channel will take
+	 * @param channel
+	 * @return true if everything was written, false if the channel is full
+	 * @throws IOException
+	 */
+	public boolean flush(GatheringByteChannel channel) throws IOException
+	{
+		if(this.gather==null)
+		{
+			this.gather = new ByteBuffer[MAX_GATHER_BUFFERS];
+			this.gatherFrames = new OutboundFrame[MAX_GATHER_BUFFERS];
+		}
+
+		while(true)
+		{
+			if(this.gatherOffset==this.gatherCount && !fillGather())
+			{
+				return true;
+			}
+
+			channel.write(this.gather, this.gatherOffset, this.gatherCount - this.gatherOffset);
+
+			while(this.gatherOffset<this.gatherCount && !this.gather[this.gatherOffset].hasRemaining())
+			{
+				this.gather[this.gatherOffset] = null;
+				if(this.gatherFrames[this.gatherOffset]!=null)
+				{
+					this.gatherFrames[this.gatherOffset].release();
+					this.gatherFrames[this.gatherOffset] = null;
+				}
+				this.gatherOffset++;
+			}
+			if(this.gatherOffset<this.gatherCount)
+			{
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Pulls frames off of the queue into the gather array
+	 * @return false if the queue was empty
+	 */
+	private boolean fillGather()
+	{
+		this.gatherOffset = 0;
+		this.gatherCount = 0;
+		if(this.batching)
+		{
+			// The first slot is for the BATCH header
+			this.gatherCount = 1;
+		}
+
+		int maxFlush = Math.max(COptions.client.network.max_flush_bytes, ByteUtils.SIZE_OF_INT);
+		int bytes = 0;
+		int frames = 0;
+		OutboundFrame frame = null;
+		while(this.gatherCount < this.gather.length && (frames==0 || bytes<maxFlush) && (frame = this.queue.poll())!=null)
+		{
+			this.gatherFrames[this.gatherCount] = frame;
+			this.gather[this.gatherCount] = frame.asReadOnlyBuffer();
+			this.gatherCount++;
+			bytes = bytes + frame.size();
+			frames++;
+		}
+
+		if(frames==0)
+		{
+			this.gatherCount = 0;
+			return false;
+		}
+
+		if(this.batching)
+		{
+			if(frames<2)
+			{
+				// Not worth a header, skip the slot
+				this.gatherOffset = 1;
+			}
+			else
+			{
+				if(this.batchHeader==null)
+				{
+					this.batchHeader = ByteBuffer.allocate(BATCH_HEADER_SIZE);
+				}
+				this.batchHeader.clear();
+				this.batchHeader.putInt(bytes + BATCH_HEADER_SIZE - ByteUtils.SIZE_OF_INT);
+				this.batchHeader.putInt(NetworkCommand.BATCH);
+				this.batchHeader.putInt(frames);
+				this.batchHeader.flip();
+				this.gather[0] = this.batchHeader;
+				bytes = bytes + BATCH_HEADER_SIZE;
+				countBatch(frames);
+			}
+		}
+		countFlush(frames, bytes);
+		return true;
+	}
+
+	/**
+	 * Releases anything that was pulled off the queue but never written
+	 */
+	public void discard()
+	{
+		if(this.gather==null)
+		{
+			return;
+		}
+		for(int i=this.gatherOffset;i<this.gatherCount;i++)
+		{
+			this.gather[i] = null;
+			if(this.gatherFrames[i]!=null)
+			{
+				this.gatherFrames[i].release();
+				this.gatherFrames[i] = null;
+			}
+		}
+		this.gatherOffset = 0;
+		this.gatherCount = 0;
+	}
+
+	private void countFlush(int frames, int bytes)
+	{
+		this.totalFlushes++;
+		this.totalFrames = this.totalFrames + frames;
+		this.totalBytes = this.totalBytes + bytes;
+		if(frames>this.maxFramesPerFlush)
+		{
+			this.maxFramesPerFlush = frames;
+		}
+	}
+
+	private void countBatch(int frames)
+	{
+		this.totalBatches++;
+		this.totalBatchedFrames = this.totalBatchedFrames + frames;
+	}
+
+	public long getTotalFlushes()
+	{
+		return this.totalFlushes;
+	}
+
+	public long getTotalFrames()
+	{
+		return this.totalFrames;
+	}
+
+	public long getTotalBytes()
+	{
+		return this.totalBytes;
+	}
+
+	public void toProperties(Properties props, String prefix)
+	{
+		props.setProperty(prefix+"flush.count", ""+this.totalFlushes);
+		props.setProperty(prefix+"flush.frames", ""+this.totalFrames);
+		props.setProperty(prefix+"flush.bytes", ""+this.totalBytes);
+		props.setProperty(prefix+"flush.max_frames", ""+this.maxFramesPerFlush);
+		if(this.totalFlushes>0)
+		{
+			props.setProperty(prefix+"flush.frames_per_flush", String.format("%.2f", (double) this.totalFrames / this.totalFlushes));
+			props.setProperty(prefix+"flush.bytes_per_flush", ""+(this.totalBytes / this.totalFlushes));
+		}
+		props.setProperty(prefix+"batch.enabled", ""+this.batching);
+		props.setProperty(prefix+"batch.count", ""+this.totalBatches);
+		props.setProperty(prefix+"batch.frames", ""+this.totalBatchedFrames);
+	}
+}
@@ -0,0 +1,90 @@
+package calico.networking;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import calico.networking.netstuff.CalicoPacket;
+
+/**
+ * A packet whose body was too big to keep in memory while it was received
+ * (client.network.spool_threshold), so it was written to a temp file instead.
+ *
+ * The packet itself only holds the first part of the body (the command and whatever
+ * arguments come before the bulk data). Handlers that know about spooling can read
+ * those and then take the bulk data straight from the file, everything else gets the
+ * whole packet loaded through load().
+ */
+public class SpooledPacket extends CalicoPacket
+{
+	private File file = null;
+	private long size = 0L;
+
+	public SpooledPacket(byte[] head, File file, long size)
+	{
+		super(head, true);
+		this.file = file;
+		this.size = size;
+	}
+
+	/**
+	 * @return the file holding the complete packet body
+	 */
+	public File getFile()
+	{
+		return this.file;
+	}
+
+	/**
+	 * @return the size of the complete packet body
+	 */
+	public long getSize()
+	{
+		return this.size;
+	}
+
+	/**
+	 * @return the offset of the current position in the complete body
+	 */
+	public long getBodyOffset()
+	{
+		return getLength() - remaining();
+	}
+
+	/**
+	 * Reads the complete packet into memory
+	 * @return
+	 * @throws IOException
+	 */
+	public CalicoPacket load() throws IOException
+	{
+		CalicoPacket full = new CalicoPacket((int) this.size);
+		FileInputStream in = new FileInputStream(this.file);
+		try
+		{
+			FileChannel channel = in.getChannel();
+			ByteBuffer buf = ByteBuffer.wrap(full.getBuffer());
+			while(buf.hasRemaining() && channel.read(buf)>=0)
+			{
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		return full;
+	}
+
+	/**
+	 * Deletes the spool file
+	 */
+	public void release()
+	{
+		if(this.file!=null && this.file.exists() && !this.file.delete())
+		{
+			this.file.deleteOnExit();
+		}
+	}
+}
@@ -4,23 +4,52 @@ import java.net.*;
 
 import org.apache.log4j.Logger;
 
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+
 import calico.*;
 import calico.clients.*;
 import calico.networking.netstuff.*;
 
+/**
+ * The UDP lane, for packets that are fine to lose (pen/audio presence, plugin commands).
+ *
+ * A client gets on the lane by sending UDP_CHALLENGE over TCP and then the same challenge
+ * over UDP. Once the UDP one arrives, the server knows the client's UDP address and echoes
+ * the challenge back over TCP. Ephemeral packets are then sent as UDP_SEQUENCED datagrams
+ * to clients that also asked for NetworkCommand.CAPABILITY_UDP. Everyone else (including
+ * clients whose challenge never arrived) just gets them over TCP.
+ */
 public class UDPPacketHandler
 {
 	private static Logger logger = Logger.getLogger(UDPPacketHandler.class.getName());
-	
-	public static void setup()
+
+	// Commands that may arrive in a UDP_SEQUENCED datagram
+	private static IntOpenHashSet ephemeralCommands = new IntOpenHashSet();
+
+	/**
+	 * Lets clients send this command over UDP (plugins use this for their own commands)
+	 * @param command
+	 */
+	public static void registerEphemeralCommand(int command)
 	{
-	
+		synchronized(ephemeralCommands)
+		{
+			ephemeralCommands.add(command);
+		}
+	}
+
+	public static boolean isEphemeralCommand(int command)
+	{
+		synchronized(ephemeralCommands)
+		{
+			return ephemeralCommands.contains(command);
+		}
 	}
 
 
 	public static void receive(CalicoPacket packet, InetSocketAddress sender)
 	{
-		int command = ByteUtils.readInt(packet.getBuffer(), 0);
+		int command = packet.getCommand();
 		receive(command, packet, sender);
 	}
 
@@ -28,34 +57,117 @@ public class UDPPacketHandler
 	{
 		// set it to AFTER the command
 		pdata.setPosition(ByteUtils.SIZE_OF_INT);
-		
+
 		switch(command)
 		{
 			case NetworkCommand.UDP_CHALLENGE:UDP_CHALLENGE(pdata, sender);break;
+			case NetworkCommand.UDP_SEQUENCED:UDP_SEQUENCED(pdata, sender);break;
+		}
+
+
+	}
+
+	/**
+	 * Sends a datagram (SIZE then the packet)
+	 * @param recip
+	 * @param packet
+	 * @return false if it could not be sent
+	 */
+	public static boolean send(InetSocketAddress recip, CalicoPacket packet)
+	{
+		int length = packet.getLength();
+		byte[] data = new byte[ByteUtils.SIZE_OF_INT + length];
+		ByteUtils.writeInt(data, length, 0);
+		packet.copyTo(data, ByteUtils.SIZE_OF_INT);
+		return send(recip, data);
+	}
+
+	/**
+	 * Wraps the packet in UDP_SEQUENCED and sends it
+	 * @param recip
+	 * @param sequence
+	 * @param packet
+	 * @return false if it is too big for a datagram or could not be sent
+	 */
+	public static boolean sendSequenced(InetSocketAddress recip, int sequence, CalicoPacket packet)
+	{
+		int length = ByteUtils.SIZE_OF_INT * 2 + packet.getLength();
+		if(ByteUtils.SIZE_OF_INT + length > COptions.client.network.udp_max_datagram)
+		{
+			return false;
 		}
-		
-		
+
+		byte[] data = new byte[ByteUtils.SIZE_OF_INT + length];
+		ByteUtils.writeInt(data, length, 0);
+		ByteUtils.writeInt(data, NetworkCommand.UDP_SEQUENCED, ByteUtils.SIZE_OF_INT);
+		ByteUtils.writeInt(data, sequence, ByteUtils.SIZE_OF_INT * 2);
+		packet.copyTo(data, ByteUtils.SIZE_OF_INT * 3);
+		return send(recip, data);
 	}
-	
-	public static void send(InetSocketAddress recip, CalicoPacket packet)
+
+	private static boolean send(InetSocketAddress recip, byte[] data)
 	{
-		
+		UDPReceiveQueue queue = UDPReceiveQueue.getInstance();
+		if(queue==null || recip==null)
+		{
+			return false;
+		}
+		return queue.send(new DatagramPacket(data, data.length, recip.getAddress(), recip.getPort()));
 	}
-	
+
 	//////////////////////////////////////////////////////////////////////////////////
-	
-	
+
+
 	private static void UDP_CHALLENGE(CalicoPacket packet, InetSocketAddress sender)
 	{
 		long challenge = packet.getLong();
-		
+
 		int clientid = ClientManager.getClientFromChallenge(challenge);
-		
+		if(clientid==0 || ClientManager.getClientThread(clientid)==null)
+		{
+			// Unknown challenge, so that client stays on TCP
+			logger.debug("UDP CHALLENGE FAILED FROM "+sender);
+			return;
+		}
+
+		ClientManager.clearClientChallenge(challenge);
+		ClientManager.setClientUDPSocket(sender, clientid);
+
+		// Tell them it worked (over TCP, so they know for sure)
+		ClientManager.send(clientid, PacketBuilder.command(NetworkCommand.UDP_CHALLENGE).putLong(challenge).build());
+
 		logger.debug("CLIENT "+clientid+" CHALLENGE PASS");
-		
+
 	}
-	
-	
-	
-	
+
+	private static void UDP_SEQUENCED(CalicoPacket packet, InetSocketAddress sender)
+	{
+		int clientid = ClientManager.getClientFromUDPSocket(sender);
+		ClientThread thread = ClientManager.getClientThread(clientid);
+		if(clientid==0 || thread==null || packet.remaining()<ByteUtils.SIZE_OF_INT * 2)
+		{
+			return;
+		}
+
+		int sequence = packet.getInt();
+		int offset = ByteUtils.SIZE_OF_INT * 2;
+		int command = ByteUtils.readInt(packet.getBuffer(), offset);
+		if(!isEphemeralCommand(command))
+		{
+			logger.debug("CLIENT "+clientid+" SENT "+command+" OVER UDP, IGNORING");
+			return;
+		}
+
+		// Anything older than what we already have is useless by now
+		if(!thread.acceptUDPSequence(sequence))
+		{
+			return;
+		}
+
+		thread.receiveDatagram(new CalicoPacket(packet.getBuffer(), offset, packet.getLength() - offset));
+	}
+
+
+
+
 }//END
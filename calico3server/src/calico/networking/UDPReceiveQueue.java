@@ -15,8 +15,16 @@ public class UDPReceiveQueue implements Runnable
 	private byte[] packetData = new byte[2048];
 	private DatagramSocket socket = null;
 	
+	private static UDPReceiveQueue instance = null;
+	
+	public static UDPReceiveQueue getInstance()
+	{
+		return instance;
+	}
+	
 	public UDPReceiveQueue()
 	{
+		instance = this;
 		try
 		{
 			socket = new DatagramSocket( new InetSocketAddress(COptions.listen.host, COptions.listen.port) );
@@ -28,13 +36,24 @@ public class UDPReceiveQueue implements Runnable
 		}
 	}
 	
-	public void send(DatagramPacket packet)
+	/**
+	 * @param packet
+	 * @return false if it could not be sent
+	 */
+	public boolean send(DatagramPacket packet)
 	{
+		if(this.socket==null)
+			return false;
+		
 		try
 		{
 			this.socket.send(packet);
+			return true;
+		}
+		catch(IOException e)
+		{
+			return false;
 		}
-		catch(IOException e){}
 	}
 	
 	public void run()
@@ -50,7 +69,12 @@ public class UDPReceiveQueue implements Runnable
 				
                 this.socket.receive(receivePacket);
                 
+                if(receivePacket.getLength()<ByteUtils.SIZE_OF_INT * 2)
+                	continue;
+                
                 int psize = ByteUtils.readInt(this.packetData, 0);
+                if(psize<ByteUtils.SIZE_OF_INT || psize>receivePacket.getLength() - ByteUtils.SIZE_OF_INT)
+                	continue;
                 
                 CalicoPacket packet = new CalicoPacket(this.packetData, ByteUtils.SIZE_OF_INT, psize);
                 UDPPacketHandler.receive(packet, (InetSocketAddress) receivePacket.getSocketAddress());
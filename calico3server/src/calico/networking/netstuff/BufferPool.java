@@ -0,0 +1,172 @@
+package calico.networking.netstuff;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import calico.COptions;
+
+/**
+ * A shared pool of byte arrays, for buffers that are only needed for a short time
+ * (inbound frames, compression scratch space).
+ *
+ * Arrays come in power of two size classes from 64 bytes to 64KB, bigger requests are
+ * just allocated. Each class keeps at most client.network.buffer_pool_per_class free
+ * arrays. The pool is shared between threads, since a buffer is often released by a
+ * different thread than the one that took it.
+ *
+ * Whoever acquires an array must release it exactly once, and must not touch it after that.
+ */
+public class BufferPool
+{
+	private static final int MIN_CLASS_SHIFT = 6;
+	private static final int MAX_CLASS_SHIFT = 16;
+
+	@SuppressWarnings("unchecked")
+	private static ArrayDeque<byte[]>[] free = new ArrayDeque[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+	static
+	{
+		for(int i=0;i<free.length;i++)
+		{
+			free[i] = new ArrayDeque<byte[]>();
+		}
+	}
+
+	private static AtomicLong totalAcquired = new AtomicLong(0L);
+	private static AtomicLong totalHits = new AtomicLong(0L);
+	private static AtomicLong totalReleased = new AtomicLong(0L);
+	private static AtomicLong totalDiscarded = new AtomicLong(0L);
+
+	/**
+	 * @param size
+	 * @return the index into free for arrays that can hold size bytes, or -1 if that size isn't pooled
+	 */
+	private static int sizeClass(int size)
+	{
+		if(size>(1<<MAX_CLASS_SHIFT))
+		{
+			return -1;
+		}
+		int shift = MIN_CLASS_SHIFT;
+		while((1<<shift)<size)
+		{
+			shift++;
+		}
+		return shift - MIN_CLASS_SHIFT;
+	}
+
+	/**
+	 * Returns true if buffers of this size come from the pool
+	 * @param size
+	 * @return
+	 */
+	public static boolean isPooled(int size)
+	{
+		return COptions.client.network.buffer_pool && sizeClass(size)!=-1;
+	}
+
+	/**
+	 * Takes an array that can hold at least size bytes. It may be bigger, and it is not zeroed.
+	 * @param size
+	 * @return
+	 */
+	public static byte[] acquire(int size)
+	{
+		totalAcquired.incrementAndGet();
+		if(!isPooled(size))
+		{
+			return new byte[size];
+		}
+
+		int index = sizeClass(size);
+		byte[] buf = null;
+		synchronized(free[index])
+		{
+			buf = free[index].pollLast();
+		}
+		if(buf!=null)
+		{
+			totalHits.incrementAndGet();
+			return buf;
+		}
+		return new byte[1<<(index + MIN_CLASS_SHIFT)];
+	}
+
+	/**
+	 * Gives an array back to the pool
+	 * @param buf an array that came from acquire()
+	 */
+	public static void release(byte[] buf)
+	{
+		if(buf==null)
+		{
+			return;
+		}
+		totalReleased.incrementAndGet();
+
+		int index = sizeClass(buf.length);
+		if(!COptions.client.network.buffer_pool || index==-1 || buf.length!=(1<<(index + MIN_CLASS_SHIFT)))
+		{
+			// not one of ours
+			totalDiscarded.incrementAndGet();
+			return;
+		}
+		synchronized(free[index])
+		{
+			if(free[index].size()<COptions.client.network.buffer_pool_per_class)
+			{
+				free[index].addLast(buf);
+				return;
+			}
+		}
+		totalDiscarded.incrementAndGet();
+	}
+
+	public static long getTotalAcquired()
+	{
+		return totalAcquired.get();
+	}
+
+	public static long getTotalHits()
+	{
+		return totalHits.get();
+	}
+
+	public static long getTotalReleased()
+	{
+		return totalReleased.get();
+	}
+
+	public static long getTotalDiscarded()
+	{
+		return totalDiscarded.get();
+	}
+
+	/**
+	 * @return the percentage of acquires that were served from the pool
+	 */
+	public static double getHitRate()
+	{
+		long acquired = totalAcquired.get();
+		if(acquired==0)
+		{
+			return 0.0;
+		}
+		return (totalHits.get() * 100.0) / acquired;
+	}
+
+	/**
+	 * @return the number of bytes sitting in the pool
+	 */
+	public static long getPooledBytes()
+	{
+		long bytes = 0L;
+		for(int i=0;i<free.length;i++)
+		{
+			synchronized(free[i])
+			{
+				bytes = bytes + (long) free[i].size() * (1<<(i + MIN_CLASS_SHIFT));
+			}
+		}
+		return bytes;
+	}
+}
@@ -7,6 +7,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 import javax.imageio.ImageIO;
 
@@ -20,10 +21,14 @@ import calico.components.CGroupImage;
 public class CalicoPacket
 {
 
+	// The buffer can be bigger than length (it grows in steps, or came from the BufferPool)
 	private byte[] buffer = null;
 	private int length = 0;
 	private int position = 0;
 	
+	// true while the buffer belongs to the BufferPool and has not been handed out by detachBuffer()
+	private boolean pooled = false;
+	
 	
 	
 
@@ -71,6 +76,36 @@ public class CalicoPacket
 		System.arraycopy(data, boffset, this.buffer, 0, blength);
 	}
 	
+	/**
+	 * Makes a packet of the given size with a buffer from the BufferPool. The contents are
+	 * not zeroed, so every byte has to be filled in. Call release() when done with it.
+	 * @param size
+	 * @return
+	 */
+	public static CalicoPacket fromPool(int size)
+	{
+		CalicoPacket p = new CalicoPacket(BufferPool.acquire(size), true);
+		p.length = size;
+		p.pooled = BufferPool.isPooled(size);
+		return p;
+	}
+	
+	/**
+	 * Gives a pooled buffer back to the BufferPool. The packet can't be used after this.
+	 * Does nothing for packets that weren't made by fromPool() (or whose buffer has been handed out).
+	 */
+	public void release()
+	{
+		if(this.pooled)
+		{
+			this.pooled = false;
+			BufferPool.release(this.buffer);
+			this.buffer = null;
+			this.length = 0;
+			this.position = 0;
+		}
+	}
+	
 	public void setPosition(int newpos)
 	{
 		this.position = newpos;
@@ -102,12 +137,44 @@ public class CalicoPacket
 	
 	private void increaseSize(int increaseBy)
 	{
-		byte[] tbuf = new byte[this.length+increaseBy];
-		System.arraycopy(this.buffer, 0, tbuf, 0, this.length);
-		
-		this.length = tbuf.length;
+		int newLength = this.length+increaseBy;
+		if(newLength>this.buffer.length)
+		{
+			// Grow by at least half, so building a big packet a bit at a time doesn't copy it over and over
+			int capacity = Math.max(newLength, this.buffer.length + (this.buffer.length >> 1));
+			if(capacity<0)
+			{
+				capacity = newLength;
+			}
+			byte[] tbuf = new byte[capacity];
+			System.arraycopy(this.buffer, 0, tbuf, 0, this.length);
+			replaceBuffer(tbuf);
+		}
+		this.length = newLength;
+	}
+	
+	private void replaceBuffer(byte[] tbuf)
+	{
+		if(this.pooled)
+		{
+			this.pooled = false;
+			BufferPool.release(this.buffer);
+		}
 		this.buffer = tbuf;
 	}
+	
+	/**
+	 * Shrinks the buffer down to the length of the packet
+	 */
+	public void trim()
+	{
+		if(this.buffer!=null && this.buffer.length!=this.length)
+		{
+			byte[] tbuf = new byte[this.length];
+			System.arraycopy(this.buffer, 0, tbuf, 0, this.length);
+			replaceBuffer(tbuf);
+		}
+	}
 
 	
 	public void putString(String str)
@@ -372,7 +439,8 @@ public class CalicoPacket
 	}
 	
 	/**
-	 * This returns direct access to the buffer of the packet
+	 * This returns direct access to the buffer of the packet. Only the first getLength() bytes
+	 * are the packet, and the buffer still belongs to it; use detachBuffer() to keep one.
 	 * @return the buffer
 	 */
 	public byte[] getBuffer()
@@ -380,6 +448,65 @@ public class CalicoPacket
 		return this.buffer;
 	}
 	
+	/**
+	 * Hands the buffer over to the caller, trimmed to the length of the packet first. It will
+	 * not go back to the BufferPool, so the caller can keep it.
+	 * @return the buffer
+	 */
+	public byte[] detachBuffer()
+	{
+		trim();
+		this.pooled = false;
+		return this.buffer;
+	}
+	
+	/**
+	 * Copies the packet into dest, without exporting it first
+	 * @param dest
+	 * @param offset
+	 */
+	public void copyTo(byte[] dest, int offset)
+	{
+		System.arraycopy(this.buffer, 0, dest, offset, this.length);
+	}
+	
+	/**
+	 * Copies part of this packet into a new packet (with a pooled buffer, see fromPool())
+	 * @param offset
+	 * @param count
+	 * @return
+	 */
+	public CalicoPacket slice(int offset, int count)
+	{
+		checkOffset(offset, count);
+		CalicoPacket p = fromPool(count);
+		System.arraycopy(this.buffer, offset, p.buffer, 0, count);
+		return p;
+	}
+	
+	/**
+	 * Copies the packet into a new one of its own (not pooled), for holding on to after
+	 * this one is released
+	 * @return
+	 */
+	public CalicoPacket copy()
+	{
+		byte[] data = new byte[this.length];
+		System.arraycopy(this.buffer, 0, data, 0, this.length);
+		return new CalicoPacket(data, true);
+	}
+	
+	/**
+	 * Fills in part of the packet from src (the position of the packet is not changed)
+	 * @param src
+	 * @param offset where in the packet to put the bytes
+	 * @param count
+	 */
+	public void readFrom(ByteBuffer src, int offset, int count)
+	{
+		src.get(this.buffer, offset, count);
+	}
+	
 	
 	/**
 	 * Returns the size of the buffer
@@ -397,12 +524,12 @@ public class CalicoPacket
 	 */
 	public String printString()
 	{
-		return ByteUtils.toHexString(this.buffer);
+		return ByteUtils.toHexString(export());
 	}
 	
 	public long getUUID()
 	{
-		CalicoPacket p = new CalicoPacket(this.buffer);
+		CalicoPacket p = new CalicoPacket(this.buffer, 0, this.length);
 		
 		int com = p.getInt();
 		
@@ -422,7 +549,7 @@ public class CalicoPacket
 	
 	public long getCUUID()
 	{
-		CalicoPacket p = new CalicoPacket(this.buffer);
+		CalicoPacket p = new CalicoPacket(this.buffer, 0, this.length);
 		
 		int com = p.getInt();
 		
@@ -443,9 +570,39 @@ public class CalicoPacket
 	
 	public int getCommand()
 	{
-		CalicoPacket p = new CalicoPacket(this.buffer);
-		
-		return p.getInt();
+		return ByteUtils.readInt(this.buffer, 0);
+	}
+	
+	/*
+	 * These read at an offset from the start of the packet and leave the position alone
+	 * (PacketView uses them). The buffer can be bigger than the packet, so check the length.
+	 */
+	private void checkOffset(int offset, int size)
+	{
+		if(offset<0 || offset + size > this.length)
+		{
+			throw new IndexOutOfBoundsException("offset "+offset+" (+"+size+") is past the end of the packet ["+this.length+"]");
+		}
+	}
+	public int getIntAt(int offset)
+	{
+		checkOffset(offset, ByteUtils.SIZE_OF_INT);
+		return ByteUtils.readInt(this.buffer, offset);
+	}
+	public long getLongAt(int offset)
+	{
+		checkOffset(offset, ByteUtils.SIZE_OF_LONG);
+		return ByteUtils.readLong(this.buffer, offset);
+	}
+	public char getCharAt(int offset)
+	{
+		checkOffset(offset, ByteUtils.SIZE_OF_CHAR);
+		return ByteUtils.readChar(this.buffer, offset);
+	}
+	public byte getByteAt(int offset)
+	{
+		checkOffset(offset, ByteUtils.SIZE_OF_BYTE);
+		return this.buffer[offset];
 	}
 	
 	/**
@@ -453,7 +610,7 @@ public class CalicoPacket
 	 */
 	public String toString()
 	{
-		CalicoPacket p = new CalicoPacket(this.buffer);
+		CalicoPacket p = new CalicoPacket(this.buffer, 0, this.length);
 		
 		int com = p.getInt();
 		
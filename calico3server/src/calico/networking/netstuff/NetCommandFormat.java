@@ -3,6 +3,11 @@ package calico.networking.netstuff;
 /**
  * This holds all the byte values for all the network commands
  *
+ * The offset of each field is worked out once here, so PacketView can read them straight
+ * out of the packet. Fields after a string (S) or a count (i) move around, so they have no
+ * fixed offset. Anything after a count is repeated count times, so only the fields up to and
+ * including the count are checked by validate().
+ *
  * @author Mitch Dempsey
  */
 public class NetCommandFormat
@@ -10,10 +15,88 @@ public class NetCommandFormat
 	private String name = "";
 	private String fmt = "";
 	
+	// Offset of each field from the start of the packet, or -1 if it isn't fixed
+	private int[] offsets = null;
+	
+	// Smallest packet that holds the checked fields (command included)
+	private int minLength = ByteUtils.SIZE_OF_INT;
+	
+	// How many fields validate() looks at
+	private int checkedFields = 0;
+	
+	// True if this has a string in the checked fields (so validate() has to walk it)
+	private boolean hasStrings = false;
+	
+	// False if the format only describes what we send (the client request looks different)
+	private boolean inbound = true;
+	
 	public NetCommandFormat(String n, String f)
+	{
+		this(n, f, true);
+	}
+	
+	public NetCommandFormat(String n, String f, boolean checkInbound)
 	{
 		name = n;
 		fmt = f;
+		inbound = checkInbound;
+		
+		offsets = new int[fmt.length()];
+		int pos = ByteUtils.SIZE_OF_INT;
+		boolean fixed = true;
+		boolean counted = false;
+		for(int i=0;i<fmt.length();i++)
+		{
+			char c = fmt.charAt(i);
+			offsets[i] = fixed ? pos : -1;
+			pos = pos + getFieldSize(c);
+			
+			if(!counted)
+			{
+				minLength = minLength + getFieldSize(c);
+				checkedFields++;
+			}
+			if(c=='S')
+			{
+				fixed = false;
+				if(!counted)
+				{
+					hasStrings = true;
+				}
+			}
+			else if(c=='i')
+			{
+				fixed = false;
+				counted = true;
+			}
+		}
+	}
+	
+	/**
+	 * @param type a format character
+	 * @return the size of the field (for S, just the length in front of the string)
+	 */
+	public static int getFieldSize(char type)
+	{
+		switch(type)
+		{
+			case 'L':
+			case 'd':
+				return ByteUtils.SIZE_OF_LONG;
+			case 'I':
+			case 'f':
+			case 'C':
+			case 'S':
+				return ByteUtils.SIZE_OF_INT;
+			case 'i':
+			case 's':
+			case 'c':
+				return ByteUtils.SIZE_OF_CHAR;
+			case 'B':
+			case 'b':
+				return ByteUtils.SIZE_OF_BYTE;
+		}
+		return 0;
 	}
 	
 	public String getName()
@@ -25,6 +108,81 @@ public class NetCommandFormat
 	{
 		return fmt;
 	}
+	
+	public int getFieldCount()
+	{
+		return fmt.length();
+	}
+	
+	public char getFieldType(int field)
+	{
+		return fmt.charAt(field);
+	}
+	
+	/**
+	 * @param field
+	 * @return the offset of the field from the start of the packet, or -1 if it moves around
+	 */
+	public int getOffset(int field)
+	{
+		return offsets[field];
+	}
+	
+	public int getMinLength()
+	{
+		return minLength;
+	}
+	
+	public boolean isInbound()
+	{
+		return inbound;
+	}
+	
+	/**
+	 * Checks that the packet is long enough for the format (strings included)
+	 * @param p
+	 * @return false if a field would run past the end of the packet
+	 */
+	public boolean validate(CalicoPacket p)
+	{
+		int length = p.getLength();
+		if(length<minLength)
+		{
+			return false;
+		}
+		if(!hasStrings)
+		{
+			return true;
+		}
+		
+		int pos = ByteUtils.SIZE_OF_INT;
+		for(int i=0;i<checkedFields;i++)
+		{
+			char c = fmt.charAt(i);
+			if(c=='S')
+			{
+				if(pos + ByteUtils.SIZE_OF_INT > length)
+				{
+					return false;
+				}
+				int slen = p.getIntAt(pos);
+				if(slen<0 || slen > length - pos - ByteUtils.SIZE_OF_INT)
+				{
+					return false;
+				}
+				pos = pos + ByteUtils.SIZE_OF_INT + slen;
+			}
+			else
+			{
+				pos = pos + getFieldSize(c);
+			}
+			if(pos>length)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
 
 
 
@@ -76,13 +76,21 @@ public class NetworkCommand
 	public static final int ACTION_SCROLL	= MouseEvent.MOUSE_WHEEL;
 	
 	// Join/leave
-	public static final int JOIN					= 150;	// JOIN <NICKNAME> <PASSWORD>
+	public static final int JOIN					= 150;	// JOIN <NICKNAME> <PASSWORD> [<CAPABILITY FLAGS>]
 	public static final int HEARTBEAT				= 152;	// HEARTBEAT
 	public static final int LEAVE					= 153;	// LEAVE
 
 	public static final int ACK						= 154;	// ACKNOWLEDGEMENT (Sent from server->client)
 
 	public static final int SESSION_START			= 156; // <SESSION> <RandomString>
+	public static final int CAPABILITIES			= 157; // <CAPABILITY FLAGS> (S->C, the flags from JOIN that the server will use)
+	public static final int COMPRESSED				= 158; // <RAWSIZE> <DEFLATED: COUNT SIZE1 PACKET1 ... SIZEN PACKETN> (S->C)
+	public static final int BATCH					= 159; // <COUNT> <SIZE1> <PACKET1> ... <SIZEN> <PACKETN> (either way, S->C only with CAPABILITY_BATCH)
+	
+	// Capability flags (JOIN / CAPABILITIES)
+	public static final int CAPABILITY_COMPRESSION	= 1;
+	public static final int CAPABILITY_UDP			= 2; // takes UDP_SEQUENCED datagrams once UDP_CHALLENGE has passed
+	public static final int CAPABILITY_BATCH		= 4; // takes BATCH frames
 
 	// Messages
 	public static final int STATUS_MESSAGE			= 100; // <MESSAGE>
@@ -186,6 +194,9 @@ public class NetworkCommand
 	public static final int CONSISTENCY_RESYNC_CANVAS  = 515;
 	public static final int CONSISTENCY_DEBUG		= 516;
 	public static final int CONSISTENCY_RESYNCED    = 517;
+	public static final int CONSISTENCY_HASH_REQUEST = 518; // CUUID UUID (0L for the canvas) Asks for the hashes under a node
+	public static final int CONSISTENCY_HASH_NODE   = 519; // CUUID UUID HASH SUBTREE_HASH COUNT {CHILD_UUID SUBTREE_HASH}... (S->C)
+	public static final int CONSISTENCY_RESYNC_ELEMENT = 520; // CUUID UUID Resends that element and everything under it
 	
 	public static final int GRID_SIZE				= 512; // <ROWS> <COLS> (this is server->client)
 
@@ -296,7 +307,8 @@ public class NetworkCommand
 	public static final int DEBUG_PACKETSIZE = 1702; // used for testing largest packet (SIZE LONG1 ... LONGN) [this is meant to test the limits of the client/server memory]
 	public static final int DEBUG_SEND_PACKETSIZE = 1703;// initiates the packetsize 
 	
-	public static final int UDP_CHALLENGE = 1800; // LONG - crc32
+	public static final int UDP_CHALLENGE = 1800; // LONG - crc32 (C->S over TCP, then over UDP. The server echoes it over TCP once the UDP one arrives)
+	public static final int UDP_SEQUENCED = 1801; // <SEQ> <PACKET...> (datagram) ephemeral packet, anything older than the last SEQ seen is dropped
 	
 	public static final int PLUGIN_EVENT = 1900;// <EventName> <data>
 
@@ -362,9 +374,14 @@ public class NetworkCommand
 			
 			formats.put(JOIN,new NetCommandFormat("JOIN","SS"));
 			formats.put(HEARTBEAT,new NetCommandFormat("HEARTBEAT","LI"));
+			formats.put(CAPABILITIES,new NetCommandFormat("CAPABILITIES","I"));
+			formats.put(COMPRESSED,new NetCommandFormat("COMPRESSED","I"));
+			formats.put(BATCH,new NetCommandFormat("BATCH","I"));
+			formats.put(UDP_CHALLENGE,new NetCommandFormat("UDP_CHALLENGE","L"));
+			formats.put(UDP_SEQUENCED,new NetCommandFormat("UDP_SEQUENCED","I"));
 			
 			formats.put(GROUP_START,new NetCommandFormat("GROUP_START","LLLI"));
-			formats.put(GROUP_APPEND,new NetCommandFormat("GROUP_APPEND","Lii"));
+			formats.put(GROUP_APPEND,new NetCommandFormat("GROUP_APPEND","LII"));
 			formats.put(GROUP_MOVE,new NetCommandFormat("GROUP_MOVE","LII"));
 			formats.put(GROUP_DELETE,new NetCommandFormat("GROUP_DELETE","L"));
 			formats.put(GROUP_DROP,new NetCommandFormat("GROUP_DROP","L"));
@@ -403,7 +420,7 @@ public class NetworkCommand
 			formats.put(GROUP_CREATE_TEXT_GROUP, new NetCommandFormat("GROUP_CREATE_TEXT_GROUP", "LLSII"));
 			formats.put(GROUP_MAKE_RECTANGLE, new NetCommandFormat("GROUP_MAKE_RECTANGLE", "LIIII"));
 
-			formats.put(GRID_SIZE,new NetCommandFormat("GRID_SIZE","II"));
+			formats.put(GRID_SIZE,new NetCommandFormat("GRID_SIZE","II",false));// clients ask with no args
 			
 			//formats.put(UUID_GET_BLOCK,new NetCommandFormat("UUID_GET_BLOCK",""));
 			formats.put(UUID_BLOCK,new NetCommandFormat("UUID_BLOCK","ILL"));
@@ -450,14 +467,14 @@ public class NetworkCommand
 			formats.put(STROKE_RELOAD_REMOVE,new NetCommandFormat("STROKE_RELOAD_REMOVE","L"));
 			formats.put(STROKE_RELOAD_POSITION,new NetCommandFormat("STROKE_RELOAD_POSITION","LII"));
 
-			formats.put(STROKE_START,new NetCommandFormat("STROKE_START","LLLIII"));
+			formats.put(STROKE_START,new NetCommandFormat("STROKE_START","LLLIIIf"));
 			formats.put(STROKE_APPEND,new NetCommandFormat("STROKE_APPEND","LiII"));
 			formats.put(STROKE_FINISH,new NetCommandFormat("STROKE_FINISH","L"));
 			formats.put(STROKE_SET_COLOR,new NetCommandFormat("STROKE_SET_COLOR","LIII"));
 			formats.put(STROKE_SET_PARENT,new NetCommandFormat("STROKE_SET_PARENT","LL"));
 			formats.put(STROKE_MOVE,new NetCommandFormat("STROKE_MOVE","LII"));
 			formats.put(STROKE_DELETE,new NetCommandFormat("STROKE_DELETE","L"));
-			formats.put(STROKE_LOAD,new NetCommandFormat("STROKE_LOAD","LLLCidddII"));
+			formats.put(STROKE_LOAD,new NetCommandFormat("STROKE_LOAD","LLLCfiII"));
 			formats.put(STROKE_HASH_CHECK,new NetCommandFormat("STROKE_HASH_CHECK","L"));
 			formats.put(STROKE_MAKE_SCRAP, new NetCommandFormat("STROKE_MAKE_SCRAP", "LL"));
 			formats.put(STROKE_MAKE_SHRUNK_SCRAP, new NetCommandFormat("STROKE_MAKE_SHRUNK_SCRAP", "LL"));
@@ -482,9 +499,15 @@ public class NetworkCommand
 			formats.put(CONSISTENCY_CHECK_CONTINUE,new NetCommandFormat("CONSISTENCY_CHECK_CONTINUE","L"));
 			formats.put(CONSISTENCY_FAILED,new NetCommandFormat("CONSISTENCY_FAILED",""));
 			formats.put(CONSISTENCY_RESYNC_CANVAS,new NetCommandFormat("CONSISTENCY_RESYNC_CANVAS","L"));
+			formats.put(CONSISTENCY_HASH_REQUEST,new NetCommandFormat("CONSISTENCY_HASH_REQUEST","LL"));
+			formats.put(CONSISTENCY_HASH_NODE,new NetCommandFormat("CONSISTENCY_HASH_NODE","LLLLI",false));
+			formats.put(CONSISTENCY_RESYNC_ELEMENT,new NetCommandFormat("CONSISTENCY_RESYNC_ELEMENT","LL"));
 			
 			
 			formats.put(ARROW_CREATE,new NetCommandFormat("ARROW_CREATE","LLICILIIILII"));
+			formats.put(CONNECTOR_MOVE_ANCHOR,new NetCommandFormat("CONNECTOR_MOVE_ANCHOR","LIII"));
+			formats.put(CONNECTOR_MOVE_ANCHOR_START,new NetCommandFormat("CONNECTOR_MOVE_ANCHOR_START","LI"));
+			formats.put(CONNECTOR_MOVE_ANCHOR_END,new NetCommandFormat("CONNECTOR_MOVE_ANCHOR_END","LI"));
 			formats.put(ARROW_DELETE,new NetCommandFormat("ARROW_DELETE","L"));
 			formats.put(ARROW_SET_TYPE,new NetCommandFormat("ARROW_SET_TYPE","LI"));
 			formats.put(ARROW_SET_COLOR,new NetCommandFormat("ARROW_SET_COLOR","LIII"));
@@ -498,8 +521,8 @@ public class NetworkCommand
 			//formats.put(STATUS_MESSAGE,new NetCommandFormat("STATUS_MESSAGE","s"));
 			//formats.put(STATUS_MESSAGE,new NetCommandFormat("STATUS_MESSAGE","s"));
 			//formats.put(STATUS_MESSAGE,new NetCommandFormat("STATUS_MESSAGE","s"));
-			formats.put(LIST_CREATE,new NetCommandFormat("LIST_CREATE","LLLLI"));
-			formats.put(LIST_LOAD,new NetCommandFormat("LIST_LOAD","LLLBiII"));
+			formats.put(LIST_CREATE,new NetCommandFormat("LIST_CREATE","LL"));
+			formats.put(LIST_LOAD,new NetCommandFormat("LIST_LOAD","LLLL"));
 			formats.put(LIST_CHECK_SET, new NetCommandFormat("LIST_CHECK_SET", "LLLLB"));
 		}
 		
@@ -0,0 +1,203 @@
+package calico.networking.netstuff;
+
+import java.awt.Color;
+
+/**
+ * Builds a CalicoPacket from typed arguments, without the boxing and instanceof checks of
+ * CalicoPacket.getPacket(int, Object...). The packet comes out byte for byte the same as
+ * getPacket() with the same arguments would have made it, and positioned at the end (so
+ * more can be put on it).
+ *
+ * PacketBuilder.command(NetworkCommand.GROUP_MOVE).putLong(uuid).putInt(x).putInt(y).build()
+ *
+ * The arguments are written into a scratch buffer that belongs to the thread, so the only
+ * allocation is the packet itself, at its exact size. Strings are encoded straight into the
+ * scratch buffer (and the length is filled in afterwards) instead of being encoded once to
+ * measure them and again to write them.
+ */
+public class PacketBuilder
+{
+	private static final int INITIAL_SCRATCH_SIZE = 256;
+
+	private static ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+		protected byte[] initialValue()
+		{
+			return new byte[INITIAL_SCRATCH_SIZE];
+		}
+	};
+
+	private byte[] buffer = null;
+	private int position = 0;
+
+	private PacketBuilder()
+	{
+		// Take the thread's scratch buffer. If another builder on this thread has it, use a new one.
+		this.buffer = scratch.get();
+		if(this.buffer==null)
+		{
+			this.buffer = new byte[INITIAL_SCRATCH_SIZE];
+		}
+		else
+		{
+			scratch.set(null);
+		}
+	}
+
+	/**
+	 * Starts a packet
+	 * @param com the NetworkCommand
+	 * @return
+	 */
+	public static PacketBuilder command(int com)
+	{
+		return new PacketBuilder().putInt(com);
+	}
+
+	private void ensure(int size)
+	{
+		if(this.position + size > this.buffer.length)
+		{
+			byte[] tbuf = new byte[Math.max(this.position + size, this.buffer.length * 2)];
+			System.arraycopy(this.buffer, 0, tbuf, 0, this.position);
+			this.buffer = tbuf;
+		}
+	}
+
+	public PacketBuilder putInt(int val)
+	{
+		ensure(ByteUtils.SIZE_OF_INT);
+		ByteUtils.writeInt(this.buffer, val, this.position);
+		this.position = this.position + ByteUtils.SIZE_OF_INT;
+		return this;
+	}
+
+	public PacketBuilder putLong(long val)
+	{
+		ensure(ByteUtils.SIZE_OF_LONG);
+		ByteUtils.writeLong(this.buffer, val, this.position);
+		this.position = this.position + ByteUtils.SIZE_OF_LONG;
+		return this;
+	}
+
+	public PacketBuilder putFloat(float val)
+	{
+		return putInt(Float.floatToIntBits(val));
+	}
+
+	public PacketBuilder putDouble(double val)
+	{
+		return putLong(Double.doubleToLongBits(val));
+	}
+
+	public PacketBuilder putByte(byte val)
+	{
+		ensure(ByteUtils.SIZE_OF_BYTE);
+		this.buffer[this.position] = val;
+		this.position = this.position + ByteUtils.SIZE_OF_BYTE;
+		return this;
+	}
+
+	public PacketBuilder putBoolean(boolean val)
+	{
+		return putByte(val ? (byte) 0x01 : (byte) 0x00);
+	}
+
+	public PacketBuilder putChar(char val)
+	{
+		ensure(ByteUtils.SIZE_OF_CHAR);
+		ByteUtils.writeChar(this.buffer, val, this.position);
+		this.position = this.position + ByteUtils.SIZE_OF_CHAR;
+		return this;
+	}
+
+	public PacketBuilder putCharInt(int val)
+	{
+		return putChar((char) val);
+	}
+
+	public PacketBuilder putColor(Color color)
+	{
+		return putInt(color.getRGB());
+	}
+
+	/**
+	 * Puts the UTF-8 length then the UTF-8 bytes, the same as CalicoPacket.putString()
+	 * @param str
+	 * @return
+	 */
+	public PacketBuilder putString(String str)
+	{
+		int len = str.length();
+		// Worst case is 3 bytes per char (surrogate pairs take 4 bytes for 2 chars)
+		ensure(ByteUtils.SIZE_OF_INT + len * 3);
+
+		int start = this.position + ByteUtils.SIZE_OF_INT;
+		int pos = start;
+		byte[] buf = this.buffer;
+		for(int i=0;i<len;i++)
+		{
+			char c = str.charAt(i);
+			if(c<0x80)
+			{
+				buf[pos++] = (byte) c;
+			}
+			else if(c<0x800)
+			{
+				buf[pos++] = (byte) (0xC0 | (c >> 6));
+				buf[pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+			else if(Character.isHighSurrogate(c) && i+1<len && Character.isLowSurrogate(str.charAt(i+1)))
+			{
+				int cp = Character.toCodePoint(c, str.charAt(++i));
+				buf[pos++] = (byte) (0xF0 | (cp >> 18));
+				buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+				buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+				buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+			}
+			else if(c>=Character.MIN_SURROGATE && c<=Character.MAX_SURROGATE)
+			{
+				// Unpaired, String.getBytes() replaces these with '?'
+				buf[pos++] = (byte) '?';
+			}
+			else
+			{
+				buf[pos++] = (byte) (0xE0 | (c >> 12));
+				buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buf[pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+
+		ByteUtils.writeInt(buf, pos - start, this.position);
+		this.position = pos;
+		return this;
+	}
+
+	/**
+	 * @return the number of bytes put so far (including the command)
+	 */
+	public int size()
+	{
+		return this.position;
+	}
+
+	/**
+	 * Makes the packet. The builder can't be used after this.
+	 * @return the packet, positioned at its end
+	 */
+	public CalicoPacket build()
+	{
+		byte[] data = new byte[this.position];
+		System.arraycopy(this.buffer, 0, data, 0, this.position);
+
+		// Give the scratch buffer back to the thread (unless it grew into something huge)
+		if(this.buffer.length<=INITIAL_SCRATCH_SIZE * 256)
+		{
+			scratch.set(this.buffer);
+		}
+		this.buffer = null;
+
+		CalicoPacket p = new CalicoPacket(data, true);
+		p.setPosition(data.length);
+		return p;
+	}
+}
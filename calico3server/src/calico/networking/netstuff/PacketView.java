@@ -0,0 +1,117 @@
+package calico.networking.netstuff;
+
+/**
+ * A read only view of an inbound packet that reads fields by their number in the
+ * NetCommandFormat, at the offsets the format worked out. Nothing is copied and the
+ * packet's position is left alone.
+ *
+ * PacketView v = PacketView.of(p);
+ * long uuid = v.getLong(0);
+ * int x = v.getInt(1);
+ *
+ * of() hands back the same view every time on a thread, so read what you need before
+ * passing the packet to anything that might make its own view.
+ */
+public class PacketView
+{
+	private static ThreadLocal<PacketView> views = new ThreadLocal<PacketView>() {
+		protected PacketView initialValue()
+		{
+			return new PacketView();
+		}
+	};
+
+	private CalicoPacket packet = null;
+	private NetCommandFormat format = null;
+
+	/**
+	 * Points this thread's view at the packet
+	 * @param p
+	 * @return
+	 */
+	public static PacketView of(CalicoPacket p)
+	{
+		return views.get().wrap(p, NetworkCommand.getFormat(p.getCommand()));
+	}
+
+	public PacketView wrap(CalicoPacket p, NetCommandFormat fmt)
+	{
+		this.packet = p;
+		this.format = fmt;
+		return this;
+	}
+
+	public CalicoPacket getPacket()
+	{
+		return this.packet;
+	}
+
+	public NetCommandFormat getFormat()
+	{
+		return this.format;
+	}
+
+	/**
+	 * @param field
+	 * @param type what the caller thinks the field is
+	 * @return the offset of the field
+	 */
+	private int offsetOf(int field, char type)
+	{
+		if(field>=this.format.getFieldCount() || this.format.getFieldType(field)!=type)
+		{
+			throw new IllegalArgumentException(this.format.getName()+" ("+this.format.getFormat()+") has no '"+type+"' field "+field);
+		}
+		int offset = this.format.getOffset(field);
+		if(offset==-1)
+		{
+			throw new IllegalArgumentException(this.format.getName()+" ("+this.format.getFormat()+") field "+field+" is not at a fixed offset");
+		}
+		return offset;
+	}
+
+	public long getLong(int field)
+	{
+		return this.packet.getLongAt(offsetOf(field, 'L'));
+	}
+
+	public int getInt(int field)
+	{
+		return this.packet.getIntAt(offsetOf(field, 'I'));
+	}
+
+	public int getCharInt(int field)
+	{
+		return (int) this.packet.getCharAt(offsetOf(field, 'i'));
+	}
+
+	public float getFloat(int field)
+	{
+		return Float.intBitsToFloat(this.packet.getIntAt(offsetOf(field, 'f')));
+	}
+
+	public double getDouble(int field)
+	{
+		return Double.longBitsToDouble(this.packet.getLongAt(offsetOf(field, 'd')));
+	}
+
+	public boolean getBoolean(int field)
+	{
+		return this.packet.getByteAt(offsetOf(field, 'B'))==1;
+	}
+
+	public int getColorRGB(int field)
+	{
+		return this.packet.getIntAt(offsetOf(field, 'C'));
+	}
+
+	/**
+	 * @param field a field with a fixed offset
+	 * @return the offset just past the field (where repeated data after a count starts)
+	 */
+	public int getEndOffset(int field)
+	{
+		char type = this.format.getFieldType(field);
+		return offsetOf(field, type) + NetCommandFormat.getFieldSize(type);
+	}
+}
@@ -72,7 +72,7 @@ public class CalicoBackupHandler
 		ByteUtils.writeInt(packetSizeBuffer, packet.getBufferSize(), 0);
 		out.write(packetSizeBuffer);
 		
-		out.write(packet.getBuffer());
+		out.write(packet.getBuffer(), 0, packet.getBufferSize());
 	}
 	
 	public static void writeBackupStream(OutputStream fos) throws IOException
@@ -0,0 +1,372 @@
+package calico.utils;
+
+import java.awt.Polygon;
+import java.awt.Shape;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Rectangle2D;
+
+/**
+ * A path read once into plain arrays, so it can be tested over and over without walking
+ * the path (or making a Point for every vertex) each time.
+ *
+ * It keeps the vertices exactly as Geometry.getPolyFromPath would give them, the bounding
+ * box of every coordinate in the path, and a table of the path's segments (lines, quads and
+ * cubics, plus the closing line of each subpath). contains() counts crossings over that
+ * table the same way Path2D.contains does, curves included, so it gives the same answers,
+ * it just gets to skip most of the work when the point is outside the box.
+ *
+ * Never changes once made, so whoever caches one just drops it when their path changes.
+ */
+public class PathGeometry
+{
+	private static final byte LINE = 0;
+	private static final byte QUAD = 1;
+	private static final byte CUBIC = 2;
+
+	// Per segment: x0 y0 cx0 cy0 cx1 cy1 x1 y1 (unused control points are left 0)
+	private static final int STRIDE = 8;
+
+	private final int npoints;
+	private final int[] xpoints;
+	private final int[] ypoints;
+
+	private final double minX, minY, maxX, maxY;
+
+	private final int segments;
+	private final byte[] types;
+	private final double[] coords;
+	private final double[] segMinY;
+	private final double[] segMaxY;
+
+	private final boolean nonZero;
+	private final boolean empty;
+
+	private PathGeometry(Shape shape)
+	{
+		Polygon poly = Geometry.getPolyFromPath(shape.getPathIterator(null));
+		this.npoints = poly.npoints;
+		this.xpoints = new int[poly.npoints];
+		this.ypoints = new int[poly.npoints];
+		System.arraycopy(poly.xpoints, 0, this.xpoints, 0, poly.npoints);
+		System.arraycopy(poly.ypoints, 0, this.ypoints, 0, poly.npoints);
+
+		PathIterator it = shape.getPathIterator(null);
+		this.nonZero = it.getWindingRule()==PathIterator.WIND_NON_ZERO;
+
+		byte[] segTypes = new byte[16];
+		double[] segCoords = new double[16 * STRIDE];
+		int count = 0;
+		int pathTypes = 0;
+
+		double[] point = new double[6];
+		double movx = 0, movy = 0, curx = 0, cury = 0;
+		double bx0 = Double.POSITIVE_INFINITY, by0 = Double.POSITIVE_INFINITY;
+		double bx1 = Double.NEGATIVE_INFINITY, by1 = Double.NEGATIVE_INFINITY;
+
+		// The same walk as Path2D.pointCrossings, but writing the segments down instead
+		while(!it.isDone())
+		{
+			int type = it.currentSegment(point);
+			int coordCount = 0;
+
+			if(segTypes.length < count + 2)
+			{
+				byte[] t = new byte[segTypes.length * 2];
+				System.arraycopy(segTypes, 0, t, 0, count);
+				segTypes = t;
+				double[] c = new double[segTypes.length * STRIDE];
+				System.arraycopy(segCoords, 0, c, 0, count * STRIDE);
+				segCoords = c;
+			}
+
+			switch(type)
+			{
+				case PathIterator.SEG_MOVETO:
+					if(pathTypes>0 && cury!=movy)
+					{
+						count = putLine(segTypes, segCoords, count, curx, cury, movx, movy);
+					}
+					movx = curx = point[0];
+					movy = cury = point[1];
+					coordCount = 1;
+					break;
+				case PathIterator.SEG_LINETO:
+					count = putLine(segTypes, segCoords, count, curx, cury, point[0], point[1]);
+					curx = point[0];
+					cury = point[1];
+					coordCount = 1;
+					break;
+				case PathIterator.SEG_QUADTO:
+					segTypes[count] = QUAD;
+					put(segCoords, count, curx, cury, point[0], point[1], 0, 0, point[2], point[3]);
+					count++;
+					curx = point[2];
+					cury = point[3];
+					coordCount = 2;
+					break;
+				case PathIterator.SEG_CUBICTO:
+					segTypes[count] = CUBIC;
+					put(segCoords, count, curx, cury, point[0], point[1], point[2], point[3], point[4], point[5]);
+					count++;
+					curx = point[4];
+					cury = point[5];
+					coordCount = 3;
+					break;
+				case PathIterator.SEG_CLOSE:
+					if(cury!=movy)
+					{
+						count = putLine(segTypes, segCoords, count, curx, cury, movx, movy);
+					}
+					curx = movx;
+					cury = movy;
+					break;
+			}
+
+			for(int i=0;i<coordCount;i++)
+			{
+				bx0 = Math.min(bx0, point[i*2]);
+				bx1 = Math.max(bx1, point[i*2]);
+				by0 = Math.min(by0, point[i*2+1]);
+				by1 = Math.max(by1, point[i*2+1]);
+			}
+
+			pathTypes++;
+			it.next();
+		}
+		if(pathTypes>0 && cury!=movy)
+		{
+			if(segTypes.length < count + 1)
+			{
+				byte[] t = new byte[count + 1];
+				System.arraycopy(segTypes, 0, t, 0, count);
+				segTypes = t;
+				double[] c = new double[(count + 1) * STRIDE];
+				System.arraycopy(segCoords, 0, c, 0, count * STRIDE);
+				segCoords = c;
+			}
+			count = putLine(segTypes, segCoords, count, curx, cury, movx, movy);
+		}
+
+		this.empty = pathTypes < 2;
+		if(bx0 > bx1)
+		{
+			bx0 = bx1 = by0 = by1 = 0;
+		}
+		this.minX = bx0;
+		this.minY = by0;
+		this.maxX = bx1;
+		this.maxY = by1;
+
+		this.segments = count;
+		this.types = segTypes;
+		this.coords = segCoords;
+		this.segMinY = new double[count];
+		this.segMaxY = new double[count];
+		for(int s=0;s<count;s++)
+		{
+			int c = s * STRIDE;
+			double lo = Math.min(segCoords[c+1], segCoords[c+7]);
+			double hi = Math.max(segCoords[c+1], segCoords[c+7]);
+			if(segTypes[s]!=LINE)
+			{
+				lo = Math.min(lo, segCoords[c+3]);
+				hi = Math.max(hi, segCoords[c+3]);
+			}
+			if(segTypes[s]==CUBIC)
+			{
+				lo = Math.min(lo, segCoords[c+5]);
+				hi = Math.max(hi, segCoords[c+5]);
+			}
+			this.segMinY[s] = lo;
+			this.segMaxY[s] = hi;
+		}
+	}
+
+	private static int putLine(byte[] types, double[] coords, int count, double x0, double y0, double x1, double y1)
+	{
+		types[count] = LINE;
+		put(coords, count, x0, y0, 0, 0, 0, 0, x1, y1);
+		return count + 1;
+	}
+
+	private static void put(double[] coords, int seg, double x0, double y0, double cx0, double cy0, double cx1, double cy1, double x1, double y1)
+	{
+		int c = seg * STRIDE;
+		coords[c] = x0;
+		coords[c+1] = y0;
+		coords[c+2] = cx0;
+		coords[c+3] = cy0;
+		coords[c+4] = cx1;
+		coords[c+5] = cy1;
+		coords[c+6] = x1;
+		coords[c+7] = y1;
+	}
+
+	/**
+	 * @param shape
+	 * @return the shape's geometry, or null if shape is null
+	 */
+	public static PathGeometry of(Shape shape)
+	{
+		return shape==null ? null : new PathGeometry(shape);
+	}
+
+	/**
+	 * @return how many vertices Geometry.getPolyFromPath would give
+	 */
+	public int getNumPoints()
+	{
+		return this.npoints;
+	}
+
+	public int getX(int i)
+	{
+		return this.xpoints[i];
+	}
+
+	public int getY(int i)
+	{
+		return this.ypoints[i];
+	}
+
+	/**
+	 * @return a new Polygon of the vertices, the same as Geometry.getPolyFromPath
+	 */
+	public Polygon toPolygon()
+	{
+		return new Polygon(this.xpoints, this.ypoints, this.npoints);
+	}
+
+	/**
+	 * @return the box around every coordinate in the path, the same as the path's getBounds2D()
+	 */
+	public Rectangle2D getBounds2D()
+	{
+		return new Rectangle2D.Double(this.minX, this.minY, this.maxX - this.minX, this.maxY - this.minY);
+	}
+
+	/**
+	 * Same answer as Path2D.contains(x, y) on the path this was made from
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public boolean contains(double x, double y)
+	{
+		if(!(x * 0.0 + y * 0.0 == 0.0) || this.empty)
+		{
+			return false;
+		}
+
+		// Outside the box nothing crosses (or everything cancels out)
+		if(x < this.minX || x >= this.maxX || y < this.minY || y >= this.maxY)
+		{
+			return false;
+		}
+
+		int crossings = 0;
+		for(int s=0;s<this.segments;s++)
+		{
+			if(y < this.segMinY[s] || y >= this.segMaxY[s])
+			{
+				continue;
+			}
+			int c = s * STRIDE;
+			switch(this.types[s])
+			{
+				case LINE:
+					crossings += crossingsForLine(x, y, this.coords[c], this.coords[c+1], this.coords[c+6], this.coords[c+7]);
+					break;
+				case QUAD:
+					crossings += crossingsForQuad(x, y, this.coords[c], this.coords[c+1], this.coords[c+2], this.coords[c+3],
+						this.coords[c+6], this.coords[c+7], 0);
+					break;
+				default:
+					crossings += crossingsForCubic(x, y, this.coords[c], this.coords[c+1], this.coords[c+2], this.coords[c+3],
+						this.coords[c+4], this.coords[c+5], this.coords[c+6], this.coords[c+7], 0);
+					break;
+			}
+		}
+		return (crossings & (this.nonZero ? -1 : 1)) != 0;
+	}
+
+	// The crossing counts below follow java.awt.geom's own, so the answers match Path2D's
+
+	private static int crossingsForLine(double px, double py, double x0, double y0, double x1, double y1)
+	{
+		if(py < y0 && py < y1) return 0;
+		if(py >= y0 && py >= y1) return 0;
+		if(px >= x0 && px >= x1) return 0;
+		if(px < x0 && px < x1) return (y0 < y1) ? 1 : -1;
+		double xintercept = x0 + (py - y0) * (x1 - x0) / (y1 - y0);
+		if(px >= xintercept) return 0;
+		return (y0 < y1) ? 1 : -1;
+	}
+
+	private static int crossingsForQuad(double px, double py, double x0, double y0, double xc, double yc, double x1, double y1, int level)
+	{
+		if(py < y0 && py < yc && py < y1) return 0;
+		if(py >= y0 && py >= yc && py >= y1) return 0;
+		if(px >= x0 && px >= xc && px >= x1) return 0;
+		if(px < x0 && px < xc && px < x1)
+		{
+			if(py >= y0)
+			{
+				if(py < y1) return 1;
+			}
+			else
+			{
+				if(py >= y1) return -1;
+			}
+			return 0;
+		}
+		// A double only has 52 bits of mantissa
+		if(level > 52) return crossingsForLine(px, py, x0, y0, x1, y1);
+		double x0c = (x0 + xc) / 2;
+		double y0c = (y0 + yc) / 2;
+		double xc1 = (xc + x1) / 2;
+		double yc1 = (yc + y1) / 2;
+		xc = (x0c + xc1) / 2;
+		yc = (y0c + yc1) / 2;
+		if(Double.isNaN(xc) || Double.isNaN(yc)) return 0;
+		return crossingsForQuad(px, py, x0, y0, x0c, y0c, xc, yc, level+1)
+			+ crossingsForQuad(px, py, xc, yc, xc1, yc1, x1, y1, level+1);
+	}
+
+	private static int crossingsForCubic(double px, double py, double x0, double y0, double xc0, double yc0,
+		double xc1, double yc1, double x1, double y1, int level)
+	{
+		if(py < y0 && py < yc0 && py < yc1 && py < y1) return 0;
+		if(py >= y0 && py >= yc0 && py >= yc1 && py >= y1) return 0;
+		if(px >= x0 && px >= xc0 && px >= xc1 && px >= x1) return 0;
+		if(px < x0 && px < xc0 && px < xc1 && px < x1)
+		{
+			if(py >= y0)
+			{
+				if(py < y1) return 1;
+			}
+			else
+			{
+				if(py >= y1) return -1;
+			}
+			return 0;
+		}
+		// A double only has 52 bits of mantissa
+		if(level > 52) return crossingsForLine(px, py, x0, y0, x1, y1);
+		double xmid = (xc0 + xc1) / 2;
+		double ymid = (yc0 + yc1) / 2;
+		xc0 = (x0 + xc0) / 2;
+		yc0 = (y0 + yc0) / 2;
+		xc1 = (xc1 + x1) / 2;
+		yc1 = (yc1 + y1) / 2;
+		double xc0m = (xc0 + xmid) / 2;
+		double yc0m = (yc0 + ymid) / 2;
+		double xmc1 = (xmid + xc1) / 2;
+		double ymc1 = (ymid + yc1) / 2;
+		xmid = (xc0m + xmc1) / 2;
+		ymid = (yc0m + ymc1) / 2;
+		if(Double.isNaN(xmid) || Double.isNaN(ymid)) return 0;
+		return crossingsForCubic(px, py, x0, y0, xc0, yc0, xc0m, yc0m, xmid, ymid, level+1)
+			+ crossingsForCubic(px, py, xmid, ymid, xmc1, ymc1, xc1, yc1, x1, y1, level+1);
+	}
+}
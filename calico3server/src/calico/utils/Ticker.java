@@ -2,6 +2,7 @@ package calico.utils;
 
 import calico.COptions;
 import calico.CalicoServer;
+import calico.CanvasExecutor;
 import calico.networking.*;
 import calico.networking.netstuff.*;
 import calico.COptions.server;
@@ -71,6 +72,15 @@ public class Ticker extends Thread
 			}
 		});
 		
+		// Move canvases off busy workers
+		Ticker.scheduleOnTick(Ticker.TICKRATE * Math.max(1, COptions.canvas.rebalance_seconds), new TickerTask(){
+			public boolean runtask()
+			{
+				CanvasExecutor.rebalance();
+				return true;
+			}
+		});
+		
 		/// AUTO BACKUP
 		if(COptions.server.backup.enable_autobackup)
 		{
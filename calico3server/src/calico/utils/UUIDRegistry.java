@@ -0,0 +1,217 @@
+package calico.utils;
+
+import it.unimi.dsi.fastutil.longs.Long2ReferenceLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongLinkedOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Elements by uuid (groups, arrows, canvases...).
+ *
+ * This used to be a Long2ReferenceArrayMap, which scans the whole array on every get, so
+ * anything that looked elements up inside a loop (parenting, getUpdatePackets) got slower
+ * with every element on the server. This is an open addressing hash map instead, so lookups
+ * stay flat. It is a linked one so iteration is still in the order things were added, which
+ * is what the array map gave (canvases are listed in that order, for one).
+ *
+ * Canvases run on different CanvasExecutor workers, so lookups can happen while another
+ * canvas is adding or removing. Reads share a read lock and writes take the write lock.
+ * keySet() and values() hand back copies, so they are safe to walk while things change.
+ */
+public class UUIDRegistry<V>
+{
+	private final Long2ReferenceLinkedOpenHashMap<V> map;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	public UUIDRegistry()
+	{
+		this.map = new Long2ReferenceLinkedOpenHashMap<V>();
+	}
+
+	public UUIDRegistry(int expected)
+	{
+		this.map = new Long2ReferenceLinkedOpenHashMap<V>(expected);
+	}
+
+	public V get(long uuid)
+	{
+		this.lock.readLock().lock();
+		try
+		{
+			return this.map.get(uuid);
+		}
+		finally
+		{
+			this.lock.readLock().unlock();
+		}
+	}
+
+	public boolean containsKey(long uuid)
+	{
+		this.lock.readLock().lock();
+		try
+		{
+			return this.map.containsKey(uuid);
+		}
+		finally
+		{
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param uuid
+	 * @param value
+	 * @return whatever was there before, or null
+	 */
+	public V put(long uuid, V value)
+	{
+		this.lock.writeLock().lock();
+		try
+		{
+			return this.map.put(uuid, value);
+		}
+		finally
+		{
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @param uuid
+	 * @param value
+	 * @return whatever was there already (and was left there), or null if value went in
+	 */
+	public V putIfAbsent(long uuid, V value)
+	{
+		this.lock.writeLock().lock();
+		try
+		{
+			V current = this.map.get(uuid);
+			if(current!=null)
+			{
+				return current;
+			}
+			this.map.put(uuid, value);
+			return null;
+		}
+		finally
+		{
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @param uuid
+	 * @return whatever was removed, or null
+	 */
+	public V remove(long uuid)
+	{
+		this.lock.writeLock().lock();
+		try
+		{
+			return this.map.remove(uuid);
+		}
+		finally
+		{
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes uuid only if it still maps to expected
+	 * @param uuid
+	 * @param expected
+	 * @return true if it was removed
+	 */
+	public boolean remove(long uuid, V expected)
+	{
+		this.lock.writeLock().lock();
+		try
+		{
+			if(this.map.get(uuid)!=expected)
+			{
+				return false;
+			}
+			this.map.remove(uuid);
+			return true;
+		}
+		finally
+		{
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	public void clear()
+	{
+		this.lock.writeLock().lock();
+		try
+		{
+			this.map.clear();
+		}
+		finally
+		{
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	public int size()
+	{
+		this.lock.readLock().lock();
+		try
+		{
+			return this.map.size();
+		}
+		finally
+		{
+			this.lock.readLock().unlock();
+		}
+	}
+
+	public boolean isEmpty()
+	{
+		return size()==0;
+	}
+
+	/**
+	 * @return a copy of the uuids, in the order they were added
+	 */
+	public long[] keys()
+	{
+		this.lock.readLock().lock();
+		try
+		{
+			return this.map.keySet().toLongArray();
+		}
+		finally
+		{
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return a copy of the uuids, in the order they were added
+	 */
+	public LongSet keySet()
+	{
+		return new LongLinkedOpenHashSet(keys());
+	}
+
+	/**
+	 * @return a copy of the elements, in the order they were added
+	 */
+	public ObjectArrayList<V> values()
+	{
+		this.lock.readLock().lock();
+		try
+		{
+			return new ObjectArrayList<V>(this.map.values());
+		}
+		finally
+		{
+			this.lock.readLock().unlock();
+		}
+	}
+}
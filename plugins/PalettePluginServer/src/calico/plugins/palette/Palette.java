@@ -86,7 +86,7 @@ public class Palette {
 		for (CalicoPacket cp : paletteItems)
 		{
 			p.putInt(cp.getLength());
-			p.putByte(cp.getBuffer());
+			p.putByte(cp.detachBuffer());
 		}
 		
 		return p;
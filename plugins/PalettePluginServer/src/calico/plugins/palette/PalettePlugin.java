@@ -2,7 +2,6 @@ package calico.plugins.palette;
 
 import it.unimi.dsi.fastutil.longs.Long2ReferenceArrayMap;
 import it.unimi.dsi.fastutil.longs.Long2ReferenceOpenHashMap;
-import it.unimi.dsi.fastutil.longs.LongSet;
 
 import java.awt.Color;
 import java.awt.Image;
@@ -75,11 +74,6 @@ public class PalettePlugin extends AbstractCalicoPlugin
 		{
 			System.out.println("PalettePlugin: attempting to listen for " + event.intValue());
 			CalicoEventHandler.getInstance().addListener(event.intValue(), this, CalicoEventHandler.ACTION_PERFORMER_LISTENER);
-			LongSet canvasKeys = CCanvasController.canvases.keySet();
-			for (Long canvaskey : canvasKeys)
-			{
-				CalicoEventHandler.getInstance().addListener(event.intValue(), CCanvasController.canvases.get(canvaskey.longValue()), CalicoEventHandler.PASSIVE_LISTENER);
-			}
 		}
 		
 		CalicoPluginManager.registerCalicoStateExtension(this);
@@ -169,7 +163,7 @@ public class PalettePlugin extends AbstractCalicoPlugin
 		for (int i = 0; i < subPackets.length; i++)
 		{
 			pastePacket.putInt(newPackets[i].getBufferSize());
-			pastePacket.putBytes(newPackets[i].getBuffer());
+			pastePacket.putBytes(newPackets[i].detachBuffer());
 		}
 		
 		return pastePacket;
@@ -227,7 +221,7 @@ public class PalettePlugin extends AbstractCalicoPlugin
 		long newDecoratedGroup = 0;
 		for (int i = 0; i < subItems.length; i++)
 		{
-			newSubItems[i] = new CalicoPacket(subItems[i].getBuffer());
+			newSubItems[i] = subItems[i].copy();
 			//get old uuid
 			subItems[i].rewind();
 			comm = subItems[i].getInt();
@@ -4,6 +4,7 @@ import calico.clients.Client;
 import calico.clients.ClientManager;
 import calico.events.CalicoEventHandler;
 import calico.events.CalicoEventListener;
+import calico.networking.UDPPacketHandler;
 import calico.networking.netstuff.CalicoPacket;
 import calico.plugins.AbstractCalicoPlugin;
 
@@ -22,6 +23,8 @@ public class UserListPlugin extends AbstractCalicoPlugin
 		for (Integer event : this.getNetworkCommands())
 		{
 			CalicoEventHandler.getInstance().addListener(event.intValue(), this, CalicoEventHandler.ACTION_PERFORMER_LISTENER);
+			// pen/audio status is fine to lose, clients may send it over UDP
+			UDPPacketHandler.registerEphemeralCommand(event.intValue());
 		}
 	}
 	
@@ -32,19 +35,19 @@ public class UserListPlugin extends AbstractCalicoPlugin
 		{
 			case UserListNetworkCommands.AUDIO_START:
 				if (client != null)
-					ClientManager.send_except(client, p);
+					ClientManager.send_ephemeral_except(client, p);
 				break;
 			case UserListNetworkCommands.AUDIO_END:
 				if (client != null)
-					ClientManager.send_except(client, p);
+					ClientManager.send_ephemeral_except(client, p);
 				break;
 			case UserListNetworkCommands.PEN_START:
 				if (client != null)
-					ClientManager.send_except(client, p);
+					ClientManager.send_ephemeral_except(client, p);
 				break;
 			case UserListNetworkCommands.PEN_END:
 				if (client != null)
-					ClientManager.send_except(client, p);
+					ClientManager.send_ephemeral_except(client, p);
 				break;
 		}
 	}